@@ -0,0 +1,120 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traversal and single pixel query for every selection mode and every test
+ * (the most accurate enabled test decides). The pointer moves each frame, so
+ * the hover coherence does not skip the work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PickSelectionBenchmark {
+
+    public enum SelectionMode {
+        HOVER, CLICK, CLICK_GROUP, CLICK_TOGGLE, BOX, BOX_GROUP, BOX_TOGGLE, BOX_UNION
+    }
+
+    public enum PickTest {
+        SPHERE, AABB, SCREEN_BOX, OBB_TRIANGLES, MESH_TRIANGLES, FBO_PIXELS
+    }
+
+    @Param
+    public SelectionMode mode;
+
+    @Param
+    public PickTest test;
+
+    @Param({"1000"})
+    public int objectCount;
+
+    private PickSelection pickSelection;
+    private int frame = 0;
+
+    @Setup
+    public void setUp() {
+        Array<SpatialObject> objects = TestScenes.createGrid(TestScenes.createQuadModel(), objectCount);
+        PerspectiveCamera camera = TestScenes.createCamera();
+        pickSelection = TestScenes.createPickSelection(camera, objects);
+        final int[] owners = new int[TestScenes.SCREEN_WIDTH * TestScenes.SCREEN_HEIGHT];
+        for (int i = 0; i < owners.length; i++)
+            owners[i] = (i * 7) % (objectCount + 20) - 20;
+        pickSelection.setPixelChecker(new PickSelection.PixelChecker() {
+            @Override
+            public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+                for (int y = (int) area.y; y < area.y + area.height; y++) {
+                    for (int x = (int) area.x; x < area.x + area.width; x++) {
+                        if (x < 0 || y < 0 || x >= TestScenes.SCREEN_WIDTH || y >= TestScenes.SCREEN_HEIGHT)
+                            continue;
+                        if (owners[y * TestScenes.SCREEN_WIDTH + x] == colorValue)
+                            return true;
+                    }
+                }
+                return false;
+            }
+        });
+
+        // falls through - the more accurate tests run after the cheaper ones
+        switch (test) {
+            case FBO_PIXELS:
+                pickSelection.setCheckFBOPixels(true);
+            case MESH_TRIANGLES:
+                pickSelection.setCheckMeshTriangles(true);
+            case OBB_TRIANGLES:
+                pickSelection.setCheckOBBTriangles(true);
+            case SCREEN_BOX:
+                pickSelection.setCheckOnScreenBoxes(true);
+            case AABB:
+                pickSelection.setCheckAABBs(true);
+            default:
+                break;
+        }
+
+        if (mode == SelectionMode.HOVER) {
+            pickSelection.setOnHover(true);
+        } else {
+            pickSelection.setOnClick(true);
+            pickSelection.setUsePickingBox(mode.ordinal() >= SelectionMode.BOX.ordinal());
+            pickSelection.setGroupSelectionMode(mode == SelectionMode.CLICK_GROUP || mode == SelectionMode.BOX_GROUP);
+            pickSelection.setToggleSelectionMode(mode == SelectionMode.CLICK_TOGGLE || mode == SelectionMode.BOX_TOGGLE);
+            if (mode == SelectionMode.BOX_UNION)
+                pickSelection.setBoxSelectionOperation(PickSelection.SelectionOperation.UNION);
+            pickSelection.setPickerCoord(10, 10);
+            pickSelection.click();
+        }
+    } // void setUp()
+
+    @Benchmark
+    public int traverse() {
+        frame++;
+        pickSelection.setPickerCoord(frame % 97, (frame * 3) % 89);
+        pickSelection.traverse(true);
+        return pickSelection.count();
+    }
+
+    @Benchmark
+    public int pickObjectID() {
+        frame++;
+        return pickSelection.pickObjectID(frame % 97, (frame * 3) % 89, null);
+    }
+
+} // class PickSelectionBenchmark
@@ -0,0 +1,249 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Frustum;
+import com.badlogic.gdx.math.Plane;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Frustum culling helper using plane masks and temporal coherence.
+ * Every test receives a mask of the planes that still need checking (a bit
+ * cleared means the volume is already known to be inside that plane, e.g.
+ * because the parent volume was fully inside) and a hint - the index of the
+ * plane that rejected the volume last time. The hint plane is tested first,
+ * so a slowly moving camera usually rejects objects with a single test.
+ * The returned value is the mask that should be passed down to the children
+ * or OUTSIDE when the volume is not visible at all.
+ * Not thread safe - use one instance per worker thread.
+ */
+public class FrustumCuller {
+
+    /* Returned when the volume is completely outside of the frustum */
+    public static final int OUTSIDE = -1;
+    /* Mask with all of the six frustum planes requiring the check */
+    public static final int ALL_PLANES = 63;
+    /* Mask for the volume which is completely inside of the frustum */
+    public static final int INSIDE = 0;
+    /* No plane index - no rejecting plane */
+    public static final int NO_PLANE = -1;
+    /* Number of planes in the frustum */
+    public static final int NUM_PLANES = 6;
+
+    /* Currently used frustum - can be null */
+    protected Frustum frustum = null;
+    /* Index of the plane that rejected the last tested volume */
+    protected int rejectedPlane = NO_PLANE;
+    /* Number of single plane tests since the last reset */
+    protected int planeTestCount = 0;
+    /* Number of volumes tested since the last reset */
+    protected int volumeTestCount = 0;
+    /* Number of volumes rejected since the last reset */
+    protected int rejectedCount = 0;
+
+    //-------------------------------------------------------------------------
+
+    public FrustumCuller() {
+    }
+
+    public FrustumCuller(Frustum frustum) {
+        this.frustum = frustum;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void setFrustum(Frustum frustum) {
+        this.frustum = frustum;
+    }
+
+    public Frustum getFrustum() {
+        return frustum;
+    }
+
+    public int getRejectedPlane() {
+        return rejectedPlane;
+    }
+
+    public int getPlaneTestCount() {
+        return planeTestCount;
+    }
+
+    public int getVolumeTestCount() {
+        return volumeTestCount;
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Resets the statistics - should be called once per frame
+     */
+    public void resetCounters() {
+        planeTestCount = 0;
+        volumeTestCount = 0;
+        rejectedCount = 0;
+        rejectedPlane = NO_PLANE;
+    }
+
+    /**
+     * Appends the statistics of the other culler (used by worker threads)
+     */
+    public void addCounters(FrustumCuller other) {
+        planeTestCount += other.planeTestCount;
+        volumeTestCount += other.volumeTestCount;
+        rejectedCount += other.rejectedCount;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int testBox(Vector3 center, Vector3 extent, int planeMask, int hintPlane) {
+        return testBox(center.x, center.y, center.z,
+                extent.x, extent.y, extent.z,
+                planeMask, hintPlane);
+    }
+
+    public int testBox(float cx, float cy, float cz,
+                       float ex, float ey, float ez,
+                       int planeMask, int hintPlane) {
+        rejectedPlane = NO_PLANE;
+        if (planeMask == INSIDE)
+            return INSIDE; // parent is already inside - nothing to check
+        volumeTestCount++;
+        final Plane[] planes = frustum.planes;
+        if (hintPlane >= 0 && (planeMask & (1 << hintPlane)) != 0) {
+            final int side = classifyBox(planes[hintPlane], cx, cy, cz, ex, ey, ez);
+            if (side < 0) {
+                rejectedPlane = hintPlane;
+                rejectedCount++;
+                return OUTSIDE;
+            } else if (side > 0) {
+                planeMask &= ~(1 << hintPlane);
+            }
+        }
+        for (int i = 0; i < NUM_PLANES; i++) {
+            if (i == hintPlane || (planeMask & (1 << i)) == 0)
+                continue;
+            final int side = classifyBox(planes[i], cx, cy, cz, ex, ey, ez);
+            if (side < 0) {
+                rejectedPlane = i;
+                rejectedCount++;
+                return OUTSIDE;
+            } else if (side > 0) {
+                planeMask &= ~(1 << i);
+            }
+        } // for each plane still requiring the check
+        return planeMask;
+    } // int testBox(...)
+
+    public int testSphere(Vector3 center, float radius, int planeMask, int hintPlane) {
+        return testSphere(center.x, center.y, center.z, radius, planeMask, hintPlane);
+    }
+
+    public int testSphere(float cx, float cy, float cz, float radius,
+                          int planeMask, int hintPlane) {
+        rejectedPlane = NO_PLANE;
+        if (planeMask == INSIDE)
+            return INSIDE;
+        volumeTestCount++;
+        final Plane[] planes = frustum.planes;
+        if (hintPlane >= 0 && (planeMask & (1 << hintPlane)) != 0) {
+            final int side = classifySphere(planes[hintPlane], cx, cy, cz, radius);
+            if (side < 0) {
+                rejectedPlane = hintPlane;
+                rejectedCount++;
+                return OUTSIDE;
+            } else if (side > 0) {
+                planeMask &= ~(1 << hintPlane);
+            }
+        }
+        for (int i = 0; i < NUM_PLANES; i++) {
+            if (i == hintPlane || (planeMask & (1 << i)) == 0)
+                continue;
+            final int side = classifySphere(planes[i], cx, cy, cz, radius);
+            if (side < 0) {
+                rejectedPlane = i;
+                rejectedCount++;
+                return OUTSIDE;
+            } else if (side > 0) {
+                planeMask &= ~(1 << i);
+            }
+        } // for each plane still requiring the check
+        return planeMask;
+    } // int testSphere(...)
+
+    public int testOrientedBox(OrientedBox box, int planeMask, int hintPlane) {
+        rejectedPlane = NO_PLANE;
+        if (planeMask == INSIDE)
+            return INSIDE;
+        volumeTestCount++;
+        final Plane[] planes = frustum.planes;
+        if (hintPlane >= 0 && (planeMask & (1 << hintPlane)) != 0) {
+            final int side = classifyOrientedBox(planes[hintPlane], box);
+            if (side < 0) {
+                rejectedPlane = hintPlane;
+                rejectedCount++;
+                return OUTSIDE;
+            } else if (side > 0) {
+                planeMask &= ~(1 << hintPlane);
+            }
+        }
+        for (int i = 0; i < NUM_PLANES; i++) {
+            if (i == hintPlane || (planeMask & (1 << i)) == 0)
+                continue;
+            final int side = classifyOrientedBox(planes[i], box);
+            if (side < 0) {
+                rejectedPlane = i;
+                rejectedCount++;
+                return OUTSIDE;
+            } else if (side > 0) {
+                planeMask &= ~(1 << i);
+            }
+        } // for each plane still requiring the check
+        return planeMask;
+    } // int testOrientedBox(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * @return -1 if the box is behind the plane (outside), 1 if it's completely
+     * in front of the plane, 0 when intersecting
+     */
+    protected int classifyBox(Plane plane, float cx, float cy, float cz,
+                              float ex, float ey, float ez) {
+        planeTestCount++;
+        final Vector3 n = plane.normal;
+        final float distance = n.x * cx + n.y * cy + n.z * cz + plane.d;
+        final float radius = Math.abs(n.x) * ex + Math.abs(n.y) * ey + Math.abs(n.z) * ez;
+        if (distance + radius < 0.0f)
+            return -1;
+        if (distance - radius >= 0.0f)
+            return 1;
+        return 0;
+    } // int classifyBox(...)
+
+    protected int classifySphere(Plane plane, float cx, float cy, float cz, float radius) {
+        planeTestCount++;
+        final Vector3 n = plane.normal;
+        final float distance = n.x * cx + n.y * cy + n.z * cz + plane.d;
+        if (distance < -radius)
+            return -1;
+        if (distance >= radius)
+            return 1;
+        return 0;
+    } // int classifySphere(...)
+
+    protected int classifyOrientedBox(Plane plane, OrientedBox box) {
+        planeTestCount++;
+        final Vector3 n = plane.normal;
+        final Vector3 c = box.center;
+        final float distance = n.x * c.x + n.y * c.y + n.z * c.z + plane.d;
+        final float radius = box.projectedRadius(n.x, n.y, n.z);
+        if (distance + radius < 0.0f)
+            return -1;
+        if (distance - radius >= 0.0f)
+            return 1;
+        return 0;
+    } // int classifyOrientedBox(...)
+
+    //-------------------------------------------------------------------------
+
+} // class FrustumCuller
@@ -2,10 +2,15 @@ package com.flexigame.fg.gfx;
 
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
 import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.Intersector;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
 import com.flexigame.fg.utils.AbstractFlags;
 
 /**
@@ -18,8 +23,12 @@ public class GameObject extends ModelInstance implements SpatialObject {
         public static final int VISIBLE = 1;
         public static final int ACTIVE = 2;
         public static final int SELECTED = 4;
+        /* Bounding box of the object can be used as an occluder */
+        public static final int OCCLUDER = 8;
+        /* Sphere and oriented box fitted to the vertices are used for tests */
+        public static final int TIGHT_BOUNDS = 16;
 
-        public static final int[] values = {NO_FLAGS, VISIBLE, ACTIVE, SELECTED};
+        public static final int[] values = {NO_FLAGS, VISIBLE, ACTIVE, SELECTED, OCCLUDER, TIGHT_BOUNDS};
 
         public StateFlags() {
         }
@@ -42,6 +51,8 @@ public class GameObject extends ModelInstance implements SpatialObject {
 
     //-------------------------------------------------------------------------
 
+    public static final int NO_PARENT = -1;
+
     protected BoundingBox boundingBox = new BoundingBox();
     protected BoundingBox originalBoundingBox = new BoundingBox();
     protected Vector3 center = new Vector3();
@@ -52,16 +63,52 @@ public class GameObject extends ModelInstance implements SpatialObject {
     protected Quaternion tmpQuat = new Quaternion();
     protected float radius = 0.0f;
     private int selfID = 0;
-    private int parentID = 0;
+    private int parentID = NO_PARENT;
     private String name = "";
     private StateFlags stateFlags = new StateFlags();
     protected boolean isTransformed = false;
+    /* Index of the frustum plane which rejected this object last time */
+    protected int cullingPlaneHint = FrustumCuller.NO_PLANE;
+    /* Optional data oriented storage - when set, bounds accessors are views into it */
+    protected TransformStore transformStore = null;
+    protected GameObject parent = null;
+    protected Array<GameObject> children = null;
+    /* Transformation relative to the parent - same instance as transform for root objects */
+    protected Matrix4 localTransform = transform;
+    /* World transformation needs to be recomputed from the parent */
+    protected boolean isWorldDirty = false;
+    /* At least one of the descendants needs to be updated */
+    protected boolean isChildrenDirty = false;
+    /* World bounds of this object and all of its descendants */
+    protected BoundingBox subtreeBoundingBox = new BoundingBox();
+    /* Subtree bounds wait for the batched refit of the transform store */
+    protected boolean isSubtreeBoundsDirty = false;
+    /* Bounds shared by all instances of the model, null when instance specific */
+    protected ModelBoundsCache.Entry modelBounds = null;
+    /* Model space volumes fitted to the vertices - used with TIGHT_BOUNDS flag */
+    protected TightBounds tightBounds = null;
+    /* World space tight bounding sphere and oriented box */
+    protected Vector3 sphereCenter = new Vector3();
+    protected float sphereRadius = 0.0f;
+    protected OrientedBox orientedBox = new OrientedBox();
+    /* All nodes (with children) in depth first order - used for node picking */
+    protected Array<Node> flatNodes = null;
+    /* Index after the last descendant of the node in flatNodes */
+    protected int[] nodeSubtreeEnd = null;
+    /* Bounds of the node's own parts in the node space */
+    protected BoundingBox[] nodeLocalBounds = null;
+    /* World bounds of the node's own parts and of the whole node subtree */
+    protected BoundingBox[] nodeWorldBounds = null;
+    protected BoundingBox[] nodeSubtreeBounds = null;
+    /* World bounds of the nodes need to be recomputed before next use */
+    protected boolean nodeBoundsDirty = true;
+    protected Matrix4 tmpMatrix = new Matrix4();
 
     //-------------------------------------------------------------------------
 
     public GameObject(Model model) {
         super(model);
-        refreshOriginalBoundingBox();
+        setModelBounds(ModelBoundsCache.get(model, null, false, nodes));
     }
 
     public GameObject(String name, Model model) {
@@ -71,7 +118,7 @@ public class GameObject extends ModelInstance implements SpatialObject {
 
     public GameObject(Model model, String rootNode, boolean mergeTransform) {
         super(model, rootNode, mergeTransform);
-        refreshOriginalBoundingBox();
+        setModelBounds(ModelBoundsCache.get(model, rootNode, mergeTransform, nodes));
     }
 
     public GameObject(String name, Model model, String rootNode, boolean mergeTransform) {
@@ -81,6 +128,11 @@ public class GameObject extends ModelInstance implements SpatialObject {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Recomputes the original bounding box by walking the nodes of this
+     * instance - needs to be called when the nodes were modified. From now on
+     * this object no longer uses the bounds shared by the model.
+     */
     public void refreshOriginalBoundingBox() {
         // this bounding box can be invalid if nodes are transformed
         boundingBox.inf();
@@ -92,18 +144,76 @@ public class GameObject extends ModelInstance implements SpatialObject {
         boundingBox.getDimensions(dimensions);
         extent.set(dimensions);
         extent.scl(0.5f);
+        modelBounds = null;
+        flatNodes = null; // nodes could be added or modified
+        tightBounds = null;
+        if (isUseTightBounds())
+            tightBounds = new TightBounds().compute(nodes);
+        onOriginalBoundsChanged();
+    } // void refreshOriginalBoundingBox()
 
+    /**
+     * Uses the bounds shared by all instances of the same model
+     */
+    protected void setModelBounds(ModelBoundsCache.Entry entry) {
+        modelBounds = entry;
+        entry.getBounds(boundingBox);
+        entry.getBounds(originalBoundingBox);
+        entry.getCenter(center);
+        entry.getDimensions(dimensions);
+        entry.getExtent(extent);
+        onOriginalBoundsChanged();
+    } // void setModelBounds(...)
+
+    /**
+     * @return shared model bounds or null if the bounds are instance specific
+     */
+    public ModelBoundsCache.Entry getModelBounds() {
+        return modelBounds;
+    }
+
+    protected void onOriginalBoundsChanged() {
         tmpVec.x = scale.x * extent.x;
         tmpVec.y = scale.y * extent.y;
         tmpVec.z = scale.z * extent.z;
 
         radius = tmpVec.len();
-    } // void refreshOriginalBoundingBox()
+        markBoundsDirty(); // world bounds need to be recomputed
+        if (transformStore != null) {
+            transformStore.setLocalBounds(selfID, originalBoundingBox);
+            transformStore.setTransform(selfID, transform);
+        }
+    } // void onOriginalBoundsChanged()
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Attaches (or detaches when null) the data oriented storage. The slot
+     * in the store needs to be equal to the ID of this object. On detach the
+     * current world bounds are copied back from the store.
+     */
+    public void setTransformStore(TransformStore store) {
+        if (store == null && this.transformStore != null) {
+            this.transformStore.updateBounds(selfID, selfID + 1);
+            getCenter();
+            getExtent();
+            getDimensions();
+            getBoundingBox();
+            radius = getRadius();
+        }
+        this.transformStore = store;
+    } // void setTransformStore(...)
+
+    public TransformStore getTransformStore() {
+        return transformStore;
+    }
 
     //-------------------------------------------------------------------------
 
     @Override
     public BoundingBox getBoundingBox() {
+        if (transformStore != null)
+            transformStore.getWorldBounds(selfID, boundingBox);
         return boundingBox;
     }
 
@@ -114,22 +224,55 @@ public class GameObject extends ModelInstance implements SpatialObject {
 
     @Override
     public Vector3 getCenter() {
+        if (transformStore != null)
+            transformStore.getWorldCenter(selfID, center);
         return center;
     }
 
     @Override
     public Vector3 getExtent() {
+        if (transformStore != null)
+            transformStore.getWorldExtent(selfID, extent);
         return extent;
     }
 
     @Override
-    public Vector3 getDimensions() { return dimensions; }
+    public Vector3 getDimensions() {
+        if (transformStore != null) {
+            transformStore.getWorldExtent(selfID, dimensions);
+            dimensions.scl(2.0f);
+        }
+        return dimensions;
+    }
 
     @Override
     public float getRadius() {
+        if (transformStore != null)
+            return transformStore.getRadius(selfID);
         return radius;
     }
 
+    @Override
+    public Vector3 getSphereCenter() {
+        if (isUseTightBounds())
+            return sphereCenter;
+        return getCenter();
+    }
+
+    @Override
+    public float getSphereRadius() {
+        if (isUseTightBounds())
+            return sphereRadius;
+        return getRadius();
+    }
+
+    @Override
+    public OrientedBox getOrientedBox() {
+        if (isUseTightBounds())
+            return orientedBox;
+        return null;
+    }
+
     //-------------------------------------------------------------------------
 
     public void setName(String name) {
@@ -153,16 +296,92 @@ public class GameObject extends ModelInstance implements SpatialObject {
         return selfID;
     }
 
+    /**
+     * Sets the ID of the parent object - it will be linked when this object
+     * is added to the scene manager. Has no effect on already linked object.
+     */
     public void setParentID(int id) {
         this.parentID = id;
     }
 
     public int getParentID() {
+        if (parent != null)
+            return parent.getID();
         return parentID;
     }
 
     //-------------------------------------------------------------------------
 
+    public GameObject getParent() {
+        return parent;
+    }
+
+    public boolean hasParent() {
+        return parent != null;
+    }
+
+    public int getChildCount() {
+        return children == null ? 0 : children.size;
+    }
+
+    public GameObject getChild(int index) {
+        return children.get(index);
+    }
+
+    public boolean isAncestorOf(GameObject gameObject) {
+        for (GameObject p = gameObject; p != null; p = p.parent) {
+            if (p == this)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Links this object to the new parent (or unlinks when null). The current
+     * transformation becomes relative to the parent. On unlink the object
+     * keeps its last world transformation.
+     */
+    public void setParent(GameObject newParent) {
+        if (newParent == parent)
+            return;
+        if (newParent != null && isAncestorOf(newParent))
+            throw new IllegalArgumentException("cannot link object to itself or to its descendant");
+        if (parent != null) {
+            parent.children.removeValue(this, true);
+            parent.markBoundsDirty();
+            parent = null;
+            isWorldDirty = false;
+            localTransform = transform; // last world becomes local
+        }
+        if (newParent != null) {
+            localTransform = new Matrix4(transform);
+            parent = newParent;
+            if (newParent.children == null)
+                newParent.children = new Array<GameObject>(4);
+            newParent.children.add(this);
+            parentID = newParent.getID();
+            isWorldDirty = true;
+        } else {
+            parentID = NO_PARENT;
+        }
+        markTransformed();
+    } // void setParent(...)
+
+    public Matrix4 getLocalTransform() {
+        return localTransform;
+    }
+
+    /**
+     * @return world bounds of this object together with all its descendants
+     */
+    public BoundingBox getSubtreeBoundingBox() {
+        if (children == null || children.size == 0)
+            return getBoundingBox();
+        return subtreeBoundingBox;
+    }
+
+    //-------------------------------------------------------------------------
+
     public void setFlag(int flag, boolean toggle) {
         this.stateFlags.set(flag, toggle);
     }
@@ -206,8 +425,51 @@ public class GameObject extends ModelInstance implements SpatialObject {
         return this.stateFlags.isToggled(StateFlags.SELECTED);
     }
 
+    public void setOccluder(boolean toggle) {
+        this.stateFlags.set(StateFlags.OCCLUDER, toggle);
+    }
+
+    public boolean isOccluder() {
+        return this.stateFlags.isToggled(StateFlags.OCCLUDER);
+    }
+
+    /**
+     * Enables bounding sphere and oriented box fitted to the vertex data
+     * (computed once per model) - much tighter than volumes derived from the
+     * axis aligned box for elongated or rotated models.
+     */
+    public void setUseTightBounds(boolean toggle) {
+        if (toggle && tightBounds == null) {
+            if (modelBounds != null)
+                tightBounds = modelBounds.getTightBounds(nodes);
+            else
+                tightBounds = new TightBounds().compute(nodes);
+        }
+        this.stateFlags.set(StateFlags.TIGHT_BOUNDS, toggle);
+        markBoundsDirty();
+    } // void setUseTightBounds(...)
+
+    public boolean isUseTightBounds() {
+        return this.stateFlags.isToggled(StateFlags.TIGHT_BOUNDS);
+    }
+
+    public TightBounds getTightBounds() {
+        return tightBounds;
+    }
+
+    public void setCullingPlaneHint(int planeIndex) {
+        this.cullingPlaneHint = planeIndex;
+    }
+
+    public int getCullingPlaneHint() {
+        return cullingPlaneHint;
+    }
+
     //-------------------------------------------------------------------------
 
+    /**
+     * @return world transformation (valid after update)
+     */
     @Override
     public Matrix4 getTransform() {
         return this.transform;
@@ -215,31 +477,73 @@ public class GameObject extends ModelInstance implements SpatialObject {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Marks own bounds for update and the whole subtree (this object too - the
+     * local transformation changed) as needing the world transformation
+     * recomputed. Ancestors are only told that some descendant changed -
+     * propagation stops at the first already marked object.
+     */
+    protected void markTransformed() {
+        isTransformed = true;
+        isWorldDirty = true;
+        if (children != null) {
+            for (int i = 0; i < children.size; i++)
+                children.get(i).markWorldDirty();
+            if (children.size > 0)
+                isChildrenDirty = true;
+        }
+        markAncestorsDirty();
+    } // void markTransformed()
+
+    protected void markBoundsDirty() {
+        isTransformed = true;
+        markAncestorsDirty();
+    }
+
+    protected void markAncestorsDirty() {
+        for (GameObject p = parent; p != null && !p.isChildrenDirty; p = p.parent)
+            p.isChildrenDirty = true;
+    }
+
+    protected void markWorldDirty() {
+        if (isWorldDirty)
+            return; // whole subtree already marked
+        isWorldDirty = true;
+        if (children != null) {
+            for (int i = 0; i < children.size; i++)
+                children.get(i).markWorldDirty();
+            if (children.size > 0)
+                isChildrenDirty = true;
+        }
+    } // void markWorldDirty()
+
+    //-------------------------------------------------------------------------
+
     @Override
     public void setPosition(Vector3 position) {
-        isTransformed = true;
-        this.transform.setTranslation(position);
+        markTransformed();
+        localTransform.setTranslation(position);
     }
 
     @Override
     public void setPosition(float x, float y, float z) {
-        isTransformed = true;
-        this.transform.setTranslation(x, y, z);
+        markTransformed();
+        localTransform.setTranslation(x, y, z);
     }
 
     @Override
     public Vector3 getPosition() {
-        return this.transform.getTranslation(tmpVec);
+        return localTransform.getTranslation(tmpVec);
     }
 
     public void getPositionExt(Vector3 position) {
-        this.transform.getTranslation(position);
+        localTransform.getTranslation(position);
     }
 
     //-------------------------------------------------------------------------
 
     public void getScaleExt(Vector3 scale) {
-        this.transform.getScale(scale);
+        localTransform.getScale(scale);
     }
 
     @Override
@@ -256,14 +560,14 @@ public class GameObject extends ModelInstance implements SpatialObject {
 
     @Override
     public void setScale(float _x, float _y, float _z) {
-        isTransformed = true;
-        this.transform.getTranslation(tmpVec);
-        this.transform.getRotation(tmpQuat);
+        markTransformed();
+        localTransform.getTranslation(tmpVec);
+        localTransform.getRotation(tmpQuat);
         tmpQuat.nor(); // normalize quaternion
         // reset the transformation, scaling first
-        this.transform.setToScaling(_x, _y, _z);
-        this.transform.setTranslation(tmpVec);
-        this.transform.rotate(tmpQuat);
+        localTransform.setToScaling(_x, _y, _z);
+        localTransform.setTranslation(tmpVec);
+        localTransform.rotate(tmpQuat);
 
         scale.x = _x;
         scale.y = _y;
@@ -279,30 +583,30 @@ public class GameObject extends ModelInstance implements SpatialObject {
     //-------------------------------------------------------------------------
 
     public Matrix4 translate(float x, float y, float z) {
-        isTransformed = true;
-        return this.transform.translate(x, y, z);
+        markTransformed();
+        return localTransform.translate(x, y, z);
     }
 
     public Matrix4 translate(Vector3 translation) {
-        isTransformed = true;
-        return this.transform.translate(translation);
+        markTransformed();
+        return localTransform.translate(translation);
     }
 
     //-------------------------------------------------------------------------
 
     public Matrix4 rotate(float axisX, float axisY, float axisZ, float degrees) {
-        isTransformed = true;
-        return this.transform.rotate(axisX, axisY, axisZ, degrees);
+        markTransformed();
+        return localTransform.rotate(axisX, axisY, axisZ, degrees);
     }
 
     public Matrix4 rotate(Quaternion quaternion) {
-        isTransformed = true;
-        return this.transform.rotate(quaternion);
+        markTransformed();
+        return localTransform.rotate(quaternion);
     }
 
     public Matrix4 rotate(final Vector3 v1, final Vector3 v2) {
-        isTransformed = true;
-        return this.transform.rotate(v1, v2);
+        markTransformed();
+        return localTransform.rotate(v1, v2);
     }
 
     //-------------------------------------------------------------------------
@@ -312,46 +616,342 @@ public class GameObject extends ModelInstance implements SpatialObject {
     }
 
     public void updateBoundingBox(boolean force) {
-        if (isTransformed || force) {
-            boundingBox.set(originalBoundingBox);
-            boundingBox.mul(transform);
-            boundingBox.getCenter(center);
-            boundingBox.getDimensions(dimensions);
-            extent.set(dimensions);
-            extent.scl(0.5f);
-
-            isTransformed = false;
+        if (!isTransformed && !force)
+            return;
+        isTransformed = false;
+        nodeBoundsDirty = true;
+        if (isUseTightBounds())
+            updateTightBounds();
+        if (transformStore != null) {
+            // bounds will be recomputed in batch by the store
+            transformStore.setTransform(selfID, transform);
+            return;
+        }
+        // absolute matrix method - transform the center, extent is projected
+        // onto the world axes using absolute values of the rotation part
+        // (also BoundingBox.mul() uses static helper vector - not thread safe)
+        final float[] m = transform.val;
+        final Vector3 min = originalBoundingBox.min, max = originalBoundingBox.max;
+        final float cx = (min.x + max.x) * 0.5f, cy = (min.y + max.y) * 0.5f, cz = (min.z + max.z) * 0.5f;
+        final float ex = (max.x - min.x) * 0.5f, ey = (max.y - min.y) * 0.5f, ez = (max.z - min.z) * 0.5f;
+        center.x = m[Matrix4.M00] * cx + m[Matrix4.M01] * cy + m[Matrix4.M02] * cz + m[Matrix4.M03];
+        center.y = m[Matrix4.M10] * cx + m[Matrix4.M11] * cy + m[Matrix4.M12] * cz + m[Matrix4.M13];
+        center.z = m[Matrix4.M20] * cx + m[Matrix4.M21] * cy + m[Matrix4.M22] * cz + m[Matrix4.M23];
+        extent.x = Math.abs(m[Matrix4.M00]) * ex + Math.abs(m[Matrix4.M01]) * ey + Math.abs(m[Matrix4.M02]) * ez;
+        extent.y = Math.abs(m[Matrix4.M10]) * ex + Math.abs(m[Matrix4.M11]) * ey + Math.abs(m[Matrix4.M12]) * ez;
+        extent.z = Math.abs(m[Matrix4.M20]) * ex + Math.abs(m[Matrix4.M21]) * ey + Math.abs(m[Matrix4.M22]) * ez;
+        dimensions.set(extent).scl(2.0f);
+        boundingBox.min.set(center).sub(extent);
+        boundingBox.max.set(center).add(extent);
+        boundingBox.set(boundingBox.min, boundingBox.max);
+        radius = TransformStore.getBoxRadius(m, 0, ex, ey, ez);
+    } // void updateBoundingBox(...)
+
+    protected void updateTightBounds() {
+        orientedBox.setTransformed(tightBounds.box, transform);
+        sphereCenter.set(tightBounds.sphereCenter).mul(transform);
+        sphereRadius = tightBounds.sphereRadius * getMaxScale(transform.val);
+    } // void updateTightBounds()
+
+    /**
+     * @return largest stretch of the matrix (largest singular value of the
+     * 3x3 part) - the longest column is less than that under shear
+     */
+    protected static float getMaxScale(float[] m) {
+        // largest eigenvalue of the symmetric (M^T)M, closed form
+        final double c0x = m[Matrix4.M00], c0y = m[Matrix4.M10], c0z = m[Matrix4.M20];
+        final double c1x = m[Matrix4.M01], c1y = m[Matrix4.M11], c1z = m[Matrix4.M21];
+        final double c2x = m[Matrix4.M02], c2y = m[Matrix4.M12], c2z = m[Matrix4.M22];
+        final double a00 = c0x * c0x + c0y * c0y + c0z * c0z;
+        final double a11 = c1x * c1x + c1y * c1y + c1z * c1z;
+        final double a22 = c2x * c2x + c2y * c2y + c2z * c2z;
+        final double a01 = c0x * c1x + c0y * c1y + c0z * c1z;
+        final double a02 = c0x * c2x + c0y * c2y + c0z * c2z;
+        final double a12 = c1x * c2x + c1y * c2y + c1z * c2z;
+        final double q = (a00 + a11 + a22) / 3.0;
+        final double b00 = a00 - q, b11 = a11 - q, b22 = a22 - q;
+        final double p2 = b00 * b00 + b11 * b11 + b22 * b22 + 2.0 * (a01 * a01 + a02 * a02 + a12 * a12);
+        final double p = Math.sqrt(p2 / 6.0);
+        // nearly uniform scale - q + 2p is the upper limit of the eigenvalues
+        if (p2 <= q * q * 1e-12)
+            return (float) Math.sqrt(q + 2.0 * p);
+        final double det = b00 * (b11 * b22 - a12 * a12) - a01 * (a01 * b22 - a12 * a02) + a02 * (a01 * a12 - b11 * a02);
+        final double r = Math.max(-1.0, Math.min(1.0, det / (2.0 * p * p * p)));
+        final double largest = q + 2.0 * p * Math.cos(Math.acos(r) / 3.0);
+        return (float) Math.sqrt(largest);
+    } // float getMaxScale(...)
+
+    /**
+     * Resolves world transformations and bounds of this object and of all
+     * dirty descendants, subtree bounds are refitted bottom-up. Clean
+     * branches are skipped, so the cost depends only on what has changed.
+     * Should be called on root objects.
+     *
+     * @return true if the subtree bounds were changed
+     */
+    public boolean updateHierarchy() {
+        boolean changed = false;
+        if (isWorldDirty) {
+            if (parent != null)
+                transform.set(parent.transform).mul(localTransform);
+            isWorldDirty = false;
+            isTransformed = true;
+        }
+        if (isTransformed) {
+            updateBoundingBox();
+            changed = true;
         }
+        if (isChildrenDirty) {
+            isChildrenDirty = false;
+            for (int i = 0; i < children.size; i++) {
+                if (children.get(i).updateHierarchy())
+                    changed = true;
+            }
+        }
+        if (changed && children != null && children.size > 0) {
+            if (transformStore != null)
+                isSubtreeBoundsDirty = true; // after the store refit (updateSubtreeBounds())
+            else
+                refitSubtreeBounds();
+        }
+        return changed;
+    } // boolean updateHierarchy()
+
+    /**
+     * Refits the subtree bounds left for later by updateHierarchy() - needs
+     * to be called on root objects after the transform store refitted the
+     * bounds of all dirty objects (one batched sweep).
+     */
+    public void updateSubtreeBounds() {
+        if (!isSubtreeBoundsDirty)
+            return;
+        isSubtreeBoundsDirty = false;
+        for (int i = 0; i < children.size; i++)
+            children.get(i).updateSubtreeBounds();
+        refitSubtreeBounds();
+    } // void updateSubtreeBounds()
+
+    protected void refitSubtreeBounds() {
+        subtreeBoundingBox.set(getBoundingBox());
+        for (int i = 0; i < children.size; i++)
+            subtreeBoundingBox.ext(children.get(i).getSubtreeBoundingBox());
     }
 
+    //-------------------------------------------------------------------------
+
+    /**
+     * Node transformations were changed - world bounds of the nodes need to
+     * be refreshed (done lazily on the next node query)
+     */
+    @Override
+    public void calculateTransforms() {
+        super.calculateTransforms();
+        nodeBoundsDirty = true;
+    }
+
+    public void invalidateNodeBounds() {
+        nodeBoundsDirty = true;
+    }
+
+    /**
+     * @return number of all nodes (including children)
+     */
+    public int getFlatNodeCount() {
+        ensureNodeBounds();
+        return flatNodes.size;
+    }
+
+    public Node getFlatNode(int index) {
+        ensureNodeBounds();
+        return flatNodes.get(index);
+    }
+
+    /**
+     * @return world bounds of the node's own parts (without children)
+     */
+    public BoundingBox getNodeWorldBounds(int index) {
+        ensureNodeBounds();
+        return nodeWorldBounds[index];
+    }
+
+    protected void ensureNodeBounds() {
+        if (flatNodes == null) {
+            flatNodes = new Array<Node>();
+            for (int i = 0; i < nodes.size; i++)
+                flattenNodes(nodes.get(i));
+            final int n = flatNodes.size;
+            nodeSubtreeEnd = new int[n];
+            nodeLocalBounds = new BoundingBox[n];
+            nodeWorldBounds = new BoundingBox[n];
+            nodeSubtreeBounds = new BoundingBox[n];
+            // shared by the instances of the model - the vertices are not scanned again
+            final boolean shared = modelBounds != null && modelBounds.getNodeCount() == n;
+            for (int i = 0; i < n; i++) {
+                final Node node = flatNodes.get(i);
+                final BoundingBox local = new BoundingBox();
+                if (shared) {
+                    modelBounds.getNodeBounds(i, local);
+                } else {
+                    local.inf();
+                    for (int p = 0; p < node.parts.size; p++) {
+                        final NodePart part = node.parts.get(p);
+                        part.meshPart.mesh.extendBoundingBox(local, part.meshPart.offset, part.meshPart.size);
+                    }
+                }
+                nodeLocalBounds[i] = local;
+                nodeWorldBounds[i] = new BoundingBox();
+                nodeSubtreeBounds[i] = new BoundingBox();
+                nodeSubtreeEnd[i] = i + 1 + countDescendants(node);
+            }
+            nodeBoundsDirty = true;
+        }
+        if (!nodeBoundsDirty)
+            return;
+        nodeBoundsDirty = false;
+        final int n = flatNodes.size;
+        for (int i = 0; i < n; i++) {
+            final BoundingBox world = nodeWorldBounds[i];
+            if (!isEmpty(nodeLocalBounds[i])) {
+                tmpMatrix.set(transform).mul(flatNodes.get(i).globalTransform);
+                transformBounds(nodeLocalBounds[i], tmpMatrix, world);
+            } else {
+                world.inf();
+            }
+        }
+        // children follow the parent in flat order - accumulate backwards
+        for (int i = n - 1; i >= 0; i--) {
+            final BoundingBox subtree = nodeSubtreeBounds[i];
+            // set() and ext() would swap the min and max of the empty boxes
+            if (isEmpty(nodeWorldBounds[i]))
+                subtree.inf();
+            else
+                subtree.set(nodeWorldBounds[i]);
+            for (int c = i + 1; c < nodeSubtreeEnd[i]; c = nodeSubtreeEnd[c]) {
+                if (!isEmpty(nodeSubtreeBounds[c]))
+                    subtree.ext(nodeSubtreeBounds[c]);
+            }
+        }
+    } // void ensureNodeBounds()
+
+    protected void flattenNodes(Node node) {
+        flatNodes.add(node);
+        for (int i = 0; i < node.getChildCount(); i++)
+            flattenNodes(node.getChild(i));
+    }
+
+    /**
+     * BoundingBox.isValid() rejects flat boxes (e.g. a single quad) - only
+     * the box without any points is treated as empty here
+     */
+    protected static boolean isEmpty(BoundingBox box) {
+        return box.min.x > box.max.x || box.min.y > box.max.y || box.min.z > box.max.z;
+    }
+
+    protected static int countDescendants(Node node) {
+        int count = node.getChildCount();
+        for (int i = 0; i < node.getChildCount(); i++)
+            count += countDescendants(node.getChild(i));
+        return count;
+    }
+
+    protected static void transformBounds(BoundingBox local, Matrix4 transform, BoundingBox out) {
+        final float[] m = transform.val;
+        final Vector3 min = local.min, max = local.max;
+        final float cx = (min.x + max.x) * 0.5f, cy = (min.y + max.y) * 0.5f, cz = (min.z + max.z) * 0.5f;
+        final float ex = (max.x - min.x) * 0.5f, ey = (max.y - min.y) * 0.5f, ez = (max.z - min.z) * 0.5f;
+        final float wx = m[Matrix4.M00] * cx + m[Matrix4.M01] * cy + m[Matrix4.M02] * cz + m[Matrix4.M03];
+        final float wy = m[Matrix4.M10] * cx + m[Matrix4.M11] * cy + m[Matrix4.M12] * cz + m[Matrix4.M13];
+        final float wz = m[Matrix4.M20] * cx + m[Matrix4.M21] * cy + m[Matrix4.M22] * cz + m[Matrix4.M23];
+        final float hx = Math.abs(m[Matrix4.M00]) * ex + Math.abs(m[Matrix4.M01]) * ey + Math.abs(m[Matrix4.M02]) * ez;
+        final float hy = Math.abs(m[Matrix4.M10]) * ex + Math.abs(m[Matrix4.M11]) * ey + Math.abs(m[Matrix4.M12]) * ez;
+        final float hz = Math.abs(m[Matrix4.M20]) * ex + Math.abs(m[Matrix4.M21]) * ey + Math.abs(m[Matrix4.M22]) * ez;
+        out.min.set(wx - hx, wy - hy, wz - hz);
+        out.max.set(wx + hx, wy + hy, wz + hz);
+        out.set(out.min, out.max);
+    } // static void transformBounds(...)
+
+    /**
+     * Finds the closest node whose own bounds are hit by the ray. Subtrees
+     * with bounds not hit by the ray are skipped.
+     *
+     * @param intersection output - hit point on the node bounds (can be null)
+     * @return the node or null
+     */
+    public Node pickNode(Ray ray, Vector3 intersection) {
+        ensureNodeBounds();
+        Node result = null;
+        float closest = Float.MAX_VALUE;
+        final int n = flatNodes.size;
+        int i = 0;
+        while (i < n) {
+            final BoundingBox subtree = nodeSubtreeBounds[i];
+            if (isEmpty(subtree) || !Intersector.intersectRayBoundsFast(ray, subtree)) {
+                i = nodeSubtreeEnd[i]; // skip the whole subtree
+                continue;
+            }
+            final BoundingBox own = nodeWorldBounds[i];
+            if (!isEmpty(own) && Intersector.intersectRayBounds(ray, own, tmpVec)) {
+                final float distance = ray.origin.dst2(tmpVec);
+                if (distance < closest) {
+                    closest = distance;
+                    result = flatNodes.get(i);
+                    if (intersection != null)
+                        intersection.set(tmpVec);
+                }
+            }
+            i++;
+        } // for each node
+        return result;
+    } // Node pickNode(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Updates this subtree alone - with the transform store attached only
+     * the slots of the subtree are refitted here (the scene manager sweeps
+     * the whole store once for all roots)
+     */
     public void update() {
-        updateBoundingBox();
-    }
+        if (updateHierarchy()) {
+            // children may use the store while this object does not
+            updateStoreBounds();
+            updateSubtreeBounds();
+        }
+    } // void update()
+
+    protected void updateStoreBounds() {
+        if (transformStore != null)
+            transformStore.updateBounds(selfID, selfID + 1); // clean slots are skipped
+        if (children == null)
+            return;
+        for (int i = 0; i < children.size; i++)
+            children.get(i).updateStoreBounds();
+    } // void updateStoreBounds()
 
     //-------------------------------------------------------------------------
 
     public Matrix4 setRotation(float axisX, float axisY, float axisZ, float degrees) {
-        isTransformed = true;
-        transform.getTranslation(tmpVec);
-        transform.setToScaling(scale.x, scale.y, scale.z);
-        transform.setTranslation(tmpVec);
-        return this.transform.rotate(axisX, axisY, axisZ, degrees);
+        markTransformed();
+        localTransform.getTranslation(tmpVec);
+        localTransform.setToScaling(scale.x, scale.y, scale.z);
+        localTransform.setTranslation(tmpVec);
+        return localTransform.rotate(axisX, axisY, axisZ, degrees);
     }
 
     public Matrix4 setRotation(Quaternion quaternion) {
-        isTransformed = true;
-        transform.getTranslation(tmpVec);
-        transform.setToScaling(scale.x, scale.y, scale.z);
-        transform.setTranslation(tmpVec);
-        return this.transform.rotate(quaternion);
+        markTransformed();
+        localTransform.getTranslation(tmpVec);
+        localTransform.setToScaling(scale.x, scale.y, scale.z);
+        localTransform.setTranslation(tmpVec);
+        return localTransform.rotate(quaternion);
     }
 
     public Matrix4 setRotation(final Vector3 v1, final Vector3 v2) {
-        isTransformed = true;
-        transform.getTranslation(tmpVec);
-        transform.setToScaling(scale.x, scale.y, scale.z);
-        transform.setTranslation(tmpVec);
-        return transform.rotate(v1, v2);
+        markTransformed();
+        localTransform.getTranslation(tmpVec);
+        localTransform.setToScaling(scale.x, scale.y, scale.z);
+        localTransform.setTranslation(tmpVec);
+        return localTransform.rotate(v1, v2);
     }
 
     //-------------------------------------------------------------------------
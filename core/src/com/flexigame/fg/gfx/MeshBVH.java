@@ -0,0 +1,331 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.utils.Array;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Bounding volume hierarchy over the triangles of a single mesh part (in the
+ * mesh space). Built once per mesh part from the vertex and index data and
+ * shared by all instances (see obtain()). Only GL_TRIANGLES parts are
+ * supported. Nodes and triangles are kept in flat arrays, traversal uses an
+ * explicit stack - no allocations while querying.
+ */
+public class MeshBVH {
+
+    public static final int MAX_LEAF_TRIANGLES = 4;
+    /* Maximal depth of the tree (traversal stack needs twice as many elements) */
+    public static final int MAX_DEPTH = 64;
+
+    protected final int primitiveType;
+    protected final int offset;
+    protected final int size;
+
+    /* Triangle vertices, 9 floats per triangle (in the leaf order) */
+    protected float[] triangles;
+    /* Original index of the triangle within the mesh part */
+    protected int[] triangleIndices;
+    protected int triangleCount = 0;
+    /* Node bounds - min xyz, max xyz (6 floats per node) */
+    protected float[] nodeBounds;
+    /* Leaf: index of the first triangle; inner: index of the right child (left child follows the node) */
+    protected int[] nodeIndex;
+    /* Number of triangles in the leaf, 0 for inner nodes */
+    protected int[] nodeCount;
+    protected int nodeTotal = 0;
+
+    //-------------------------------------------------------------------------
+
+    private static final Map<Mesh, Array<MeshBVH>> cache = new WeakHashMap<Mesh, Array<MeshBVH>>();
+
+    /**
+     * Returns the shared tree for the mesh part (mesh parts are copied per
+     * instance - the tree is matched by the mesh, offset, size and type).
+     *
+     * @return tree or null if the mesh part is not made of triangles
+     */
+    public static synchronized MeshBVH obtain(MeshPart meshPart) {
+        if (meshPart.primitiveType != GL20.GL_TRIANGLES || meshPart.mesh == null)
+            return null;
+        Array<MeshBVH> list = cache.get(meshPart.mesh);
+        if (list == null) {
+            list = new Array<MeshBVH>(2);
+            cache.put(meshPart.mesh, list);
+        }
+        for (int i = 0; i < list.size; i++) {
+            MeshBVH bvh = list.get(i);
+            if (bvh.offset == meshPart.offset && bvh.size == meshPart.size &&
+                    bvh.primitiveType == meshPart.primitiveType)
+                return bvh;
+        }
+        MeshBVH bvh = new MeshBVH(meshPart);
+        list.add(bvh);
+        return bvh;
+    } // static MeshBVH obtain(...)
+
+    /**
+     * Removes the trees of the mesh - needs to be called when the vertices
+     * were modified
+     */
+    public static synchronized void invalidate(Mesh mesh) {
+        cache.remove(mesh);
+    }
+
+    //-------------------------------------------------------------------------
+
+    public MeshBVH(MeshPart meshPart) {
+        this.primitiveType = meshPart.primitiveType;
+        this.offset = meshPart.offset;
+        this.size = meshPart.size;
+        final Mesh mesh = meshPart.mesh;
+        final VertexAttribute position = mesh.getVertexAttribute(VertexAttributes.Usage.Position);
+        triangleCount = position == null ? 0 : size / 3;
+        triangles = new float[triangleCount * 9];
+        triangleIndices = new int[triangleCount];
+        if (triangleCount > 0) {
+            final int stride = mesh.getVertexSize() / 4;
+            final int posOffset = position.offset / 4;
+            final int numComponents = position.numComponents;
+            final float[] vertices = new float[mesh.getNumVertices() * stride];
+            mesh.getVertices(vertices);
+            short[] indices = null;
+            if (mesh.getNumIndices() > 0) {
+                indices = new short[mesh.getNumIndices()];
+                mesh.getIndices(indices);
+            }
+            for (int t = 0; t < triangleCount; t++) {
+                for (int k = 0; k < 3; k++) {
+                    final int i = offset + t * 3 + k;
+                    final int vertex = indices != null ? (indices[i] & 0xFFFF) : i;
+                    final int v = vertex * stride + posOffset;
+                    triangles[t * 9 + k * 3] = vertices[v];
+                    triangles[t * 9 + k * 3 + 1] = numComponents > 1 ? vertices[v + 1] : 0.0f;
+                    triangles[t * 9 + k * 3 + 2] = numComponents > 2 ? vertices[v + 2] : 0.0f;
+                }
+                triangleIndices[t] = t;
+            }
+        }
+        build();
+    } // MeshBVH(...)
+
+    //-------------------------------------------------------------------------
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return vertices of the triangles (9 floats per triangle, in the leaf
+     * order) - must not be modified
+     */
+    public float[] getTriangles() {
+        return triangles;
+    }
+
+    public int getNodeCount() {
+        return nodeTotal;
+    }
+
+    //-------------------------------------------------------------------------
+
+    protected void build() {
+        // median splits usually end with leaves about half full
+        final int maxNodes = Math.max(1, 4 * ((triangleCount + MAX_LEAF_TRIANGLES - 1) / MAX_LEAF_TRIANGLES) + 1);
+        nodeBounds = new float[maxNodes * 6];
+        nodeIndex = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        nodeTotal = 0;
+        final float[] centroids = new float[triangleCount * 3];
+        for (int t = 0; t < triangleCount; t++) {
+            final int o = t * 9;
+            for (int a = 0; a < 3; a++)
+                centroids[t * 3 + a] = (triangles[o + a] + triangles[o + 3 + a] + triangles[o + 6 + a]) / 3.0f;
+        }
+        buildNode(centroids, 0, triangleCount, 0);
+    } // void build()
+
+    protected int buildNode(float[] centroids, int from, int to, int depth) {
+        final int node = nodeTotal++;
+        if (node >= nodeIndex.length)
+            growNodes();
+        // bounds of the triangles and of their centroids
+        final int b = node * 6;
+        float cMinX = Float.MAX_VALUE, cMinY = Float.MAX_VALUE, cMinZ = Float.MAX_VALUE;
+        float cMaxX = -Float.MAX_VALUE, cMaxY = -Float.MAX_VALUE, cMaxZ = -Float.MAX_VALUE;
+        nodeBounds[b] = nodeBounds[b + 1] = nodeBounds[b + 2] = Float.MAX_VALUE;
+        nodeBounds[b + 3] = nodeBounds[b + 4] = nodeBounds[b + 5] = -Float.MAX_VALUE;
+        for (int t = from; t < to; t++) {
+            for (int k = 0; k < 9; k += 3) {
+                for (int a = 0; a < 3; a++) {
+                    final float value = triangles[t * 9 + k + a];
+                    if (value < nodeBounds[b + a]) nodeBounds[b + a] = value;
+                    if (value > nodeBounds[b + 3 + a]) nodeBounds[b + 3 + a] = value;
+                }
+            }
+            final float x = centroids[t * 3], y = centroids[t * 3 + 1], z = centroids[t * 3 + 2];
+            cMinX = Math.min(cMinX, x);
+            cMinY = Math.min(cMinY, y);
+            cMinZ = Math.min(cMinZ, z);
+            cMaxX = Math.max(cMaxX, x);
+            cMaxY = Math.max(cMaxY, y);
+            cMaxZ = Math.max(cMaxZ, z);
+        }
+        final int count = to - from;
+        if (count <= MAX_LEAF_TRIANGLES || depth >= MAX_DEPTH - 1) {
+            nodeIndex[node] = from;
+            nodeCount[node] = count;
+            return node;
+        }
+        // split along the longest axis of the centroid bounds (at the median)
+        final float dx = cMaxX - cMinX, dy = cMaxY - cMinY, dz = cMaxZ - cMinZ;
+        final int axis = (dx >= dy && dx >= dz) ? 0 : (dy >= dz ? 1 : 2);
+        final int mid = (from + to) >>> 1;
+        selectNth(centroids, from, to - 1, mid, axis);
+        buildNode(centroids, from, mid, depth + 1); // left child is always node + 1
+        final int right = buildNode(centroids, mid, to, depth + 1); // arrays can grow
+        nodeIndex[node] = right;
+        nodeCount[node] = 0;
+        return node;
+    } // int buildNode(...)
+
+    protected void growNodes() {
+        final int length = nodeIndex.length * 2;
+        float[] newBounds = new float[length * 6];
+        int[] newIndex = new int[length];
+        int[] newCount = new int[length];
+        System.arraycopy(nodeBounds, 0, newBounds, 0, nodeBounds.length);
+        System.arraycopy(nodeIndex, 0, newIndex, 0, nodeIndex.length);
+        System.arraycopy(nodeCount, 0, newCount, 0, nodeCount.length);
+        nodeBounds = newBounds;
+        nodeIndex = newIndex;
+        nodeCount = newCount;
+    } // void growNodes()
+
+    /**
+     * Quick select - partially orders triangles so the n-th one (by the
+     * centroid on the axis) is in place
+     */
+    protected void selectNth(float[] centroids, int left, int right, int n, int axis) {
+        while (right > left) {
+            final float pivot = centroids[((left + right) >>> 1) * 3 + axis];
+            int i = left, j = right;
+            while (i <= j) {
+                while (centroids[i * 3 + axis] < pivot) i++;
+                while (centroids[j * 3 + axis] > pivot) j--;
+                if (i <= j) {
+                    swapTriangles(centroids, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (n <= j)
+                right = j;
+            else if (n >= i)
+                left = i;
+            else
+                return;
+        }
+    } // void selectNth(...)
+
+    protected void swapTriangles(float[] centroids, int i, int j) {
+        for (int k = 0; k < 9; k++) {
+            final float tmp = triangles[i * 9 + k];
+            triangles[i * 9 + k] = triangles[j * 9 + k];
+            triangles[j * 9 + k] = tmp;
+        }
+        for (int k = 0; k < 3; k++) {
+            final float tmp = centroids[i * 3 + k];
+            centroids[i * 3 + k] = centroids[j * 3 + k];
+            centroids[j * 3 + k] = tmp;
+        }
+        final int tmp = triangleIndices[i];
+        triangleIndices[i] = triangleIndices[j];
+        triangleIndices[j] = tmp;
+    } // void swapTriangles(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Finds the closest triangle hit by the ray (in the mesh space). The ray
+     * direction does not need to be normalized - distance is expressed in the
+     * units of the direction vector.
+     *
+     * @param maxDistance only hits closer than this are reported
+     * @param stack       helper array with at least 2 * MAX_DEPTH elements
+     * @param hit         output: distance, u, v (barycentric weights of the
+     *                    second and third vertex)
+     * @return index of the closest triangle or -1 if no closer hit was found
+     */
+    public int intersectRay(float ox, float oy, float oz,
+                                float dx, float dy, float dz,
+                                float maxDistance, int[] stack, float[] hit) {
+        if (triangleCount == 0)
+            return -1;
+        final float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz;
+        float closest = maxDistance;
+        int found = -1;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            final int b = node * 6;
+            // slab test
+            float t0 = (nodeBounds[b] - ox) * ix, t1 = (nodeBounds[b + 3] - ox) * ix;
+            float tMin = Math.min(t0, t1), tMax = Math.max(t0, t1);
+            t0 = (nodeBounds[b + 1] - oy) * iy;
+            t1 = (nodeBounds[b + 4] - oy) * iy;
+            tMin = Math.max(tMin, Math.min(t0, t1));
+            tMax = Math.min(tMax, Math.max(t0, t1));
+            t0 = (nodeBounds[b + 2] - oz) * iz;
+            t1 = (nodeBounds[b + 5] - oz) * iz;
+            tMin = Math.max(tMin, Math.min(t0, t1));
+            tMax = Math.min(tMax, Math.max(t0, t1));
+            if (tMax < 0.0f || tMin > tMax || tMin > closest)
+                continue;
+            final int count = nodeCount[node];
+            if (count == 0) {
+                stack[top++] = nodeIndex[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            final int first = nodeIndex[node];
+            for (int t = first; t < first + count; t++) {
+                final int o = t * 9;
+                // Moller-Trumbore, double sided
+                final float e1x = triangles[o + 3] - triangles[o], e1y = triangles[o + 4] - triangles[o + 1], e1z = triangles[o + 5] - triangles[o + 2];
+                final float e2x = triangles[o + 6] - triangles[o], e2y = triangles[o + 7] - triangles[o + 1], e2z = triangles[o + 8] - triangles[o + 2];
+                final float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+                final float det = e1x * px + e1y * py + e1z * pz;
+                if (det > -1e-12f && det < 1e-12f)
+                    continue;
+                final float invDet = 1.0f / det;
+                final float sx = ox - triangles[o], sy = oy - triangles[o + 1], sz = oz - triangles[o + 2];
+                final float u = (sx * px + sy * py + sz * pz) * invDet;
+                if (u < 0.0f || u > 1.0f)
+                    continue;
+                final float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+                final float v = (dx * qx + dy * qy + dz * qz) * invDet;
+                if (v < 0.0f || u + v > 1.0f)
+                    continue;
+                final float distance = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+                if (distance < 0.0f || distance >= closest)
+                    continue;
+                closest = distance;
+                found = triangleIndices[t];
+                hit[0] = distance;
+                hit[1] = u;
+                hit[2] = v;
+            } // for each triangle in the leaf
+        } // while stack is not empty
+        return found;
+    } // int intersectRay(...)
+
+    //-------------------------------------------------------------------------
+
+} // class MeshBVH
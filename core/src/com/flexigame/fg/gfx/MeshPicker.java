@@ -0,0 +1,122 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+
+/**
+ * Exact ray picking against the triangles of the model instance. The ray is
+ * transformed into the space of every mesh part (instead of transforming the
+ * vertices) and tested against the shared MeshBVH of that part. Does not use
+ * GL, works headless. Not thread safe - holds the result of the last query.
+ */
+public class MeshPicker {
+
+    /* Node containing the hit mesh part */
+    public Node node = null;
+    public NodePart nodePart = null;
+    /* Index of the hit triangle within the mesh part */
+    public int triangleIndex = -1;
+    /* Distance along the ray (in world units for the normalized ray direction) */
+    public float distance = Float.MAX_VALUE;
+    /* Barycentric coordinates of the hit point (weights of the three vertices) */
+    public final Vector3 barycentric = new Vector3();
+    /* World space intersection point */
+    public final Vector3 intersection = new Vector3();
+
+    protected final Matrix4 tmpMatrix = new Matrix4();
+    protected final int[] stack = new int[2 * MeshBVH.MAX_DEPTH];
+    protected final float[] hit = new float[3];
+
+    //-------------------------------------------------------------------------
+
+    public MeshPicker() {
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void reset() {
+        node = null;
+        nodePart = null;
+        triangleIndex = -1;
+        distance = Float.MAX_VALUE;
+        barycentric.setZero();
+        intersection.setZero();
+    }
+
+    public boolean hasHit() {
+        return triangleIndex >= 0;
+    }
+
+    /**
+     * Finds the closest triangle of the whole instance hit by the ray
+     */
+    public boolean intersect(Ray ray, ModelInstance instance) {
+        reset();
+        for (int i = 0; i < instance.nodes.size; i++)
+            intersectNode(ray, instance, instance.nodes.get(i), true);
+        return finish(ray);
+    } // boolean intersect(...)
+
+    /**
+     * Finds the closest triangle of the single node (optionally with the
+     * children) hit by the ray
+     */
+    public boolean intersect(Ray ray, ModelInstance instance, Node node, boolean recursive) {
+        reset();
+        intersectNode(ray, instance, node, recursive);
+        return finish(ray);
+    }
+
+    protected boolean finish(Ray ray) {
+        if (!hasHit())
+            return false;
+        intersection.set(ray.direction).scl(distance).add(ray.origin);
+        return true;
+    }
+
+    protected void intersectNode(Ray ray, ModelInstance instance, Node node, boolean recursive) {
+        final int numParts = node.parts.size;
+        if (numParts > 0) {
+            tmpMatrix.set(instance.transform).mul(node.globalTransform);
+            if (tmpMatrix.det() != 0.0f) {
+                tmpMatrix.inv();
+                final float[] m = tmpMatrix.val;
+                final Vector3 o = ray.origin, d = ray.direction;
+                // direction is not normalized - distance stays the same as in world space
+                final float ox = m[Matrix4.M00] * o.x + m[Matrix4.M01] * o.y + m[Matrix4.M02] * o.z + m[Matrix4.M03];
+                final float oy = m[Matrix4.M10] * o.x + m[Matrix4.M11] * o.y + m[Matrix4.M12] * o.z + m[Matrix4.M13];
+                final float oz = m[Matrix4.M20] * o.x + m[Matrix4.M21] * o.y + m[Matrix4.M22] * o.z + m[Matrix4.M23];
+                final float dx = m[Matrix4.M00] * d.x + m[Matrix4.M01] * d.y + m[Matrix4.M02] * d.z;
+                final float dy = m[Matrix4.M10] * d.x + m[Matrix4.M11] * d.y + m[Matrix4.M12] * d.z;
+                final float dz = m[Matrix4.M20] * d.x + m[Matrix4.M21] * d.y + m[Matrix4.M22] * d.z;
+                for (int p = 0; p < numParts; p++) {
+                    final NodePart part = node.parts.get(p);
+                    if (!part.enabled)
+                        continue;
+                    final MeshBVH bvh = MeshBVH.obtain(part.meshPart);
+                    if (bvh == null)
+                        continue;
+                    final int triangle = bvh.intersectRay(ox, oy, oz, dx, dy, dz, distance, stack, hit);
+                    if (triangle < 0)
+                        continue;
+                    this.node = node;
+                    this.nodePart = part;
+                    this.triangleIndex = triangle;
+                    this.distance = hit[0];
+                    this.barycentric.set(1.0f - hit[1] - hit[2], hit[1], hit[2]);
+                } // for each node part
+            }
+        }
+        if (!recursive)
+            return;
+        for (int i = 0; i < node.getChildCount(); i++)
+            intersectNode(ray, instance, node.getChild(i), true);
+    } // void intersectNode(...)
+
+    //-------------------------------------------------------------------------
+
+} // class MeshPicker
@@ -0,0 +1,193 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shared cache of the model space bounds - all instances created from the
+ * same Model (and the same root node) use one entry, so the nodes are walked
+ * only for the first instance. Models are weakly referenced. The entry needs
+ * to be invalidated manually when the nodes of the Model are modified
+ * (modifications of the instance nodes are handled per instance with
+ * GameObject.refreshOriginalBoundingBox()).
+ */
+public class ModelBoundsCache {
+
+    public static final class Entry {
+        protected final String rootNode;
+        protected final boolean mergeTransform;
+        /* Model space bounding box of all nodes */
+        private final BoundingBox bounds = new BoundingBox();
+        private final Vector3 center = new Vector3();
+        private final Vector3 extent = new Vector3();
+        private final Vector3 dimensions = new Vector3();
+        /* Length of the half extent - radius of the unscaled bounding sphere */
+        private float radius = 0.0f;
+        /* Local bounds of the own parts of each node (without children) in depth first order */
+        private final Array<BoundingBox> nodeBounds = new Array<BoundingBox>();
+        /* Volumes fitted to the vertices - computed on first request */
+        protected TightBounds tightBounds = null;
+
+        Entry(String rootNode, boolean mergeTransform) {
+            this.rootNode = rootNode;
+            this.mergeTransform = mergeTransform;
+        }
+
+        boolean matches(String rootNode, boolean mergeTransform) {
+            if (this.mergeTransform != mergeTransform)
+                return false;
+            if (this.rootNode == null)
+                return rootNode == null;
+            return this.rootNode.equals(rootNode);
+        }
+
+        void compute(Array<Node> nodes) {
+            bounds.inf();
+            nodeBounds.clear();
+            final int n = nodes.size;
+            for (int i = 0; i < n; i++) {
+                nodes.get(i).extendBoundingBox(bounds, false);
+                computeNodeBounds(nodes.get(i));
+            }
+            bounds.getCenter(center);
+            bounds.getDimensions(dimensions);
+            extent.set(dimensions).scl(0.5f);
+            radius = extent.len();
+            tightBounds = null;
+        } // void compute(...)
+
+        /**
+         * Same order as GameObject.flattenNodes()
+         */
+        private void computeNodeBounds(Node node) {
+            final BoundingBox local = new BoundingBox();
+            local.inf();
+            for (int p = 0; p < node.parts.size; p++) {
+                final NodePart part = node.parts.get(p);
+                part.meshPart.mesh.extendBoundingBox(local, part.meshPart.offset, part.meshPart.size);
+            }
+            nodeBounds.add(local);
+            for (int i = 0; i < node.getChildCount(); i++)
+                computeNodeBounds(node.getChild(i));
+        } // void computeNodeBounds(...)
+
+        public BoundingBox getBounds(BoundingBox out) {
+            return out.set(bounds);
+        }
+
+        public Vector3 getCenter(Vector3 out) {
+            return out.set(center);
+        }
+
+        public Vector3 getExtent(Vector3 out) {
+            return out.set(extent);
+        }
+
+        public Vector3 getDimensions(Vector3 out) {
+            return out.set(dimensions);
+        }
+
+        public float getRadius() {
+            return radius;
+        }
+
+        /**
+         * @return number of all nodes (including children)
+         */
+        public int getNodeCount() {
+            return nodeBounds.size;
+        }
+
+        /**
+         * Copies the local bounds of the own parts of the node (index in the
+         * depth first order) - empty (inf) for nodes without parts
+         */
+        public BoundingBox getNodeBounds(int index, BoundingBox out) {
+            final BoundingBox box = nodeBounds.get(index);
+            // set() would swap the min and max of the empty box
+            if (box.min.x > box.max.x || box.min.y > box.max.y || box.min.z > box.max.z)
+                return out.inf();
+            return out.set(box);
+        }
+
+        /**
+         * Returns the volumes fitted to the vertex data, computing them from
+         * the given (unmodified) nodes on the first call
+         */
+        public synchronized TightBounds getTightBounds(Array<Node> nodes) {
+            if (tightBounds == null)
+                tightBounds = new TightBounds().compute(nodes);
+            return tightBounds;
+        }
+    } // static final class Entry
+
+    //-------------------------------------------------------------------------
+
+    private static final Map<Model, Array<Entry>> entries = new WeakHashMap<Model, Array<Entry>>();
+    private static int hitCount = 0;
+    private static int missCount = 0;
+
+    private ModelBoundsCache() {
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Returns the shared entry for the model, computing it from the given
+     * nodes on the first call. The nodes need to be the unmodified copies of
+     * the model nodes (e.g. nodes of the freshly created instance).
+     */
+    public static synchronized Entry get(Model model, String rootNode, boolean mergeTransform, Array<Node> nodes) {
+        if (model == null)
+            throw new NullPointerException("model cannot be null");
+        Array<Entry> list = entries.get(model);
+        if (list == null) {
+            list = new Array<Entry>(1);
+            entries.put(model, list);
+        }
+        for (int i = 0; i < list.size; i++) {
+            Entry entry = list.get(i);
+            if (entry.matches(rootNode, mergeTransform)) {
+                hitCount++;
+                return entry;
+            }
+        }
+        missCount++;
+        Entry entry = new Entry(rootNode, mergeTransform);
+        entry.compute(nodes);
+        list.add(entry);
+        return entry;
+    } // Entry get(...)
+
+    /**
+     * Removes all cached entries of the model - needs to be called when the
+     * nodes of the model were modified.
+     */
+    public static synchronized void invalidate(Model model) {
+        entries.remove(model);
+    }
+
+    public static synchronized void clear() {
+        entries.clear();
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    public static synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public static synchronized int getMissCount() {
+        return missCount;
+    }
+
+    //-------------------------------------------------------------------------
+
+} // class ModelBoundsCache
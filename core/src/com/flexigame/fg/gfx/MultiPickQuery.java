@@ -0,0 +1,452 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import com.flexigame.fg.utils.IdBitmap;
+import com.flexigame.fg.utils.Vector2i;
+
+/**
+ * Batched picking for many pointers (multitouch, multi cursor tools) - the
+ * objects are traversed once for all of the pointers. Uses the tests of the
+ * PickSelection (the same stages as pickObjectID()), so both give the same
+ * results. Screen bounds of each object are projected once and only the
+ * pointers inside of them go through the stages. The tolerance search runs
+ * once per pointer. Each pointer has its own selection (kept between the
+ * executions), the selection of the PickSelection is not modified.
+ * Not thread safe.
+ */
+public class MultiPickQuery {
+
+    /* Same as the number of pointers supported by the input */
+    public static final int MAX_POINTERS = 20;
+
+    public static final class PointerResult {
+        /* Pointer index as reported by the input */
+        public int pointer = 0;
+        /* Whether or not the query has the screen position (false for the plain rays) */
+        public boolean hasPosition = false;
+        /* Screen position (bottom left origin) */
+        public final Vector2i position = new Vector2i();
+        public final Ray ray = new Ray(new Vector3(), new Vector3());
+        /* Nearest object found by the tolerance search (-1 none) and its pixel */
+        public int toleranceHitID = -1;
+        public final Vector2i toleranceHitPos = new Vector2i();
+        /* Closest picked object or null */
+        public SpatialObject spatialObject = null;
+        public PickSelection.Result result = PickSelection.Result.NOT_PICKED;
+        public final Vector3 intersection = new Vector3();
+        public float distance = Float.MAX_VALUE;
+        /* All hit objects sorted by the distance (only when collecting all hits) */
+        public final Array<SpatialObject> hits = new Array<SpatialObject>();
+        public final FloatArray hitDistances = new FloatArray();
+        /* Squared distance of the closest object (compared like in pickObjectID()) */
+        float distance2 = Float.MAX_VALUE;
+
+        public boolean isPicked() {
+            return spatialObject != null;
+        }
+
+        void resetHits() {
+            toleranceHitID = -1;
+            toleranceHitPos.set(position);
+            spatialObject = null;
+            result = PickSelection.Result.NOT_PICKED;
+            intersection.setZero();
+            distance = Float.MAX_VALUE;
+            distance2 = Float.MAX_VALUE;
+            hits.clear();
+            hitDistances.clear();
+        }
+
+        void addHit(SpatialObject object, float hitDistance) {
+            int index = hitDistances.size;
+            while (index > 0 && hitDistances.get(index - 1) > hitDistance)
+                index--;
+            hits.insert(index, object);
+            hitDistances.insert(index, hitDistance);
+        }
+    } // static final class PointerResult
+
+    //-------------------------------------------------------------------------
+
+    /* Source of the tests, camera, screen size and buffers */
+    protected final PickSelection pickSelection;
+    protected final PointerResult[] results = new PointerResult[MAX_POINTERS];
+    protected int resultCount = 0;
+    /* Selection of each pointer (indexed by the pointer) */
+    protected final IdBitmap[] selections = new IdBitmap[MAX_POINTERS];
+    protected final IdBitmap hitIDs = new IdBitmap();
+    protected PickSelection.SelectionOperation selectionOperation = PickSelection.SelectionOperation.REPLACE;
+    protected boolean collectAllHits = true;
+    /* Stages for the world space rays - the stages without the screen tests */
+    protected final PickSelection.PickStage[] rayStages = new PickSelection.PickStage[8];
+    protected int rayStagesLength = 0;
+    protected final PickSelection.BuiltinStages rayBuiltinStages = new PickSelection.BuiltinStages();
+    protected PickSelection.Result rayGoodResult = PickSelection.Result.NOT_PICKED;
+    protected PickSelection.Result pixelGoodResult = PickSelection.Result.NOT_PICKED;
+    protected final PickSelection.PickingInfo pickingInfo = new PickSelection.PickingInfo();
+    /* Screen bounds of the currently tested object */
+    protected final Rectangle screenBounds = new Rectangle();
+
+    protected int testedCount = 0;
+    protected int pairCount = 0;
+
+    //-------------------------------------------------------------------------
+
+    public MultiPickQuery(PickSelection pickSelection) {
+        if (pickSelection == null)
+            throw new IllegalArgumentException("pickSelection cannot be null");
+        this.pickSelection = pickSelection;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            results[i] = new PointerResult();
+            selections[i] = new IdBitmap();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+
+    public PickSelection getPickSelection() {
+        return pickSelection;
+    }
+
+    /**
+     * Collects all of the hit objects of each pointer (not just the closest
+     * one) - always done in the group selection mode
+     */
+    public void setCollectAllHits(boolean toggle) {
+        this.collectAllHits = toggle;
+    }
+
+    public boolean isCollectAllHits() {
+        return collectAllHits;
+    }
+
+    /**
+     * Sets how the hits are combined with the selection of the pointer -
+     * the closest object (or all hits in the group selection mode)
+     * replaces the selection by default
+     */
+    public void setSelectionOperation(PickSelection.SelectionOperation operation) {
+        if (operation == null)
+            throw new IllegalArgumentException("operation cannot be null");
+        this.selectionOperation = operation;
+    }
+
+    public PickSelection.SelectionOperation getSelectionOperation() {
+        return selectionOperation;
+    }
+
+    public int getTestedCount() {
+        return testedCount;
+    }
+
+    /**
+     * @return number of the object-pointer pairs which went through the stages
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * @return IDs of the objects selected by the pointer (copied into out)
+     */
+    public IdBitmap getSelection(int pointer, IdBitmap out) {
+        checkPointer(pointer);
+        return out.set(selections[pointer]);
+    }
+
+    public boolean isSelected(int pointer, int objectID) {
+        checkPointer(pointer);
+        return selections[pointer].contains(objectID);
+    }
+
+    public void clearSelection(int pointer) {
+        checkPointer(pointer);
+        selections[pointer].clear();
+    }
+
+    public void clearSelections() {
+        for (int i = 0; i < MAX_POINTERS; i++)
+            selections[i].clear();
+    }
+
+    protected void checkPointer(int pointer) {
+        if (pointer < 0 || pointer >= MAX_POINTERS)
+            throw new IllegalArgumentException("pointer must be within 0.." + (MAX_POINTERS - 1));
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void clearPointers() {
+        resultCount = 0;
+    }
+
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    public PointerResult getResult(int index) {
+        if (index < 0 || index >= resultCount)
+            throw new IndexOutOfBoundsException("index: " + index);
+        return results[index];
+    }
+
+    /**
+     * @return result of the pointer with the given input index or null
+     */
+    public PointerResult getResultForPointer(int pointer) {
+        for (int i = 0; i < resultCount; i++) {
+            if (results[i].pointer == pointer)
+                return results[i];
+        }
+        return null;
+    }
+
+    /**
+     * Adds the pointer with the screen position as reported by the input
+     * (top left origin, same as PickSelection.pickObjectID()). Needs the
+     * camera of the pick selection.
+     */
+    public PointerResult addPointer(int pointer, int x, int y) {
+        if (pickSelection.getCamera() == null)
+            throw new IllegalStateException("camera is not set");
+        final PointerResult result = nextResult(pointer);
+        result.hasPosition = true;
+        result.position.set(x, pickSelection.getScreenHeight() - y);
+        return result;
+    } // PointerResult addPointer(...)
+
+    /**
+     * Adds the pointer with the world space ray (e.g. VR controller) - the
+     * stages which need the screen position are skipped for it
+     */
+    public PointerResult addRay(int pointer, Ray ray) {
+        final PointerResult result = nextResult(pointer);
+        result.hasPosition = false;
+        result.ray.set(ray);
+        return result;
+    }
+
+    protected PointerResult nextResult(int pointer) {
+        checkPointer(pointer);
+        if (resultCount >= MAX_POINTERS)
+            throw new IllegalStateException("too many pointers, max is " + MAX_POINTERS);
+        final PointerResult result = results[resultCount++];
+        result.pointer = pointer;
+        result.resetHits();
+        return result;
+    }
+
+    /**
+     * Computes the screen area covering all of the pointers (with the pick
+     * tolerance) - the ID buffer needs to be read for this area only
+     *
+     * @return false when there are no pointers with the screen position
+     */
+    public boolean getPointerBounds(Rectangle out) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < resultCount; i++) {
+            final PointerResult result = results[i];
+            if (!result.hasPosition)
+                continue;
+            minX = Math.min(minX, result.position.x);
+            minY = Math.min(minY, result.position.y);
+            maxX = Math.max(maxX, result.position.x);
+            maxY = Math.max(maxY, result.position.y);
+        }
+        if (minX > maxX) {
+            out.set(0, 0, 0, 0);
+            return false;
+        }
+        final int tolerance = pickSelection.getPickTolerance();
+        out.set(minX - tolerance, minY - tolerance,
+                maxX - minX + 1 + 2 * tolerance,
+                maxY - minY + 1 + 2 * tolerance);
+        return true;
+    } // boolean getPointerBounds(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Tests all of the objects against all of the pointers in one pass and
+     * updates the selections of the pointers
+     *
+     * @return number of the pointers with a picked object
+     */
+    public int execute(Array<? extends SpatialObject> objects) {
+        testedCount = 0;
+        pairCount = 0;
+        for (int i = 0; i < resultCount; i++)
+            results[i].resetHits();
+        if (objects != null && resultCount > 0)
+            traverse(objects);
+        applySelections();
+        int picked = 0;
+        for (int i = 0; i < resultCount; i++) {
+            if (results[i].isPicked())
+                picked++;
+        }
+        return picked;
+    } // int execute(...)
+
+    protected void traverse(Array<? extends SpatialObject> objects) {
+        final PickSelection ps = pickSelection;
+        ps.beginQuery();
+        boolean hasRays = false, hasPositions = false;
+        for (int i = 0; i < resultCount; i++) {
+            final PointerResult result = results[i];
+            if (!result.hasPosition) {
+                hasRays = true;
+                continue;
+            }
+            hasPositions = true;
+            // the same ray and the tolerance search as in pickObjectID() - once per pointer
+            result.toleranceHitID = ps.setQueryPixel(result.position.x, result.position.y);
+            result.toleranceHitPos.set(ps.toleranceHitPos);
+            result.ray.set(ps.ray);
+        }
+        pixelGoodResult = ps.goodPickResult;
+        if (hasRays) {
+            rayStagesLength = ps.linkStages(rayStages, rayBuiltinStages, false, false);
+            rayGoodResult = ps.computeGoodPickResult(false);
+        }
+        // pixels found by the tolerance search can be off the object bounds,
+        // the pick ray goes one pixel below the position (unproject flips
+        // with height - 1) - both are covered by the border
+        final int border = ps.pickBorder + 2;
+        final Camera camera = ps.getCamera();
+        final int numObjects = objects.size;
+        for (int i = 0; i < numObjects; i++) {
+            final SpatialObject object = objects.get(i);
+            if (object == null || !object.isVisible())
+                continue;
+            testedCount++;
+            // projected once for all of the pointers
+            final boolean onScreen = hasPositions && camera != null &&
+                    projectBounds(camera, object.getSphereCenter(), object.getSphereRadius(), border);
+            if (!onScreen && !hasRays)
+                continue;
+            for (int p = 0; p < resultCount; p++) {
+                final PointerResult result = results[p];
+                if (result.hasPosition && !onScreen)
+                    continue;
+                if (result.hasPosition && !screenBounds.contains(result.position.x + 0.5f, result.position.y + 0.5f))
+                    continue;
+                pairCount++;
+                testPointer(result, object);
+            }
+        } // for each object
+        ps.endQuery();
+    } // void traverse(...)
+
+    /**
+     * Projects the box around the bounding sphere into the screen bounds
+     * (expanded by the border) - covers everything the stages can accept
+     *
+     * @return false when the box is completely off screen or behind the camera
+     */
+    protected boolean projectBounds(Camera camera, Vector3 center, float radius, int border) {
+        final float[] m = camera.combined.val;
+        final int screenWidth = pickSelection.getScreenWidth();
+        final int screenHeight = pickSelection.getScreenHeight();
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        int behind = 0;
+        for (int i = 0; i < 8; i++) {
+            final float x = (i & 4) != 0 ? center.x + radius : center.x - radius;
+            final float y = (i & 2) != 0 ? center.y + radius : center.y - radius;
+            final float z = (i & 1) != 0 ? center.z + radius : center.z - radius;
+            final float w = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+            if (w < OcclusionCuller.NEAR_EPSILON) {
+                behind++;
+                continue;
+            }
+            final float invW = 1.0f / w;
+            final float sx = ((m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03]) * invW * 0.5f + 0.5f) * screenWidth;
+            final float sy = ((m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13]) * invW * 0.5f + 0.5f) * screenHeight;
+            minX = Math.min(minX, sx);
+            minY = Math.min(minY, sy);
+            maxX = Math.max(maxX, sx);
+            maxY = Math.max(maxY, sy);
+        }
+        if (behind == 8)
+            return false;
+        if (behind > 0) {
+            // crossing the camera plane - the projection is unbounded
+            screenBounds.set(-Float.MAX_VALUE / 4.0f, -Float.MAX_VALUE / 4.0f, Float.MAX_VALUE / 2.0f, Float.MAX_VALUE / 2.0f);
+            return true;
+        }
+        screenBounds.set(minX - border, minY - border,
+                maxX - minX + 2 * border, maxY - minY + 2 * border);
+        return screenBounds.x <= screenWidth && screenBounds.y <= screenHeight &&
+                screenBounds.x + screenBounds.width >= 0 && screenBounds.y + screenBounds.height >= 0;
+    } // boolean projectBounds(...)
+
+    /**
+     * Runs the stages of the pick selection for the pointer - the query
+     * state is switched to the pointer (position, ray, tolerance result)
+     */
+    protected void testPointer(PointerResult result, SpatialObject object) {
+        final PickSelection ps = pickSelection;
+        ps.pickRay.set(result.ray);
+        ps.ray = ps.pickRay; // not set yet when there are only the rays
+        final PickSelection.PickStage[] stages;
+        final int length;
+        if (result.hasPosition) {
+            ps.pickPos.set(result.position);
+            ps.toleranceHitID = result.toleranceHitID;
+            ps.toleranceHitPos.set(result.toleranceHitPos);
+            ps.goodPickResult = pixelGoodResult;
+            stages = ps.queryStages;
+            length = ps.queryStagesLength;
+        } else {
+            ps.goodPickResult = rayGoodResult;
+            stages = rayStages;
+            length = rayStagesLength;
+        }
+        pickingInfo.reset();
+        pickingInfo.spatialObject = object;
+        if (ps.runStages(stages, length, pickingInfo) != ps.goodPickResult)
+            return;
+        final float distance2 = result.ray.origin.dst2(pickingInfo.intersection);
+        if (collectAllHits || ps.isGroupSelectionMode())
+            result.addHit(object, (float) Math.sqrt(distance2));
+        if (distance2 < result.distance2) {
+            result.spatialObject = object;
+            result.result = pickingInfo.result;
+            result.distance2 = distance2;
+            result.distance = (float) Math.sqrt(distance2);
+            result.intersection.set(pickingInfo.intersection);
+        }
+    } // void testPointer(...)
+
+    /**
+     * Combines the hits of each pointer with its selection - the pointers
+     * which were not queried keep their selections
+     */
+    protected void applySelections() {
+        final boolean groupMode = pickSelection.isGroupSelectionMode();
+        for (int i = 0; i < resultCount; i++) {
+            final PointerResult result = results[i];
+            hitIDs.clear();
+            if (groupMode) {
+                for (int j = 0; j < result.hits.size; j++)
+                    hitIDs.add(result.hits.get(j).getSpatialObjectID());
+            } else if (result.isPicked()) {
+                hitIDs.add(result.spatialObject.getSpatialObjectID());
+            }
+            PickSelection.combineSelection(selections[result.pointer], hitIDs, selectionOperation);
+        } // for each pointer
+    } // void applySelections()
+
+    //-------------------------------------------------------------------------
+
+} // class MultiPickQuery
@@ -0,0 +1,270 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+
+/**
+ * Software occlusion culler - rasterizes the oriented bounding boxes of the
+ * occluders into a small depth buffer and then tests the screen space bounds
+ * of other objects against it. Does not use GL in any way, so it can be used
+ * headless. Only objects which fill their bounding box well (crates, walls,
+ * buildings) should be used as occluders - the whole box is treated as solid.
+ */
+public class OcclusionCuller {
+
+    public static final int DEFAULT_WIDTH = 128;
+    public static final int DEFAULT_HEIGHT = 64;
+    /* Minimal clip space w - vertices closer than this are treated as crossing the near plane */
+    protected static final float NEAR_EPSILON = 0.0001f;
+
+    /* Triangle indices for the 12 triangles of the box (corner index: x=4, y=2, z=1 bits) */
+    protected static final int[] BOX_TRIANGLES = {
+            0, 1, 3, 0, 3, 2, // min x
+            4, 6, 7, 4, 7, 5, // max x
+            0, 4, 5, 0, 5, 1, // min y
+            2, 3, 7, 2, 7, 6, // max y
+            0, 2, 6, 0, 6, 4, // min z
+            1, 5, 7, 1, 7, 3  // max z
+    };
+
+    /* Depth values in range 0..1 (1 - far plane), bottom left origin */
+    protected final float[] depthBuffer;
+    protected final int width;
+    protected final int height;
+    /* Copy of the combined projection-view matrix */
+    protected final float[] matrix = new float[16];
+    /* Projected corners of the currently processed box: x, y, depth */
+    protected final float[] screenPoints = new float[8 * 3];
+    /* Corners in world space */
+    protected final float[] corners = new float[8 * 3];
+    /* Minimal screen area (fraction of the buffer) for the occluder to be rasterized */
+    protected float minOccluderArea = 0.005f;
+
+    protected int occluderCount = 0;
+    protected int testedCount = 0;
+    protected int culledCount = 0;
+
+    //-------------------------------------------------------------------------
+
+    public OcclusionCuller() {
+        this(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    }
+
+    public OcclusionCuller(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("width and height must be greater than 0");
+        this.width = width;
+        this.height = height;
+        this.depthBuffer = new float[width * height];
+        clear();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float[] getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    public float getMinOccluderArea() {
+        return minOccluderArea;
+    }
+
+    public void setMinOccluderArea(float minOccluderArea) {
+        this.minOccluderArea = minOccluderArea;
+    }
+
+    /**
+     * @return number of occluders rasterized since begin()
+     */
+    public int getOccluderCount() {
+        return occluderCount;
+    }
+
+    /**
+     * @return number of objects tested for occlusion since begin()
+     */
+    public int getTestedCount() {
+        return testedCount;
+    }
+
+    /**
+     * @return number of objects found to be occluded since begin()
+     */
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void clear() {
+        final int n = depthBuffer.length;
+        for (int i = 0; i < n; i++)
+            depthBuffer[i] = 1.0f;
+    }
+
+    /**
+     * Prepares the culler for the new frame - clears the depth buffer and
+     * the statistics.
+     *
+     * @param combined combined projection and view matrix of the camera
+     */
+    public void begin(Matrix4 combined) {
+        System.arraycopy(combined.val, 0, matrix, 0, 16);
+        clear();
+        occluderCount = 0;
+        testedCount = 0;
+        culledCount = 0;
+    } // void begin(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Rasterizes the oriented box (local box transformed by the matrix) into
+     * the depth buffer.
+     *
+     * @return true if the occluder was rasterized, false if it was too small or
+     * crossing the near plane
+     */
+    public boolean addOccluder(BoundingBox localBox, Matrix4 transform) {
+        final float[] t = transform.val;
+        for (int i = 0; i < 8; i++) {
+            final float x = (i & 4) != 0 ? localBox.max.x : localBox.min.x;
+            final float y = (i & 2) != 0 ? localBox.max.y : localBox.min.y;
+            final float z = (i & 1) != 0 ? localBox.max.z : localBox.min.z;
+            corners[i * 3 + 0] = t[Matrix4.M00] * x + t[Matrix4.M01] * y + t[Matrix4.M02] * z + t[Matrix4.M03];
+            corners[i * 3 + 1] = t[Matrix4.M10] * x + t[Matrix4.M11] * y + t[Matrix4.M12] * z + t[Matrix4.M13];
+            corners[i * 3 + 2] = t[Matrix4.M20] * x + t[Matrix4.M21] * y + t[Matrix4.M22] * z + t[Matrix4.M23];
+        }
+        if (!projectCorners())
+            return false; // crossing the near plane - ignore (conservative)
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 8; i++) {
+            minX = Math.min(minX, screenPoints[i * 3]);
+            maxX = Math.max(maxX, screenPoints[i * 3]);
+            minY = Math.min(minY, screenPoints[i * 3 + 1]);
+            maxY = Math.max(maxY, screenPoints[i * 3 + 1]);
+        }
+        final float area = (maxX - minX) * (maxY - minY);
+        if (area < minOccluderArea * (float) (width * height))
+            return false; // too small to occlude anything
+        for (int i = 0; i < BOX_TRIANGLES.length; i += 3) {
+            rasterizeTriangle(BOX_TRIANGLES[i], BOX_TRIANGLES[i + 1], BOX_TRIANGLES[i + 2]);
+        }
+        occluderCount++;
+        return true;
+    } // boolean addOccluder(...)
+
+    /**
+     * Tests the axis-aligned box against the depth buffer.
+     *
+     * @return true if the box is completely hidden behind the occluders
+     */
+    public boolean isOccluded(Vector3 center, Vector3 extent) {
+        return isOccluded(center.x, center.y, center.z, extent.x, extent.y, extent.z);
+    }
+
+    public boolean isOccluded(float cx, float cy, float cz, float ex, float ey, float ez) {
+        testedCount++;
+        if (occluderCount == 0)
+            return false;
+        for (int i = 0; i < 8; i++) {
+            corners[i * 3 + 0] = (i & 4) != 0 ? cx + ex : cx - ex;
+            corners[i * 3 + 1] = (i & 2) != 0 ? cy + ey : cy - ey;
+            corners[i * 3 + 2] = (i & 1) != 0 ? cz + ez : cz - ez;
+        }
+        if (!projectCorners())
+            return false; // crossing the near plane - treat as visible
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minDepth = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 8; i++) {
+            minX = Math.min(minX, screenPoints[i * 3]);
+            maxX = Math.max(maxX, screenPoints[i * 3]);
+            minY = Math.min(minY, screenPoints[i * 3 + 1]);
+            maxY = Math.max(maxY, screenPoints[i * 3 + 1]);
+            minDepth = Math.min(minDepth, screenPoints[i * 3 + 2]);
+        }
+        final int x0 = Math.max((int) Math.floor(minX), 0);
+        final int y0 = Math.max((int) Math.floor(minY), 0);
+        final int x1 = Math.min((int) Math.ceil(maxX), width) - 1;
+        final int y1 = Math.min((int) Math.ceil(maxY), height) - 1;
+        if (x0 > x1 || y0 > y1)
+            return false; // off screen - frustum culling decides
+        for (int y = y0; y <= y1; y++) {
+            final int line = y * width;
+            for (int x = x0; x <= x1; x++) {
+                if (depthBuffer[line + x] >= minDepth)
+                    return false; // at least one pixel can be visible
+            }
+        }
+        culledCount++;
+        return true;
+    } // boolean isOccluded(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Projects world space corners into the buffer space
+     *
+     * @return false if any of the corners is behind the near plane
+     */
+    protected boolean projectCorners() {
+        final float[] m = matrix;
+        for (int i = 0; i < 8; i++) {
+            final float x = corners[i * 3], y = corners[i * 3 + 1], z = corners[i * 3 + 2];
+            final float w = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+            if (w < NEAR_EPSILON)
+                return false;
+            final float invW = 1.0f / w;
+            final float nx = (m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03]) * invW;
+            final float ny = (m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13]) * invW;
+            final float nz = (m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23]) * invW;
+            screenPoints[i * 3 + 0] = (nx * 0.5f + 0.5f) * width;
+            screenPoints[i * 3 + 1] = (ny * 0.5f + 0.5f) * height;
+            screenPoints[i * 3 + 2] = nz * 0.5f + 0.5f;
+        }
+        return true;
+    } // boolean projectCorners()
+
+    protected void rasterizeTriangle(int a, int b, int c) {
+        final float ax = screenPoints[a * 3], ay = screenPoints[a * 3 + 1], az = screenPoints[a * 3 + 2];
+        final float bx = screenPoints[b * 3], by = screenPoints[b * 3 + 1], bz = screenPoints[b * 3 + 2];
+        final float cx = screenPoints[c * 3], cy = screenPoints[c * 3 + 1], cz = screenPoints[c * 3 + 2];
+        final float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        if (Math.abs(area) < 0.00001f)
+            return; // degenerated
+        final float invArea = 1.0f / area;
+        final int x0 = Math.max((int) Math.floor(Math.min(ax, Math.min(bx, cx))), 0);
+        final int y0 = Math.max((int) Math.floor(Math.min(ay, Math.min(by, cy))), 0);
+        final int x1 = Math.min((int) Math.ceil(Math.max(ax, Math.max(bx, cx))), width - 1);
+        final int y1 = Math.min((int) Math.ceil(Math.max(ay, Math.max(by, cy))), height - 1);
+        for (int y = y0; y <= y1; y++) {
+            final float py = y + 0.5f;
+            final int line = y * width;
+            for (int x = x0; x <= x1; x++) {
+                final float px = x + 0.5f;
+                // barycentric weights (sign normalized by the area)
+                final float w0 = ((bx - px) * (cy - py) - (by - py) * (cx - px)) * invArea;
+                final float w1 = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) * invArea;
+                final float w2 = 1.0f - w0 - w1;
+                if (w0 < 0.0f || w1 < 0.0f || w2 < 0.0f)
+                    continue;
+                final float depth = w0 * az + w1 * bz + w2 * cz;
+                if (depth < depthBuffer[line + x])
+                    depthBuffer[line + x] = depth;
+            }
+        }
+    } // void rasterizeTriangle(...)
+
+    //-------------------------------------------------------------------------
+
+} // class OcclusionCuller
@@ -0,0 +1,107 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+
+/**
+ * Oriented box described by the center and three half axes (axis direction
+ * scaled by the half extent). Half axes are transformed directly, so the box
+ * stays exact under any affine transformation (also non-uniform scale of
+ * the rotated box). Corner index uses the same bits as OcclusionCuller and
+ * BoundingBox corners: first axis = 4, second = 2, third = 1.
+ */
+public class OrientedBox {
+
+    public final Vector3 center = new Vector3();
+    public final Vector3[] halfAxes = {new Vector3(), new Vector3(), new Vector3()};
+
+    //-------------------------------------------------------------------------
+
+    public OrientedBox() {
+    }
+
+    public OrientedBox(OrientedBox other) {
+        set(other);
+    }
+
+    //-------------------------------------------------------------------------
+
+    public OrientedBox set(OrientedBox other) {
+        center.set(other.center);
+        for (int i = 0; i < 3; i++)
+            halfAxes[i].set(other.halfAxes[i]);
+        return this;
+    }
+
+    public OrientedBox set(BoundingBox box) {
+        box.getCenter(center);
+        halfAxes[0].set((box.max.x - box.min.x) * 0.5f, 0.0f, 0.0f);
+        halfAxes[1].set(0.0f, (box.max.y - box.min.y) * 0.5f, 0.0f);
+        halfAxes[2].set(0.0f, 0.0f, (box.max.z - box.min.z) * 0.5f);
+        return this;
+    }
+
+    /**
+     * Sets this box to the other box transformed by the matrix
+     */
+    public OrientedBox setTransformed(OrientedBox other, Matrix4 transform) {
+        final float[] m = transform.val;
+        final Vector3 c = other.center;
+        final float cx = c.x, cy = c.y, cz = c.z;
+        center.x = m[Matrix4.M00] * cx + m[Matrix4.M01] * cy + m[Matrix4.M02] * cz + m[Matrix4.M03];
+        center.y = m[Matrix4.M10] * cx + m[Matrix4.M11] * cy + m[Matrix4.M12] * cz + m[Matrix4.M13];
+        center.z = m[Matrix4.M20] * cx + m[Matrix4.M21] * cy + m[Matrix4.M22] * cz + m[Matrix4.M23];
+        for (int i = 0; i < 3; i++) {
+            final Vector3 a = other.halfAxes[i];
+            final float ax = a.x, ay = a.y, az = a.z;
+            halfAxes[i].set(m[Matrix4.M00] * ax + m[Matrix4.M01] * ay + m[Matrix4.M02] * az,
+                    m[Matrix4.M10] * ax + m[Matrix4.M11] * ay + m[Matrix4.M12] * az,
+                    m[Matrix4.M20] * ax + m[Matrix4.M21] * ay + m[Matrix4.M22] * az);
+        }
+        return this;
+    } // OrientedBox setTransformed(...)
+
+    //-------------------------------------------------------------------------
+
+    public Vector3 getCorner(int index, Vector3 out) {
+        out.set(center);
+        if ((index & 4) != 0) out.add(halfAxes[0]);
+        else out.sub(halfAxes[0]);
+        if ((index & 2) != 0) out.add(halfAxes[1]);
+        else out.sub(halfAxes[1]);
+        if ((index & 1) != 0) out.add(halfAxes[2]);
+        else out.sub(halfAxes[2]);
+        return out;
+    } // Vector3 getCorner(...)
+
+    /**
+     * @param out array with at least 8 vectors
+     */
+    public void getCorners(Vector3[] out) {
+        for (int i = 0; i < 8; i++)
+            getCorner(i, out[i]);
+    }
+
+    public float volume() {
+        final Vector3 a = halfAxes[0], b = halfAxes[1], c = halfAxes[2];
+        final float triple = a.x * (b.y * c.z - b.z * c.y) -
+                a.y * (b.x * c.z - b.z * c.x) +
+                a.z * (b.x * c.y - b.y * c.x);
+        return 8.0f * Math.abs(triple);
+    }
+
+    /**
+     * @return half length of the box projected onto the direction (needs to
+     * be normalized)
+     */
+    public float projectedRadius(float nx, float ny, float nz) {
+        final Vector3 a = halfAxes[0], b = halfAxes[1], c = halfAxes[2];
+        return Math.abs(nx * a.x + ny * a.y + nz * a.z) +
+                Math.abs(nx * b.x + ny * b.y + nz * b.z) +
+                Math.abs(nx * c.x + ny * c.y + nz * c.z);
+    }
+
+    //-------------------------------------------------------------------------
+
+} // class OrientedBox
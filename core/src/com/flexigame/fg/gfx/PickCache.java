@@ -0,0 +1,181 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Small LRU cache of the pick results - maps the screen pixel to the
+ * picked object ID and the intersection point. All entries are valid only
+ * for the given camera version, scene version and pick flags - when any of
+ * them changes the cache is cleared on the next validate(). Entries are
+ * kept in fixed arrays (no allocations after creation), the lookup is a
+ * linear scan which is fast for the small capacities used for tooltips and
+ * repeated clicks.
+ */
+public class PickCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    /* Returned by get() when the pixel is not cached */
+    public static final int MISS = -2;
+    /* Cached result for the pixel without any object */
+    public static final int NO_OBJECT = -1;
+
+    protected final int capacity;
+    protected final int[] pixelX;
+    protected final int[] pixelY;
+    protected final int[] objectIDs;
+    /* Intersection points, 3 floats per entry */
+    protected final float[] intersections;
+    /* Access stamps - the entry with the lowest one is evicted first */
+    protected final long[] stamps;
+    protected int size = 0;
+    protected long clock = 0;
+
+    /* Inputs the entries are valid for */
+    protected boolean versionsValid = false;
+    protected int cameraVersion = 0;
+    protected int sceneVersion = 0;
+    protected int flags = 0;
+
+    protected int hitCount = 0;
+    protected int missCount = 0;
+    protected int invalidationCount = 0;
+    protected int evictionCount = 0;
+
+    //-------------------------------------------------------------------------
+
+    public PickCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PickCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        this.capacity = capacity;
+        this.pixelX = new int[capacity];
+        this.pixelY = new int[capacity];
+        this.objectIDs = new int[capacity];
+        this.intersections = new float[capacity * 3];
+        this.stamps = new long[capacity];
+    } // PickCache(...)
+
+    //-------------------------------------------------------------------------
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public int getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+
+    public float getHitRate() {
+        final int total = hitCount + missCount;
+        if (total == 0)
+            return 0.0f;
+        return (float) hitCount / (float) total;
+    }
+
+    public void resetCounters() {
+        hitCount = 0;
+        missCount = 0;
+        invalidationCount = 0;
+        evictionCount = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Clears the cache when any of the inputs differs from the inputs of the
+     * cached entries
+     *
+     * @return false if the cache was cleared
+     */
+    public boolean validate(int cameraVersion, int sceneVersion, int flags) {
+        if (versionsValid && this.cameraVersion == cameraVersion &&
+                this.sceneVersion == sceneVersion && this.flags == flags)
+            return true;
+        if (size > 0)
+            invalidationCount++;
+        size = 0;
+        versionsValid = true;
+        this.cameraVersion = cameraVersion;
+        this.sceneVersion = sceneVersion;
+        this.flags = flags;
+        return false;
+    } // boolean validate(...)
+
+    /**
+     * @param intersection receives the cached intersection point, can be null
+     * @return cached object ID, NO_OBJECT or MISS
+     */
+    public int get(int x, int y, Vector3 intersection) {
+        for (int i = 0; i < size; i++) {
+            if (pixelX[i] != x || pixelY[i] != y)
+                continue;
+            hitCount++;
+            stamps[i] = ++clock;
+            if (intersection != null)
+                intersection.set(intersections[i * 3], intersections[i * 3 + 1], intersections[i * 3 + 2]);
+            return objectIDs[i];
+        }
+        missCount++;
+        return MISS;
+    } // int get(...)
+
+    public void put(int x, int y, int objectID, Vector3 intersection) {
+        int index = -1;
+        for (int i = 0; i < size; i++) {
+            if (pixelX[i] == x && pixelY[i] == y) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0 && size < capacity) {
+            index = size++;
+        } else if (index < 0) {
+            // evict the least recently used entry
+            index = 0;
+            for (int i = 1; i < size; i++) {
+                if (stamps[i] < stamps[index])
+                    index = i;
+            }
+            evictionCount++;
+        }
+        pixelX[index] = x;
+        pixelY[index] = y;
+        objectIDs[index] = objectID;
+        stamps[index] = ++clock;
+        if (intersection != null) {
+            intersections[index * 3] = intersection.x;
+            intersections[index * 3 + 1] = intersection.y;
+            intersections[index * 3 + 2] = intersection.z;
+        } else {
+            intersections[index * 3] = 0.0f;
+            intersections[index * 3 + 1] = 0.0f;
+            intersections[index * 3 + 2] = 0.0f;
+        }
+    } // void put(...)
+
+    //-------------------------------------------------------------------------
+
+} // class PickCache
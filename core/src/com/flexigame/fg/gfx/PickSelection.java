@@ -1,16 +1,24 @@
 package com.flexigame.fg.gfx;
 
 import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
 import com.badlogic.gdx.math.*;
 import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.math.collision.Ray;
 import com.badlogic.gdx.utils.Array;
-import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
 import com.badlogic.gdx.utils.Pool;
 import com.badlogic.gdx.utils.TimeUtils;
 import com.flexigame.fg.utils.AbstractFlags;
+import com.flexigame.fg.utils.IdBitmap;
 import com.flexigame.fg.utils.Vector2i;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Main class for pick selection - supports checking ray intersections with
  * bounding spheres, axis-aligned boxes, oriented boxes and querying special
@@ -22,13 +30,63 @@ public class PickSelection {
         boolean isColorInPixels(int colorValue, Rectangle area, boolean dump);
     } // interface PixelChecker
 
+    public interface DepthReader {
+        /* Window depth (0..1) captured at the screen position (bottom left origin),
+         * 1 or more when nothing was drawn there */
+        float getPixelDepth(int x, int y);
+    } // interface DepthReader
+
+    public interface IdReader {
+        /* ID of the object drawn at the screen position (bottom left origin),
+         * -1 when the pixel is empty or was not read */
+        int getPixelId(int x, int y);
+    } // interface IdReader
+
+    /**
+     * Decision of the single narrow phase stage
+     */
+    public enum StageResult {
+        /* Object is picked, the remaining stages are skipped */
+        ACCEPT,
+        /* Object is not picked, the remaining stages are skipped */
+        REJECT,
+        /* Next stage decides */
+        CONTINUE
+    } // enum StageResult
+
+    public interface PickStage {
+        /* Tests the object of the picking info against the current ray / pick
+         * position, can store the partial result (see Result) */
+        StageResult test(PickSelection pickSelection, PickingInfo pickingInfo);
+    } // interface PickStage
+
+    public static final class PickStageStats {
+        /* Number of objects tested by the stage */
+        public int seen = 0;
+        public int accepted = 0;
+        public int rejected = 0;
+
+        public void reset() {
+            seen = 0;
+            accepted = 0;
+            rejected = 0;
+        }
+
+        public float getRejectRate() {
+            if (seen == 0)
+                return 0.0f;
+            return (float) rejected / (float) seen;
+        }
+    } // static final class PickStageStats
+
     public enum Result {
         NOT_PICKED,
         PICKED_SPHERE,
         PICKED_AABB,
         PICKED_ON_SCREEN_BOX,
         PICKED_OBB_TRIANGLES,
-        PICKED_PIXEL; // framebuffer / color texture
+        PICKED_PIXEL, // framebuffer / color texture
+        PICKED_MESH_TRIANGLE; // exact triangle of the mesh (CPU)
 
         public boolean isPicked() {
             return (this.ordinal() != NOT_PICKED.ordinal());
@@ -53,8 +111,29 @@ public class PickSelection {
         public boolean isPixel() {
             return (this.ordinal() == PICKED_PIXEL.ordinal());
         }
+
+        public boolean isMeshTriangle() {
+            return (this.ordinal() == PICKED_MESH_TRIANGLE.ordinal());
+        }
     } // enum Result
 
+    /**
+     * How the objects inside the picking box are combined with the selection
+     * which existed when the box was started (see setBoxSelectionOperation())
+     */
+    public enum SelectionOperation {
+        /* Box content replaces the selection */
+        REPLACE,
+        /* Box content is added (union) */
+        UNION,
+        /* Box content is removed (difference) */
+        DIFFERENCE,
+        /* Only the selected objects inside the box stay (intersection) */
+        INTERSECTION,
+        /* Box content is toggled (symmetric difference) */
+        SYMMETRIC_DIFFERENCE
+    } // enum SelectionOperation
+
     //-------------------------------------------------------------------------
 
     public static final class StateFlags extends AbstractFlags {
@@ -88,6 +167,16 @@ public class PickSelection {
         static final int INTERNAL_SHOULD_UNSELECT = 2048;
         /* Internal flag - should continue traversing? */
         static final int INTERNAL_SHOULD_CONTINUE = 4096;
+        /* Whether or not to check the triangles of the meshes (exact, no fbo needed) */
+        static final int CHECK_MESH_TRIANGLES = 8192;
+        /* Whether or not to find the hit node of the picked object */
+        static final int PICK_NODES = 16384;
+        /* Whether or not to skip the hover picking when nothing has changed */
+        static final int HOVER_COHERENCE = 32768;
+        /* Flags which are changed by the traversal itself */
+        static final int INTERNAL_FLAGS = INTERNAL_BEGIN | INTERNAL_SHOULD_UNSELECT | INTERNAL_SHOULD_CONTINUE;
+        /* Flags which change at runtime and don't select the stages (not in the compile key) */
+        static final int RUNTIME_FLAGS = INTERNAL_FLAGS | PICKER_ACTIVE;
 
         public static final int[] values = {NO_FLAGS, // 0
                 SELECTION_ON_CLICK,
@@ -99,7 +188,10 @@ public class PickSelection {
                 PICKER_ACTIVE,
                 GROUP_SELECTION_MODE,
                 TOGGLE_SELECTION_MODE,
-                USE_PICKING_BOX};
+                USE_PICKING_BOX,
+                CHECK_MESH_TRIANGLES,
+                PICK_NODES,
+                HOVER_COHERENCE};
 
         public StateFlags() {
             super();
@@ -164,6 +256,93 @@ public class PickSelection {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Changes of the selection since the last report - the arrays are reused
+     * and valid only during the listener call
+     */
+    public static final class SelectionDelta {
+        /* IDs of the newly selected objects */
+        public final IntArray added = new IntArray();
+        /* IDs of the objects which are no longer selected */
+        public final IntArray removed = new IntArray();
+
+        public boolean isEmpty() {
+            return added.size == 0 && removed.size == 0;
+        }
+
+        public void clear() {
+            added.clear();
+            removed.clear();
+        }
+    } // static final class SelectionDelta
+
+    public interface OnSelectionDeltaListener {
+        /* Called once after the traversal when the selection has changed */
+        void selectionChanged(PickSelection pickSelection, SelectionDelta delta);
+    } // interface OnSelectionDeltaListener
+
+    Array<OnSelectionDeltaListener> onSelectionDeltaListenersArray = new Array<OnSelectionDeltaListener>();
+    protected final SelectionDelta selectionDelta = new SelectionDelta();
+    /* Changes of the selection since the last reported delta - recorded
+     * where the selection changes (add cancels a pending remove and back) */
+    protected final IdBitmap pendingAdded = new IdBitmap();
+    protected final IdBitmap pendingRemoved = new IdBitmap();
+
+    public boolean addOnSelectionDeltaListener(OnSelectionDeltaListener onSelectionDeltaListener) {
+        if (onSelectionDeltaListener == null)
+            throw new NullPointerException("onSelectionDeltaListener cannot be null");
+        if (onSelectionDeltaListenersArray.contains(onSelectionDeltaListener, true)) {
+            return false;
+        }
+        onSelectionDeltaListenersArray.add(onSelectionDeltaListener);
+        return true;
+    } // boolean addOnSelectionDeltaListener(...)
+
+    public boolean removeOnSelectionDeltaListener(OnSelectionDeltaListener onSelectionDeltaListener) {
+        if (onSelectionDeltaListener == null)
+            throw new NullPointerException("onSelectionDeltaListener cannot be null");
+
+        return onSelectionDeltaListenersArray.removeValue(onSelectionDeltaListener, true);
+    }
+
+    public Array<OnSelectionDeltaListener> getOnSelectionDeltaListenersArray() {
+        return onSelectionDeltaListenersArray;
+    }
+
+    /**
+     * Calls the delta listeners once with the changes recorded since the
+     * last report (when anything has changed). Covers also the objects
+     * unselected without the per object events (clear(), first selected
+     * wins). The IDs are reported in the ascending order.
+     */
+    protected void callOnSelectionDeltaListeners() {
+        if (onSelectionDeltaListenersArray.size == 0)
+            return; // kept until there is a listener
+        if (pendingAdded.isEmpty() && pendingRemoved.isEmpty())
+            return;
+        selectionDelta.clear();
+        pendingAdded.toArray(selectionDelta.added);
+        pendingRemoved.toArray(selectionDelta.removed);
+        pendingAdded.clear();
+        pendingRemoved.clear();
+        for (int i = 0; i < onSelectionDeltaListenersArray.size; i++) {
+            onSelectionDeltaListenersArray.get(i).selectionChanged(this, selectionDelta);
+        } // for each delta listener
+        selectionDelta.clear();
+    } // void callOnSelectionDeltaListeners()
+
+    protected void recordSelected(int objectID) {
+        if (!pendingRemoved.remove(objectID))
+            pendingAdded.add(objectID);
+    }
+
+    protected void recordUnselected(int objectID) {
+        if (!pendingAdded.remove(objectID))
+            pendingRemoved.add(objectID);
+    }
+
+    //-------------------------------------------------------------------------
+
     static public final class PickingInfo implements Pool.Poolable {
         /* Spatial object being check */
         public SpatialObject spatialObject = null;
@@ -185,6 +364,18 @@ public class PickSelection {
         public boolean pickBoxContains = false;
         /* whether or not the picking box overlaps with the on-screen box */
         public boolean pickBoxOverlaps = false;
+        /* Index of the hit mesh triangle (within the mesh part), -1 if none */
+        public int triangleIndex = -1;
+        /* Mesh part containing the hit triangle */
+        public NodePart nodePart = null;
+        /* Distance from the ray origin to the hit triangle */
+        public float distance = 0.0f;
+        /* Barycentric coordinates of the hit point on the triangle */
+        public Vector3 barycentric = new Vector3();
+        /* Hit node of the picked object (only with node picking) */
+        public Node node = null;
+        /* Window depth of the picked pixel, 1 when not captured */
+        public float depth = 1.0f;
 
         @Override
         public void reset() {
@@ -198,6 +389,12 @@ public class PickSelection {
             selected = false;
             pickBoxContains = false;
             pickBoxOverlaps = false;
+            triangleIndex = -1;
+            nodePart = null;
+            distance = 0.0f;
+            barycentric.set(0.0f, 0.0f, 0.0f);
+            node = null;
+            depth = 1.0f;
         } // void reset()
     } // static final class PickingInfo
 
@@ -215,19 +412,22 @@ public class PickSelection {
     /* Array with currently selected objects */
     protected final Array<SpatialObject> selectedObjects = new Array<SpatialObject>();
     /* Special map for mapping object scene index to PickingInfo structure */
-    protected final ObjectMap<Integer, PickingInfo> pickingInfoMap = new ObjectMap<Integer, PickingInfo>(64);
+    protected final IntMap<PickingInfo> pickingInfoMap = new IntMap<PickingInfo>(64);
     /* Current state flags (on/off options) */
     protected final StateFlags stateFlags = new StateFlags(StateFlags.SELECTION_ON_CLICK);
     /* External camera (required) */
     protected Camera camera = null;
-    /* Current picking ray */
+    /* Current picking ray - points to the pickRay when the camera is set */
     protected Ray ray = null;
+    protected final Ray pickRay = new Ray(new Vector3(), new Vector3());
     /* Currently reported pick selection position */
     protected Vector2i pickPos = new Vector2i();
     /* The start position of the pick selection (when picker was reported active) */
     protected Vector2i pickPosBegin = new Vector2i();
     /* Current timestamp in milliseconds */
     protected float pickTimeStampBegin = 0;
+    /* Time of the current traversal (read once in begin()) */
+    protected float traverseTimeStamp = 0;
     /* Proper position and size of the pick selection box */
     protected Rectangle pickBox = new Rectangle();
     /* What is good pick result? */
@@ -245,6 +445,124 @@ public class PickSelection {
     protected int screenHeight = 0;
     /* External interface for checking fbo pixels (for objects ids) */
     PixelChecker fboPixelChecker;
+    /* External interface for reading the depth of the picked pixel - can be null */
+    DepthReader depthReader;
+    /* External interface for reading the object IDs around the pick position - can be null */
+    IdReader idReader;
+    /* Radius (in screen pixels) of the area searched around the single pixel pick */
+    protected int pickTolerance = 0;
+    /* Result of the tolerance search - ID of the nearest object (-1 none) and its pixel */
+    protected int toleranceHitID = -1;
+    protected final Vector2i toleranceHitPos = new Vector2i();
+    /* State of the traversal kept during the queries (see beginQuery()) */
+    protected final Vector2i savedPickPos = new Vector2i();
+    protected boolean savedHasRay = false;
+    protected Result savedGoodResult = Result.NOT_PICKED;
+    protected int savedToleranceHitID = -1;
+    protected final Vector2i savedToleranceHitPos = new Vector2i();
+    protected boolean savedToleranceSearch = false;
+    protected int savedPickBorder = 0;
+    /* Number of objects tested since begin() */
+    protected int testedCount = 0;
+    /* Number of objects which passed the bounding sphere test (narrow phase candidates) */
+    protected int candidateCount = 0;
+    /* Helper for the exact mesh triangle tests */
+    protected final MeshPicker meshPicker = new MeshPicker();
+    /* Version of the scene (provided externally) - changes when any object moved */
+    protected int sceneVersion = 0;
+    /* Incremented whenever the camera matrices change */
+    protected int cameraVersion = 0;
+    protected final float[] lastCombined = new float[16];
+    /* Inputs of the last full hover traversal */
+    protected boolean hoverStateValid = false;
+    protected final Vector2i hoverPos = new Vector2i();
+    protected int hoverCameraVersion = 0;
+    protected int hoverSceneVersion = 0;
+    protected int hoverFlags = 0;
+    protected int hoverScreenWidth = 0;
+    protected int hoverScreenHeight = 0;
+    /* Object hovered in the last traversal - tested first in the next one */
+    protected SpatialObject hoverObject = null;
+    /* Index of the hovered object in the traversed array and its world transformation */
+    protected int hoverIndex = -1;
+    protected final float[] hoverTransform = new float[16];
+    /* Objects near the hover ray (box or sphere passed) and their world transformations */
+    protected final Array<SpatialObject> hoverRayObjects = new Array<SpatialObject>();
+    protected final FloatArray hoverRayTransforms = new FloatArray();
+    protected final Array<SpatialObject> hoverRayQuery = new Array<SpatialObject>();
+    protected final Ray hoverRay = new Ray(new Vector3(), new Vector3());
+    /* Objects version of the spatial index when the near objects were collected (-1 none) */
+    protected int hoverObjectsVersion = -1;
+    /* Objects passed to traverse() - read by the hover check in begin() */
+    protected Array<SpatialObject> traversedObjects = null;
+    /* Number of hover traversals skipped because nothing has changed */
+    protected int hoverSkipCount = 0;
+    /* Cache of the pickObjectID() results - null when disabled */
+    protected PickCache pickCache = null;
+    /* Helper picking info for the queries (not stored in the map) */
+    protected final PickingInfo queryInfo = new PickingInfo();
+    protected final Vector3 queryPoint = new Vector3();
+    /* Copy of the traversal ray (restored after the queries) */
+    protected final Ray savedRay = new Ray(new Vector3(), new Vector3());
+    /* Ray of the piercing query at the screen position */
+    protected final Ray queryRay = new Ray(new Vector3(), new Vector3());
+    /* Active narrow phase stages (selected for the compiled flags or custom) */
+    protected PickStage[] pipeline = new PickStage[8];
+    protected PickStageStats[] pipelineStats = new PickStageStats[8];
+    protected int pipelineLength = 0;
+    protected PickStage[] compiledStages = new PickStage[8];
+    /* Built-in stages of the traversal pipeline - created once, relinked on compile */
+    protected final BuiltinStages builtinStages = new BuiltinStages();
+    /* Single pixel pipeline of queryObjectID() - never uses the picking box */
+    protected PickStage[] queryStages = new PickStage[8];
+    protected int queryStagesLength = 0;
+    protected final BuiltinStages queryBuiltinStages = new BuiltinStages();
+    protected boolean queryPipelineValid = false;
+    protected int queryCompiledFlags = 0;
+    /* Custom chain of the stages set by the user - null when not used */
+    protected Array<PickStage> customStages = null;
+    /* Last published selection (read by any thread) */
+    protected final AtomicReference<SelectionSnapshot> snapshot =
+            new AtomicReference<SelectionSnapshot>(SelectionSnapshot.EMPTY);
+    protected boolean publishSnapshots = false;
+    protected long snapshotVersion = 0;
+    /* selectionModCount of the published snapshot - differs when it is stale */
+    protected int snapshotModCount = -1;
+    /* Spatial objects by ID (for restoring the selection) - rebuilt lazily */
+    protected final IntMap<SpatialObject> objectIndex = new IntMap<SpatialObject>();
+    protected boolean objectIndexValid = false;
+    protected int objectIndexSceneVersion = 0;
+    /* IDs of the selected objects - updated together with selectedObjects */
+    protected final IdBitmap selectionBitmap = new IdBitmap();
+    /* Incremented with every change of selectedObjects */
+    protected int selectionModCount = 0;
+    /* Copy of the selected objects returned to the callers and its mod count */
+    protected final Array<SpatialObject> selectedObjectsView = new Array<SpatialObject>();
+    protected int selectedObjectsViewModCount = -1;
+    /* Helper bitmaps and IDs for applySelection() */
+    protected final IdBitmap applyAdded = new IdBitmap();
+    protected final IdBitmap applyRemoved = new IdBitmap();
+    protected final IntArray applyIDs = new IntArray();
+    /* Hierarchy over the bounds of the spatial objects - for the spatial queries */
+    protected final SpatialIndex spatialIndex = new SpatialIndex();
+    /* Set operation of the picking box - null for the per object modes */
+    protected SelectionOperation boxOperation = null;
+    /* Selection when the box was started, objects inside the box, result */
+    protected final IdBitmap boxBase = new IdBitmap();
+    protected final IdBitmap boxHits = new IdBitmap();
+    protected final IdBitmap boxTarget = new IdBitmap();
+    protected boolean pipelineValid = false;
+    protected int compiledFlags = 0;
+    /* Modes and options compiled with the pipeline */
+    protected boolean compiledOnHover = false;
+    protected boolean compiledToggleMode = false;
+    protected boolean compiledGroupMode = false;
+    protected boolean toleranceSearch = false;
+    protected boolean pickNodes = false;
+    protected int pickBorder = 0;
+    /* Per object state shared by the stages */
+    protected boolean sphereStatus = false;
+    protected boolean hasCornerPoints = false;
 
     //-------------------------------------------------------------------------
 
@@ -269,21 +587,87 @@ public class PickSelection {
 
     public void setPixelChecker(PixelChecker pixelChecker) {
         this.fboPixelChecker = pixelChecker;
+        pipelineValid = false;
+        clearPickCache();
+    }
+
+    public void setDepthReader(DepthReader depthReader) {
+        this.depthReader = depthReader;
+        clearPickCache(); // cached intersections came from the old depths
+    }
+
+    public DepthReader getDepthReader() {
+        return depthReader;
+    }
+
+    public void setIdReader(IdReader idReader) {
+        this.idReader = idReader;
+        pipelineValid = false;
+        clearPickCache();
+    }
+
+    public IdReader getIdReader() {
+        return idReader;
+    }
+
+    /**
+     * Sets the radius of the area around the pick position searched for the
+     * nearest object (single pixel picks with the pixel checks only). Helps
+     * with the touch input - small objects are picked even when the finger
+     * misses them by a few pixels. 0 disables the search.
+     */
+    public void setPickTolerance(int pixels) {
+        if (pixels < 0)
+            throw new IllegalArgumentException("pixels cannot be less than 0");
+        this.pickTolerance = pixels;
+        pipelineValid = false;
+        clearPickCache(); // cached pixels were searched with the old radius
+    }
+
+    public int getPickTolerance() {
+        return pickTolerance;
+    }
+
+    /**
+     * @return whether the tolerance search is used instead of checking the
+     * single pixel under the pick position
+     */
+    public boolean isToleranceSearch() {
+        return isToleranceSearch(isUsePickingBox());
+    }
+
+    protected boolean isToleranceSearch(boolean usePickingBox) {
+        return pickTolerance > 0 && idReader != null && isCheckFBOPixels() &&
+                !(isOnClick() && usePickingBox);
+    }
+
+    public int getToleranceHitID() {
+        return toleranceHitID;
     }
 
     //-------------------------------------------------------------------------
 
     public void setScreenDimensions(int width, int height) {
+        if (width != screenWidth || height != screenHeight)
+            clearPickCache(); // the cached pixels map to other rays now
         this.screenWidth = width;
         this.screenHeight = height;
     }
 
     public void setScreenWidth(int width) {
-        this.screenWidth = width;
+        setScreenDimensions(width, screenHeight);
     }
 
     public void setScreenHeight(int height) {
-        this.screenHeight = height;
+        setScreenDimensions(screenWidth, height);
+    }
+
+    public int getScreenWidth() {
+        return screenWidth;
+    }
+
+    public int getScreenHeight() {
+        return screenHeight;
     }
 
     //-------------------------------------------------------------------------
@@ -340,6 +724,54 @@ public class PickSelection {
         return stateFlags.isToggled(StateFlags.CHECK_FBO_PIXELS);
     }
 
+    /**
+     * Exact picking against the mesh triangles (per model triangle BVH) -
+     * works only for objects which are ModelInstances
+     */
+    public void setCheckMeshTriangles(boolean toggle) {
+        stateFlags.set(StateFlags.CHECK_MESH_TRIANGLES, toggle);
+    }
+
+    public boolean isCheckMeshTriangles() {
+        return stateFlags.isToggled(StateFlags.CHECK_MESH_TRIANGLES);
+    }
+
+    /**
+     * Picking additionally resolves the hit node of the object (only for
+     * GameObjects) - see PickingInfo.node
+     */
+    public void setPickNodes(boolean toggle) {
+        stateFlags.set(StateFlags.PICK_NODES, toggle);
+    }
+
+    public boolean isPickNodes() {
+        return stateFlags.isToggled(StateFlags.PICK_NODES);
+    }
+
+    /**
+     * Hover picking is skipped when the cursor and the camera matrices are
+     * the same as in the last traversal and either the scene version did not
+     * change or no object near the ray (world box or sphere passed, found in
+     * the spatial index) moved, appeared or disappeared (the selection is
+     * kept). With the on-screen boxes or the FBO pixels any scene change
+     * counts. Otherwise the last hovered object is tested first (unless the
+     * scene changed) and the full traversal is done only when it is no longer
+     * hit. Requires the scene
+     * version to be reported with setSceneVersion().
+     */
+    public void setHoverCoherence(boolean toggle) {
+        stateFlags.set(StateFlags.HOVER_COHERENCE, toggle);
+        hoverStateValid = false;
+    }
+
+    public boolean isHoverCoherence() {
+        return stateFlags.isToggled(StateFlags.HOVER_COHERENCE);
+    }
+
+    public int getHoverSkipCount() {
+        return hoverSkipCount;
+    }
+
     public void setGroupSelectionMode(boolean toggle) {
         stateFlags.set(StateFlags.GROUP_SELECTION_MODE, toggle);
     }
@@ -372,6 +804,24 @@ public class PickSelection {
         return stateFlags.isToggled(StateFlags.USE_PICKING_BOX);
     }
 
+    /**
+     * Enables the set operation for the picking box (on click). The objects
+     * inside the box are collected into a bitmap and combined with the
+     * selection from the start of the box in one pass - the group and toggle
+     * modes are not used then. Null restores the per object modes.
+     */
+    public void setBoxSelectionOperation(SelectionOperation operation) {
+        this.boxOperation = operation;
+    }
+
+    public SelectionOperation getBoxSelectionOperation() {
+        return boxOperation;
+    }
+
+    protected boolean isBoxOperationActive() {
+        return boxOperation != null && isOnClick() && isUsePickingBox();
+    }
+
     //-------------------------------------------------------------------------
 
     public void setPickerActive(boolean state) {
@@ -385,8 +835,10 @@ public class PickSelection {
         // if the mode is on click + group selection + toggle - do nothing
         if (isOnClick() && state) {
             pickPosBegin.set(pickPos);
-            pickTimeStampBegin = ((float) TimeUtils.timeSinceMillis(initTimeStamp)) / 1000.0f;
-            if (!isToggleSelectionMode())
+            pickTimeStampBegin = getTimeSinceInit();
+            if (isBoxOperationActive())
+                boxBase.set(selectionBitmap); // combined with the box content
+            else if (!isToggleSelectionMode())
                 clear(); // this clears selection
         }
     }
@@ -412,14 +864,14 @@ public class PickSelection {
     }
 
     public void clear() {
-        ObjectMap.Values<PickingInfo> values = this.pickingInfoMap.values();
+        IntMap.Values<PickingInfo> values = this.pickingInfoMap.values();
         //pickingInfoPool.freeAll(values.toArray());
         while (values.hasNext()) {
             PickingInfo pickingInfo = values.next();
             pickingInfo.reset();
         } // for each entry
         //pickingInfoMap.clear();
-        selectedObjects.clear();
+        clearSelectedObjects();
     } // void clear()
 
     //-------------------------------------------------------------------------
@@ -428,8 +880,17 @@ public class PickSelection {
         return spatialObjects;
     }
 
+    /**
+     * @return copy of the selected objects refreshed when the selection
+     * changes - modifying it does not change the selection
+     */
     public Array<SpatialObject> getSelectedObjects() {
-        return selectedObjects;
+        if (selectedObjectsViewModCount != selectionModCount) {
+            selectedObjectsView.clear();
+            selectedObjectsView.addAll(selectedObjects);
+            selectedObjectsViewModCount = selectionModCount;
+        }
+        return selectedObjectsView;
     }
 
     public SpatialObject getSelectedObject() {
@@ -452,7 +913,7 @@ public class PickSelection {
         return pickingInfoMap.get(selectedObjects.get(index).getSpatialObjectID());
     }
 
-    public ObjectMap<Integer, PickingInfo> getPickingInfoMap() {
+    public IntMap<PickingInfo> getPickingInfoMap() {
         return pickingInfoMap;
     }
 
@@ -461,7 +922,7 @@ public class PickSelection {
         if (spatialObject == null)
             return null;
         int index = spatialObject.getSpatialObjectID();
-        PickingInfo pickingInfo = pickingInfoMap.get(Integer.valueOf(index));
+        PickingInfo pickingInfo = pickingInfoMap.get(index);
         if (pickingInfo != null) {
             return pickingInfo.intersection;
         }
@@ -504,16 +965,192 @@ public class PickSelection {
 
     public void setSpatialObjects(Array<SpatialObject> spatialObjects) {
         this.spatialObjects = spatialObjects;
+        this.objectIndexValid = false;
+        clearPickCache(); // other objects - the scene version may be the same
     }
 
     public Camera getCamera() {
         return camera;
     }
 
+    /**
+     * Sets the current version of the scene - needs to change whenever any
+     * object was moved, added or removed (e.g. SimpleSceneManager.getSceneVersion()).
+     * The spatial index behind the queries and the hover coherence is updated
+     * only when this version changes.
+     */
+    public void setSceneVersion(int sceneVersion) {
+        this.sceneVersion = sceneVersion;
+    }
+
+    public int getSceneVersion() {
+        return sceneVersion;
+    }
+
+    /**
+     * @return version of the camera matrices as seen by the last begin()
+     */
+    public int getCameraVersion() {
+        return cameraVersion;
+    }
+
+    /**
+     * Enables the LRU cache for the pickObjectID() queries, 0 disables it
+     */
+    public void setPickCacheCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity cannot be less than 0");
+        if (capacity == 0)
+            pickCache = null;
+        else if (pickCache == null || pickCache.getCapacity() != capacity)
+            pickCache = new PickCache(capacity);
+    }
+
+    public PickCache getPickCache() {
+        return pickCache;
+    }
+
+    /**
+     * Drops the cached picks - for the changes the cache can't see in the
+     * camera version, the scene version or the flags
+     */
+    protected void clearPickCache() {
+        if (pickCache != null)
+            pickCache.clear();
+    }
+
+    protected void refreshCameraVersion() {
+        if (camera == null)
+            return;
+        final float[] combined = camera.combined.val;
+        for (int i = 0; i < 16; i++) {
+            if (combined[i] != lastCombined[i]) {
+                System.arraycopy(combined, 0, lastCombined, 0, 16);
+                cameraVersion++;
+                return;
+            }
+        }
+    } // void refreshCameraVersion()
+
+    protected boolean isHoverStateChanged() {
+        if (!hoverStateValid ||
+                !hoverPos.equals(pickPos) ||
+                hoverCameraVersion != cameraVersion ||
+                hoverScreenWidth != screenWidth ||
+                hoverScreenHeight != screenHeight ||
+                hoverFlags != (stateFlags.getValue() & ~StateFlags.INTERNAL_FLAGS))
+            return true;
+        if (hoverSceneVersion == sceneVersion)
+            return false;
+        if (hoverObject != null && !isHoverObjectUnchanged(traversedObjects))
+            return true;
+        // other objects moved - the result stays only when none of them is near the ray
+        return !isHoverRayUnchanged();
+    } // boolean isHoverStateChanged()
+
+    /**
+     * @return true if the objects near the hover ray are the same as in the
+     * last traversal and none of them was transformed
+     */
+    protected boolean isHoverRayUnchanged() {
+        // screen space tests reach beyond the world bounds along the ray
+        if (hoverObjectsVersion < 0 || traversedObjects != spatialObjects ||
+                isCheckOnScreenBoxes() || isCheckFBOPixels())
+            return false;
+        final SpatialIndex index = getSpatialIndex();
+        // the objects were reordered or replaced
+        if (index.getObjectsVersion() != hoverObjectsVersion)
+            return false;
+        hoverRayQuery.clear();
+        final int count = index.queryRay(hoverRay, hoverRayQuery);
+        boolean unchanged = count == hoverRayObjects.size;
+        for (int i = 0; i < count && unchanged; i++) {
+            final int n = hoverRayObjects.indexOf(hoverRayQuery.get(i), true);
+            if (n < 0) {
+                unchanged = false; // moved onto the ray
+                break;
+            }
+            final float[] transform = hoverRayQuery.get(i).getTransform().val;
+            for (int j = 0; j < 16; j++) {
+                if (transform[j] != hoverRayTransforms.get(n * 16 + j)) {
+                    unchanged = false;
+                    break;
+                }
+            }
+        } // for each object near the ray
+        hoverRayQuery.clear();
+        return unchanged;
+    } // boolean isHoverRayUnchanged()
+
+    /**
+     * @return true if the hovered object is still at its index in the array
+     */
+    protected boolean isHoverObjectInArray(Array<SpatialObject> spatialObjectsArray) {
+        return spatialObjectsArray != null && hoverIndex >= 0 && hoverIndex < spatialObjectsArray.size &&
+                spatialObjectsArray.get(hoverIndex) == hoverObject;
+    }
+
+    protected boolean isHoverObjectUnchanged(Array<SpatialObject> spatialObjectsArray) {
+        if (hoverObject == null || !hoverObject.isVisible() || !isHoverObjectInArray(spatialObjectsArray))
+            return false;
+        final float[] transform = hoverObject.getTransform().val;
+        for (int i = 0; i < 16; i++) {
+            if (transform[i] != hoverTransform[i])
+                return false;
+        }
+        return true;
+    } // boolean isHoverObjectUnchanged(...)
+
+    /**
+     * @param hitIndex index of the hovered object in the traversed array or -1
+     */
+    protected void rememberHoverState(Array<SpatialObject> spatialObjectsArray, int hitIndex) {
+        hoverStateValid = true;
+        hoverPos.set(pickPos);
+        hoverCameraVersion = cameraVersion;
+        hoverSceneVersion = sceneVersion;
+        hoverScreenWidth = screenWidth;
+        hoverScreenHeight = screenHeight;
+        hoverFlags = stateFlags.getValue() & ~StateFlags.INTERNAL_FLAGS;
+        hoverObject = getSelectedObject();
+        hoverIndex = hoverObject != null ? hitIndex : -1;
+        if (hoverObject != null)
+            System.arraycopy(hoverObject.getTransform().val, 0, hoverTransform, 0, 16);
+        hoverObjectsVersion = -1;
+        hoverRayObjects.clear();
+        hoverRayTransforms.clear();
+        if (ray == null || spatialObjectsArray != spatialObjects)
+            return;
+        final SpatialIndex index = getSpatialIndex();
+        hoverRay.set(ray);
+        index.queryRay(hoverRay, hoverRayObjects);
+        for (int i = 0; i < hoverRayObjects.size; i++)
+            hoverRayTransforms.addAll(hoverRayObjects.get(i).getTransform().val);
+        hoverObjectsVersion = index.getObjectsVersion();
+    } // void rememberHoverState(...)
+
     public Rectangle getPickBox() {
         return pickBox;
     }
 
+    public int getTestedCount() {
+        return testedCount;
+    }
+
+    public int getCandidateCount() {
+        return candidateCount;
+    }
+
+    /**
+     * @return fraction of the tested objects which passed the bounding sphere
+     * test and were sent to the narrow phase (in the last traversal)
+     */
+    public float getCandidateRate() {
+        if (testedCount == 0)
+            return 0.0f;
+        return (float) candidateCount / (float) testedCount;
+    }
+
     public Vector2i getPickPosition() {
         return pickPos;
     }
@@ -565,134 +1202,748 @@ public class PickSelection {
         SpatialObject spatialObject = pickingInfo.spatialObject;
         if (spatialObject == null)
             throw new IllegalArgumentException("spatialObject cannot be null");
+        testedCount++;
+        pickingInfo.node = null; // set again by the mesh stage or pickNode()
+        runStages(pipeline, pipelineStats, pipelineLength, pickingInfo);
+        if (pickNodes)
+            pickNode(pickingInfo);
+        return pickingInfo.result;
+    } // Result internal_isPicked(...)
+
+    /**
+     * Recompiles the stages when the flags differ from the compiled ones -
+     * once per traversal (begin()) or query, never per object
+     */
+    protected void validatePipeline() {
+        if (!pipelineValid || compiledFlags != getCompileFlags())
+            compilePipeline();
+    }
+
+    /**
+     * Runs the chain of the stages on the object without the statistics
+     * (queries)
+     */
+    protected Result runStages(PickStage[] stages, int length, PickingInfo pickingInfo) {
         pickingInfo.result = Result.NOT_PICKED;
-        boolean status = Intersector.intersectRaySphere(this.ray,
-                spatialObject.getCenter(),
-                spatialObject.getRadius(),
-                pickingInfo.intersection), triangleStatus, hasCornerPoints = false;
+        sphereStatus = true; // no sphere stage - nothing is culled
+        hasCornerPoints = false;
+        for (int i = 0; i < length; i++) {
+            final StageResult stageResult = stages[i].test(this, pickingInfo);
+            if (stageResult == StageResult.CONTINUE)
+                continue;
+            pickingInfo.result = stageResult == StageResult.ACCEPT ? goodPickResult : Result.NOT_PICKED;
+            break; // decided
+        } // for each stage
+        return pickingInfo.result;
+    } // Result runStages(...)
 
-        if (status && !isCheckOBBTriangles())
-            pickingInfo.result = Result.PICKED_SPHERE;
+    /**
+     * Runs the chain of the stages on the object and counts the decisions
+     * of each stage
+     */
+    protected Result runStages(PickStage[] stages, PickStageStats[] stats, int length, PickingInfo pickingInfo) {
+        pickingInfo.result = Result.NOT_PICKED;
+        sphereStatus = true; // no sphere stage - nothing is culled
+        hasCornerPoints = false;
+        for (int i = 0; i < length; i++) {
+            final PickStageStats stageStats = stats[i];
+            stageStats.seen++;
+            final StageResult stageResult = stages[i].test(this, pickingInfo);
+            if (stageResult == StageResult.CONTINUE)
+                continue;
+            if (stageResult == StageResult.ACCEPT) {
+                stageStats.accepted++;
+                pickingInfo.result = goodPickResult;
+            } else {
+                stageStats.rejected++;
+                pickingInfo.result = Result.NOT_PICKED;
+            }
+            break; // decided
+        } // for each stage
+        return pickingInfo.result;
+    } // Result runStages(...)
+
+    /**
+     * Descends into the nodes of the object - only when the whole object was
+     * hit and the mesh stage did not find the node already
+     */
+    protected void pickNode(PickingInfo pickingInfo) {
+        final SpatialObject spatialObject = pickingInfo.spatialObject;
+        if (sphereStatus && pickingInfo.result != Result.NOT_PICKED &&
+                pickingInfo.result != Result.PICKED_MESH_TRIANGLE &&
+                spatialObject instanceof GameObject) {
+            pickingInfo.node = ((GameObject) spatialObject).pickNode(this.ray, null);
+        }
+    } // void pickNode(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Sphere test - sets sphereStatus for the stages which test only the
+     * objects hit by the sphere
+     */
+    public static final class SphereStage implements PickStage {
+        /* Sphere result is reported (no obb triangles) */
+        boolean markResult;
+        StageResult hitResult;
+        StageResult missResult;
+
+        public SphereStage(boolean markResult, boolean decisive, boolean rejectOnMiss) {
+            set(markResult, decisive, rejectOnMiss);
+        }
+
+        /**
+         * @return true if any option was changed
+         */
+        boolean set(boolean markResult, boolean decisive, boolean rejectOnMiss) {
+            final StageResult hitResult = getHitResult(decisive);
+            final StageResult missResult = getMissResult(rejectOnMiss);
+            final boolean changed = this.markResult != markResult ||
+                    this.hitResult != hitResult || this.missResult != missResult;
+            this.markResult = markResult;
+            this.hitResult = hitResult;
+            this.missResult = missResult;
+            return changed;
+        }
+
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            final SpatialObject spatialObject = pickingInfo.spatialObject;
+            ps.sphereStatus = Intersector.intersectRaySphere(ps.ray,
+                    spatialObject.getSphereCenter(),
+                    spatialObject.getSphereRadius(),
+                    pickingInfo.intersection);
+            if (!ps.sphereStatus)
+                return missResult;
+            ps.candidateCount++; // goes into the narrow phase
+            if (markResult)
+                pickingInfo.result = Result.PICKED_SPHERE;
+            return hitResult;
+        }
+    } // static final class SphereStage
+
+    public static final class AABBStage implements PickStage {
+        StageResult hitResult;
+        StageResult missResult;
 
-        if(isCheckAABBs()) {
-            if(Intersector.intersectRayBoundsFast(this.ray,
+        public AABBStage(boolean decisive, boolean rejectOnMiss) {
+            set(decisive, rejectOnMiss);
+        }
+
+        boolean set(boolean decisive, boolean rejectOnMiss) {
+            final StageResult hitResult = getHitResult(decisive);
+            final StageResult missResult = getMissResult(rejectOnMiss);
+            final boolean changed = this.hitResult != hitResult || this.missResult != missResult;
+            this.hitResult = hitResult;
+            this.missResult = missResult;
+            return changed;
+        }
+
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            final SpatialObject spatialObject = pickingInfo.spatialObject;
+            if (!Intersector.intersectRayBoundsFast(ps.ray,
                     spatialObject.getCenter(),
-                    spatialObject.getDimensions())) {
-                // intersected with AABB (not OBB)
-                pickingInfo.result = Result.PICKED_AABB;
-            }
+                    spatialObject.getDimensions()))
+                return missResult;
+            // intersected with AABB (not OBB)
+            pickingInfo.result = Result.PICKED_AABB;
+            return hitResult;
+        }
+    } // static final class AABBStage
+
+    /**
+     * Ray against the 12 triangles of the oriented box (only the objects
+     * hit by the sphere), the world space corners are kept for the screen
+     * box stages
+     */
+    public static final class OBBTrianglesStage implements PickStage {
+        StageResult hitResult;
+        StageResult missResult;
+
+        public OBBTrianglesStage(boolean decisive, boolean rejectOnMiss) {
+            set(decisive, rejectOnMiss);
         }
 
-        if (status && isCheckOBBTriangles()) {
-            // get bounding box of the model in model space!
-            BoundingBox boundingBox = spatialObject.getOriginalBoundingBox();
-            boundingBox.getCorner000(aabbPoints[0]);
-            boundingBox.getCorner001(aabbPoints[1]);
-            boundingBox.getCorner010(aabbPoints[2]);
-            boundingBox.getCorner011(aabbPoints[3]);
-            boundingBox.getCorner100(aabbPoints[4]);
-            boundingBox.getCorner101(aabbPoints[5]);
-            boundingBox.getCorner110(aabbPoints[6]);
-            boundingBox.getCorner111(aabbPoints[7]);
-            for (int i = 0; i < 8; i++) {
-                aabbPoints[i].mul(spatialObject.getTransform());
-            } // for each aabb point
-            hasCornerPoints = true; // for further use if needed
+        boolean set(boolean decisive, boolean rejectOnMiss) {
+            final StageResult hitResult = getHitResult(decisive);
+            final StageResult missResult = getMissResult(rejectOnMiss);
+            final boolean changed = this.hitResult != hitResult || this.missResult != missResult;
+            this.hitResult = hitResult;
+            this.missResult = missResult;
+            return changed;
+        }
+
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            if (!ps.sphereStatus)
+                return StageResult.CONTINUE;
+            final SpatialObject spatialObject = pickingInfo.spatialObject;
+            final Vector3[] aabbPoints = ps.aabbPoints;
+            final OrientedBox orientedBox = spatialObject.getOrientedBox();
+            if (orientedBox != null) {
+                // fitted box is already in world space
+                orientedBox.getCorners(aabbPoints);
+            } else {
+                // get bounding box of the model in model space!
+                ps.getBoxCorners(spatialObject.getOriginalBoundingBox());
+                for (int i = 0; i < 8; i++) {
+                    aabbPoints[i].mul(spatialObject.getTransform());
+                } // for each aabb point
+            }
+            ps.hasCornerPoints = true; // for further use if needed
             // 12 triangles of the aabb
+            final short[][] trisIdx = ps.aabbTrisIdx;
             for (int i = 0; i < 12; i++) {
-                triangleStatus = Intersector.intersectRayTriangle(this.ray,
-                        aabbPoints[aabbTrisIdx[i][0] - 1],
-                        aabbPoints[aabbTrisIdx[i][1] - 1],
-                        aabbPoints[aabbTrisIdx[i][2] - 1],
-                        tmpVec);
-                if (triangleStatus) {
+                if (Intersector.intersectRayTriangle(ps.ray,
+                        aabbPoints[trisIdx[i][0] - 1],
+                        aabbPoints[trisIdx[i][1] - 1],
+                        aabbPoints[trisIdx[i][2] - 1],
+                        ps.tmpVec)) {
                     pickingInfo.result = Result.PICKED_OBB_TRIANGLES;
-                    pickingInfo.intersection.set(tmpVec);
-                    break;
+                    pickingInfo.intersection.set(ps.tmpVec);
+                    return hitResult;
                 }
             } // for each triangle in the aabb
-        } // isCheckOBBTriangles()
-
-        tmpRectangle.x = pickPos.x;
-        tmpRectangle.y = pickPos.y;
-        tmpRectangle.width = 1.0f;
-        tmpRectangle.height = 1.0f;
-
-        if (isOnClick() && isUsePickingBox() || isCheckOnScreenBoxes()) {
-            internalAABB.inf();
-            BoundingBox boundingBox = spatialObject.getOriginalBoundingBox();
-            if(!hasCornerPoints) {
-                boundingBox.getCorner000(aabbPoints[0]);
-                boundingBox.getCorner001(aabbPoints[1]);
-                boundingBox.getCorner010(aabbPoints[2]);
-                boundingBox.getCorner011(aabbPoints[3]);
-                boundingBox.getCorner100(aabbPoints[4]);
-                boundingBox.getCorner101(aabbPoints[5]);
-                boundingBox.getCorner110(aabbPoints[6]);
-                boundingBox.getCorner111(aabbPoints[7]);
-                for (int i = 0; i < 8; i++) {
-                    aabbPoints[i].mul(spatialObject.getTransform());
-                    camera.project(aabbPoints[i]);
-                    internalAABB.ext(aabbPoints[i].x,
-                            aabbPoints[i].y,
-                            aabbPoints[i].z);
-                } // for each aabb point
-            } else {
-                // already have updated aabbPoints - check aabb triangles is true
-                for (int i = 0; i < 8; i++) {
-                    camera.project(aabbPoints[i]);
-                    internalAABB.ext(aabbPoints[i].x,
-                            aabbPoints[i].y,
-                            aabbPoints[i].z);
-                } // for each aabb point
+            return missResult;
+        }
+    } // static final class OBBTrianglesStage
+
+    /**
+     * Exact mesh triangles of the ModelInstances (only the objects hit by
+     * the sphere)
+     */
+    public static final class MeshTrianglesStage implements PickStage {
+        StageResult hitResult;
+        StageResult missResult;
+
+        public MeshTrianglesStage(boolean decisive, boolean rejectOnMiss) {
+            set(decisive, rejectOnMiss);
+        }
+
+        boolean set(boolean decisive, boolean rejectOnMiss) {
+            final StageResult hitResult = getHitResult(decisive);
+            final StageResult missResult = getMissResult(rejectOnMiss);
+            final boolean changed = this.hitResult != hitResult || this.missResult != missResult;
+            this.hitResult = hitResult;
+            this.missResult = missResult;
+            return changed;
+        }
+
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            final SpatialObject spatialObject = pickingInfo.spatialObject;
+            if (!ps.sphereStatus || !(spatialObject instanceof ModelInstance))
+                return StageResult.CONTINUE;
+            final MeshPicker meshPicker = ps.meshPicker;
+            if (!meshPicker.intersect(ps.ray, (ModelInstance) spatialObject)) {
+                pickingInfo.triangleIndex = -1;
+                pickingInfo.nodePart = null;
+                return missResult;
             }
-            internalAABB.getCenter(tmpVec);
-            pickingInfo.center.x = (int) tmpVec.x;
-            pickingInfo.center.y = (int) tmpVec.y;
-
-            pickingInfo.onScreen.x = internalAABB.min.x;
-            pickingInfo.onScreen.y = internalAABB.min.y;
-            pickingInfo.onScreen.width = internalAABB.getWidth();
-            pickingInfo.onScreen.height = internalAABB.getHeight();
-            if(isUsePickingBox()) {
-                pickingInfo.pickBoxOverlaps = pickBox.overlaps(pickingInfo.onScreen);
-                pickingInfo.pickBoxContains = pickBox.contains(pickingInfo.onScreen);
-                boolean boxStatus = pickingInfo.pickBoxOverlaps || pickingInfo.pickBoxContains;
-                if (boxStatus && !isCheckFBOPixels()) {
-                    pickingInfo.result = goodPickResult; // force proper selection result
-                } else if (boxStatus && fboPixelChecker != null) {
-                    int colorValue = pickingInfo.spatialObject.getSpatialObjectID();
-                    Intersector.intersectRectangles(pickBox,
-                            pickingInfo.onScreen,
-                            tmpRectangle);
-                    // This function gets now intersection rectangle (needs to detect it)
-                    if (fboPixelChecker.isColorInPixels(colorValue, tmpRectangle, false)) {
-                        pickingInfo.result = goodPickResult;
-                    }
-                } // has fbo pixel checker?
-            } else {
-                // check on screen boxes
-                // tmp rectangle is one pixel in size
-                pickingInfo.pickBoxContains = false;
-                pickingInfo.pickBoxOverlaps = false;
-                boolean boxStatus = pickingInfo.onScreen.overlaps(tmpRectangle) || pickingInfo.onScreen.contains(tmpRectangle);
-                if(boxStatus && !isCheckFBOPixels()) {
-                    pickingInfo.result = Result.PICKED_ON_SCREEN_BOX;
-                } else if(boxStatus && fboPixelChecker != null) {
-                    int colorValue = pickingInfo.spatialObject.getSpatialObjectID();
-                    if (fboPixelChecker.isColorInPixels(colorValue, tmpRectangle, false)) {
-                        pickingInfo.result = goodPickResult;
-                    }
+            pickingInfo.result = Result.PICKED_MESH_TRIANGLE;
+            pickingInfo.intersection.set(meshPicker.intersection);
+            pickingInfo.triangleIndex = meshPicker.triangleIndex;
+            pickingInfo.nodePart = meshPicker.nodePart;
+            pickingInfo.distance = meshPicker.distance;
+            pickingInfo.barycentric.set(meshPicker.barycentric);
+            pickingInfo.node = meshPicker.node;
+            return hitResult;
+        }
+    } // static final class MeshTrianglesStage
+
+    /**
+     * Result of the stage which hit the object
+     */
+    static StageResult getHitResult(boolean decisive) {
+        return decisive ? StageResult.ACCEPT : StageResult.CONTINUE;
+    }
+
+    /**
+     * Result of the stage which missed the object
+     */
+    static StageResult getMissResult(boolean rejectOnMiss) {
+        return rejectOnMiss ? StageResult.REJECT : StageResult.CONTINUE;
+    }
+
+    /**
+     * Result of the box stage on overlap - accepted by the box, confirmed by
+     * the pixel stage linked after it, or rejected (nothing can confirm)
+     */
+    static StageResult getOverlapResult(boolean acceptBox, boolean checkPixels, boolean decisive) {
+        if (acceptBox)
+            return getHitResult(decisive);
+        return checkPixels ? StageResult.CONTINUE : StageResult.REJECT;
+    }
+
+    /**
+     * Projected box of the object tested against the picking box - with
+     * checkPixels the overlapping objects go on to the PickBoxPixelStage
+     */
+    public static final class PickBoxStage implements PickStage {
+        StageResult overlapResult;
+        /* Result of the previous stages can't be the good one */
+        StageResult missResult;
+
+        public PickBoxStage(boolean acceptBox, boolean checkPixels, boolean decisive) {
+            set(acceptBox, checkPixels, decisive);
+        }
+
+        boolean set(boolean acceptBox, boolean checkPixels, boolean decisive) {
+            // the box alone always decides the picking box
+            final StageResult overlapResult = getOverlapResult(acceptBox, checkPixels, true);
+            final StageResult missResult = getMissResult(decisive);
+            final boolean changed = this.overlapResult != overlapResult || this.missResult != missResult;
+            this.overlapResult = overlapResult;
+            this.missResult = missResult;
+            return changed;
+        }
+
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            ps.projectCorners(pickingInfo, pickingInfo.spatialObject);
+            pickingInfo.pickBoxOverlaps = ps.pickBox.overlaps(pickingInfo.onScreen);
+            pickingInfo.pickBoxContains = ps.pickBox.contains(pickingInfo.onScreen);
+            if (!pickingInfo.pickBoxOverlaps && !pickingInfo.pickBoxContains)
+                return missResult;
+            return overlapResult;
+        }
+    } // static final class PickBoxStage
+
+    /**
+     * FBO pixels of the object inside the picking box - always after the
+     * PickBoxStage (uses the projected box)
+     */
+    public static final class PickBoxPixelStage implements PickStage {
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            // only the intersection of the boxes needs to be checked
+            Intersector.intersectRectangles(ps.pickBox,
+                    pickingInfo.onScreen,
+                    ps.tmpRectangle);
+            if (ps.fboPixelChecker.isColorInPixels(pickingInfo.spatialObject.getSpatialObjectID(), ps.tmpRectangle, false))
+                return StageResult.ACCEPT;
+            return StageResult.REJECT;
+        }
+    } // static final class PickBoxPixelStage
+
+    /**
+     * Projected box of the object tested against the pick position - with
+     * checkPixels the overlapping objects go on to the PixelStage
+     */
+    public static final class ScreenBoxStage implements PickStage {
+        StageResult overlapResult;
+        /* Result of the previous stages can't be the good one */
+        StageResult missResult;
+
+        public ScreenBoxStage(boolean acceptBox, boolean checkPixels, boolean decisive) {
+            set(acceptBox, checkPixels, decisive);
+        }
+
+        boolean set(boolean acceptBox, boolean checkPixels, boolean decisive) {
+            final StageResult overlapResult = getOverlapResult(acceptBox, checkPixels, decisive);
+            final StageResult missResult = getMissResult(decisive);
+            final boolean changed = this.overlapResult != overlapResult || this.missResult != missResult;
+            this.overlapResult = overlapResult;
+            this.missResult = missResult;
+            return changed;
+        }
+
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            ps.projectCorners(pickingInfo, pickingInfo.spatialObject);
+            pickingInfo.pickBoxContains = false;
+            pickingInfo.pickBoxOverlaps = false;
+            ps.setPickRectangle();
+            if (!pickingInfo.onScreen.overlaps(ps.tmpRectangle) && !pickingInfo.onScreen.contains(ps.tmpRectangle))
+                return missResult;
+            // replaced by the pixel stage or the rejection when not accepted here
+            pickingInfo.result = Result.PICKED_ON_SCREEN_BOX;
+            return overlapResult;
+        }
+    } // static final class ScreenBoxStage
+
+    /**
+     * Pixel check at the pick position - the last stage, alone or after the
+     * ScreenBoxStage
+     */
+    public static final class PixelStage implements PickStage {
+        @Override
+        public StageResult test(PickSelection ps, PickingInfo pickingInfo) {
+            ps.setPickRectangle();
+            if (!ps.isPickPixel(pickingInfo.spatialObject.getSpatialObjectID()))
+                return StageResult.REJECT;
+            ps.resolvePixelIntersection(pickingInfo);
+            return StageResult.ACCEPT;
+        }
+    } // static final class PixelStage
+
+    /**
+     * One instance of each built-in stage - compiling only changes their
+     * options and relinks the active ones, nothing is allocated
+     */
+    protected static final class BuiltinStages {
+        final SphereStage sphere = new SphereStage(false, false, false);
+        final AABBStage aabb = new AABBStage(false, false);
+        final OBBTrianglesStage obbTriangles = new OBBTrianglesStage(false, false);
+        final MeshTrianglesStage meshTriangles = new MeshTrianglesStage(false, false);
+        final PickBoxStage pickBox = new PickBoxStage(false, false, false);
+        final PickBoxPixelStage pickBoxPixel = new PickBoxPixelStage();
+        final ScreenBoxStage screenBox = new ScreenBoxStage(false, false, false);
+        final PixelStage pixel = new PixelStage();
+        /* Options of any stage were changed by the last linkStages() */
+        boolean changed = false;
+    } // static final class BuiltinStages
+
+    /**
+     * @return flags which select the stages (key of the compiled pipeline)
+     */
+    protected int getCompileFlags() {
+        return stateFlags.getValue() & ~StateFlags.RUNTIME_FLAGS;
+    }
+
+    /**
+     * Selects the stages for the current flags (unless the custom stages
+     * are set) - called once per traversal or query when the flags differ
+     * from the compiled ones. The stage options are resolved into the results
+     * the stages return, so no stage branches on them per object. The sphere rejects on miss when only the ray stages
+     * follow (these test just the objects hit by the sphere anyway), the
+     * other stages reject only when they decide the result.
+     */
+    protected void compilePipeline() {
+        final int length = linkStages(compiledStages, builtinStages, isUsePickingBox());
+        if (!setPipeline(compiledStages, length) && builtinStages.changed)
+            resetPickStageStats(); // same stages with the other options
+        pickNodes = isPickNodes();
+        toleranceSearch = isToleranceSearch();
+        pickBorder = toleranceSearch ? pickTolerance : 0;
+        compiledOnHover = isOnHover();
+        compiledToggleMode = isToggleSelectionMode();
+        compiledGroupMode = isGroupSelectionMode();
+        compiledFlags = getCompileFlags();
+        pipelineValid = true;
+        queryPipelineValid = false;
+    } // void compilePipeline()
+
+    /**
+     * Links the stages for the current flags into the array (the picking box
+     * can be left out for the single pixel queries)
+     *
+     * @return number of the linked stages
+     */
+    protected int linkStages(PickStage[] stages, BuiltinStages builtins, boolean usePickingBox) {
+        return linkStages(stages, builtins, usePickingBox, true);
+    }
+
+    /**
+     * @param screenTests false leaves out the stages which need the screen
+     *                    position (world space rays)
+     */
+    protected int linkStages(PickStage[] stages, BuiltinStages builtins, boolean usePickingBox, boolean screenTests) {
+        final boolean checkPixels = isCheckFBOPixels();
+        final boolean hasChecker = screenTests && checkPixels && fboPixelChecker != null;
+        final Result result = computeGoodPickResult(screenTests);
+        final boolean boxStage = screenTests && (isOnClick() && usePickingBox || isCheckOnScreenBoxes());
+        final boolean screenStage = boxStage || (!usePickingBox && hasChecker);
+        final boolean checkOBB = isCheckOBBTriangles();
+        final boolean checkMesh = isCheckMeshTriangles();
+        int length = 0;
+        boolean changed = false;
+        if (customStages != null) {
+            for (int i = 0; i < customStages.size; i++)
+                stages[length++] = customStages.get(i);
+        } else {
+            // with the AABB deciding the sphere is not enough (tight bounds)
+            changed |= builtins.sphere.set(!checkOBB,
+                    !screenStage && result == Result.PICKED_SPHERE,
+                    !screenStage && result != Result.PICKED_AABB);
+            stages[length++] = builtins.sphere;
+            if (isCheckAABBs()) {
+                final boolean decisive = !screenStage && result == Result.PICKED_AABB;
+                changed |= builtins.aabb.set(decisive, decisive);
+                stages[length++] = builtins.aabb;
+            }
+            if (checkOBB) {
+                final boolean decisive = !screenStage && result == Result.PICKED_OBB_TRIANGLES;
+                changed |= builtins.obbTriangles.set(decisive, decisive);
+                stages[length++] = builtins.obbTriangles;
+            }
+            if (checkMesh) {
+                final boolean decisive = !screenStage && result == Result.PICKED_MESH_TRIANGLE;
+                changed |= builtins.meshTriangles.set(decisive, decisive);
+                stages[length++] = builtins.meshTriangles;
+            }
+            if (boxStage) {
+                // the ray stages can still decide when the box does not overlap
+                final boolean decisive = result == Result.PICKED_ON_SCREEN_BOX || result == Result.PICKED_PIXEL;
+                if (usePickingBox) {
+                    changed |= builtins.pickBox.set(!checkPixels, hasChecker, decisive);
+                    stages[length++] = builtins.pickBox;
+                    if (hasChecker)
+                        stages[length++] = builtins.pickBoxPixel;
+                } else {
+                    changed |= builtins.screenBox.set(!checkPixels, hasChecker, decisive);
+                    stages[length++] = builtins.screenBox;
+                    if (hasChecker)
+                        stages[length++] = builtins.pixel;
                 }
+            } else if (!usePickingBox && hasChecker) {
+                stages[length++] = builtins.pixel;
             }
-        } else if (!isUsePickingBox() && isCheckFBOPixels() && fboPixelChecker != null) {
-            int colorValue = pickingInfo.spatialObject.getSpatialObjectID();
-            if (fboPixelChecker.isColorInPixels(colorValue, tmpRectangle, false)) {
-                pickingInfo.result = goodPickResult;
+        }
+        builtins.changed = changed;
+        return length;
+    } // int linkStages(...)
+
+    /**
+     * Links the single pixel stages used by queryObjectID() - separate from
+     * the traversal pipeline, so the queries do not touch its stages or stats
+     */
+    protected void compileQueryPipeline() {
+        queryStagesLength = linkStages(queryStages, queryBuiltinStages, false);
+        queryCompiledFlags = compiledFlags;
+        queryPipelineValid = true;
+    }
+
+    /**
+     * Replaces the active stages - the statistics are kept when the stages
+     * did not change (same types and options)
+     *
+     * @return false if the stages were the same
+     */
+    protected boolean setPipeline(PickStage[] stages, int length) {
+        boolean same = length == pipelineLength;
+        for (int i = 0; same && i < length; i++)
+            same = isSameStage(pipeline[i], stages[i]);
+        if (same)
+            return false;
+        if (pipeline.length < length) {
+            pipeline = new PickStage[length];
+            PickStageStats[] stats = new PickStageStats[length];
+            System.arraycopy(pipelineStats, 0, stats, 0, pipelineStats.length);
+            pipelineStats = stats;
+        }
+        for (int i = 0; i < length; i++) {
+            pipeline[i] = stages[i];
+            if (pipelineStats[i] == null)
+                pipelineStats[i] = new PickStageStats();
+            pipelineStats[i].reset();
+        }
+        for (int i = length; i < pipelineLength; i++)
+            pipeline[i] = null;
+        pipelineLength = length;
+        return true;
+    } // boolean setPipeline(...)
+
+    protected static boolean isSameStage(PickStage a, PickStage b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null || a.getClass() != b.getClass())
+            return false;
+        if (a instanceof SphereStage) {
+            final SphereStage sa = (SphereStage) a, sb = (SphereStage) b;
+            return sa.markResult == sb.markResult && sa.hitResult == sb.hitResult && sa.missResult == sb.missResult;
+        } else if (a instanceof AABBStage) {
+            final AABBStage sa = (AABBStage) a, sb = (AABBStage) b;
+            return sa.hitResult == sb.hitResult && sa.missResult == sb.missResult;
+        } else if (a instanceof OBBTrianglesStage) {
+            final OBBTrianglesStage sa = (OBBTrianglesStage) a, sb = (OBBTrianglesStage) b;
+            return sa.hitResult == sb.hitResult && sa.missResult == sb.missResult;
+        } else if (a instanceof MeshTrianglesStage) {
+            final MeshTrianglesStage sa = (MeshTrianglesStage) a, sb = (MeshTrianglesStage) b;
+            return sa.hitResult == sb.hitResult && sa.missResult == sb.missResult;
+        } else if (a instanceof PickBoxStage) {
+            final PickBoxStage sa = (PickBoxStage) a, sb = (PickBoxStage) b;
+            return sa.overlapResult == sb.overlapResult && sa.missResult == sb.missResult;
+        } else if (a instanceof ScreenBoxStage) {
+            final ScreenBoxStage sa = (ScreenBoxStage) a, sb = (ScreenBoxStage) b;
+            return sa.overlapResult == sb.overlapResult && sa.missResult == sb.missResult;
+        }
+        return a instanceof PixelStage || a instanceof PickBoxPixelStage;
+    } // boolean isSameStage(...)
+
+    /**
+     * Sets the custom ordered chain of the stages used instead of the one
+     * selected for the flags, null restores the default chain. The stages
+     * can be ordered by the measured rejection rates.
+     */
+    public void setPickStages(Array<PickStage> stages) {
+        if (stages == null) {
+            customStages = null;
+        } else {
+            if (customStages == null)
+                customStages = new Array<PickStage>(stages.size);
+            customStages.clear();
+            customStages.addAll(stages);
+            if (compiledStages.length < stages.size) {
+                compiledStages = new PickStage[stages.size];
+                queryStages = new PickStage[stages.size];
             }
         }
-        return pickingInfo.result;
-    } // Result internal_isPicked(...)
+        pipelineValid = false;
+    } // void setPickStages(...)
+
+    public boolean hasCustomPickStages() {
+        return customStages != null;
+    }
+
+    /**
+     * @return number of the stages in the active chain
+     */
+    public int getPickStageCount() {
+        if (!pipelineValid)
+            compilePipeline();
+        return pipelineLength;
+    }
+
+    public PickStage getPickStage(int index) {
+        if (!pipelineValid)
+            compilePipeline();
+        if (index < 0 || index >= pipelineLength)
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + pipelineLength);
+        return pipeline[index];
+    }
+
+    /**
+     * @return statistics of the stage in the active chain - reset whenever
+     * the chain changes
+     */
+    public PickStageStats getPickStageStats(int index) {
+        if (!pipelineValid)
+            compilePipeline();
+        if (index < 0 || index >= pipelineLength)
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + pipelineLength);
+        return pipelineStats[index];
+    }
+
+    public void resetPickStageStats() {
+        for (int i = 0; i < pipelineLength; i++)
+            pipelineStats[i].reset();
+    }
+
+    protected void getBoxCorners(BoundingBox boundingBox) {
+        boundingBox.getCorner000(aabbPoints[0]);
+        boundingBox.getCorner001(aabbPoints[1]);
+        boundingBox.getCorner010(aabbPoints[2]);
+        boundingBox.getCorner011(aabbPoints[3]);
+        boundingBox.getCorner100(aabbPoints[4]);
+        boundingBox.getCorner101(aabbPoints[5]);
+        boundingBox.getCorner110(aabbPoints[6]);
+        boundingBox.getCorner111(aabbPoints[7]);
+    } // void getBoxCorners(...)
+
+    /**
+     * Projects the box corners of the object to the screen - reuses the
+     * world space corners when already computed by the obb triangles stage
+     */
+    protected void projectCorners(PickingInfo pickingInfo, SpatialObject spatialObject) {
+        internalAABB.inf();
+        if (!hasCornerPoints) {
+            final OrientedBox orientedBox = spatialObject.getOrientedBox();
+            if (orientedBox != null) {
+                orientedBox.getCorners(aabbPoints);
+            } else {
+                getBoxCorners(spatialObject.getOriginalBoundingBox());
+                for (int i = 0; i < 8; i++) {
+                    aabbPoints[i].mul(spatialObject.getTransform());
+                } // for each aabb point
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            camera.project(aabbPoints[i]);
+            internalAABB.ext(aabbPoints[i].x,
+                    aabbPoints[i].y,
+                    aabbPoints[i].z);
+        } // for each box point
+        internalAABB.getCenter(tmpVec);
+        pickingInfo.center.x = (int) tmpVec.x;
+        pickingInfo.center.y = (int) tmpVec.y;
+
+        pickingInfo.onScreen.x = internalAABB.min.x;
+        pickingInfo.onScreen.y = internalAABB.min.y;
+        pickingInfo.onScreen.width = internalAABB.getWidth();
+        pickingInfo.onScreen.height = internalAABB.getHeight();
+    } // void projectCorners(...)
+
+    /**
+     * Sets the tmpRectangle to the pick pixel (expanded with the tolerance)
+     */
+    protected void setPickRectangle() {
+        tmpRectangle.x = pickPos.x - pickBorder;
+        tmpRectangle.y = pickPos.y - pickBorder;
+        tmpRectangle.width = 1.0f + 2 * pickBorder;
+        tmpRectangle.height = 1.0f + 2 * pickBorder;
+    } // void setPickRectangle()
+
+    /**
+     * Checks the single pick pixel - or with the tolerance search just
+     * compares the ID with the nearest object found for the current pick
+     * position (in begin() or queryObjectID())
+     */
+    protected boolean isPickPixel(int colorValue) {
+        if (toleranceSearch)
+            return colorValue == toleranceHitID;
+        return fboPixelChecker.isColorInPixels(colorValue, tmpRectangle, false);
+    }
+
+    /**
+     * Searches the square around the pick position in expanding rings (from
+     * the center) and stops at the first ring containing any object. Within
+     * the ring the pixel closest to the pick position wins. Each ring reads
+     * only its own perimeter, so the cost is bounded by the area of the square.
+     *
+     * @return ID of the nearest object or -1
+     */
+    protected int searchNearestPixel() {
+        toleranceHitID = -1;
+        toleranceHitPos.set(pickPos);
+        final int cx = pickPos.x, cy = pickPos.y;
+        for (int ring = 0; ring <= pickTolerance; ring++) {
+            int bestDistance = Integer.MAX_VALUE;
+            for (int dy = -ring; dy <= ring; dy++) {
+                // inner lines of the ring have only the two side pixels
+                final boolean edge = (dy == -ring || dy == ring);
+                final int step = edge ? 1 : Math.max(2 * ring, 1);
+                for (int dx = -ring; dx <= ring; dx += step) {
+                    final int distance = dx * dx + dy * dy;
+                    if (distance >= bestDistance)
+                        continue;
+                    final int id = idReader.getPixelId(cx + dx, cy + dy);
+                    if (id < 0)
+                        continue;
+                    bestDistance = distance;
+                    toleranceHitID = id;
+                    toleranceHitPos.set(cx + dx, cy + dy);
+                }
+            } // for each line of the ring
+            if (toleranceHitID >= 0)
+                break;
+        } // for each ring
+        return toleranceHitID;
+    } // int searchNearestPixel()
+
+    /**
+     * Replaces the intersection (bounding volume entry point) with the exact
+     * surface point - the depth captured for the pick pixel is unprojected
+     * with the camera. Works only for the single pixel picks.
+     */
+    protected boolean resolvePixelIntersection(PickingInfo pickingInfo) {
+        if (depthReader == null || camera == null || screenWidth <= 0 || screenHeight <= 0)
+            return false;
+        // with the tolerance search the object can be a few pixels away
+        final Vector2i pixel = toleranceSearch ? toleranceHitPos : pickPos;
+        final float depth = depthReader.getPixelDepth(pixel.x, pixel.y);
+        if (depth < 0.0f || depth >= 1.0f)
+            return false; // nothing captured
+        // center of the pick pixel in normalized device coordinates
+        final float ndcX = (pixel.x + 0.5f) / screenWidth * 2.0f - 1.0f;
+        final float ndcY = (pixel.y + 0.5f) / screenHeight * 2.0f - 1.0f;
+        pickingInfo.intersection.set(ndcX, ndcY, depth * 2.0f - 1.0f).prj(camera.invProjectionView);
+        pickingInfo.depth = depth;
+        if (ray != null)
+            pickingInfo.distance = ray.origin.dst(pickingInfo.intersection);
+        return true;
+    } // boolean resolvePixelIntersection(...)
 
     //-------------------------------------------------------------------------
 
@@ -700,7 +1951,7 @@ public class PickSelection {
         if (spatialObject == null)
             throw new IllegalArgumentException("spatialObject cannot be null");
 
-        final Integer key = spatialObject.getSpatialObjectID();
+        final int key = spatialObject.getSpatialObjectID();
         PickingInfo pickingInfo = pickingInfoMap.get(key);
         if (pickingInfo == null) {
             pickingInfo = pickingInfoPool.obtain();
@@ -709,14 +1960,16 @@ public class PickSelection {
         } else if (pickingInfo.spatialObject == null) {
             pickingInfo.spatialObject = spatialObject;
         }
+        if (!stateFlags.isToggled(StateFlags.INTERNAL_BEGIN))
+            validatePipeline(); // called outside of begin() - the traversal compiled it already
         pickingInfo.result = this.internal_isPicked(pickingInfo);
         boolean shouldRemove = false;
         boolean shouldAdd = false;
         final int index = selectedObjects.indexOf(spatialObject, true); // obj1 == obj2
         final float ts = pickingInfo.timeStamp;
-        final float exact = ((float) TimeUtils.timeSinceMillis(initTimeStamp)) / 1000.0f;
+        final float exact = stateFlags.isToggled(StateFlags.INTERNAL_BEGIN) ? traverseTimeStamp : getTimeSinceInit();
         if (pickingInfo.result == goodPickResult) {
-            if (isToggleSelectionMode() && isPickerActive() && !isOnHover() && ts < pickTimeStampBegin) {
+            if (compiledToggleMode && isPickerActive() && !compiledOnHover && ts < pickTimeStampBegin) {
                 pickingInfo.selected = !pickingInfo.selected;
                 if (!pickingInfo.selected) {
                     shouldRemove = true;
@@ -726,38 +1979,38 @@ public class PickSelection {
             } else if (pickingInfo.selected) {
                 shouldAdd = false;
                 // no toggle mode - already selected, no event
-            } else if (!isToggleSelectionMode() || isOnHover()) {
+            } else if (!compiledToggleMode || compiledOnHover) {
                 // not toggle selection mode
                 // not checking for picker status
                 pickingInfo.selected = true;
                 shouldAdd = true;
             }
 
-            if (!isGroupSelectionMode()) {
+            if (!compiledGroupMode) {
                 // first selected wins! ignore the rest
                 // this works only with traverse() functions
                 shouldContinue(false);
             }
 
-            if ((isOnHover() || !isGroupSelectionMode()) && shouldAdd) {
+            if ((compiledOnHover || !compiledGroupMode) && shouldAdd) {
                 // no grouping
                 for (int i = 0; i < selectedObjects.size; i++) {
                     SpatialObject selectedSpatialObject = selectedObjects.get(i);
                     int selectedSpatialObjectID = selectedSpatialObject.getSpatialObjectID();
-                    PickingInfo selectedPickingInfo = pickingInfoMap.get(Integer.valueOf(selectedSpatialObjectID));
+                    PickingInfo selectedPickingInfo = pickingInfoMap.get(selectedSpatialObjectID);
                     if (selectedPickingInfo != null)
                         selectedPickingInfo.selected = false;
                 }
-                selectedObjects.clear();
-                selectedObjects.add(spatialObject);
+                clearSelectedObjects();
+                addSelectedObject(spatialObject);
                 pickingInfo.timeStamp = exact;
                 pickingInfo.selected = true;
                 //////DEBUG////System.out.println(spatialObject.getSpatialObjectID() + " selected[" + pickingInfo.selected + "]: ts [" + ts + "]<[" + pickTimeStampBegin + "] pickTimeStamp | shouldRemove: " + shouldRemove);
             }
 
-            if (isGroupSelectionMode() && !isOnHover() && shouldAdd) {
+            if (compiledGroupMode && !compiledOnHover && shouldAdd) {
                 if (!selectedObjects.contains(spatialObject, true)) {
-                    selectedObjects.add(spatialObject);
+                    addSelectedObject(spatialObject);
                     //////DEBUG////System.out.println(spatialObject.getSpatialObjectID() + " added to group, selected[" + pickingInfo.selected + "]: ts [" + ts + "]<[" + pickTimeStampBegin + "] pickTimeStamp | shouldRemove: " + shouldRemove);
                     pickingInfo.timeStamp = exact;
                 }
@@ -769,7 +2022,7 @@ public class PickSelection {
         }
         if (shouldRemove && selectedObjects.size > 0 && index >= 0) {
             //////DEBUG////System.out.println(spatialObject.getSpatialObjectID() + " removing from internal obj list [idx:" + index + "]");
-            selectedObjects.removeIndex(index);
+            removeSelectedObject(index);
             pickingInfo.selected = false;
             pickingInfo.timeStamp = exact;
         }
@@ -796,12 +2049,17 @@ public class PickSelection {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Updates the picking ray for the current pick position. The camera
+     * matrices are not updated here - the camera needs to be updated by the
+     * caller after it was moved.
+     */
     public void updateRay() {
         if (camera == null)
             return; // can't do
-        camera.update();
         // The screen coordinates origin is assumed to be in the top left corner
-        ray = camera.getPickRay(this.pickPos.x, this.camera.viewportHeight - this.pickPos.y);
+        pickRay.set(camera.getPickRay(this.pickPos.x, this.camera.viewportHeight - this.pickPos.y));
+        ray = pickRay;
     }
 
     public void refreshPickBoxDimensions() {
@@ -847,6 +2105,9 @@ public class PickSelection {
         // However input event reporting uses... Top Left corner!
         // Coordinates are converted in picker position reporting functions.
         goodPickResult = Result.NOT_PICKED;
+        traverseTimeStamp = getTimeSinceInit(); // once for all objects
+        testedCount = 0;
+        candidateCount = 0;
         refreshPickBoxDimensions();
         if (isOnClick()) {
             shouldContinue(isPickerActive());
@@ -857,23 +2118,58 @@ public class PickSelection {
         } else if (isOnHover()) {
             shouldContinue(true);
             shouldUnselect(true);
+            refreshCameraVersion();
+            if (isHoverCoherence() && !isHoverStateChanged()) {
+                // nothing has moved - the last result is still valid
+                shouldContinue(false);
+                shouldUnselect(false);
+                hoverSkipCount++;
+            }
         }
 
         if (shouldContinue()) {
             updateRay();
-            goodPickResult = Result.PICKED_SPHERE;
-            if(isCheckAABBs())
-                goodPickResult = Result.PICKED_AABB;
-            if(isCheckOnScreenBoxes())
-                goodPickResult = Result.PICKED_ON_SCREEN_BOX;
-            if (isCheckOBBTriangles())
-                goodPickResult = Result.PICKED_OBB_TRIANGLES;
-            if (isCheckFBOPixels())
-                goodPickResult = Result.PICKED_PIXEL;
+            goodPickResult = computeGoodPickResult();
+            validatePipeline(); // once for the whole traversal
+            toleranceHitID = -1;
+            if (toleranceSearch)
+                searchNearestPixel(); // once for all objects
         }
         return true;
     } // boolean begin()
 
+    /**
+     * @return the result of the most accurate test enabled with the flags
+     */
+    protected Result computeGoodPickResult() {
+        return computeGoodPickResult(true);
+    }
+
+    /**
+     * @param screenTests false for the world space rays (no screen position)
+     */
+    protected Result computeGoodPickResult(boolean screenTests) {
+        Result result = Result.PICKED_SPHERE;
+        if (isCheckAABBs())
+            result = Result.PICKED_AABB;
+        if (screenTests && isCheckOnScreenBoxes())
+            result = Result.PICKED_ON_SCREEN_BOX;
+        if (isCheckOBBTriangles())
+            result = Result.PICKED_OBB_TRIANGLES;
+        if (isCheckMeshTriangles())
+            result = Result.PICKED_MESH_TRIANGLE;
+        if (screenTests && isCheckFBOPixels())
+            result = Result.PICKED_PIXEL;
+        return result;
+    } // Result computeGoodPickResult(...)
+
+    /**
+     * @return seconds since the initialization
+     */
+    protected float getTimeSinceInit() {
+        return ((float) TimeUtils.timeSinceMillis(initTimeStamp)) / 1000.0f;
+    }
+
     public boolean end() {
         if (!stateFlags.isToggled(StateFlags.INTERNAL_BEGIN))
             return false; // IGNORE
@@ -882,11 +2178,200 @@ public class PickSelection {
             if (!isPickerActive())
                 pickTimeStampBegin = -1;
         }
+        if (publishSnapshots)
+            publishSnapshot();
         return true;
     } // boolean end()
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Enables publishing of the immutable selection snapshots in end() -
+     * other threads can then read the selection with getSnapshot()
+     */
+    public void setPublishSnapshots(boolean toggle) {
+        this.publishSnapshots = toggle;
+    }
+
+    public boolean isPublishSnapshots() {
+        return publishSnapshots;
+    }
+
+    /**
+     * Thread safe - returns the selection published by the last end()
+     */
+    public SelectionSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Publishes the new snapshot when the selection was changed since the
+     * last published one (allocates only then). The results and the
+     * intersections are the ones of the traversal which changed it.
+     */
+    protected void publishSnapshot() {
+        if (snapshotModCount == selectionModCount)
+            return; // nothing was selected or unselected
+        final int size = selectedObjects.size;
+        final int[] objectIDs = new int[size];
+        final Result[] results = new Result[size];
+        final float[] intersections = new float[size * 3];
+        for (int i = 0; i < size; i++) {
+            final int objectID = selectedObjects.get(i).getSpatialObjectID();
+            final PickingInfo pickingInfo = pickingInfoMap.get(objectID);
+            objectIDs[i] = objectID;
+            if (pickingInfo != null) {
+                results[i] = pickingInfo.result;
+                intersections[i * 3] = pickingInfo.intersection.x;
+                intersections[i * 3 + 1] = pickingInfo.intersection.y;
+                intersections[i * 3 + 2] = pickingInfo.intersection.z;
+            } else {
+                results[i] = Result.NOT_PICKED;
+            }
+        } // for each selected object
+        snapshotModCount = selectionModCount;
+        snapshot.set(new SelectionSnapshot(++snapshotVersion, objectIDs, results,
+                intersections, size, traverseTimeStamp));
+    } // void publishSnapshot()
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Stores the IDs of the selected objects in the bitmap (cleared first)
+     */
+    public IdBitmap getSelectionBitmap(IdBitmap out) {
+        if (out == null)
+            throw new IllegalArgumentException("out cannot be null");
+        return out.set(selectionBitmap);
+    }
+
+    protected void addSelectedObject(SpatialObject spatialObject) {
+        final int objectID = spatialObject.getSpatialObjectID();
+        selectedObjects.add(spatialObject);
+        selectionBitmap.add(objectID);
+        selectionModCount++;
+        recordSelected(objectID);
+    }
+
+    protected void removeSelectedObject(int index) {
+        final int objectID = selectedObjects.removeIndex(index).getSpatialObjectID();
+        selectionBitmap.remove(objectID);
+        selectionModCount++;
+        recordUnselected(objectID);
+    }
+
+    protected void clearSelectedObjects() {
+        for (int i = 0; i < selectedObjects.size; i++)
+            recordUnselected(selectedObjects.get(i).getSpatialObjectID());
+        selectedObjects.clear();
+        selectionBitmap.clear();
+        selectionModCount++;
+    }
+
+    /**
+     * @return spatial object with the ID (from the picking infos or the
+     * spatial objects array) or null
+     */
+    protected SpatialObject findSpatialObject(int objectID) {
+        final PickingInfo pickingInfo = pickingInfoMap.get(objectID);
+        if (pickingInfo != null && pickingInfo.spatialObject != null)
+            return pickingInfo.spatialObject;
+        if (spatialObjects == null)
+            return null;
+        if (!objectIndexValid || objectIndexSceneVersion != sceneVersion) {
+            objectIndex.clear();
+            for (int i = 0; i < spatialObjects.size; i++) {
+                final SpatialObject spatialObject = spatialObjects.get(i);
+                objectIndex.put(spatialObject.getSpatialObjectID(), spatialObject);
+            }
+            objectIndexValid = true;
+            objectIndexSceneVersion = sceneVersion;
+        }
+        return objectIndex.get(objectID);
+    } // SpatialObject findSpatialObject(...)
+
+    /**
+     * Replaces the selection with the objects from the bitmap (e.g. undo/redo
+     * of the SelectionHistory). Only the objects which differ from the current
+     * selection are touched - the listeners receive only those. IDs without a
+     * spatial object are ignored.
+     *
+     * @return number of the selected and unselected objects
+     */
+    public int applySelection(IdBitmap target, boolean shouldCallListeners) {
+        if (target == null)
+            throw new IllegalArgumentException("target cannot be null");
+        final int changed = internal_applySelection(target, shouldCallListeners);
+        if (changed == 0)
+            return 0;
+        if (publishSnapshots)
+            publishSnapshot();
+        if (shouldCallListeners)
+            callOnSelectionDeltaListeners();
+        return changed;
+    } // int applySelection(...)
+
+    /**
+     * Changes the selection to the target, calls only the per object listeners
+     */
+    protected int internal_applySelection(IdBitmap target, boolean shouldCallListeners) {
+        final IdBitmap current = selectionBitmap;
+        applyRemoved.set(current).andNot(target);
+        applyAdded.set(target).andNot(current);
+        if (applyRemoved.isEmpty() && applyAdded.isEmpty())
+            return 0;
+        final float exact = getTimeSinceInit();
+        int changed = 0;
+        if (!applyRemoved.isEmpty()) {
+            // single pass - keeps the order of the remaining objects
+            int count = 0;
+            for (int i = 0; i < selectedObjects.size; i++) {
+                final SpatialObject spatialObject = selectedObjects.get(i);
+                final int objectID = spatialObject.getSpatialObjectID();
+                if (!applyRemoved.contains(objectID)) {
+                    selectedObjects.set(count++, spatialObject);
+                    continue;
+                }
+                selectionBitmap.remove(objectID);
+                recordUnselected(objectID);
+                final PickingInfo pickingInfo = pickingInfoMap.get(objectID);
+                if (pickingInfo != null) {
+                    pickingInfo.selected = false;
+                    pickingInfo.timeStamp = exact;
+                }
+                changed++;
+                if (shouldCallListeners)
+                    callOnSelectionListeners(spatialObject, pickingInfo, false);
+            } // for each selected object
+            selectedObjects.truncate(count);
+            selectionModCount++;
+        }
+        applyIDs.clear();
+        applyAdded.toArray(applyIDs);
+        for (int i = 0; i < applyIDs.size; i++) {
+            final int objectID = applyIDs.get(i);
+            final SpatialObject spatialObject = findSpatialObject(objectID);
+            if (spatialObject == null)
+                continue;
+            PickingInfo pickingInfo = pickingInfoMap.get(objectID);
+            if (pickingInfo == null) {
+                pickingInfo = pickingInfoPool.obtain();
+                pickingInfoMap.put(objectID, pickingInfo);
+            }
+            pickingInfo.spatialObject = spatialObject;
+            pickingInfo.selected = true;
+            pickingInfo.timeStamp = exact;
+            addSelectedObject(spatialObject);
+            changed++;
+            if (shouldCallListeners)
+                callOnSelectionListeners(spatialObject, pickingInfo, true);
+        } // for each added object
+        applyIDs.clear();
+        return changed;
+    } // int internal_applySelection(...)
+
+    //-------------------------------------------------------------------------
+
     public boolean traverse(boolean shouldCallListeners) {
         return traverse(this.spatialObjects, shouldCallListeners);
     }
@@ -899,42 +2384,346 @@ public class PickSelection {
                             boolean shouldCallListeners) {
         if (spatialObjectsArray == null)
             throw new IllegalArgumentException("spatialObjectsArray cannot be null");
+        if (isBoxOperationActive())
+            return traverseBox(spatialObjectsArray, shouldCallListeners);
+        traversedObjects = spatialObjectsArray;
+        final boolean began = begin();
+        traversedObjects = null;
+        if (!began)
+            return false;
+        if (!shouldContinue()) {
+            end();
+            return false;
+        }
+        final boolean hoverCoherence = isOnHover() && isHoverCoherence();
+        SpatialObject testedFirst = null;
+        // index of the object which stopped the traversal (first hit wins)
+        int hitIndex = -1;
+        // only while the scene is the same - other objects could have moved in front
+        if (hoverCoherence && hoverObject != null && !isGroupSelectionMode() &&
+                hoverSceneVersion == sceneVersion && hoverObject.isVisible() && hoverObject.getSpatialObjectID() >= 0 &&
+                isHoverObjectInArray(spatialObjectsArray)) {
+            // temporal coherence - the object under the cursor usually stays the same
+            testedFirst = hoverObject;
+            checkObject(testedFirst, shouldCallListeners);
+            if (!shouldContinue())
+                hitIndex = hoverIndex;
+        }
+        final int numObjects = spatialObjectsArray.size;
+        for (int i = 0; i < numObjects && shouldContinue(); i++) {
+            final SpatialObject spatialObject = spatialObjectsArray.get(i);
+            if (!spatialObject.isVisible() || spatialObject == testedFirst)
+                continue;
+            checkObject(spatialObject, shouldCallListeners);
+            if (!shouldContinue())
+                hitIndex = i;
+        } // for each objects
+        if (hoverCoherence)
+            rememberHoverState(spatialObjectsArray, hitIndex);
+
+        final boolean status = end(); // should return true
+        if (shouldCallListeners)
+            callOnSelectionDeltaListeners(); // once - after the traversal
+        return status;
+    } // boolean traverse(...)
+
+    /**
+     * Traversal for the box set operations - collects the objects inside the
+     * box, combines them with the selection from the start of the box and
+     * applies the result. The listeners receive only the net changes.
+     */
+    protected boolean traverseBox(Array<SpatialObject> spatialObjectsArray,
+                                  boolean shouldCallListeners) {
         if (!begin())
             return false;
         if (!shouldContinue()) {
             end();
             return false;
         }
+        boxHits.clear();
         final int numObjects = spatialObjectsArray.size;
-        SpatialObject spatialObject;
-        boolean wasSelectedBefore;
         for (int i = 0; i < numObjects; i++) {
-            wasSelectedBefore = false;
-            spatialObject = spatialObjectsArray.get(i);
+            final SpatialObject spatialObject = spatialObjectsArray.get(i);
             if (!spatialObject.isVisible())
                 continue;
-            final int objectID = spatialObject.getSpatialObjectID();
-            PickingInfo pickingInfo;
-            if (pickingInfoMap.containsKey(objectID)) {
-                pickingInfo = pickingInfoMap.get(objectID);
-                wasSelectedBefore = pickingInfo.selected;
-            }
-            pickingInfo = performFullCheck(spatialObject);
-            if (pickingInfo.selected && shouldCallListeners && !wasSelectedBefore) {
-                // SELECTED! NEW!
-                callOnSelectionListeners(spatialObject, pickingInfo, true);
-            } else if (!pickingInfo.selected && shouldCallListeners && wasSelectedBefore) {
-                // UNSELECTED!
-                callOnSelectionListeners(spatialObject, pickingInfo, false);
-            }
-            if (!shouldContinue()) {
-                // already selected something - no multiple selection is allowed
-                break; // !
+            final int key = spatialObject.getSpatialObjectID();
+            PickingInfo pickingInfo = pickingInfoMap.get(key);
+            if (pickingInfo == null) {
+                pickingInfo = pickingInfoPool.obtain();
+                pickingInfoMap.put(key, pickingInfo);
             }
+            pickingInfo.spatialObject = spatialObject;
+            pickingInfo.result = this.internal_isPicked(pickingInfo);
+            if (pickingInfo.result == goodPickResult)
+                boxHits.add(key);
         } // for each objects
+        boxTarget.set(boxBase);
+        combineSelection(boxTarget, boxHits, boxOperation);
+        internal_applySelection(boxTarget, shouldCallListeners);
+        final boolean status = end();
+        if (shouldCallListeners)
+            callOnSelectionDeltaListeners(); // once - after the traversal
+        return status;
+    } // boolean traverseBox(...)
+
+    /**
+     * Combines the hits with the target selection (in place)
+     */
+    protected static void combineSelection(IdBitmap target, IdBitmap hits, SelectionOperation operation) {
+        switch (operation) {
+            case UNION:
+                target.or(hits);
+                break;
+            case DIFFERENCE:
+                target.andNot(hits);
+                break;
+            case INTERSECTION:
+                target.and(hits);
+                break;
+            case SYMMETRIC_DIFFERENCE:
+                target.xor(hits);
+                break;
+            default:
+                target.set(hits);
+                break;
+        }
+    } // void combineSelection(...)
+
+    /**
+     * Returns the index of the spatial objects. The tree is refitted or
+     * rebuilt only when setSpatialObjects() replaced the objects or
+     * setSceneVersion() reported another version - objects moved, shown or
+     * hidden without the new version keep their old place in the tree, so
+     * the queries below may miss them or report them by the old bounds. Report
+     * the version after every scene update (before any query).
+     *
+     * @return spatial index updated for the current spatial objects and the
+     * scene version or null when there are no spatial objects
+     */
+    public SpatialIndex getSpatialIndex() {
+        if (spatialObjects == null)
+            return null;
+        spatialIndex.validate(spatialObjects, sceneVersion);
+        return spatialIndex;
+    }
 
-        return end(); // should return true
-    } // boolean traverse(...)
+    /**
+     * Appends the visible objects with the bounds within the radius of the
+     * point to the array (not cleared). Sees the objects as of the last
+     * setSceneVersion(), see getSpatialIndex().
+     *
+     * @return number of the appended objects
+     */
+    public int queryRadius(Vector3 center, float radius, Array<SpatialObject> out) {
+        if (center == null)
+            throw new IllegalArgumentException("center cannot be null");
+        final SpatialIndex index = getSpatialIndex();
+        if (index == null)
+            return 0;
+        return index.queryRadius(center.x, center.y, center.z, radius, out);
+    }
+
+    /**
+     * Appends the visible objects intersecting the world box (fully inside
+     * of it when contained is true) to the array (not cleared). Moved
+     * objects are found at the new place only after setSceneVersion(), see
+     * getSpatialIndex().
+     *
+     * @return number of the appended objects
+     */
+    public int queryBox(BoundingBox box, boolean contained, Array<SpatialObject> out) {
+        final SpatialIndex index = getSpatialIndex();
+        if (index == null)
+            return 0;
+        return index.queryBox(box, contained, out);
+    }
+
+    /**
+     * Nearest objects without the distance limit, see
+     * queryNearestToRay(Ray, int, float, Array, FloatArray)
+     */
+    public int queryNearestToRay(Ray ray, int k, Array<SpatialObject> out, FloatArray distances) {
+        return queryNearestToRay(ray, k, Float.MAX_VALUE, out, distances);
+    }
+
+    /**
+     * Appends the k visible objects nearest to the ray (by the bounding
+     * spheres) sorted by the distance, see SpatialIndex.queryNearestToRay().
+     * The spheres are the ones the index saw at the last setSceneVersion()
+     * (see getSpatialIndex()).
+     *
+     * @return number of the appended objects
+     */
+    public int queryNearestToRay(Ray ray, int k, float maxDistance,
+                                 Array<SpatialObject> out, FloatArray distances) {
+        final SpatialIndex index = getSpatialIndex();
+        if (index == null)
+            return 0;
+        return index.queryNearestToRay(ray, k, maxDistance, out, distances);
+    }
+
+    /**
+     * Collects all visible objects passed by the ray sorted by the entry
+     * distance into the buffer (cleared first), see SpatialIndex.queryPiercing().
+     * The objects moved since the last setSceneVersion() can be missed, the
+     * tree still has their old bounds (see getSpatialIndex()).
+     *
+     * @param maxDistance hits entering further than this are ignored
+     * @param maxHits     maximal number of the nearest hits, 0 or less for no limit
+     * @return number of the hits
+     */
+    public int pierce(Ray ray, float maxDistance, int maxHits, RayHitBuffer out) {
+        if (out == null)
+            throw new IllegalArgumentException("out cannot be null");
+        final SpatialIndex index = getSpatialIndex();
+        if (index == null) {
+            out.clear();
+            return 0;
+        }
+        return index.queryPiercing(ray, maxDistance, maxHits, out);
+    }
+
+    /**
+     * Piercing query for the ray under the screen position (top left origin,
+     * same as setPickerCoord()) - does not change the traversal state. Needs
+     * the current scene version like the other queries (see getSpatialIndex()).
+     */
+    public int pierce(int x, int y, float maxDistance, int maxHits, RayHitBuffer out) {
+        if (camera == null) {
+            out.clear();
+            return 0;
+        }
+        queryRay.set(camera.getPickRay(x, y));
+        return pierce(queryRay, maxDistance, maxHits, out);
+    }
+
+    /**
+     * Finds the closest object under the screen position (top left origin,
+     * same as setPickerCoord()) with the current tests. Does not change the
+     * selection and does not call the listeners. Results are cached (when
+     * enabled) until the camera, the scene version or the flags change.
+     * The pixel checks work only when the buffer covers the position.
+     *
+     * @param intersection receives the intersection point, can be null
+     * @return ID of the picked object or -1
+     */
+    public int pickObjectID(int x, int y, Vector3 intersection) {
+        if (camera == null || spatialObjects == null)
+            return -1;
+        final int pixelY = screenHeight - y;
+        refreshCameraVersion();
+        if (pickCache != null) {
+            pickCache.validate(cameraVersion, sceneVersion, getCompileFlags());
+            final int objectID = pickCache.get(x, pixelY, intersection);
+            if (objectID != PickCache.MISS)
+                return objectID;
+        }
+        final int objectID = queryObjectID(x, pixelY);
+        if (intersection != null)
+            intersection.set(queryInfo.intersection);
+        if (pickCache != null)
+            pickCache.put(x, pixelY, objectID, queryInfo.intersection);
+        return objectID;
+    } // int pickObjectID(...)
+
+    /**
+     * Tests all visible objects with the single pixel pick at the position
+     * (bottom left origin), the closest intersection is left in queryInfo
+     */
+    protected int queryObjectID(int x, int y) {
+        beginQuery();
+        setQueryPixel(x, y);
+        int objectID = -1;
+        float closest = Float.MAX_VALUE;
+        queryPoint.set(0.0f, 0.0f, 0.0f);
+        for (int i = 0; i < spatialObjects.size; i++) {
+            final SpatialObject spatialObject = spatialObjects.get(i);
+            if (!spatialObject.isVisible())
+                continue;
+            queryInfo.reset();
+            queryInfo.spatialObject = spatialObject;
+            if (runStages(queryStages, queryStagesLength, queryInfo) != goodPickResult)
+                continue;
+            final float distance = ray.origin.dst2(queryInfo.intersection);
+            if (distance < closest) {
+                closest = distance;
+                objectID = spatialObject.getSpatialObjectID();
+                queryPoint.set(queryInfo.intersection);
+            }
+        } // for each spatial object
+        queryInfo.reset();
+        queryInfo.intersection.set(queryPoint);
+        endQuery();
+        return objectID;
+    } // int queryObjectID(...)
+
+    /**
+     * Saves the state of the traversal and prepares the single pixel query
+     * stages (queryObjectID(), MultiPickQuery) - endQuery() restores it
+     */
+    protected void beginQuery() {
+        savedPickPos.set(pickPos);
+        savedHasRay = ray != null;
+        if (savedHasRay)
+            savedRay.set(ray);
+        savedGoodResult = goodPickResult;
+        savedToleranceHitID = toleranceHitID;
+        savedToleranceHitPos.set(toleranceHitPos);
+        savedToleranceSearch = toleranceSearch;
+        savedPickBorder = pickBorder;
+        validatePipeline();
+        if (!queryPipelineValid || queryCompiledFlags != compiledFlags)
+            compileQueryPipeline();
+        goodPickResult = computeGoodPickResult();
+        // single pixel pick - the tolerance search applies even with the picking box on
+        toleranceSearch = isToleranceSearch(false);
+        pickBorder = toleranceSearch ? pickTolerance : 0;
+    } // void beginQuery()
+
+    /**
+     * Moves the query to the pixel (bottom left origin) and searches the
+     * nearest object around it (tolerance search only)
+     *
+     * @return ID found by the tolerance search or -1
+     */
+    protected int setQueryPixel(int x, int y) {
+        pickPos.set(x, y);
+        updateRay();
+        // the nearest object around the queried pixel (not the traversal one)
+        toleranceHitID = -1;
+        if (toleranceSearch)
+            searchNearestPixel();
+        return toleranceHitID;
+    } // int setQueryPixel(...)
+
+    protected void endQuery() {
+        pickPos.set(savedPickPos);
+        if (savedHasRay)
+            ray.set(savedRay);
+        goodPickResult = savedGoodResult;
+        toleranceHitID = savedToleranceHitID;
+        toleranceHitPos.set(savedToleranceHitPos);
+        toleranceSearch = savedToleranceSearch;
+        pickBorder = savedPickBorder;
+    } // void endQuery()
+
+    protected void checkObject(SpatialObject spatialObject, boolean shouldCallListeners) {
+        final int objectID = spatialObject.getSpatialObjectID();
+        boolean wasSelectedBefore = false;
+        PickingInfo pickingInfo = pickingInfoMap.get(objectID);
+        if (pickingInfo != null)
+            wasSelectedBefore = pickingInfo.selected;
+        pickingInfo = performFullCheck(spatialObject);
+        if (pickingInfo.selected && shouldCallListeners && !wasSelectedBefore) {
+            // SELECTED! NEW!
+            callOnSelectionListeners(spatialObject, pickingInfo, true);
+        } else if (!pickingInfo.selected && shouldCallListeners && wasSelectedBefore) {
+            // UNSELECTED!
+            callOnSelectionListeners(spatialObject, pickingInfo, false);
+        }
+        // when shouldContinue() is false - already selected something,
+        // no multiple selection is allowed
+    } // void checkObject(...)
 
     //-------------------------------------------------------------------------
 
@@ -5,6 +5,7 @@ import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.Disposable;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
@@ -12,7 +13,7 @@ import java.nio.IntBuffer;
 /**
  *
  */
-public class PickSelectionFrameBuffer {
+public class PickSelectionFrameBuffer implements Disposable {
 
     public static final int FBO_DEFAULT_WIDTH = 256;
     public static final int FBO_DEFAULT_HEIGHT = 256;
@@ -120,6 +121,20 @@ public class PickSelectionFrameBuffer {
         }
     } // void initialize(...)
 
+    @Override
+    public void dispose() {
+        if (frameBufferObject != 0)
+            Gdx.gl20.glDeleteFramebuffer(frameBufferObject);
+        if (renderBufferObject != 0)
+            Gdx.gl20.glDeleteRenderbuffer(renderBufferObject);
+        if (texture != null)
+            texture.dispose();
+        frameBufferObject = 0;
+        renderBufferObject = 0;
+        texture = null;
+        valid = false;
+    } // void dispose()
+
     //-------------------------------------------------------------------------
 
     public ByteBuffer getByteBuffer() {
@@ -14,7 +14,8 @@ import com.flexigame.fg.utils.Vector2i;
 /**
  *
  */
-public class PickSelectionRenderer implements PickSelection.PixelChecker, Disposable {
+public class PickSelectionRenderer implements PickSelection.PixelChecker, PickSelection.DepthReader,
+        PickSelection.IdReader, Disposable {
     protected static class RenderablePool extends FlushablePool<Renderable> {
         @Override
         protected Renderable newObject() {
@@ -46,9 +47,33 @@ public class PickSelectionRenderer implements PickSelection.PixelChecker, Dispos
             "{                                            \n" +
             "    gl_FragColor = u_baseColor;\n" +
             "}";
+    /* Packs the window depth into the RGBA8888 color (highest bits in red) */
+    String depthFragmentShaderText = "#ifdef GL_ES\n" +
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "#endif\n" +
+            "void main()                                  \n" +
+            "{                                            \n" +
+            "    float depth = min(gl_FragCoord.z, 0.999999);\n" +
+            "    vec4 packed = fract(depth * vec4(1.0, 255.0, 65025.0, 16581375.0));\n" +
+            "    packed -= packed.yzww * vec4(1.0 / 255.0, 1.0 / 255.0, 1.0 / 255.0, 0.0);\n" +
+            "    gl_FragColor = packed;\n" +
+            "}";
 
     Color pickingColor = new Color();
 
+    /* Second pass with the packed depth - optional, used for the exact hit points */
+    PickSelectionFrameBuffer depthFrameBuffer = null;
+    DefaultShader depthShader = null;
+    /* Area of the frame buffer read by the last refreshPixelBuffer() */
+    int readX = 0;
+    int readY = 0;
+    int readWidth = 0;
+    int readHeight = 0;
+
     //-------------------------------------------------------------------------
 
     public PickSelectionRenderer(SimpleSceneManager sceneManager,
@@ -76,6 +101,7 @@ public class PickSelectionRenderer implements PickSelection.PixelChecker, Dispos
         this.frameBuffer = frameBuffer;
 
         this.pickSelection.setPixelChecker(this);
+        this.pickSelection.setIdReader(this);
     } // PickSelectionRenderer()
 
     //-------------------------------------------------------------------------
@@ -86,59 +112,118 @@ public class PickSelectionRenderer implements PickSelection.PixelChecker, Dispos
         renderablesPool.clear();
         pickShader.dispose();
         pickSelection.setPixelChecker(null);
+        if (pickSelection.getIdReader() == this)
+            pickSelection.setIdReader(null);
+        setCaptureDepth(false);
     } // void dispose()
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Enables the second pass writing the packed depth into a separate frame
+     * buffer. The depth of the pick area is read with refreshPixelBuffer()
+     * and the pick selection uses it for the exact surface hit points.
+     */
+    public void setCaptureDepth(boolean toggle) {
+        if (toggle && depthFrameBuffer == null) {
+            depthFrameBuffer = new PickSelectionFrameBuffer(frameBuffer.screenWidth, frameBuffer.screenHeight);
+            Renderable renderable = new Renderable();
+            renderable.environment = sceneManager.getEnvironment();
+            renderable.material = new Material();
+            renderable.meshPart.mesh = new Mesh(true, 4, 4, VertexAttribute.Position());
+            depthShader = new DefaultShader(renderable,
+                    new DefaultShader.Config() {
+                        {
+                            this.fragmentShader = depthFragmentShaderText;
+                        }
+                    });
+            depthShader.init();
+            pickSelection.setDepthReader(this);
+        } else if (!toggle && depthFrameBuffer != null) {
+            depthShader.dispose();
+            depthShader = null;
+            depthFrameBuffer.dispose();
+            depthFrameBuffer = null;
+            if (pickSelection.getDepthReader() == this)
+                pickSelection.setDepthReader(null);
+        }
+    } // void setCaptureDepth(...)
+
+    public boolean isCaptureDepth() {
+        return depthFrameBuffer != null;
+    }
+
+    //-------------------------------------------------------------------------
+
     @Override
     public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
         if (!frameBuffer.isValid())
             throw new RuntimeException("Pick selection buffer is not valid");
-        boolean status = false;
-        final Rectangle pickBox = pickSelection.getPickBox();
-        int area_x = Math.max(frameBuffer.computePositionX((int) area.x - (int) pickBox.x), 0);
-        int area_y = Math.max(frameBuffer.computePositionY((int) area.y - (int) pickBox.y), 0);
+        int area_x = Math.max(frameBuffer.computePositionX((int) area.x) - readX, 0);
+        int area_y = Math.max(frameBuffer.computePositionY((int) area.y) - readY, 0);
         int area_width = frameBuffer.computePositionX((int) area.width);
         int area_height = frameBuffer.computePositionY((int) area.height);
-        int line_width = frameBuffer.computePositionX((int) pickBox.width);
         if (area_width == 0)
             area_width = 1;
-        if (line_width == 0)
-            line_width = 1;
         if (area_height == 0)
             area_height = 1;
+        area_width = Math.min(area_width, readWidth - area_x);
+        area_height = Math.min(area_height, readHeight - area_y);
 
-        int red, green, blue, alpha;
-        int gameObjectIndex = 0;
-        int finalOffset = 0;
-        int pixelSize = frameBuffer.getPixelSize();
-        int offset = area_x * pixelSize + area_y * pixelSize * line_width;
-        for (int y = 0; y < area_height && !status; y++) {
-            for (int x = 0; x < area_width && !status; x++) {
-                finalOffset = offset + x * pixelSize + y * pixelSize * line_width;
-
-                red = frameBuffer.bytePixels[finalOffset + 0];
-                green = frameBuffer.bytePixels[finalOffset + 1];
-                blue = frameBuffer.bytePixels[finalOffset + 2];
-                alpha = frameBuffer.bytePixels[finalOffset + 3];
-                gameObjectIndex = Color.toIntBits(alpha, blue, green, red);
-                gameObjectIndex--; // down one
-                if (gameObjectIndex == colorValue) {
-                    status = true;
-                    break;
-                }
+        for (int y = 0; y < area_height; y++) {
+            for (int x = 0; x < area_width; x++) {
+                if (decodePixel(area_x + x, area_y + y) == colorValue)
+                    return true;
             } // for each row in data
         } // for each line in data
-        return status;
+        return false;
     } // boolean isColorInPixels(...)
 
+    @Override
+    public int getPixelId(int x, int y) {
+        x = frameBuffer.computePositionX(x) - readX;
+        y = frameBuffer.computePositionY(y) - readY;
+        if (x < 0 || y < 0 || x >= readWidth || y >= readHeight)
+            return -1;
+        return Math.max(decodePixel(x, y), -1); // cleared pixels decode as -2
+    }
+
+    @Override
+    public float getPixelDepth(int x, int y) {
+        if (depthFrameBuffer == null)
+            return 1.0f;
+        x = depthFrameBuffer.computePositionX(x) - readX;
+        y = depthFrameBuffer.computePositionY(y) - readY;
+        if (x < 0 || y < 0 || x >= readWidth || y >= readHeight)
+            return 1.0f; // only the pick area is read back
+        final byte[] pixels = depthFrameBuffer.bytePixels;
+        final int offset = (x + y * readWidth) * depthFrameBuffer.getPixelSize();
+        return (pixels[offset] & 0xFF) / 255.0f +
+                (pixels[offset + 1] & 0xFF) / (255.0f * 255.0f) +
+                (pixels[offset + 2] & 0xFF) / (255.0f * 65025.0f) +
+                (pixels[offset + 3] & 0xFF) / (255.0f * 16581375.0f);
+    } // float getPixelDepth(...)
+
+    /**
+     * @return object ID stored in the pixel (relative to the read area), -1 if empty
+     */
+    protected int decodePixel(int x, int y) {
+        final byte[] pixels = frameBuffer.bytePixels;
+        final int offset = (x + y * readWidth) * frameBuffer.getPixelSize();
+        final int red = pixels[offset] & 0xFF;
+        final int green = pixels[offset + 1] & 0xFF;
+        final int blue = pixels[offset + 2] & 0xFF;
+        final int alpha = pixels[offset + 3] & 0xFF;
+        return Color.toIntBits(alpha, blue, green, red) - 1; // down one
+    } // int decodePixel(...)
+
     //-------------------------------------------------------------------------
 
     public void refreshPixelBuffer() {
         // Need to read just the selection box (or single pixel)
         Rectangle pickBox = pickSelection.getPickBox();
         Vector2i pickPos = pickSelection.getPickPosition();
-        int x = pickPos.x, y = pickPos.y, w = 1, h = 1;
+        int x = pickPos.x, y = pickPos.y, w = 1, h = 1, border = 0;
         if (pickSelection.isOnClick() && pickSelection.isUsePickingBox()) {
             x = (int) pickBox.x;
             y = (int) pickBox.y;
@@ -146,18 +231,57 @@ public class PickSelectionRenderer implements PickSelection.PixelChecker, Dispos
             h = (int) pickBox.height;
 
             w = frameBuffer.computePositionX(w);
-            h = frameBuffer.computePositionX(h);
+            h = frameBuffer.computePositionY(h);
+        } else if (pickSelection.isToleranceSearch()) {
+            // square around the pick position for the nearest object search
+            border = Math.max(frameBuffer.computePositionX(pickSelection.getPickTolerance()), 1);
         }
-        x = frameBuffer.computePositionX(x);
-        y = frameBuffer.computePositionY(y);
+        x = frameBuffer.computePositionX(x) - border;
+        y = frameBuffer.computePositionY(y) - border;
         if (w == 0)
             w = 1;
         if (h == 0)
             h = 1;
-
-        frameBuffer.refreshPixelBuffer(x, y, w, h);
+        w += 2 * border;
+        h += 2 * border;
+        readPixels(x, y, w, h);
     } // void refreshPixelBuffer()
 
+    /**
+     * Reads the given screen area (bottom left origin) - used by the batched
+     * queries to read the area of all pointers at once
+     */
+    public void refreshPixelBuffer(Rectangle area) {
+        final int x = frameBuffer.computePositionX((int) area.x);
+        final int y = frameBuffer.computePositionY((int) area.y);
+        final int w = Math.max(frameBuffer.computePositionX((int) Math.ceil(area.x + area.width)) - x, 1);
+        final int h = Math.max(frameBuffer.computePositionY((int) Math.ceil(area.y + area.height)) - y, 1);
+        readPixels(x, y, w, h);
+    } // void refreshPixelBuffer(...)
+
+    /**
+     * Reads the area (in frame buffer pixels) of the ID buffer and of the
+     * depth buffer (when captured)
+     */
+    protected void readPixels(int x, int y, int w, int h) {
+        if (x < 0) {
+            w += x;
+            x = 0;
+        }
+        if (y < 0) {
+            h += y;
+            y = 0;
+        }
+        readX = x;
+        readY = y;
+        readWidth = Math.max(Math.min(w, frameBuffer.getWidth() - x), 0);
+        readHeight = Math.max(Math.min(h, frameBuffer.getHeight() - y), 0);
+
+        frameBuffer.refreshPixelBuffer(readX, readY, readWidth, readHeight);
+        if (depthFrameBuffer != null && depthFrameBuffer.isValid())
+            depthFrameBuffer.refreshPixelBuffer(readX, readY, readWidth, readHeight);
+    } // void readPixels(...)
+
     //-------------------------------------------------------------------------
 
     public void renderToFrameBuffer() {
@@ -194,9 +318,25 @@ public class PickSelectionRenderer implements PickSelection.PixelChecker, Dispos
         } // for each game object
 
         pickShader.end();
+        frameBuffer.unbind();
+
+        if (depthFrameBuffer != null && depthFrameBuffer.isValid()) {
+            // same renderables again - white (more than 1.0) means no depth
+            depthFrameBuffer.bind();
+            Gdx.gl.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
+            Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
+            Gdx.gl.glViewport(0, 0, depthFrameBuffer.width, depthFrameBuffer.height);
+            depthShader.begin(sceneManager.getCamera(), sceneManager.getModelBatch().getRenderContext());
+            for (int i = 0; i < renderableArray.size; i++) {
+                Renderable renderable = renderableArray.get(i);
+                renderable.shader = depthShader;
+                depthShader.render(renderable);
+            }
+            depthShader.end();
+            depthFrameBuffer.unbind();
+        }
         renderablesPool.flush();
         renderableArray.clear();
-        frameBuffer.unbind();
 
         Gdx.gl.glViewport(0, 0,
                 sceneManager.getScreenWidth(),
@@ -0,0 +1,178 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+
+/**
+ * Reusable result of the piercing ray query (see SpatialIndex.queryPiercing())
+ * - all objects passed by the ray with the entry and exit distances and
+ * points, sorted by the entry distance. Kept in parallel primitive arrays,
+ * grows only when more hits than ever before are stored.
+ */
+public class RayHitBuffer {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    protected SpatialObject[] objects;
+    protected int[] objectIDs;
+    protected float[] entryDistances;
+    protected float[] exitDistances;
+    /* Entry and exit points, 3 floats per hit */
+    protected float[] entryPoints;
+    protected float[] exitPoints;
+    protected int size = 0;
+
+    //-------------------------------------------------------------------------
+
+    public RayHitBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RayHitBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        allocate(capacity);
+    }
+
+    protected void allocate(int capacity) {
+        SpatialObject[] newObjects = new SpatialObject[capacity];
+        int[] newIDs = new int[capacity];
+        float[] newEntry = new float[capacity];
+        float[] newExit = new float[capacity];
+        if (objects != null) {
+            System.arraycopy(objects, 0, newObjects, 0, size);
+            System.arraycopy(objectIDs, 0, newIDs, 0, size);
+            System.arraycopy(entryDistances, 0, newEntry, 0, size);
+            System.arraycopy(exitDistances, 0, newExit, 0, size);
+        }
+        objects = newObjects;
+        objectIDs = newIDs;
+        entryDistances = newEntry;
+        exitDistances = newExit;
+        entryPoints = new float[capacity * 3];
+        exitPoints = new float[capacity * 3];
+    } // void allocate(...)
+
+    //-------------------------------------------------------------------------
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return objects.length;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            objects[i] = null;
+        size = 0;
+    }
+
+    public SpatialObject getObject(int index) {
+        checkIndex(index);
+        return objects[index];
+    }
+
+    public int getObjectID(int index) {
+        checkIndex(index);
+        return objectIDs[index];
+    }
+
+    public float getEntryDistance(int index) {
+        checkIndex(index);
+        return entryDistances[index];
+    }
+
+    public float getExitDistance(int index) {
+        checkIndex(index);
+        return exitDistances[index];
+    }
+
+    public Vector3 getEntryPoint(int index, Vector3 out) {
+        checkIndex(index);
+        return out.set(entryPoints[index * 3], entryPoints[index * 3 + 1], entryPoints[index * 3 + 2]);
+    }
+
+    public Vector3 getExitPoint(int index, Vector3 out) {
+        checkIndex(index);
+        return out.set(exitPoints[index * 3], exitPoints[index * 3 + 1], exitPoints[index * 3 + 2]);
+    }
+
+    protected void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
+    }
+
+    //-------------------------------------------------------------------------
+
+    void add(SpatialObject spatialObject, float entry, float exit) {
+        if (size == objects.length)
+            allocate(size * 2);
+        set(size++, spatialObject, entry, exit);
+    }
+
+    void set(int index, SpatialObject spatialObject, float entry, float exit) {
+        objects[index] = spatialObject;
+        objectIDs[index] = spatialObject.getSpatialObjectID();
+        entryDistances[index] = entry;
+        exitDistances[index] = exit;
+    }
+
+    /**
+     * @return index of the hit with the largest entry distance or -1
+     */
+    int findFarthest() {
+        int farthest = -1;
+        float distance = -Float.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (entryDistances[i] > distance) {
+                distance = entryDistances[i];
+                farthest = i;
+            }
+        }
+        return farthest;
+    } // int findFarthest()
+
+    /**
+     * Sorts the hits by the entry distance (no boxing) and computes the
+     * entry and exit points along the ray
+     */
+    void finish(Ray ray) {
+        // insertion sort - hits are collected roughly front to back
+        for (int i = 1; i < size; i++) {
+            final SpatialObject object = objects[i];
+            final int id = objectIDs[i];
+            final float entry = entryDistances[i], exit = exitDistances[i];
+            int j = i - 1;
+            while (j >= 0 && entryDistances[j] > entry) {
+                objects[j + 1] = objects[j];
+                objectIDs[j + 1] = objectIDs[j];
+                entryDistances[j + 1] = entryDistances[j];
+                exitDistances[j + 1] = exitDistances[j];
+                j--;
+            }
+            objects[j + 1] = object;
+            objectIDs[j + 1] = id;
+            entryDistances[j + 1] = entry;
+            exitDistances[j + 1] = exit;
+        } // for each hit
+        final Vector3 origin = ray.origin, direction = ray.direction;
+        for (int i = 0; i < size; i++) {
+            final int o = i * 3;
+            entryPoints[o] = origin.x + direction.x * entryDistances[i];
+            entryPoints[o + 1] = origin.y + direction.y * entryDistances[i];
+            entryPoints[o + 2] = origin.z + direction.z * entryDistances[i];
+            exitPoints[o] = origin.x + direction.x * exitDistances[i];
+            exitPoints[o + 1] = origin.y + direction.y * exitDistances[i];
+            exitPoints[o + 2] = origin.z + direction.z * exitDistances[i];
+        }
+    } // void finish(...)
+
+    //-------------------------------------------------------------------------
+
+} // class RayHitBuffer
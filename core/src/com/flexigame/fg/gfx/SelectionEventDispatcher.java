@@ -0,0 +1,420 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.Pool;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers the selection events off the render thread. Registered with
+ * PickSelection as a regular OnSelectionListener - every event is copied
+ * into the bounded ring buffer and the listeners added here are called in
+ * order on the dispatch thread (one thread, so each listener sees the
+ * events in the order they happened). The ring has one producer (the
+ * frame thread) and one consumer, the slots are handed over with the
+ * sequence numbers (no locks). The PickingInfo passed to the listeners is
+ * a copy owned by the dispatch thread, valid only during the call.
+ */
+public class SelectionEventDispatcher implements PickSelection.OnSelectionListener, Disposable {
+
+    public enum OverflowPolicy {
+        /* Events are merged per object (the latest state wins) until there is
+         * a free slot, flush() needs to be called once per frame */
+        COALESCE,
+        /* Frame thread waits for the free slot */
+        BLOCK,
+        /* The oldest queued event is dropped */
+        DROP_OLDEST
+    } // enum OverflowPolicy
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    /* Maximum sleep of the idle dispatch thread */
+    protected static final long PARK_NANOS = 10000000L;
+
+    protected static final class PendingEvent implements Pool.Poolable {
+        SpatialObject spatialObject = null;
+        PickSelection.Result result = PickSelection.Result.NOT_PICKED;
+        float x, y, z;
+        float timeStamp = 0.0f;
+        boolean selected = false;
+
+        @Override
+        public void reset() {
+            spatialObject = null;
+            result = PickSelection.Result.NOT_PICKED;
+            x = y = z = 0.0f;
+            timeStamp = 0.0f;
+            selected = false;
+        }
+    } // static final class PendingEvent
+
+    //-------------------------------------------------------------------------
+
+    protected final int capacity;
+    protected final int mask;
+    /* Sequence of each slot - equal to the position when free for writing,
+     * position + 1 when the event is ready */
+    protected final AtomicLongArray sequences;
+    protected final SpatialObject[] spatialObjects;
+    protected final PickSelection.Result[] results;
+    /* Intersection points, 3 floats per slot */
+    protected final float[] intersections;
+    protected final float[] timeStamps;
+    protected final boolean[] selectedStates;
+    /* Next position written by the frame thread */
+    protected long head = 0;
+    /* Next position read by the dispatch thread (moved also when dropping) */
+    protected final AtomicLong tail = new AtomicLong(0);
+
+    protected final OverflowPolicy overflowPolicy;
+    protected final CopyOnWriteArrayList<PickSelection.OnSelectionListener> listeners =
+            new CopyOnWriteArrayList<PickSelection.OnSelectionListener>();
+    protected final ExecutorService executor;
+    protected final boolean ownsExecutor;
+    protected volatile Thread dispatchThread = null;
+    protected volatile boolean waiting = false;
+    protected volatile boolean running = true;
+    protected volatile Throwable error = null;
+    /* Copy of the event passed to the listeners (dispatch thread only) */
+    protected final PickSelection.PickingInfo eventInfo = new PickSelection.PickingInfo();
+
+    /* Coalesced events waiting for the free slots (frame thread only) */
+    protected final IntMap<PendingEvent> pendingMap = new IntMap<PendingEvent>();
+    protected final IntArray pendingOrder = new IntArray();
+    private final Pool<PendingEvent> pendingPool = new Pool<PendingEvent>() {
+        @Override
+        protected PendingEvent newObject() {
+            return new PendingEvent();
+        }
+    };
+
+    /* Counters updated by the frame thread */
+    protected int droppedCount = 0;
+    protected int coalescedCount = 0;
+    protected int blockedCount = 0;
+    /* Updated by the dispatch thread */
+    protected volatile long deliveredCount = 0;
+
+    //-------------------------------------------------------------------------
+
+    public SelectionEventDispatcher() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.COALESCE);
+    }
+
+    public SelectionEventDispatcher(int capacity, OverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, null);
+    }
+
+    /**
+     * @param capacity       size of the ring, rounded up to the power of two
+     * @param overflowPolicy what to do when the ring is full
+     * @param executor       executor running the dispatch loop (takes one thread
+     *                       until disposed), null creates own single thread
+     */
+    public SelectionEventDispatcher(int capacity, OverflowPolicy overflowPolicy, ExecutorService executor) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("overflowPolicy cannot be null");
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            this.sequences.set(i, i);
+        this.spatialObjects = new SpatialObject[size];
+        this.results = new PickSelection.Result[size];
+        this.intersections = new float[size * 3];
+        this.timeStamps = new float[size];
+        this.selectedStates = new boolean[size];
+        this.overflowPolicy = overflowPolicy;
+        if (executor == null) {
+            this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SelectionEventDispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.ownsExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownsExecutor = false;
+        }
+        this.executor.execute(dispatchLoop);
+    } // SelectionEventDispatcher(...)
+
+    @Override
+    public void dispose() {
+        running = false;
+        final Thread thread = dispatchThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+        if (ownsExecutor)
+            executor.shutdown();
+    } // void dispose()
+
+    //-------------------------------------------------------------------------
+
+    public boolean addListener(PickSelection.OnSelectionListener listener) {
+        if (listener == null)
+            throw new NullPointerException("listener cannot be null");
+        return listeners.addIfAbsent(listener);
+    }
+
+    public boolean removeListener(PickSelection.OnSelectionListener listener) {
+        if (listener == null)
+            throw new NullPointerException("listener cannot be null");
+        return listeners.remove(listener);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    public int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public int getBlockedCount() {
+        return blockedCount;
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return number of the coalesced events not yet in the ring
+     */
+    public int getPendingCount() {
+        return pendingOrder.size;
+    }
+
+    /**
+     * @return last exception thrown by a listener (the dispatching continues)
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return true when all the events were delivered (frame thread)
+     */
+    public boolean isIdle() {
+        return pendingOrder.size == 0 && tail.get() == head;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Called on the frame thread - copies the event into the ring, never
+     * calls the listener code
+     */
+    @Override
+    public void selectionChanged(SpatialObject spatialObject, PickSelection.PickingInfo pickingInfo, boolean selected) {
+        if (!running)
+            return;
+        final PickSelection.Result result = pickingInfo != null ? pickingInfo.result : PickSelection.Result.NOT_PICKED;
+        final float x = pickingInfo != null ? pickingInfo.intersection.x : 0.0f;
+        final float y = pickingInfo != null ? pickingInfo.intersection.y : 0.0f;
+        final float z = pickingInfo != null ? pickingInfo.intersection.z : 0.0f;
+        final float timeStamp = pickingInfo != null ? pickingInfo.timeStamp : 0.0f;
+        if (pendingOrder.size > 0 && !flushPending()) {
+            // keep the order - everything goes after the pending events
+            coalesce(spatialObject, result, x, y, z, timeStamp, selected);
+            return;
+        }
+        if (!offer(spatialObject, result, x, y, z, timeStamp, selected)) {
+            switch (overflowPolicy) {
+                case COALESCE:
+                    coalesce(spatialObject, result, x, y, z, timeStamp, selected);
+                    break;
+                case BLOCK:
+                    blockedCount++;
+                    while (running && !offer(spatialObject, result, x, y, z, timeStamp, selected)) {
+                        wakeUp();
+                        LockSupport.parkNanos(this, 100000L);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!offer(spatialObject, result, x, y, z, timeStamp, selected)) {
+                        if (!dropOldest())
+                            Thread.yield(); // the dispatch thread is copying the slot
+                    }
+                    break;
+            }
+        }
+        wakeUp();
+    } // void selectionChanged(...)
+
+    /**
+     * Moves the coalesced events into the ring (frame thread), should be
+     * called once per frame with the COALESCE policy
+     *
+     * @return true if nothing is pending
+     */
+    public boolean flush() {
+        final boolean status = flushPending();
+        wakeUp();
+        return status;
+    }
+
+    protected boolean flushPending() {
+        int moved = 0;
+        while (moved < pendingOrder.size) {
+            final int objectID = pendingOrder.get(moved);
+            final PendingEvent event = pendingMap.get(objectID);
+            if (!offer(event.spatialObject, event.result, event.x, event.y, event.z, event.timeStamp, event.selected))
+                break;
+            pendingMap.remove(objectID);
+            pendingPool.free(event);
+            moved++;
+        } // for each pending event
+        if (moved > 0)
+            pendingOrder.removeRange(0, moved - 1);
+        return pendingOrder.size == 0;
+    } // boolean flushPending()
+
+    protected void coalesce(SpatialObject spatialObject, PickSelection.Result result,
+                            float x, float y, float z, float timeStamp, boolean selected) {
+        final int objectID = spatialObject.getSpatialObjectID();
+        PendingEvent event = pendingMap.get(objectID);
+        if (event == null) {
+            event = pendingPool.obtain();
+            pendingMap.put(objectID, event);
+            pendingOrder.add(objectID);
+        } else {
+            coalescedCount++;
+        }
+        event.spatialObject = spatialObject;
+        event.result = result;
+        event.x = x;
+        event.y = y;
+        event.z = z;
+        event.timeStamp = timeStamp;
+        event.selected = selected;
+    } // void coalesce(...)
+
+    protected boolean offer(SpatialObject spatialObject, PickSelection.Result result,
+                            float x, float y, float z, float timeStamp, boolean selected) {
+        final long position = head;
+        final int index = (int) (position & mask);
+        if (sequences.get(index) != position)
+            return false; // full
+        spatialObjects[index] = spatialObject;
+        results[index] = result;
+        intersections[index * 3] = x;
+        intersections[index * 3 + 1] = y;
+        intersections[index * 3 + 2] = z;
+        timeStamps[index] = timeStamp;
+        selectedStates[index] = selected;
+        sequences.set(index, position + 1); // publish
+        head = position + 1;
+        return true;
+    } // boolean offer(...)
+
+    /**
+     * Frees the oldest slot (frame thread)
+     *
+     * @return false when the dispatch thread took it first
+     */
+    protected boolean dropOldest() {
+        final long position = tail.get();
+        final int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1 || !tail.compareAndSet(position, position + 1))
+            return false;
+        spatialObjects[index] = null;
+        sequences.set(index, position + capacity);
+        droppedCount++;
+        return true;
+    } // boolean dropOldest()
+
+    protected void wakeUp() {
+        if (!waiting)
+            return;
+        final Thread thread = dispatchThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    //-------------------------------------------------------------------------
+
+    protected final Runnable dispatchLoop = new Runnable() {
+        @Override
+        public void run() {
+            dispatchThread = Thread.currentThread();
+            while (running) {
+                if (dispatchNext())
+                    continue;
+                waiting = true;
+                if (isEmpty() && running)
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                waiting = false;
+            }
+            dispatchThread = null;
+        }
+    };
+
+    protected boolean isEmpty() {
+        final long position = tail.get();
+        return sequences.get((int) (position & mask)) != position + 1;
+    }
+
+    /**
+     * Delivers the oldest event (dispatch thread)
+     *
+     * @return false when the ring is empty
+     */
+    protected boolean dispatchNext() {
+        final long position = tail.get();
+        final int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1)
+            return false;
+        if (!tail.compareAndSet(position, position + 1))
+            return true; // dropped by the frame thread - try the next one
+        final SpatialObject spatialObject = spatialObjects[index];
+        final boolean selected = selectedStates[index];
+        eventInfo.reset();
+        eventInfo.spatialObject = spatialObject;
+        eventInfo.result = results[index];
+        eventInfo.intersection.set(intersections[index * 3],
+                intersections[index * 3 + 1],
+                intersections[index * 3 + 2]);
+        eventInfo.timeStamp = timeStamps[index];
+        eventInfo.selected = selected;
+        spatialObjects[index] = null;
+        sequences.set(index, position + capacity); // free for writing
+        for (PickSelection.OnSelectionListener listener : listeners) {
+            try {
+                listener.selectionChanged(spatialObject, eventInfo, selected);
+            } catch (RuntimeException exception) {
+                error = exception;
+            }
+        } // for each listener
+        deliveredCount++;
+        return true;
+    } // boolean dispatchNext()
+
+    //-------------------------------------------------------------------------
+
+} // class SelectionEventDispatcher
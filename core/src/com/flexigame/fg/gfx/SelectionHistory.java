@@ -0,0 +1,182 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.flexigame.fg.utils.IdBitmap;
+
+/**
+ * Undo/redo history of the selection. Every state is stored as a compressed
+ * bitmap of the spatial object IDs (IdBitmap) - few kilobytes even for the
+ * selections with 100k objects. Restoring the state touches only the objects
+ * which differ from the current selection.
+ */
+public class SelectionHistory {
+
+    public static final int DEFAULT_MAX_DEPTH = 128;
+
+    /* Stored states - the oldest first */
+    protected final Array<IdBitmap> states = new Array<IdBitmap>();
+    /* Index of the state matching the current selection (-1 when empty) */
+    protected int current = -1;
+    protected int maxDepth;
+    /* Helper bitmaps for the comparisons */
+    protected final IdBitmap tmpBitmap = new IdBitmap();
+    protected final IdBitmap tmpDiff = new IdBitmap();
+
+    //-------------------------------------------------------------------------
+
+    public SelectionHistory() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    public SelectionHistory(int maxDepth) {
+        if (maxDepth <= 0)
+            throw new IllegalArgumentException("maxDepth must be greater than 0");
+        this.maxDepth = maxDepth;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth <= 0)
+            throw new IllegalArgumentException("maxDepth must be greater than 0");
+        this.maxDepth = maxDepth;
+        trimToDepth();
+    }
+
+    public int size() {
+        return states.size;
+    }
+
+    public int getCurrentIndex() {
+        return current;
+    }
+
+    public IdBitmap getState(int index) {
+        return states.get(index);
+    }
+
+    public boolean canUndo() {
+        return current > 0;
+    }
+
+    public boolean canRedo() {
+        return current >= 0 && current < states.size - 1;
+    }
+
+    public void clear() {
+        states.clear();
+        current = -1;
+    }
+
+    /**
+     * @return approximate memory used by all stored states
+     */
+    public int getSizeInBytes() {
+        int bytes = 0;
+        for (int i = 0; i < states.size; i++)
+            bytes += states.get(i).getSizeInBytes();
+        return bytes;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Stores the current selection as the new state. The redo states are
+     * dropped. Nothing is stored when the selection equals the current state.
+     *
+     * @return true if the state was stored
+     */
+    public boolean push(PickSelection pickSelection) {
+        if (pickSelection == null)
+            throw new IllegalArgumentException("pickSelection cannot be null");
+        pickSelection.getSelectionBitmap(tmpBitmap);
+        return push(tmpBitmap);
+    }
+
+    public boolean push(IdBitmap selection) {
+        if (selection == null)
+            throw new IllegalArgumentException("selection cannot be null");
+        if (current >= 0 && states.get(current).equals(selection))
+            return false;
+        if (current < states.size - 1)
+            states.truncate(current + 1);
+        states.add(new IdBitmap(selection).trim());
+        current = states.size - 1;
+        trimToDepth();
+        return true;
+    } // boolean push(...)
+
+    protected void trimToDepth() {
+        if (states.size <= maxDepth)
+            return;
+        final int excess = states.size - maxDepth;
+        states.removeRange(0, excess - 1);
+        current = Math.max(current - excess, 0);
+    }
+
+    /**
+     * Restores the previous state
+     *
+     * @return false if there is nothing to undo
+     */
+    public boolean undo(PickSelection pickSelection, boolean shouldCallListeners) {
+        if (pickSelection == null)
+            throw new IllegalArgumentException("pickSelection cannot be null");
+        if (!canUndo())
+            return false;
+        current--;
+        pickSelection.applySelection(states.get(current), shouldCallListeners);
+        return true;
+    }
+
+    /**
+     * Restores the next state (after undo)
+     *
+     * @return false if there is nothing to redo
+     */
+    public boolean redo(PickSelection pickSelection, boolean shouldCallListeners) {
+        if (pickSelection == null)
+            throw new IllegalArgumentException("pickSelection cannot be null");
+        if (!canRedo())
+            return false;
+        current++;
+        pickSelection.applySelection(states.get(current), shouldCallListeners);
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Appends the IDs selected in the 'to' state but not in the 'from' state
+     * to added and the opposite ones to removed (both can be null)
+     *
+     * @return number of the differing IDs
+     */
+    public int diff(int from, int to, IntArray added, IntArray removed) {
+        return diff(states.get(from), states.get(to), added, removed);
+    }
+
+    public int diff(IdBitmap from, IdBitmap to, IntArray added, IntArray removed) {
+        if (from == null || to == null)
+            throw new IllegalArgumentException("states cannot be null");
+        int count = 0;
+        tmpDiff.set(to).andNot(from);
+        count += tmpDiff.cardinality();
+        if (added != null)
+            tmpDiff.toArray(added);
+        tmpDiff.set(from).andNot(to);
+        count += tmpDiff.cardinality();
+        if (removed != null)
+            tmpDiff.toArray(removed);
+        tmpDiff.clear();
+        return count;
+    } // int diff(...)
+
+    //-------------------------------------------------------------------------
+
+} // class SelectionHistory
@@ -0,0 +1,119 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Vector3;
+
+import java.util.Arrays;
+
+/**
+ * Immutable view of the selection published by PickSelection after the
+ * traversal. Can be read from any thread without locking - the arrays are
+ * never changed after the construction and the accessors return copies.
+ */
+public final class SelectionSnapshot {
+
+    public static final SelectionSnapshot EMPTY = new SelectionSnapshot(0,
+            new int[0], new PickSelection.Result[0], new float[0], 0, 0.0f);
+
+    /* Incremented with every published snapshot */
+    private final long version;
+    private final int[] objectIDs;
+    private final PickSelection.Result[] results;
+    /* Intersection points, 3 floats per object */
+    private final float[] intersections;
+    private final int size;
+    /* Time of the traversal in seconds (PickSelection time) */
+    private final float timeStamp;
+    /* Object IDs sorted for the binary search and their indices */
+    private final int[] sortedIDs;
+    private final int[] sortedIndices;
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Arrays are not copied - the caller passes new ones and never changes them
+     */
+    SelectionSnapshot(long version, int[] objectIDs, PickSelection.Result[] results,
+                      float[] intersections, int size, float timeStamp) {
+        this.version = version;
+        this.objectIDs = objectIDs;
+        this.results = results;
+        this.intersections = intersections;
+        this.size = size;
+        this.timeStamp = timeStamp;
+        // ID in the high bits, index in the low ones - sorted by the ID
+        final long[] keys = new long[size];
+        for (int i = 0; i < size; i++)
+            keys[i] = ((long) objectIDs[i] << 32) | i;
+        Arrays.sort(keys);
+        this.sortedIDs = new int[size];
+        this.sortedIndices = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedIDs[i] = (int) (keys[i] >> 32);
+            sortedIndices[i] = (int) keys[i];
+        }
+    } // SelectionSnapshot(...)
+
+    //-------------------------------------------------------------------------
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public float getTimeStamp() {
+        return timeStamp;
+    }
+
+    public int getObjectID(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
+        return objectIDs[index];
+    }
+
+    public PickSelection.Result getResult(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
+        return results[index];
+    }
+
+    public Vector3 getIntersection(int index, Vector3 intersection) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
+        if (intersection == null)
+            throw new IllegalArgumentException("intersection cannot be null");
+        return intersection.set(intersections[index * 3],
+                intersections[index * 3 + 1],
+                intersections[index * 3 + 2]);
+    }
+
+    /**
+     * @return index of the object in the selection or -1
+     */
+    public int indexOf(int objectID) {
+        final int found = Arrays.binarySearch(sortedIDs, 0, size, objectID);
+        return found < 0 ? -1 : sortedIndices[found];
+    }
+
+    public boolean contains(int objectID) {
+        return Arrays.binarySearch(sortedIDs, 0, size, objectID) >= 0;
+    }
+
+    /**
+     * @return copy of the selected object IDs
+     */
+    public int[] toArray() {
+        int[] array = new int[size];
+        System.arraycopy(objectIDs, 0, array, 0, size);
+        return array;
+    }
+
+    //-------------------------------------------------------------------------
+
+} // final class SelectionSnapshot
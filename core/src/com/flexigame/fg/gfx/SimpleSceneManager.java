@@ -11,9 +11,11 @@ import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
 import com.badlogic.gdx.graphics.glutils.ShapeRenderer;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
 import com.flexigame.fg.utils.AbstractFlags;
+import com.flexigame.fg.utils.ParallelTaskRunner;
 
 /**
  *
@@ -30,6 +32,17 @@ public class SimpleSceneManager implements Disposable {
     private int screenHeight;
     private String rootName;
     private Vector3 tmpVec;
+    private FrustumCuller frustumCuller;
+    private OcclusionCuller occlusionCuller;
+    /* Minimal number of objects processed by a single worker */
+    public static final int PARALLEL_MIN_CHUNK_SIZE = 1024;
+    private ParallelTaskRunner taskRunner = null;
+    private FrustumCuller[] workerCullers = null;
+    private Array<Array<GameObject>> workerVisibleObjects = null;
+    /* Whether or not update & cull phases were already executed for the next render */
+    private boolean framePrepared = false;
+    /* Optional data oriented storage for transformations and bounds */
+    private TransformStore transformStore = null;
 
     public static final class StateFlags extends AbstractFlags {
         static final int NO_FLAGS = 0;
@@ -46,6 +59,9 @@ public class SimpleSceneManager implements Disposable {
         static final int SKYBOX_FOLLOWS_CAMERA = 512;
         static final int SHOW_BOUNDING_SPHERES = 1024;
         static final int SHOW_BOUNDING_BOXES = 2048;
+        static final int PARALLEL_TRAVERSE = 4096;
+        static final int TRANSFORM_STORE = 8192;
+        static final int TIGHT_BOUNDS = 16384;
 
         public static final int[] values = {NO_FLAGS,
                 LINEAR_TRAVERSE,
@@ -60,7 +76,10 @@ public class SimpleSceneManager implements Disposable {
                 SHOW_GROUND_GRID,
                 SKYBOX_FOLLOWS_CAMERA,
                 SHOW_BOUNDING_SPHERES,
-                SHOW_BOUNDING_BOXES};
+                SHOW_BOUNDING_BOXES,
+                PARALLEL_TRAVERSE,
+                TRANSFORM_STORE,
+                TIGHT_BOUNDS};
 
         public StateFlags() {
             super();
@@ -85,8 +104,14 @@ public class SimpleSceneManager implements Disposable {
     /** **/
     private Array<GameObject> gameObjects;
     private Array<SpatialObject> spatialObjects;
+    /* Objects without parent - hierarchy traversal starts from them */
+    private Array<GameObject> rootObjects;
     /** **/
     private Array<GameObject> visibleObjects;
+    /* Incremented when any object was added, removed, relinked or moved */
+    private int sceneVersion = 0;
+    /* Set by the update tasks when any subtree bounds were changed */
+    private volatile boolean boundsChanged = false;
 
     /**
      *
@@ -120,15 +145,25 @@ public class SimpleSceneManager implements Disposable {
         this.gameObjects.ensureCapacity(16);
         this.spatialObjects = new Array<SpatialObject>();
         this.spatialObjects.ensureCapacity(16);
+        this.rootObjects = new Array<GameObject>();
+        this.rootObjects.ensureCapacity(16);
         this.visibleObjects = new Array<GameObject>();
         this.visibleObjects.ensureCapacity(16);
 
         this.tmpVec = new Vector3();
+        this.frustumCuller = new FrustumCuller(this.camera.frustum);
+        this.occlusionCuller = new OcclusionCuller();
     }
 
     public void deleteAll() {
+        if (this.transformStore != null) {
+            for (int i = 0; i < gameObjects.size; i++)
+                gameObjects.get(i).setTransformStore(null);
+            this.transformStore.clear();
+        }
         this.gameObjects.clear();
         this.spatialObjects.clear();
+        this.rootObjects.clear();
     }
 
     @Override
@@ -136,6 +171,10 @@ public class SimpleSceneManager implements Disposable {
         this.deleteAll();
         this.shapeRenderer.dispose();
         this.modelBatch.dispose();
+        if (this.taskRunner != null) {
+            this.taskRunner.dispose();
+            this.taskRunner = null;
+        }
         // dispose manually
         // Model
         // ModelBatch
@@ -205,6 +244,18 @@ public class SimpleSceneManager implements Disposable {
         return stateFlags.isToggled(StateFlags.SHOW_BOUNDING_BOXES);
     }
 
+    public boolean isParallelTraverse() {
+        return stateFlags.isToggled(StateFlags.PARALLEL_TRAVERSE);
+    }
+
+    public boolean isUseTransformStore() {
+        return stateFlags.isToggled(StateFlags.TRANSFORM_STORE);
+    }
+
+    public boolean isUseTightBounds() {
+        return stateFlags.isToggled(StateFlags.TIGHT_BOUNDS);
+    }
+
     //-------------------------------------------------------------------------
 
     public void disableDirectionalLighting() {
@@ -275,6 +326,44 @@ public class SimpleSceneManager implements Disposable {
         stateFlags.set(StateFlags.SKYBOX_FOLLOWS_CAMERA, toggle);
     }
 
+    /**
+     * Switches bounding volume updates to the data oriented TransformStore -
+     * transformations of changed objects are copied into contiguous arrays
+     * and world bounds are recomputed in one linear sweep. GameObject bounds
+     * accessors read from the store.
+     */
+    public void setUseTransformStore(boolean toggle) {
+        if (toggle == isUseTransformStore())
+            return;
+        stateFlags.set(StateFlags.TRANSFORM_STORE, toggle);
+        if (toggle) {
+            if (transformStore == null)
+                transformStore = new TransformStore(Math.max(gameObjects.size, 16));
+            transformStore.clear();
+            for (int i = 0; i < gameObjects.size; i++) {
+                GameObject gameObject = gameObjects.get(i);
+                transformStore.add(gameObject.getOriginalBoundingBox(), gameObject.getTransform());
+                gameObject.setTransformStore(transformStore);
+            }
+            transformStore.updateBounds();
+        } else if (transformStore != null) {
+            for (int i = 0; i < gameObjects.size; i++)
+                gameObjects.get(i).setTransformStore(null);
+            transformStore.clear();
+        }
+    } // void setUseTransformStore(...)
+
+    /**
+     * Switches all managed (and later added) objects to the bounding sphere
+     * and oriented box fitted to the vertex data - used by frustum checks and
+     * picking. Volumes are computed once per model.
+     */
+    public void setUseTightBounds(boolean toggle) {
+        stateFlags.set(StateFlags.TIGHT_BOUNDS, toggle);
+        for (int i = 0; i < gameObjects.size; i++)
+            gameObjects.get(i).setUseTightBounds(toggle);
+    }
+
     public void setShowBoundingSpheres(boolean toggle) {
         stateFlags.set(StateFlags.SHOW_BOUNDING_SPHERES, toggle);
     }
@@ -282,6 +371,25 @@ public class SimpleSceneManager implements Disposable {
     public void setShowBoundingBoxes(boolean toggle) {
         stateFlags.set(StateFlags.SHOW_BOUNDING_BOXES, toggle);
     }
+
+    /**
+     * Bounding box updates and frustum culling will be executed in parallel
+     * over chunks of objects (rendering always stays on the calling thread).
+     * Worker threads are created on first use.
+     */
+    public void setParallelTraverse(boolean toggle) {
+        stateFlags.set(StateFlags.PARALLEL_TRAVERSE, toggle);
+        if (toggle && taskRunner == null) {
+            taskRunner = new ParallelTaskRunner();
+            final int numWorkers = taskRunner.getNumWorkers();
+            workerCullers = new FrustumCuller[numWorkers];
+            workerVisibleObjects = new Array<Array<GameObject>>(numWorkers);
+            for (int i = 0; i < numWorkers; i++) {
+                workerCullers[i] = new FrustumCuller();
+                workerVisibleObjects.add(new Array<GameObject>());
+            }
+        }
+    }
     //-------------------------------------------------------------------------
 
     public Environment getEnvironment() {
@@ -328,6 +436,36 @@ public class SimpleSceneManager implements Disposable {
         return spatialObjects;
     }
 
+    public Array<GameObject> getRootObjects() {
+        return rootObjects;
+    }
+
+    public TransformStore getTransformStore() {
+        return transformStore;
+    }
+
+    public FrustumCuller getFrustumCuller() {
+        return frustumCuller;
+    }
+
+    /**
+     * @return number of single frustum plane tests performed in the last frame
+     */
+    public int getPlaneTestCount() {
+        return frustumCuller.getPlaneTestCount();
+    }
+
+    public OcclusionCuller getOcclusionCuller() {
+        return occlusionCuller;
+    }
+
+    /**
+     * @return number of objects hidden by the occlusion check in the last frame
+     */
+    public int getOcclusionCulledCount() {
+        return occlusionCuller.getCulledCount();
+    }
+
     public int count() {
         return gameObjects.size;
     }
@@ -388,6 +526,21 @@ public class SimpleSceneManager implements Disposable {
         gameObject.setID(index);
         gameObject.setActive(true); // active as default
         gameObject.setVisible(true); // visible as default
+        if (isUseTightBounds())
+            gameObject.setUseTightBounds(true);
+        if (isUseTransformStore()) {
+            int slot = transformStore.add(gameObject.getOriginalBoundingBox(), gameObject.getTransform());
+            transformStore.updateBounds(slot, slot + 1);
+            gameObject.setTransformStore(transformStore);
+        }
+        if (!gameObject.hasParent()) {
+            final int parentID = gameObject.getParentID();
+            if (parentID >= 0 && parentID < index)
+                gameObject.setParent(gameObjects.get(parentID));
+        }
+        if (!gameObject.hasParent())
+            rootObjects.add(gameObject);
+        sceneVersion++;
         return true;
     }
 
@@ -421,6 +574,24 @@ public class SimpleSceneManager implements Disposable {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * @return version of the scene - changes whenever any object was added,
+     * removed, relinked or moved (checked in the update phase)
+     */
+    public int getSceneVersion() {
+        return sceneVersion;
+    }
+
+    /**
+     * Forces the new scene version - e.g. after changing the visibility or
+     * the geometry of the objects manually
+     */
+    public void invalidateScene() {
+        sceneVersion++;
+    }
+
+    //-------------------------------------------------------------------------
+
     public int indexOf(GameObject gameObject) {
         if (gameObject == null)
             return -1;
@@ -433,6 +604,25 @@ public class SimpleSceneManager implements Disposable {
         return this.gameObjects.contains(gameObject, true);
     }
 
+    /**
+     * Links the child object to the parent (or makes it a root object when
+     * parent is null). Transformation of the child becomes relative to the
+     * parent, moving the parent moves the whole subtree.
+     */
+    public void setParent(GameObject child, GameObject parent) {
+        if (child == null)
+            throw new NullPointerException("child cannot be null");
+        if (!contains(child) || (parent != null && !contains(parent)))
+            throw new IllegalArgumentException("both objects need to be managed by the scene manager");
+        final boolean wasRoot = !child.hasParent();
+        child.setParent(parent);
+        if (wasRoot && parent != null)
+            rootObjects.removeValue(child, true);
+        else if (!wasRoot && parent == null)
+            rootObjects.add(child);
+        sceneVersion++;
+    } // void setParent(...)
+
     //-------------------------------------------------------------------------
 
     public GameObject get(int index) {
@@ -476,6 +666,20 @@ public class SimpleSceneManager implements Disposable {
         if (index >= gameObjects.size || index < 0)
             return null;
         GameObject gameObject = gameObjects.get(index);
+        if (isUseTransformStore()) {
+            gameObject.setTransformStore(null);
+            transformStore.remove(index);
+        }
+        // children of the removed object become root objects
+        while (gameObject.getChildCount() > 0) {
+            GameObject child = gameObject.getChild(0);
+            child.setParent(null);
+            rootObjects.add(child);
+        }
+        if (gameObject.hasParent())
+            gameObject.setParent(null);
+        else
+            rootObjects.removeValue(gameObject, true);
         gameObject.setID(-1); // no longer managed!
         gameObjects.removeIndex(index);
         spatialObjects.removeIndex(index);
@@ -484,6 +688,7 @@ public class SimpleSceneManager implements Disposable {
                 gameObjects.get(i).setID(i); // reset remaining IDs!
             }
         } // for each next game object!
+        sceneVersion++;
         return gameObject;
     }
 
@@ -498,15 +703,23 @@ public class SimpleSceneManager implements Disposable {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Executes update and cull phases - bounding boxes are refreshed and the
+     * array with visible objects is rebuilt. Does not render anything, next
+     * call to render() will use the results.
+     */
     public void update() {
         linearTraverse();
+        framePrepared = true;
     }
 
     public void render() {
+        if (this.isLinearTraverse() && !framePrepared)
+            linearTraverse();
+        framePrepared = false;
         //Gdx.gl.glCullFace(GL20.GL_FRONT);
         this.modelBatch.begin(this.camera);
-        if (this.isLinearTraverse())
-            linearTraverse();
+        renderPhase();
         this.modelBatch.end();
         //Gdx.gl.glCullFace(GL20.GL_BACK);
         if (!isShowBoundingBoxes() && !isShowBoundingSpheres())
@@ -519,32 +732,35 @@ public class SimpleSceneManager implements Disposable {
         Vector3 center;
         for (int i = 0; i < visibleObjects.size; i++) {
             GameObject gameObject = visibleObjects.get(i);
-            center = gameObject.center;
+            center = gameObject.getCenter();
             if (isShowBoundingBoxes()) {
+                Vector3 extent = gameObject.getExtent();
+                Vector3 dimensions = gameObject.getDimensions();
                 shapeRenderer.setColor(Color.FIREBRICK);
                 shapeRenderer.box(
-                        center.x - gameObject.extent.x,
-                        center.y - gameObject.extent.y,
-                        center.z + gameObject.extent.z,
-                        gameObject.dimensions.x,
-                        gameObject.dimensions.y,
-                        gameObject.dimensions.z
+                        center.x - extent.x,
+                        center.y - extent.y,
+                        center.z + extent.z,
+                        dimensions.x,
+                        dimensions.y,
+                        dimensions.z
                 );
             }
             if (isShowBoundingSpheres()) {
+                final float radius = gameObject.getRadius();
                 shapeRenderer.setColor(Color.SCARLET);
                 shapeRenderer.translate(center.x, center.y, center.z);
-                int segments = Math.max(6, (int) (10 * (float) Math.cbrt(gameObject.radius)));
-                shapeRenderer.circle(0.0f, 0.0f, gameObject.radius, segments);
+                int segments = Math.max(6, (int) (10 * (float) Math.cbrt(radius)));
+                shapeRenderer.circle(0.0f, 0.0f, radius, segments);
                 shapeRenderer.rotate(0.0f, 1.0f, 0.0f, 45.0f);
-                shapeRenderer.circle(0.0f, 0.0f, gameObject.radius, segments);
+                shapeRenderer.circle(0.0f, 0.0f, radius, segments);
                 shapeRenderer.rotate(0.0f, 1.0f, 0.0f, 45.0f);
-                shapeRenderer.circle(0.0f, 0.0f, gameObject.radius, segments);
+                shapeRenderer.circle(0.0f, 0.0f, radius, segments);
                 shapeRenderer.rotate(0.0f, 1.0f, 0.0f, 45.0f);
-                shapeRenderer.circle(0.0f, 0.0f, gameObject.radius, segments);
+                shapeRenderer.circle(0.0f, 0.0f, radius, segments);
                 shapeRenderer.rotate(0.0f, 1.0f, 0.0f, -135.0f);
                 shapeRenderer.rotate(1.0f, 0.0f, 0.0f, 90.0f);
-                shapeRenderer.circle(0.0f, 0.0f, gameObject.radius, segments);
+                shapeRenderer.circle(0.0f, 0.0f, radius, segments);
                 shapeRenderer.rotate(1.0f, 0.0f, 0.0f, -90.0f);
                 shapeRenderer.translate(-center.x, -center.y, -center.z);
             }
@@ -555,30 +771,251 @@ public class SimpleSceneManager implements Disposable {
     public boolean checkVisibilitySphere(GameObject gameObject) {
         if (gameObject == null)
             throw new NullPointerException("gameObject cannot be null");
-        return this.camera.frustum.sphereInFrustum(gameObject.center, gameObject.radius);
+        return cullSphere(gameObject, FrustumCuller.ALL_PLANES) != FrustumCuller.OUTSIDE;
     } // boolean checkVisibilitySphere(...)
 
     public boolean checkVisibilityBox(GameObject gameObject) {
-        return this.camera.frustum.boundsInFrustum(gameObject.center, gameObject.dimensions);
+        return cullBox(gameObject, FrustumCuller.ALL_PLANES) != FrustumCuller.OUTSIDE;
     } // boolean checkVisibilityBox(...)
 
-    protected void linearTraverse() {
-        final int numObjects = gameObjects.size;
+    /**
+     * Tests the bounding box of the game object only against the planes
+     * marked in the plane mask. The plane which rejected the object is
+     * remembered and tested first next time.
+     *
+     * @return plane mask to pass down to the child objects or
+     * FrustumCuller.OUTSIDE
+     */
+    public int cullBox(GameObject gameObject, int planeMask) {
+        return cull(gameObject, frustumCuller, planeMask, true);
+    }
+
+    public int cullSphere(GameObject gameObject, int planeMask) {
+        return cull(gameObject, frustumCuller, planeMask, false);
+    }
+
+    /**
+     * Rasterizes visible occluders and removes the objects hidden behind them
+     * from the visible objects array.
+     */
+    protected void occlusionCheck() {
+        occlusionCuller.begin(camera.combined);
+        final int numVisible = visibleObjects.size;
+        for (int i = 0; i < numVisible; i++) {
+            GameObject gameObject = visibleObjects.get(i);
+            if (gameObject.isOccluder())
+                occlusionCuller.addOccluder(gameObject.getOriginalBoundingBox(),
+                        gameObject.getTransform());
+        } // for each visible occluder
+        if (occlusionCuller.getOccluderCount() == 0)
+            return;
+        int count = 0;
+        for (int i = 0; i < numVisible; i++) {
+            GameObject gameObject = visibleObjects.get(i);
+            if (!gameObject.isOccluder() &&
+                    occlusionCuller.isOccluded(gameObject.getCenter(), gameObject.getExtent())) {
+                // visibility flag is recomputed every frame only with frustum check
+                if (isFrustumCheck())
+                    gameObject.setVisible(false);
+                continue;
+            }
+            visibleObjects.set(count++, gameObject);
+        } // for each visible object
+        visibleObjects.truncate(count);
+    } // void occlusionCheck()
+
+    /**
+     * Tests the box (oriented with the tight bounds) or the sphere of the
+     * game object with the culler - the world bounds are read directly from
+     * the contiguous arrays when the object uses the transform store
+     *
+     * @return plane mask to pass down to the child objects or
+     * FrustumCuller.OUTSIDE
+     */
+    protected int cull(GameObject gameObject, FrustumCuller culler, int planeMask, boolean box) {
+        int result;
+        final TransformStore store = gameObject.getTransformStore();
+        if (gameObject.isUseTightBounds()) {
+            if (box)
+                result = culler.testOrientedBox(gameObject.orientedBox,
+                        planeMask, gameObject.getCullingPlaneHint());
+            else
+                result = culler.testSphere(gameObject.sphereCenter, gameObject.sphereRadius,
+                        planeMask, gameObject.getCullingPlaneHint());
+        } else if (store != null) {
+            final int slot = gameObject.getID();
+            final float[] wc = store.getWorldCenters();
+            final int i = slot * 3;
+            if (box) {
+                final float[] we = store.getWorldExtents();
+                result = culler.testBox(wc[i], wc[i + 1], wc[i + 2],
+                        we[i], we[i + 1], we[i + 2],
+                        planeMask, gameObject.getCullingPlaneHint());
+            } else {
+                result = culler.testSphere(wc[i], wc[i + 1], wc[i + 2],
+                        store.getRadii()[slot],
+                        planeMask, gameObject.getCullingPlaneHint());
+            }
+        } else if (box) {
+            result = culler.testBox(gameObject.center, gameObject.extent,
+                    planeMask, gameObject.getCullingPlaneHint());
+        } else {
+            result = culler.testSphere(gameObject.center, gameObject.radius,
+                    planeMask, gameObject.getCullingPlaneHint());
+        }
+        if (result == FrustumCuller.OUTSIDE)
+            gameObject.setCullingPlaneHint(culler.getRejectedPlane());
+        return result;
+    } // int cull(...)
+
+    protected final ParallelTaskRunner.RangeTask updateTask = new ParallelTaskRunner.RangeTask() {
+        @Override
+        public void run(int workerIndex, int from, int to) {
+            boolean changed = false;
+            for (int i = from; i < to; i++)
+                changed |= rootObjects.get(i).updateHierarchy();
+            if (changed)
+                boundsChanged = true;
+        }
+    };
+
+    protected final ParallelTaskRunner.RangeTask boundsTask = new ParallelTaskRunner.RangeTask() {
+        @Override
+        public void run(int workerIndex, int from, int to) {
+            transformStore.updateBounds(from, to);
+        }
+    };
+
+    protected final ParallelTaskRunner.RangeTask subtreeTask = new ParallelTaskRunner.RangeTask() {
+        @Override
+        public void run(int workerIndex, int from, int to) {
+            for (int i = from; i < to; i++)
+                rootObjects.get(i).updateSubtreeBounds();
+        }
+    };
+
+    protected final ParallelTaskRunner.RangeTask cullTask = new ParallelTaskRunner.RangeTask() {
+        @Override
+        public void run(int workerIndex, int from, int to) {
+            final FrustumCuller culler = workerCullers[workerIndex];
+            final Array<GameObject> visible = workerVisibleObjects.get(workerIndex);
+            culler.setFrustum(camera.frustum);
+            culler.resetCounters();
+            visible.clear();
+            cullRange(culler, visible, from, to);
+        }
+    };
+
+    protected void cullRange(FrustumCuller culler, Array<GameObject> visible, int from, int to) {
+        final boolean frustumCheck = isFrustumCheck();
+        for (int i = from; i < to; i++)
+            cullHierarchy(rootObjects.get(i), culler, visible, FrustumCuller.ALL_PLANES, frustumCheck);
+    } // void cullRange(...)
+
+    /**
+     * Culls the object and its descendants. Bounds of the whole subtree are
+     * tested first - when outside, the subtree is hidden without testing any
+     * of the children. Otherwise the remaining plane mask is passed down.
+     */
+    protected void cullHierarchy(GameObject gameObject, FrustumCuller culler,
+                                 Array<GameObject> visible, int planeMask, boolean frustumCheck) {
+        final int numChildren = gameObject.getChildCount();
+        if (frustumCheck && numChildren > 0 && planeMask != FrustumCuller.INSIDE) {
+            final BoundingBox box = gameObject.getSubtreeBoundingBox();
+            final Vector3 min = box.min, max = box.max;
+            planeMask = culler.testBox((min.x + max.x) * 0.5f,
+                    (min.y + max.y) * 0.5f,
+                    (min.z + max.z) * 0.5f,
+                    (max.x - min.x) * 0.5f,
+                    (max.y - min.y) * 0.5f,
+                    (max.z - min.z) * 0.5f,
+                    planeMask, gameObject.getCullingPlaneHint());
+            if (planeMask == FrustumCuller.OUTSIDE) {
+                gameObject.setCullingPlaneHint(culler.getRejectedPlane());
+                hideHierarchy(gameObject);
+                return;
+            }
+        }
+        if (frustumCheck) {
+            gameObject.setVisible(cull(gameObject, culler, planeMask,
+                    isFrustumCheckBox()) != FrustumCuller.OUTSIDE);
+        }
+        if (gameObject.isVisible())
+            visible.add(gameObject);
+        for (int i = 0; i < numChildren; i++)
+            cullHierarchy(gameObject.getChild(i), culler, visible, planeMask, frustumCheck);
+    } // void cullHierarchy(...)
+
+    protected void hideHierarchy(GameObject gameObject) {
+        gameObject.setVisible(false);
+        final int numChildren = gameObject.getChildCount();
+        for (int i = 0; i < numChildren; i++)
+            hideHierarchy(gameObject.getChild(i));
+    }
+
+    /**
+     * Update phase - resolves world transformations and recomputes bounding
+     * boxes of transformed objects (only dirty branches of the hierarchy are
+     * visited). Work is split over root objects.
+     */
+    protected void updatePhase() {
+        final int numObjects = rootObjects.size;
+        boundsChanged = false;
+        if (isParallelTraverse() && taskRunner != null) {
+            taskRunner.run(numObjects, PARALLEL_MIN_CHUNK_SIZE, updateTask);
+            if (isUseTransformStore()) {
+                // one sweep over all dirty slots, then the subtree bounds
+                taskRunner.run(transformStore.size(), PARALLEL_MIN_CHUNK_SIZE, boundsTask);
+                taskRunner.run(numObjects, PARALLEL_MIN_CHUNK_SIZE, subtreeTask);
+            }
+        } else {
+            updateTask.run(0, 0, numObjects);
+            if (isUseTransformStore()) {
+                transformStore.updateBounds();
+                subtreeTask.run(0, 0, numObjects);
+            }
+        }
+        if (boundsChanged)
+            sceneVersion++;
+    } // void updatePhase()
+
+    /**
+     * Cull phase - frustum (and optionally occlusion) culling, rebuilds the
+     * array of visible objects (depth first order of the hierarchy).
+     */
+    protected void cullPhase() {
+        final int numObjects = rootObjects.size;
         visibleObjects.clear();
-        for (int i = 0; i < numObjects; i++) {
-            GameObject gameObject = gameObjects.get(i);
-            gameObject.update();
-
-            if (isFrustumCheckBox())
-                gameObject.setVisible(checkVisibilityBox(gameObject));
-            else if (isFrustumCheckSphere())
-                gameObject.setVisible(checkVisibilitySphere(gameObject));
-
-            if (gameObject.isVisible()) {
-                visibleObjects.add(gameObject);
-                modelBatch.render(gameObject, environment);
+        frustumCuller.setFrustum(camera.frustum);
+        frustumCuller.resetCounters();
+        if (isParallelTraverse() && taskRunner != null) {
+            final int chunks = taskRunner.run(numObjects, PARALLEL_MIN_CHUNK_SIZE, cullTask);
+            for (int i = 0; i < chunks; i++) {
+                visibleObjects.addAll(workerVisibleObjects.get(i));
+                workerVisibleObjects.get(i).clear();
+                frustumCuller.addCounters(workerCullers[i]);
             }
-        } // for each game object in scene
+        } else {
+            cullRange(frustumCuller, visibleObjects, 0, numObjects);
+        }
+
+        if (isOcclusionCheck())
+            occlusionCheck();
+    } // void cullPhase()
+
+    /**
+     * Render phase - submits visible objects to the model batch, needs to be
+     * called on the GL thread between modelBatch.begin() and end()
+     */
+    protected void renderPhase() {
+        final int numVisible = visibleObjects.size;
+        for (int i = 0; i < numVisible; i++)
+            modelBatch.render(visibleObjects.get(i), environment);
+    } // void renderPhase()
+
+    protected void linearTraverse() {
+        updatePhase();
+        cullPhase();
     } // void linearTraverse(...)
 
     //-------------------------------------------------------------------------
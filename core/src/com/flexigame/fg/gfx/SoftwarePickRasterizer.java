@@ -0,0 +1,510 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.flexigame.fg.utils.ParallelTaskRunner;
+import com.flexigame.fg.utils.Vector2i;
+
+/**
+ * Software replacement for the PickSelectionRenderer - rasterizes the visible
+ * objects into a small CPU side ID and depth buffer covering only the pick
+ * region (the picking box or the single pixel under the pointer). Does not
+ * use GL in any way, so pixel accurate picking works headless and without
+ * the GPU readback stall. The objects can be drawn with their triangles
+ * (model instances only) or with their oriented boxes. Triangles are drawn
+ * without face culling. Horizontal tiles of the region are rasterized in
+ * parallel when the task runner is given.
+ * Usage: refreshPickBoxDimensions(), render(), traverse().
+ */
+public class SoftwarePickRasterizer implements PickSelection.PixelChecker, PickSelection.DepthReader,
+        PickSelection.IdReader, Disposable {
+
+    public enum Source {
+        /* Triangles of the model instances (other objects use the boxes) */
+        GEOMETRY,
+        /* Oriented boxes (or the transformed original boxes) of the objects */
+        ORIENTED_BOXES
+    } // enum Source
+
+    /* Number of lines in the single tile (unit of the parallel work) */
+    public static final int TILE_HEIGHT = 8;
+    /* Value of the empty pixel in the ID buffer (IDs are stored as ID + 1) */
+    public static final int EMPTY = 0;
+
+    protected static final int[] BOX_TRIANGLES = OcclusionCuller.BOX_TRIANGLES;
+
+    protected final PickSelection pickSelection;
+    protected ParallelTaskRunner taskRunner;
+    protected Source source = Source.GEOMETRY;
+
+    /* Region of the screen covered by the buffers (bottom left origin) */
+    protected int regionX = 0;
+    protected int regionY = 0;
+    protected int regionWidth = 0;
+    protected int regionHeight = 0;
+    /* Object IDs + 1 for each pixel of the region, EMPTY when nothing was drawn */
+    protected int[] idBuffer = new int[1];
+    /* Depth values in range 0..1 for each pixel of the region */
+    protected float[] depthBuffer = new float[1];
+
+    /* Screen space triangles (relative to the region): x, y, depth for each vertex */
+    protected final FloatArray screenTriangles = new FloatArray(9 * 64);
+    /* Object ID + 1 of each screen space triangle */
+    protected final IntArray triangleIds = new IntArray(64);
+
+    protected final Matrix4 mvpMatrix = new Matrix4();
+    /* Clip space vertices of the triangle and the polygon clipped by the near plane */
+    protected final float[] clipInput = new float[3 * 4];
+    protected final float[] clipOutput = new float[4 * 4];
+    protected final float[] corners = new float[8 * 3];
+    protected final Vector3 tmpVector = new Vector3();
+
+    protected final ParallelTaskRunner.RangeTask tileTask = new ParallelTaskRunner.RangeTask() {
+        @Override
+        public void run(int workerIndex, int from, int to) {
+            for (int tile = from; tile < to; tile++) {
+                final int y0 = tile * TILE_HEIGHT;
+                rasterizeTile(y0, Math.min(y0 + TILE_HEIGHT, regionHeight));
+            }
+        }
+    };
+
+    //-------------------------------------------------------------------------
+
+    public SoftwarePickRasterizer(PickSelection pickSelection) {
+        this(pickSelection, null);
+    }
+
+    /**
+     * @param taskRunner runner used for the tiles (not owned), can be null
+     */
+    public SoftwarePickRasterizer(PickSelection pickSelection, ParallelTaskRunner taskRunner) {
+        if (pickSelection == null)
+            throw new NullPointerException("pickSelection cannot be null");
+        this.pickSelection = pickSelection;
+        this.taskRunner = taskRunner;
+        this.pickSelection.setPixelChecker(this);
+        this.pickSelection.setDepthReader(this);
+        this.pickSelection.setIdReader(this);
+    } // SoftwarePickRasterizer(...)
+
+    @Override
+    public void dispose() {
+        pickSelection.setPixelChecker(null);
+        if (pickSelection.getDepthReader() == this)
+            pickSelection.setDepthReader(null);
+        if (pickSelection.getIdReader() == this)
+            pickSelection.setIdReader(null);
+        screenTriangles.clear();
+        triangleIds.clear();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public Source getSource() {
+        return source;
+    }
+
+    public void setSource(Source source) {
+        if (source == null)
+            throw new NullPointerException("source cannot be null");
+        this.source = source;
+    }
+
+    public ParallelTaskRunner getTaskRunner() {
+        return taskRunner;
+    }
+
+    public void setTaskRunner(ParallelTaskRunner taskRunner) {
+        this.taskRunner = taskRunner;
+    }
+
+    public int getRegionX() {
+        return regionX;
+    }
+
+    public int getRegionY() {
+        return regionY;
+    }
+
+    public int getRegionWidth() {
+        return regionWidth;
+    }
+
+    public int getRegionHeight() {
+        return regionHeight;
+    }
+
+    /**
+     * @return number of the triangles rasterized in the last render()
+     */
+    public int getTriangleCount() {
+        return triangleIds.size;
+    }
+
+    /**
+     * @return ID of the object visible at the screen position or -1 when the
+     * pixel is empty or outside of the region
+     */
+    public int getIdAt(int x, int y) {
+        x -= regionX;
+        y -= regionY;
+        if (x < 0 || y < 0 || x >= regionWidth || y >= regionHeight)
+            return -1;
+        return idBuffer[y * regionWidth + x] - 1;
+    }
+
+    /**
+     * @return depth (0..1) at the screen position, 1 when empty or outside
+     */
+    public float getDepthAt(int x, int y) {
+        x -= regionX;
+        y -= regionY;
+        if (x < 0 || y < 0 || x >= regionWidth || y >= regionHeight)
+            return 1.0f;
+        return depthBuffer[y * regionWidth + x];
+    }
+
+    //-------------------------------------------------------------------------
+
+    @Override
+    public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+        final int value = colorValue + 1; // up one - same as the FBO
+        int x0 = (int) area.x - regionX;
+        int y0 = (int) area.y - regionY;
+        int x1 = x0 + Math.max((int) area.width, 1);
+        int y1 = y0 + Math.max((int) area.height, 1);
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, regionWidth);
+        y1 = Math.min(y1, regionHeight);
+        for (int y = y0; y < y1; y++) {
+            final int line = y * regionWidth;
+            for (int x = x0; x < x1; x++) {
+                if (idBuffer[line + x] == value)
+                    return true;
+            }
+        } // for each line in the area
+        return false;
+    } // boolean isColorInPixels(...)
+
+    @Override
+    public float getPixelDepth(int x, int y) {
+        return getDepthAt(x, y);
+    }
+
+    @Override
+    public int getPixelId(int x, int y) {
+        return getIdAt(x, y);
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Rasterizes the spatial objects of the pick selection
+     */
+    public void render() {
+        render(pickSelection.getSpatialObjects());
+    }
+
+    /**
+     * Rasterizes the visible objects into the buffers covering the current
+     * pick region. Needs to be called after refreshPickBoxDimensions() and
+     * before traverse(). The camera needs to be up to date.
+     */
+    public void render(Array<? extends SpatialObject> objects) {
+        refreshRegion();
+        rasterize(objects);
+    }
+
+    /**
+     * Rasterizes the visible objects into the buffers covering the given
+     * screen area (bottom left origin), e.g. the area of all pointers of the
+     * batched query
+     */
+    public void render(Array<? extends SpatialObject> objects, Rectangle area) {
+        regionX = (int) area.x;
+        regionY = (int) area.y;
+        regionWidth = Math.max((int) Math.ceil(area.x + area.width) - regionX, 1);
+        regionHeight = Math.max((int) Math.ceil(area.y + area.height) - regionY, 1);
+        rasterize(objects);
+    } // void render(...)
+
+    protected void rasterize(Array<? extends SpatialObject> objects) {
+        final int numPixels = regionWidth * regionHeight;
+        if (idBuffer.length < numPixels) {
+            idBuffer = new int[numPixels];
+            depthBuffer = new float[numPixels];
+        }
+        for (int i = 0; i < numPixels; i++) {
+            idBuffer[i] = EMPTY;
+            depthBuffer[i] = 1.0f;
+        }
+        screenTriangles.clear();
+        triangleIds.clear();
+        final Camera camera = pickSelection.getCamera();
+        if (camera == null || objects == null || numPixels == 0)
+            return;
+        final Matrix4 combined = camera.combined;
+        for (int i = 0; i < objects.size; i++) {
+            final SpatialObject object = objects.get(i);
+            if (object == null || !object.isVisible())
+                continue;
+            if (!isBoxInRegion(combined, object.getBoundingBox()))
+                continue;
+            final int id = object.getSpatialObjectID() + 1;
+            if (source == Source.GEOMETRY && object instanceof ModelInstance) {
+                final ModelInstance instance = (ModelInstance) object;
+                for (int n = 0; n < instance.nodes.size; n++)
+                    addNode(combined, instance, instance.nodes.get(n), id);
+            } else {
+                addBox(combined, object, id);
+            }
+        } // for each object
+        if (triangleIds.size == 0)
+            return;
+        final int numTiles = (regionHeight + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        if (taskRunner != null && numTiles > 1)
+            taskRunner.run(numTiles, 1, tileTask);
+        else
+            tileTask.run(0, 0, numTiles);
+    } // void rasterize(...)
+
+    //-------------------------------------------------------------------------
+
+    protected void refreshRegion() {
+        final Vector2i pickPos = pickSelection.getPickPosition();
+        int x = pickPos.x, y = pickPos.y, w = 1, h = 1;
+        if (pickSelection.isOnClick() && pickSelection.isUsePickingBox()) {
+            final Rectangle pickBox = pickSelection.getPickBox();
+            x = (int) pickBox.x;
+            y = (int) pickBox.y;
+            w = (int) pickBox.width;
+            h = (int) pickBox.height;
+        } else if (pickSelection.isToleranceSearch()) {
+            // square around the pick position for the nearest object search
+            final int tolerance = pickSelection.getPickTolerance();
+            x -= tolerance;
+            y -= tolerance;
+            w += 2 * tolerance;
+            h += 2 * tolerance;
+        }
+        regionX = x;
+        regionY = y;
+        regionWidth = Math.max(w, 1);
+        regionHeight = Math.max(h, 1);
+    } // void refreshRegion()
+
+    /**
+     * Quick rejection - projects the world box corners and checks the overlap
+     * of the screen rectangle with the region
+     */
+    protected boolean isBoxInRegion(Matrix4 combined, BoundingBox box) {
+        final float[] m = combined.val;
+        final int screenWidth = pickSelection.getScreenWidth();
+        final int screenHeight = pickSelection.getScreenHeight();
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        int behind = 0;
+        for (int i = 0; i < 8; i++) {
+            final float x = (i & 4) != 0 ? box.max.x : box.min.x;
+            final float y = (i & 2) != 0 ? box.max.y : box.min.y;
+            final float z = (i & 1) != 0 ? box.max.z : box.min.z;
+            final float cz = m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23];
+            final float cw = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+            if (cz + cw < 0.0f) {
+                behind++;
+                continue;
+            }
+            if (cw < OcclusionCuller.NEAR_EPSILON)
+                return true; // crossing the eye plane - let the clipping decide
+            final float invW = 1.0f / cw;
+            final float sx = ((m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03]) * invW * 0.5f + 0.5f) * screenWidth;
+            final float sy = ((m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13]) * invW * 0.5f + 0.5f) * screenHeight;
+            minX = Math.min(minX, sx);
+            minY = Math.min(minY, sy);
+            maxX = Math.max(maxX, sx);
+            maxY = Math.max(maxY, sy);
+        }
+        if (behind == 8)
+            return false; // completely behind the near plane
+        if (behind > 0)
+            return true;
+        return maxX >= regionX && minX <= regionX + regionWidth &&
+                maxY >= regionY && minY <= regionY + regionHeight;
+    } // boolean isBoxInRegion(...)
+
+    protected void addNode(Matrix4 combined, ModelInstance instance, Node node, int id) {
+        final int numParts = node.parts.size;
+        if (numParts > 0) {
+            mvpMatrix.set(combined).mul(instance.transform).mul(node.globalTransform);
+            final float[] m = mvpMatrix.val;
+            for (int p = 0; p < numParts; p++) {
+                final NodePart part = node.parts.get(p);
+                if (!part.enabled)
+                    continue;
+                final MeshBVH bvh = MeshBVH.obtain(part.meshPart);
+                if (bvh == null)
+                    continue;
+                final float[] triangles = bvh.getTriangles();
+                final int numTriangles = bvh.getTriangleCount();
+                for (int t = 0; t < numTriangles; t++) {
+                    final int offset = t * 9;
+                    for (int k = 0; k < 3; k++) {
+                        final int v = offset + k * 3;
+                        transformToClip(m, triangles[v], triangles[v + 1], triangles[v + 2], k);
+                    }
+                    addClipTriangle(id);
+                }
+            } // for each node part
+        }
+        for (int i = 0; i < node.getChildCount(); i++)
+            addNode(combined, instance, node.getChild(i), id);
+    } // void addNode(...)
+
+    protected void addBox(Matrix4 combined, SpatialObject object, int id) {
+        final OrientedBox orientedBox = object.getOrientedBox();
+        if (orientedBox != null) {
+            for (int i = 0; i < 8; i++) {
+                orientedBox.getCorner(i, tmpVector);
+                corners[i * 3] = tmpVector.x;
+                corners[i * 3 + 1] = tmpVector.y;
+                corners[i * 3 + 2] = tmpVector.z;
+            }
+        } else {
+            final BoundingBox box = object.getOriginalBoundingBox();
+            final Matrix4 transform = object.getTransform();
+            for (int i = 0; i < 8; i++) {
+                tmpVector.set((i & 4) != 0 ? box.max.x : box.min.x,
+                        (i & 2) != 0 ? box.max.y : box.min.y,
+                        (i & 1) != 0 ? box.max.z : box.min.z).mul(transform);
+                corners[i * 3] = tmpVector.x;
+                corners[i * 3 + 1] = tmpVector.y;
+                corners[i * 3 + 2] = tmpVector.z;
+            }
+        }
+        final float[] m = combined.val;
+        for (int i = 0; i < BOX_TRIANGLES.length; i += 3) {
+            for (int k = 0; k < 3; k++) {
+                final int c = BOX_TRIANGLES[i + k] * 3;
+                transformToClip(m, corners[c], corners[c + 1], corners[c + 2], k);
+            }
+            addClipTriangle(id);
+        }
+    } // void addBox(...)
+
+    protected void transformToClip(float[] m, float x, float y, float z, int vertex) {
+        final int o = vertex * 4;
+        clipInput[o] = m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03];
+        clipInput[o + 1] = m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13];
+        clipInput[o + 2] = m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23];
+        clipInput[o + 3] = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+    } // void transformToClip(...)
+
+    /**
+     * Clips the triangle (in clipInput) by the near plane, projects it into
+     * the region space and stores it when it overlaps the region
+     */
+    protected void addClipTriangle(int id) {
+        final float[] in = clipInput, out = clipOutput;
+        int count = 0;
+        for (int i = 0; i < 3; i++) {
+            final int a = i * 4, b = ((i + 1) % 3) * 4;
+            final float da = in[a + 2] + in[a + 3]; // distance to the near plane (z = -w)
+            final float db = in[b + 2] + in[b + 3];
+            if (da >= 0.0f) {
+                System.arraycopy(in, a, out, count * 4, 4);
+                count++;
+            }
+            if ((da >= 0.0f) != (db >= 0.0f)) {
+                final float t = da / (da - db);
+                for (int k = 0; k < 4; k++)
+                    out[count * 4 + k] = in[a + k] + (in[b + k] - in[a + k]) * t;
+                count++;
+            }
+        } // for each edge
+        if (count < 3)
+            return; // behind the near plane
+        final float screenWidth = pickSelection.getScreenWidth();
+        final float screenHeight = pickSelection.getScreenHeight();
+        for (int i = 0; i < count; i++) {
+            final int o = i * 4;
+            final float w = Math.max(out[o + 3], OcclusionCuller.NEAR_EPSILON);
+            final float invW = 1.0f / w;
+            out[o] = (out[o] * invW * 0.5f + 0.5f) * screenWidth - regionX;
+            out[o + 1] = (out[o + 1] * invW * 0.5f + 0.5f) * screenHeight - regionY;
+            out[o + 2] = out[o + 2] * invW * 0.5f + 0.5f;
+        }
+        for (int i = 1; i + 1 < count; i++) {
+            final int a = 0, b = i * 4, c = (i + 1) * 4;
+            final float minX = Math.min(out[a], Math.min(out[b], out[c]));
+            final float maxX = Math.max(out[a], Math.max(out[b], out[c]));
+            final float minY = Math.min(out[a + 1], Math.min(out[b + 1], out[c + 1]));
+            final float maxY = Math.max(out[a + 1], Math.max(out[b + 1], out[c + 1]));
+            if (maxX < 0.0f || maxY < 0.0f || minX > regionWidth || minY > regionHeight)
+                continue;
+            screenTriangles.addAll(out, a, 3);
+            screenTriangles.addAll(out, b, 3);
+            screenTriangles.addAll(out, c, 3);
+            triangleIds.add(id);
+        } // for each triangle of the fan
+    } // void addClipTriangle(...)
+
+    /**
+     * Rasterizes all of the stored triangles into the lines [y0, y1) of the
+     * region. Tiles do not share any pixels so they can run in parallel.
+     */
+    protected void rasterizeTile(int y0, int y1) {
+        final float[] tris = screenTriangles.items;
+        final int[] ids = triangleIds.items;
+        final int numTriangles = triangleIds.size;
+        final int width = regionWidth;
+        for (int t = 0; t < numTriangles; t++) {
+            final int o = t * 9;
+            final float ax = tris[o], ay = tris[o + 1], az = tris[o + 2];
+            final float bx = tris[o + 3], by = tris[o + 4], bz = tris[o + 5];
+            final float cx = tris[o + 6], cy = tris[o + 7], cz = tris[o + 8];
+            final int ty0 = Math.max((int) Math.floor(Math.min(ay, Math.min(by, cy))), y0);
+            final int ty1 = Math.min((int) Math.ceil(Math.max(ay, Math.max(by, cy))), y1 - 1);
+            if (ty0 > ty1)
+                continue;
+            final float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+            if (Math.abs(area) < 0.00001f)
+                continue; // degenerated
+            final float invArea = 1.0f / area;
+            final int tx0 = Math.max((int) Math.floor(Math.min(ax, Math.min(bx, cx))), 0);
+            final int tx1 = Math.min((int) Math.ceil(Math.max(ax, Math.max(bx, cx))), width - 1);
+            final int id = ids[t];
+            for (int y = ty0; y <= ty1; y++) {
+                final float py = y + 0.5f;
+                final int line = y * width;
+                for (int x = tx0; x <= tx1; x++) {
+                    final float px = x + 0.5f;
+                    final float w0 = ((bx - px) * (cy - py) - (by - py) * (cx - px)) * invArea;
+                    final float w1 = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) * invArea;
+                    final float w2 = 1.0f - w0 - w1;
+                    if (w0 < 0.0f || w1 < 0.0f || w2 < 0.0f)
+                        continue;
+                    final float depth = w0 * az + w1 * bz + w2 * cz;
+                    if (depth < depthBuffer[line + x]) {
+                        depthBuffer[line + x] = depth;
+                        idBuffer[line + x] = id;
+                    }
+                }
+            }
+        } // for each triangle
+    } // void rasterizeTile(...)
+
+    //-------------------------------------------------------------------------
+
+} // class SoftwarePickRasterizer
@@ -0,0 +1,802 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+
+/**
+ * Bounding volume hierarchy over the world bounds of the spatial objects.
+ * Rebuilt when the set of the objects changes, refitted (bounds only) when
+ * just the scene version changes - see validate(). Nodes and object bounds
+ * are kept in flat arrays like in MeshBVH, the queries use an explicit stack
+ * and append the results to the buffers given by the caller - no allocations
+ * once the buffers are large enough. Invisible objects are never reported.
+ * Not thread safe.
+ */
+public class SpatialIndex {
+
+    public static final int MAX_LEAF_OBJECTS = 4;
+    /* Maximal depth of the tree (traversal stack needs twice as many elements) */
+    public static final int MAX_DEPTH = 64;
+    /* The tree is rebuilt when the refit made the nodes this much larger */
+    public static final float REBUILD_RATIO = 2.0f;
+
+    /* Objects in the leaf order */
+    protected SpatialObject[] objects = new SpatialObject[0];
+    /* World bounds of the objects - min xyz, max xyz (6 floats per object) */
+    protected float[] objectBounds = new float[0];
+    /* Bounding spheres of the objects - center xyz, radius (4 floats per object) */
+    protected float[] objectSpheres = new float[0];
+    protected int objectCount = 0;
+    /* Objects in the order of the source array (for detecting the changes) */
+    protected SpatialObject[] sourceOrder = new SpatialObject[0];
+    /* Node bounds - min xyz, max xyz (6 floats per node) */
+    protected float[] nodeBounds = new float[6];
+    /* Spheres enclosing the object spheres of the node - center xyz, radius */
+    protected float[] nodeSpheres = new float[4];
+    /* Leaf: index of the first object; inner: index of the right child (left child follows the node) */
+    protected int[] nodeIndex = new int[1];
+    /* Number of objects in the leaf, 0 for inner nodes */
+    protected int[] nodeCount = new int[1];
+    protected int nodeTotal = 0;
+    protected final int[] stack = new int[MAX_DEPTH * 2];
+    protected float[] centroids = new float[0];
+
+    /* Inputs the tree was built for */
+    protected Array<SpatialObject> source = null;
+    protected boolean versionValid = false;
+    protected int sceneVersion = 0;
+    protected int buildCount = 0;
+    protected int refitCount = 0;
+    /* Incremented when the objects or their order changed (not on the quality rebuilds) */
+    protected int objectsVersion = 0;
+    /* Sum of the node surface areas right after the build */
+    protected float builtArea = 0.0f;
+
+    /* Best candidates of the nearest query - sorted by the distance */
+    protected int[] nearestObjects = new int[8];
+    protected float[] nearestDistances = new float[8];
+    /* Entry and exit distance of the last intersectObject() */
+    protected float hitEntry = 0.0f;
+    protected float hitExit = 0.0f;
+    /* Half axes of the intersected box and the slab normal (3 floats each) */
+    protected final float[] tmpAxes = new float[12];
+
+    //-------------------------------------------------------------------------
+
+    public SpatialIndex() {
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public int getNodeCount() {
+        return nodeTotal;
+    }
+
+    public int getBuildCount() {
+        return buildCount;
+    }
+
+    public int getRefitCount() {
+        return refitCount;
+    }
+
+    public int getObjectsVersion() {
+        return objectsVersion;
+    }
+
+    public void invalidate() {
+        versionValid = false;
+        source = null;
+    }
+
+    /**
+     * Rebuilds the tree when the objects have changed or only updates the
+     * bounds when the scene version differs (objects moved)
+     *
+     * @return false if the tree had to be updated
+     */
+    public boolean validate(Array<SpatialObject> spatialObjects, int sceneVersion) {
+        if (spatialObjects == null)
+            throw new IllegalArgumentException("spatialObjects cannot be null");
+        if (versionValid && source == spatialObjects && this.sceneVersion == sceneVersion &&
+                objectCount == spatialObjects.size)
+            return true;
+        if (source == spatialObjects && isSameObjects(spatialObjects)) {
+            refit();
+            // objects moved far - the old structure is no longer useful
+            if (getNodeArea() > builtArea * REBUILD_RATIO)
+                build(spatialObjects);
+        } else {
+            build(spatialObjects);
+            objectsVersion++;
+        }
+        source = spatialObjects;
+        versionValid = true;
+        this.sceneVersion = sceneVersion;
+        return false;
+    } // boolean validate(...)
+
+    protected boolean isSameObjects(Array<SpatialObject> spatialObjects) {
+        if (objectCount != spatialObjects.size)
+            return false;
+        for (int i = 0; i < objectCount; i++) {
+            if (sourceOrder[i] != spatialObjects.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void build(Array<SpatialObject> spatialObjects) {
+        objectCount = spatialObjects.size;
+        if (objects.length < objectCount) {
+            objects = new SpatialObject[objectCount];
+            sourceOrder = new SpatialObject[objectCount];
+            objectBounds = new float[objectCount * 6];
+            objectSpheres = new float[objectCount * 4];
+            centroids = new float[objectCount * 3];
+        }
+        for (int i = 0; i < objectCount; i++) {
+            objects[i] = spatialObjects.get(i);
+            sourceOrder[i] = objects[i];
+            readBounds(i);
+        }
+        for (int i = objectCount; i < objects.length; i++) {
+            objects[i] = null;
+            sourceOrder[i] = null;
+        }
+        // median splits usually end with leaves about half full
+        final int maxNodes = Math.max(1, 4 * ((objectCount + MAX_LEAF_OBJECTS - 1) / MAX_LEAF_OBJECTS) + 1);
+        if (nodeIndex.length < maxNodes) {
+            nodeBounds = new float[maxNodes * 6];
+            nodeSpheres = new float[maxNodes * 4];
+            nodeIndex = new int[maxNodes];
+            nodeCount = new int[maxNodes];
+        }
+        nodeTotal = 0;
+        if (objectCount > 0)
+            buildNode(0, objectCount, 0);
+        builtArea = getNodeArea();
+        buildCount++;
+    } // void build(...)
+
+    /**
+     * @return sum of the surface areas of all nodes (quality of the tree)
+     */
+    public float getNodeArea() {
+        float area = 0.0f;
+        for (int node = 0; node < nodeTotal; node++) {
+            final int b = node * 6;
+            final float dx = nodeBounds[b + 3] - nodeBounds[b];
+            final float dy = nodeBounds[b + 4] - nodeBounds[b + 1];
+            final float dz = nodeBounds[b + 5] - nodeBounds[b + 2];
+            area += dx * dy + dy * dz + dz * dx;
+        }
+        return area;
+    } // float getNodeArea()
+
+    /**
+     * Updates the bounds of all objects and nodes - the tree structure stays
+     */
+    public void refit() {
+        for (int i = 0; i < objectCount; i++)
+            readBounds(i);
+        // children always follow the parent - bottom up in the reverse order
+        for (int node = nodeTotal - 1; node >= 0; node--) {
+            final int b = node * 6;
+            final int count = nodeCount[node];
+            if (count > 0) {
+                setNodeBounds(b, nodeIndex[node], nodeIndex[node] + count);
+                setNodeSphere(node);
+                continue;
+            }
+            final int l = (node + 1) * 6, r = nodeIndex[node] * 6;
+            for (int a = 0; a < 3; a++) {
+                nodeBounds[b + a] = Math.min(nodeBounds[l + a], nodeBounds[r + a]);
+                nodeBounds[b + 3 + a] = Math.max(nodeBounds[l + 3 + a], nodeBounds[r + 3 + a]);
+            }
+            setNodeSphere(node);
+        } // for each node
+        refitCount++;
+    } // void refit()
+
+    protected void readBounds(int i) {
+        final SpatialObject spatialObject = objects[i];
+        final BoundingBox box = spatialObject.getBoundingBox();
+        final int o = i * 6;
+        objectBounds[o] = box.min.x;
+        objectBounds[o + 1] = box.min.y;
+        objectBounds[o + 2] = box.min.z;
+        objectBounds[o + 3] = box.max.x;
+        objectBounds[o + 4] = box.max.y;
+        objectBounds[o + 5] = box.max.z;
+        final int s = i * 4;
+        objectSpheres[s] = spatialObject.getSphereCenter().x;
+        objectSpheres[s + 1] = spatialObject.getSphereCenter().y;
+        objectSpheres[s + 2] = spatialObject.getSphereCenter().z;
+        objectSpheres[s + 3] = spatialObject.getSphereRadius();
+        centroids[i * 3] = (box.min.x + box.max.x) * 0.5f;
+        centroids[i * 3 + 1] = (box.min.y + box.max.y) * 0.5f;
+        centroids[i * 3 + 2] = (box.min.z + box.max.z) * 0.5f;
+    } // void readBounds(...)
+
+    protected void setNodeBounds(int b, int from, int to) {
+        nodeBounds[b] = nodeBounds[b + 1] = nodeBounds[b + 2] = Float.MAX_VALUE;
+        nodeBounds[b + 3] = nodeBounds[b + 4] = nodeBounds[b + 5] = -Float.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            final int o = i * 6;
+            for (int a = 0; a < 3; a++) {
+                if (objectBounds[o + a] < nodeBounds[b + a]) nodeBounds[b + a] = objectBounds[o + a];
+                if (objectBounds[o + 3 + a] > nodeBounds[b + 3 + a]) nodeBounds[b + 3 + a] = objectBounds[o + 3 + a];
+            }
+        }
+    } // void setNodeBounds(...)
+
+    /**
+     * Sets the sphere of the node (centered in the node box) enclosing the
+     * spheres of the objects or of the children (these are already set)
+     */
+    protected void setNodeSphere(int node) {
+        final int b = node * 6, s = node * 4;
+        final float cx = (nodeBounds[b] + nodeBounds[b + 3]) * 0.5f;
+        final float cy = (nodeBounds[b + 1] + nodeBounds[b + 4]) * 0.5f;
+        final float cz = (nodeBounds[b + 2] + nodeBounds[b + 5]) * 0.5f;
+        float radius = 0.0f;
+        final float[] spheres;
+        final int from, to, step;
+        if (nodeCount[node] > 0) {
+            spheres = objectSpheres;
+            from = nodeIndex[node];
+            to = from + nodeCount[node];
+            step = 1;
+        } else {
+            spheres = nodeSpheres;
+            from = node + 1;
+            to = nodeIndex[node] + 1;
+            step = nodeIndex[node] - node - 1; // left child and the right one
+        }
+        for (int i = from; i < to; i += step) {
+            final int o = i * 4;
+            final float dx = spheres[o] - cx, dy = spheres[o + 1] - cy, dz = spheres[o + 2] - cz;
+            radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) + spheres[o + 3]);
+        }
+        nodeSpheres[s] = cx;
+        nodeSpheres[s + 1] = cy;
+        nodeSpheres[s + 2] = cz;
+        nodeSpheres[s + 3] = radius;
+    } // void setNodeSphere(...)
+
+    protected int buildNode(int from, int to, int depth) {
+        final int node = nodeTotal++;
+        if (node >= nodeIndex.length)
+            growNodes();
+        setNodeBounds(node * 6, from, to);
+        final int count = to - from;
+        if (count <= MAX_LEAF_OBJECTS || depth >= MAX_DEPTH - 1) {
+            nodeIndex[node] = from;
+            nodeCount[node] = count;
+            setNodeSphere(node);
+            return node;
+        }
+        // split along the longest axis of the centroid bounds (at the median)
+        float cMinX = Float.MAX_VALUE, cMinY = Float.MAX_VALUE, cMinZ = Float.MAX_VALUE;
+        float cMaxX = -Float.MAX_VALUE, cMaxY = -Float.MAX_VALUE, cMaxZ = -Float.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            final float x = centroids[i * 3], y = centroids[i * 3 + 1], z = centroids[i * 3 + 2];
+            cMinX = Math.min(cMinX, x);
+            cMinY = Math.min(cMinY, y);
+            cMinZ = Math.min(cMinZ, z);
+            cMaxX = Math.max(cMaxX, x);
+            cMaxY = Math.max(cMaxY, y);
+            cMaxZ = Math.max(cMaxZ, z);
+        }
+        final float dx = cMaxX - cMinX, dy = cMaxY - cMinY, dz = cMaxZ - cMinZ;
+        final int axis = (dx >= dy && dx >= dz) ? 0 : (dy >= dz ? 1 : 2);
+        final int mid = (from + to) >>> 1;
+        selectNth(from, to - 1, mid, axis);
+        buildNode(from, mid, depth + 1); // left child is always node + 1
+        final int right = buildNode(mid, to, depth + 1); // arrays can grow
+        nodeIndex[node] = right;
+        nodeCount[node] = 0;
+        setNodeSphere(node);
+        return node;
+    } // int buildNode(...)
+
+    protected void growNodes() {
+        final int length = nodeIndex.length * 2;
+        float[] newBounds = new float[length * 6];
+        float[] newSpheres = new float[length * 4];
+        int[] newIndex = new int[length];
+        int[] newCount = new int[length];
+        System.arraycopy(nodeBounds, 0, newBounds, 0, nodeBounds.length);
+        System.arraycopy(nodeSpheres, 0, newSpheres, 0, nodeSpheres.length);
+        System.arraycopy(nodeIndex, 0, newIndex, 0, nodeIndex.length);
+        System.arraycopy(nodeCount, 0, newCount, 0, nodeCount.length);
+        nodeBounds = newBounds;
+        nodeSpheres = newSpheres;
+        nodeIndex = newIndex;
+        nodeCount = newCount;
+    } // void growNodes()
+
+    /**
+     * Quick select - partially orders objects so the n-th one (by the
+     * centroid on the axis) is in place
+     */
+    protected void selectNth(int left, int right, int n, int axis) {
+        while (right > left) {
+            final float pivot = centroids[((left + right) >>> 1) * 3 + axis];
+            int i = left, j = right;
+            while (i <= j) {
+                while (centroids[i * 3 + axis] < pivot) i++;
+                while (centroids[j * 3 + axis] > pivot) j--;
+                if (i <= j) {
+                    swapObjects(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (n <= j)
+                right = j;
+            else if (n >= i)
+                left = i;
+            else
+                return;
+        }
+    } // void selectNth(...)
+
+    protected void swapObjects(int i, int j) {
+        for (int k = 0; k < 6; k++) {
+            final float tmp = objectBounds[i * 6 + k];
+            objectBounds[i * 6 + k] = objectBounds[j * 6 + k];
+            objectBounds[j * 6 + k] = tmp;
+        }
+        for (int k = 0; k < 4; k++) {
+            final float tmp = objectSpheres[i * 4 + k];
+            objectSpheres[i * 4 + k] = objectSpheres[j * 4 + k];
+            objectSpheres[j * 4 + k] = tmp;
+        }
+        for (int k = 0; k < 3; k++) {
+            final float tmp = centroids[i * 3 + k];
+            centroids[i * 3 + k] = centroids[j * 3 + k];
+            centroids[j * 3 + k] = tmp;
+        }
+        final SpatialObject tmp = objects[i];
+        objects[i] = objects[j];
+        objects[j] = tmp;
+    } // void swapObjects(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Squared distance between the point and the box (0 when inside)
+     */
+    protected static float boxDistance2(float[] bounds, int b, float x, float y, float z) {
+        float d2 = 0.0f, d;
+        if (x < bounds[b]) { d = bounds[b] - x; d2 += d * d; }
+        else if (x > bounds[b + 3]) { d = x - bounds[b + 3]; d2 += d * d; }
+        if (y < bounds[b + 1]) { d = bounds[b + 1] - y; d2 += d * d; }
+        else if (y > bounds[b + 4]) { d = y - bounds[b + 4]; d2 += d * d; }
+        if (z < bounds[b + 2]) { d = bounds[b + 2] - z; d2 += d * d; }
+        else if (z > bounds[b + 5]) { d = z - bounds[b + 5]; d2 += d * d; }
+        return d2;
+    } // float boxDistance2(...)
+
+    /**
+     * Appends the visible objects with the world bounds closer than the
+     * radius to the point
+     *
+     * @return number of the appended objects
+     */
+    public int queryRadius(float x, float y, float z, float radius, Array<SpatialObject> out) {
+        if (out == null)
+            throw new IllegalArgumentException("out cannot be null");
+        if (objectCount == 0 || radius < 0.0f)
+            return 0;
+        final float radius2 = radius * radius;
+        int found = 0;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            if (boxDistance2(nodeBounds, node * 6, x, y, z) > radius2)
+                continue;
+            final int count = nodeCount[node];
+            if (count == 0) {
+                stack[top++] = nodeIndex[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            final int first = nodeIndex[node];
+            for (int i = first; i < first + count; i++) {
+                if (!objects[i].isVisible() || boxDistance2(objectBounds, i * 6, x, y, z) > radius2)
+                    continue;
+                out.add(objects[i]);
+                found++;
+            }
+        } // while stack is not empty
+        return found;
+    } // int queryRadius(...)
+
+    /**
+     * Appends the visible objects intersecting the box (or fully inside of
+     * it when contained is true)
+     *
+     * @return number of the appended objects
+     */
+    public int queryBox(BoundingBox box, boolean contained, Array<SpatialObject> out) {
+        if (box == null || out == null)
+            throw new IllegalArgumentException("box and out cannot be null");
+        if (objectCount == 0)
+            return 0;
+        final float minX = box.min.x, minY = box.min.y, minZ = box.min.z;
+        final float maxX = box.max.x, maxY = box.max.y, maxZ = box.max.z;
+        int found = 0;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            final int b = node * 6;
+            if (nodeBounds[b] > maxX || nodeBounds[b + 3] < minX ||
+                    nodeBounds[b + 1] > maxY || nodeBounds[b + 4] < minY ||
+                    nodeBounds[b + 2] > maxZ || nodeBounds[b + 5] < minZ)
+                continue;
+            final int count = nodeCount[node];
+            if (count == 0) {
+                stack[top++] = nodeIndex[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            final int first = nodeIndex[node];
+            for (int i = first; i < first + count; i++) {
+                final int o = i * 6;
+                final boolean hit;
+                if (contained) {
+                    hit = objectBounds[o] >= minX && objectBounds[o + 3] <= maxX &&
+                            objectBounds[o + 1] >= minY && objectBounds[o + 4] <= maxY &&
+                            objectBounds[o + 2] >= minZ && objectBounds[o + 5] <= maxZ;
+                } else {
+                    hit = objectBounds[o] <= maxX && objectBounds[o + 3] >= minX &&
+                            objectBounds[o + 1] <= maxY && objectBounds[o + 4] >= minY &&
+                            objectBounds[o + 2] <= maxZ && objectBounds[o + 5] >= minZ;
+                }
+                if (!hit || !objects[i].isVisible())
+                    continue;
+                out.add(objects[i]);
+                found++;
+            } // for each object in the leaf
+        } // while stack is not empty
+        return found;
+    } // int queryBox(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Distance between the ray (from the origin on) and the point
+     */
+    protected static float rayDistance(Ray ray, float x, float y, float z) {
+        final float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+        final float px = x - ray.origin.x, py = y - ray.origin.y, pz = z - ray.origin.z;
+        final float dd = dx * dx + dy * dy + dz * dz;
+        float t = dd > 0.0f ? (px * dx + py * dy + pz * dz) / dd : 0.0f;
+        if (t < 0.0f)
+            t = 0.0f;
+        final float ex = px - dx * t, ey = py - dy * t, ez = pz - dz * t;
+        return (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+    } // float rayDistance(...)
+
+    /**
+     * Lower bound of the distance between the ray and the object spheres of
+     * the node
+     */
+    protected float nodeRayDistance(Ray ray, int node) {
+        final int s = node * 4;
+        final float distance = rayDistance(ray, nodeSpheres[s], nodeSpheres[s + 1], nodeSpheres[s + 2]) - nodeSpheres[s + 3];
+        return distance > 0.0f ? distance : 0.0f;
+    }
+
+    /**
+     * Finds the k visible objects with the bounding spheres nearest to the
+     * ray (0 for the spheres pierced by the ray). Objects are appended in the
+     * order of the distance.
+     *
+     * @param maxDistance objects further from the ray are ignored
+     * @param distances   receives the distances, can be null
+     * @return number of the appended objects
+     */
+    public int queryNearestToRay(Ray ray, int k, float maxDistance,
+                                 Array<SpatialObject> out, FloatArray distances) {
+        if (ray == null || out == null)
+            throw new IllegalArgumentException("ray and out cannot be null");
+        if (objectCount == 0 || k <= 0)
+            return 0;
+        if (nearestObjects.length < k) {
+            nearestObjects = new int[k];
+            nearestDistances = new float[k];
+        }
+        int found = 0;
+        float worst = maxDistance;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            if (nodeRayDistance(ray, node) > worst)
+                continue;
+            final int count = nodeCount[node];
+            if (count == 0) {
+                // the closer child is visited first
+                final int left = node + 1, right = nodeIndex[node];
+                if (nodeRayDistance(ray, left) <= nodeRayDistance(ray, right)) {
+                    stack[top++] = right;
+                    stack[top++] = left;
+                } else {
+                    stack[top++] = left;
+                    stack[top++] = right;
+                }
+                continue;
+            }
+            final int first = nodeIndex[node];
+            for (int i = first; i < first + count; i++) {
+                final int s = i * 4;
+                float distance = rayDistance(ray, objectSpheres[s], objectSpheres[s + 1], objectSpheres[s + 2]) - objectSpheres[s + 3];
+                if (distance < 0.0f)
+                    distance = 0.0f;
+                if (distance > worst || (found == k && distance >= worst) || !objects[i].isVisible())
+                    continue;
+                // sorted insert, the last one drops out when full
+                int j = found < k ? found++ : k - 1;
+                while (j > 0 && nearestDistances[j - 1] > distance) {
+                    nearestDistances[j] = nearestDistances[j - 1];
+                    nearestObjects[j] = nearestObjects[j - 1];
+                    j--;
+                }
+                nearestDistances[j] = distance;
+                nearestObjects[j] = i;
+                if (found == k)
+                    worst = nearestDistances[k - 1];
+            } // for each object in the leaf
+        } // while stack is not empty
+        for (int i = 0; i < found; i++) {
+            out.add(objects[nearestObjects[i]]);
+            if (distances != null)
+                distances.add(nearestDistances[i]);
+        }
+        return found;
+    } // int queryNearestToRay(...)
+
+    /**
+     * Appends the visible objects with the world box or the bounding sphere
+     * passed by the ray (in the tree order) - the candidates of the ray
+     * picking stages
+     *
+     * @return number of the appended objects
+     */
+    public int queryRay(Ray ray, Array<SpatialObject> out) {
+        if (ray == null || out == null)
+            throw new IllegalArgumentException("ray and out cannot be null");
+        if (objectCount == 0)
+            return 0;
+        final float ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        final float ix = 1.0f / ray.direction.x, iy = 1.0f / ray.direction.y, iz = 1.0f / ray.direction.z;
+        int found = 0;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            if (boxEntry(nodeBounds, node * 6, ox, oy, oz, ix, iy, iz, Float.MAX_VALUE) < 0.0f &&
+                    nodeRayDistance(ray, node) > 0.0f)
+                continue;
+            final int count = nodeCount[node];
+            if (count == 0) {
+                stack[top++] = nodeIndex[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            final int first = nodeIndex[node];
+            for (int i = first; i < first + count; i++) {
+                if (!objects[i].isVisible())
+                    continue;
+                final int s = i * 4;
+                if (boxEntry(objectBounds, i * 6, ox, oy, oz, ix, iy, iz, Float.MAX_VALUE) < 0.0f &&
+                        rayDistance(ray, objectSpheres[s], objectSpheres[s + 1], objectSpheres[s + 2]) > objectSpheres[s + 3])
+                    continue;
+                out.add(objects[i]);
+                found++;
+            } // for each object in the leaf
+        } // while stack is not empty
+        return found;
+    } // int queryRay(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * @return entry distance of the ray into the box (0 when the origin is
+     * inside) or -1 when the box is missed or further than the limit
+     */
+    protected static float boxEntry(float[] bounds, int b, float ox, float oy, float oz,
+                                    float ix, float iy, float iz, float limit) {
+        float t0 = (bounds[b] - ox) * ix, t1 = (bounds[b + 3] - ox) * ix;
+        float tMin = Math.min(t0, t1), tMax = Math.max(t0, t1);
+        t0 = (bounds[b + 1] - oy) * iy;
+        t1 = (bounds[b + 4] - oy) * iy;
+        tMin = Math.max(tMin, Math.min(t0, t1));
+        tMax = Math.min(tMax, Math.max(t0, t1));
+        t0 = (bounds[b + 2] - oz) * iz;
+        t1 = (bounds[b + 5] - oz) * iz;
+        tMin = Math.max(tMin, Math.min(t0, t1));
+        tMax = Math.min(tMax, Math.max(t0, t1));
+        if (tMax < 0.0f || tMin > tMax || tMin > limit)
+            return -1.0f;
+        return tMin > 0.0f ? tMin : 0.0f;
+    } // float boxEntry(...)
+
+    /**
+     * Stores the cross product of the vectors at a and b (3 floats each) at out
+     */
+    protected static void cross(float[] v, int a, int b, float[] out, int o) {
+        final float x = v[a + 1] * v[b + 2] - v[a + 2] * v[b + 1];
+        final float y = v[a + 2] * v[b] - v[a] * v[b + 2];
+        final float z = v[a] * v[b + 1] - v[a + 1] * v[b];
+        out[o] = x;
+        out[o + 1] = y;
+        out[o + 2] = z;
+    }
+
+    /**
+     * Intersects the ray with the oriented box of the object (the world box
+     * when not available), stores the distances in hitEntry / hitExit
+     *
+     * @return false if the object is missed
+     */
+    protected boolean intersectObject(int i, Ray ray) {
+        final float ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        final float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+        float tMin = -Float.MAX_VALUE, tMax = Float.MAX_VALUE;
+        final OrientedBox orientedBox = objects[i].getOrientedBox();
+        if (orientedBox != null) {
+            final float cx = orientedBox.center.x - ox, cy = orientedBox.center.y - oy, cz = orientedBox.center.z - oz;
+            // the axes are not always perpendicular (non-uniform scale of the
+            // rotated objects) - the slab normals are the cross products of
+            // the other two axes, a flat axis is replaced by the normal
+            final float[] axes = tmpAxes;
+            for (int a = 0; a < 3; a++) {
+                final Vector3 h = orientedBox.halfAxes[a];
+                axes[a * 3] = h.x;
+                axes[a * 3 + 1] = h.y;
+                axes[a * 3 + 2] = h.z;
+            }
+            for (int a = 0; a < 3; a++) {
+                final int o = a * 3;
+                if (axes[o] == 0.0f && axes[o + 1] == 0.0f && axes[o + 2] == 0.0f)
+                    cross(axes, ((a + 1) % 3) * 3, ((a + 2) % 3) * 3, axes, o);
+            }
+            for (int a = 0; a < 3; a++) {
+                cross(axes, ((a + 1) % 3) * 3, ((a + 2) % 3) * 3, axes, 9);
+                final float nx = axes[9], ny = axes[10], nz = axes[11];
+                if (nx == 0.0f && ny == 0.0f && nz == 0.0f)
+                    continue; // degenerated to a line
+                final Vector3 h = orientedBox.halfAxes[a];
+                // slab along the axis, in the units of the normal length
+                final float extent = Math.abs(nx * h.x + ny * h.y + nz * h.z);
+                final float e = nx * cx + ny * cy + nz * cz;
+                final float f = nx * dx + ny * dy + nz * dz;
+                if (f > -1e-12f && f < 1e-12f) {
+                    if (-e - extent > 0.0f || -e + extent < 0.0f)
+                        return false;
+                    continue;
+                }
+                float t0 = (e + extent) / f, t1 = (e - extent) / f;
+                if (t0 > t1) {
+                    final float tmp = t0;
+                    t0 = t1;
+                    t1 = tmp;
+                }
+                if (t0 > tMin) tMin = t0;
+                if (t1 < tMax) tMax = t1;
+                if (tMin > tMax)
+                    return false;
+            } // for each axis
+        } else {
+            final int b = i * 6;
+            for (int a = 0; a < 3; a++) {
+                final float o = a == 0 ? ox : (a == 1 ? oy : oz);
+                final float d = a == 0 ? dx : (a == 1 ? dy : dz);
+                if (d > -1e-12f && d < 1e-12f) {
+                    if (o < objectBounds[b + a] || o > objectBounds[b + 3 + a])
+                        return false;
+                    continue;
+                }
+                float t0 = (objectBounds[b + a] - o) / d, t1 = (objectBounds[b + 3 + a] - o) / d;
+                if (t0 > t1) {
+                    final float tmp = t0;
+                    t0 = t1;
+                    t1 = tmp;
+                }
+                if (t0 > tMin) tMin = t0;
+                if (t1 < tMax) tMax = t1;
+                if (tMin > tMax)
+                    return false;
+            } // for each axis
+        }
+        if (tMax < 0.0f)
+            return false;
+        hitEntry = tMin > 0.0f ? tMin : 0.0f;
+        hitExit = tMax;
+        return true;
+    } // boolean intersectObject(...)
+
+    /**
+     * Collects all visible objects passed by the ray (oriented boxes when
+     * available, world boxes otherwise) sorted by the entry distance. The
+     * buffer is cleared first. With maxHits only the nearest hits are kept
+     * and the tree behind them is skipped.
+     *
+     * @param maxDistance hits entering further than this are ignored
+     * @param maxHits     maximal number of the hits, 0 or less for no limit
+     * @return number of the hits
+     */
+    public int queryPiercing(Ray ray, float maxDistance, int maxHits, RayHitBuffer out) {
+        if (ray == null || out == null)
+            throw new IllegalArgumentException("ray and out cannot be null");
+        out.clear();
+        if (objectCount == 0)
+            return 0;
+        final float ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        final float ix = 1.0f / ray.direction.x, iy = 1.0f / ray.direction.y, iz = 1.0f / ray.direction.z;
+        float limit = maxDistance;
+        int farthest = -1;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            if (boxEntry(nodeBounds, node * 6, ox, oy, oz, ix, iy, iz, limit) < 0.0f)
+                continue;
+            final int count = nodeCount[node];
+            if (count == 0) {
+                // front to back - the limit shrinks sooner with maxHits
+                final int left = node + 1, right = nodeIndex[node];
+                float entryLeft = boxEntry(nodeBounds, left * 6, ox, oy, oz, ix, iy, iz, limit);
+                float entryRight = boxEntry(nodeBounds, right * 6, ox, oy, oz, ix, iy, iz, limit);
+                if (entryLeft < 0.0f) entryLeft = Float.MAX_VALUE;
+                if (entryRight < 0.0f) entryRight = Float.MAX_VALUE;
+                if (entryLeft <= entryRight) {
+                    stack[top++] = right;
+                    stack[top++] = left;
+                } else {
+                    stack[top++] = left;
+                    stack[top++] = right;
+                }
+                continue;
+            }
+            final int first = nodeIndex[node];
+            for (int i = first; i < first + count; i++) {
+                if (!objects[i].isVisible() || !intersectObject(i, ray) || hitEntry > limit)
+                    continue;
+                if (maxHits <= 0 || out.size() < maxHits) {
+                    out.add(objects[i], hitEntry, hitExit);
+                    if (out.size() == maxHits) {
+                        farthest = out.findFarthest();
+                        limit = Math.min(limit, out.getEntryDistance(farthest));
+                    }
+                } else if (hitEntry < limit) {
+                    // replaces the farthest of the kept hits
+                    out.set(farthest, objects[i], hitEntry, hitExit);
+                    farthest = out.findFarthest();
+                    limit = Math.min(maxDistance, out.getEntryDistance(farthest));
+                }
+            } // for each object in the leaf
+        } // while stack is not empty
+        out.finish(ray);
+        return out.size();
+    } // int queryPiercing(...)
+
+    //-------------------------------------------------------------------------
+
+} // class SpatialIndex
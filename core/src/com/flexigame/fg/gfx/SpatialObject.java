@@ -21,6 +21,12 @@ public interface SpatialObject {
     Vector3 getCenter();
     float getRadius();
 
+    /* Bounding sphere used for the ray tests - can be tighter than getRadius() */
+    Vector3 getSphereCenter();
+    float getSphereRadius();
+    /* Oriented box fitted to the object or null when not available */
+    OrientedBox getOrientedBox();
+
     Matrix4 getTransform();
 
     void setPosition(Vector3 position);
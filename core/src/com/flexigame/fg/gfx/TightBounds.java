@@ -0,0 +1,294 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+
+/**
+ * Model space bounding volumes fitted to the vertex data - near minimal
+ * bounding sphere (Ritter's sphere refined by shrink & regrow passes) and
+ * oriented box with axes found by the principal component analysis of the
+ * vertices (falls back to the axis aligned box if that one is smaller).
+ * Computing is expensive (reads back all vertices), should be done once per
+ * Model - see ModelBoundsCache.
+ */
+public class TightBounds {
+
+    /* Number of shrink & regrow passes refining the bounding sphere */
+    public static final int SPHERE_REFINE_PASSES = 8;
+    protected static final int JACOBI_MAX_SWEEPS = 32;
+
+    public final Vector3 sphereCenter = new Vector3();
+    public float sphereRadius = 0.0f;
+    public final OrientedBox box = new OrientedBox();
+    /* Number of vertices used for fitting */
+    public int vertexCount = 0;
+
+    //-------------------------------------------------------------------------
+
+    public TightBounds() {
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Fits the volumes to all vertices of the nodes (with children) - node
+     * global transformations are used, so the nodes need to be up to date.
+     */
+    public TightBounds compute(Array<Node> nodes) {
+        FloatArray points = new FloatArray(256 * 3);
+        for (int i = 0; i < nodes.size; i++)
+            gatherPoints(nodes.get(i), points);
+        return compute(points.items, points.size / 3);
+    } // TightBounds compute(...)
+
+    public TightBounds compute(float[] points, int count) {
+        vertexCount = count;
+        if (count == 0) {
+            sphereCenter.setZero();
+            sphereRadius = 0.0f;
+            box.center.setZero();
+            for (int i = 0; i < 3; i++)
+                box.halfAxes[i].setZero();
+            return this;
+        }
+        computeSphere(points, count);
+        computeBox(points, count);
+        return this;
+    } // TightBounds compute(...)
+
+    //-------------------------------------------------------------------------
+
+    protected static void gatherPoints(Node node, FloatArray points) {
+        final Matrix4 m = node.globalTransform;
+        final float[] t = m.val;
+        for (int p = 0; p < node.parts.size; p++) {
+            NodePart nodePart = node.parts.get(p);
+            if (!nodePart.enabled)
+                continue;
+            final Mesh mesh = nodePart.meshPart.mesh;
+            final VertexAttribute position = mesh.getVertexAttribute(VertexAttributes.Usage.Position);
+            if (position == null)
+                continue;
+            final int stride = mesh.getVertexSize() / 4;
+            final int posOffset = position.offset / 4;
+            final int numComponents = position.numComponents;
+            final float[] vertices = new float[mesh.getNumVertices() * stride];
+            mesh.getVertices(vertices);
+            final int offset = nodePart.meshPart.offset;
+            final int size = nodePart.meshPart.size;
+            short[] indices = null;
+            if (mesh.getNumIndices() > 0) {
+                indices = new short[mesh.getNumIndices()];
+                mesh.getIndices(indices);
+            }
+            points.ensureCapacity(size * 3);
+            for (int i = offset; i < offset + size; i++) {
+                final int vertex = indices != null ? (indices[i] & 0xFFFF) : i;
+                final int v = vertex * stride + posOffset;
+                final float x = vertices[v];
+                final float y = numComponents > 1 ? vertices[v + 1] : 0.0f;
+                final float z = numComponents > 2 ? vertices[v + 2] : 0.0f;
+                points.add(t[Matrix4.M00] * x + t[Matrix4.M01] * y + t[Matrix4.M02] * z + t[Matrix4.M03]);
+                points.add(t[Matrix4.M10] * x + t[Matrix4.M11] * y + t[Matrix4.M12] * z + t[Matrix4.M13]);
+                points.add(t[Matrix4.M20] * x + t[Matrix4.M21] * y + t[Matrix4.M22] * z + t[Matrix4.M23]);
+            }
+        } // for each node part
+        for (int i = 0; i < node.getChildCount(); i++)
+            gatherPoints(node.getChild(i), points);
+    } // static void gatherPoints(...)
+
+    //-------------------------------------------------------------------------
+
+    protected void computeSphere(float[] points, int count) {
+        // Ritter: start with the sphere spanning two distant points
+        int a = farthestPoint(points, count, points[0], points[1], points[2]);
+        int b = farthestPoint(points, count, points[a * 3], points[a * 3 + 1], points[a * 3 + 2]);
+        float cx = (points[a * 3] + points[b * 3]) * 0.5f;
+        float cy = (points[a * 3 + 1] + points[b * 3 + 1]) * 0.5f;
+        float cz = (points[a * 3 + 2] + points[b * 3 + 2]) * 0.5f;
+        float dx = points[a * 3] - cx, dy = points[a * 3 + 1] - cy, dz = points[a * 3 + 2] - cz;
+        sphereCenter.set(cx, cy, cz);
+        sphereRadius = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        sphereRadius = growSphere(sphereCenter, sphereRadius, points, count, 0);
+        // refinement - shrink the sphere and grow it again starting from
+        // different points, keep the smallest one
+        final Vector3 candidate = new Vector3();
+        for (int pass = 0; pass < SPHERE_REFINE_PASSES; pass++) {
+            candidate.set(sphereCenter);
+            final int start = (int) ((long) (pass + 1) * count / (SPHERE_REFINE_PASSES + 1));
+            final float radius = growSphere(candidate, sphereRadius * 0.95f, points, count, start);
+            if (radius < sphereRadius) {
+                sphereCenter.set(candidate);
+                sphereRadius = radius;
+            }
+        }
+    } // void computeSphere(...)
+
+    /**
+     * Grows the sphere to contain all points (visited from the start index,
+     * wrapping around)
+     *
+     * @return new radius (center is updated in place)
+     */
+    protected float growSphere(Vector3 center, float radius, float[] points, int count, int start) {
+        float cx = center.x, cy = center.y, cz = center.z;
+        float radiusSq = radius * radius;
+        for (int n = 0; n < count; n++) {
+            final int i = ((start + n) % count) * 3;
+            final float dx = points[i] - cx, dy = points[i + 1] - cy, dz = points[i + 2] - cz;
+            final float distSq = dx * dx + dy * dy + dz * dz;
+            if (distSq <= radiusSq)
+                continue;
+            final float dist = (float) Math.sqrt(distSq);
+            final float newRadius = (radius + dist) * 0.5f;
+            final float k = (newRadius - radius) / dist;
+            radius = newRadius;
+            radiusSq = radius * radius;
+            cx += dx * k;
+            cy += dy * k;
+            cz += dz * k;
+        }
+        // float rounding - make sure all points are really inside
+        for (int n = 0; n < count; n++) {
+            final int i = n * 3;
+            final float dx = points[i] - cx, dy = points[i + 1] - cy, dz = points[i + 2] - cz;
+            final float distSq = dx * dx + dy * dy + dz * dz;
+            if (distSq > radiusSq) {
+                radius = (float) Math.sqrt(distSq);
+                radiusSq = distSq;
+            }
+        }
+        center.set(cx, cy, cz);
+        return radius;
+    } // float growSphere(...)
+
+    protected static int farthestPoint(float[] points, int count, float x, float y, float z) {
+        int index = 0;
+        float maxDistSq = -1.0f;
+        for (int n = 0; n < count; n++) {
+            final int i = n * 3;
+            final float dx = points[i] - x, dy = points[i + 1] - y, dz = points[i + 2] - z;
+            final float distSq = dx * dx + dy * dy + dz * dz;
+            if (distSq > maxDistSq) {
+                maxDistSq = distSq;
+                index = n;
+            }
+        }
+        return index;
+    } // static int farthestPoint(...)
+
+    //-------------------------------------------------------------------------
+
+    protected void computeBox(float[] points, int count) {
+        // covariance matrix of the points
+        double mx = 0.0, my = 0.0, mz = 0.0;
+        for (int n = 0; n < count; n++) {
+            mx += points[n * 3];
+            my += points[n * 3 + 1];
+            mz += points[n * 3 + 2];
+        }
+        mx /= count;
+        my /= count;
+        mz /= count;
+        final double[][] cov = new double[3][3];
+        for (int n = 0; n < count; n++) {
+            final double x = points[n * 3] - mx, y = points[n * 3 + 1] - my, z = points[n * 3 + 2] - mz;
+            cov[0][0] += x * x;
+            cov[0][1] += x * y;
+            cov[0][2] += x * z;
+            cov[1][1] += y * y;
+            cov[1][2] += y * z;
+            cov[2][2] += z * z;
+        }
+        cov[1][0] = cov[0][1];
+        cov[2][0] = cov[0][2];
+        cov[2][1] = cov[1][2];
+        final double[][] vectors = new double[3][3];
+        jacobiEigenvectors(cov, vectors);
+
+        final Vector3[] axes = {new Vector3(), new Vector3(), new Vector3()};
+        for (int i = 0; i < 3; i++)
+            axes[i].set((float) vectors[0][i], (float) vectors[1][i], (float) vectors[2][i]).nor();
+        axes[2].set(axes[0]).crs(axes[1]).nor(); // right handed
+        fitBox(box, axes, points, count);
+
+        // principal axes are not always the best - compare with the AABB
+        final OrientedBox aabb = new OrientedBox();
+        axes[0].set(Vector3.X);
+        axes[1].set(Vector3.Y);
+        axes[2].set(Vector3.Z);
+        fitBox(aabb, axes, points, count);
+        if (aabb.volume() <= box.volume())
+            box.set(aabb);
+    } // void computeBox(...)
+
+    protected static void fitBox(OrientedBox out, Vector3[] axes, float[] points, int count) {
+        final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int n = 0; n < count; n++) {
+            final float x = points[n * 3], y = points[n * 3 + 1], z = points[n * 3 + 2];
+            for (int a = 0; a < 3; a++) {
+                final float d = axes[a].x * x + axes[a].y * y + axes[a].z * z;
+                if (d < min[a]) min[a] = d;
+                if (d > max[a]) max[a] = d;
+            }
+        }
+        out.center.setZero();
+        for (int a = 0; a < 3; a++) {
+            final float mid = (min[a] + max[a]) * 0.5f;
+            out.center.mulAdd(axes[a], mid);
+            out.halfAxes[a].set(axes[a]).scl((max[a] - min[a]) * 0.5f);
+        }
+    } // static void fitBox(...)
+
+    /**
+     * Cyclic Jacobi method for the symmetric 3x3 matrix - the matrix is
+     * destroyed, eigenvectors are stored in the columns of the output.
+     */
+    protected static void jacobiEigenvectors(double[][] a, double[][] v) {
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 3; j++)
+                v[i][j] = (i == j) ? 1.0 : 0.0;
+        for (int sweep = 0; sweep < JACOBI_MAX_SWEEPS; sweep++) {
+            final double off = Math.abs(a[0][1]) + Math.abs(a[0][2]) + Math.abs(a[1][2]);
+            if (off < 1e-12)
+                break;
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    if (Math.abs(a[p][q]) < 1e-15)
+                        continue;
+                    final double theta = (a[q][q] - a[p][p]) / (2.0 * a[p][q]);
+                    final double t = Math.signum(theta == 0.0 ? 1.0 : theta) /
+                            (Math.abs(theta) + Math.sqrt(theta * theta + 1.0));
+                    final double c = 1.0 / Math.sqrt(t * t + 1.0);
+                    final double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        final double akp = a[k][p], akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        final double apk = a[p][k], aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        final double vkp = v[k][p], vkq = v[k][q];
+                        v[k][p] = c * vkp - s * vkq;
+                        v[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        } // for each sweep
+    } // static void jacobiEigenvectors(...)
+
+    //-------------------------------------------------------------------------
+
+} // class TightBounds
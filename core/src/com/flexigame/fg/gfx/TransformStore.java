@@ -0,0 +1,262 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+
+/**
+ * Data oriented (structure of arrays) storage for transformations and
+ * bounding volumes of the game objects. Every object occupies one slot (same
+ * as the index in the scene manager). Transformations of the changed objects
+ * are copied in and marked dirty, then world bounding boxes for all dirty
+ * slots are recomputed in a single linear sweep using the absolute matrix
+ * method (center is transformed, extent is multiplied by the absolute values
+ * of the rotation/scale part) - no need to transform 8 corners.
+ */
+public class TransformStore {
+
+    public static final int MATRIX_SIZE = 16;
+
+    protected int size = 0;
+    protected int capacity = 0;
+    /* Column-major 4x4 matrices, 16 floats per slot */
+    protected float[] transforms;
+    /* Model space bounding box center, 3 floats per slot */
+    protected float[] localCenters;
+    /* Model space bounding box half extent, 3 floats per slot */
+    protected float[] localExtents;
+    /* World space AABB center, 3 floats per slot */
+    protected float[] worldCenters;
+    /* World space AABB half extent, 3 floats per slot */
+    protected float[] worldExtents;
+    /* Bounding sphere radius (scaled local extent), 1 float per slot */
+    protected float[] radii;
+    /* Whether or not the slot needs the world bounds recomputed */
+    protected boolean[] dirty;
+
+    //-------------------------------------------------------------------------
+
+    public TransformStore() {
+        this(16);
+    }
+
+    public TransformStore(int initialCapacity) {
+        ensureCapacity(Math.max(initialCapacity, 1));
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public float[] getTransforms() {
+        return transforms;
+    }
+
+    public float[] getLocalCenters() {
+        return localCenters;
+    }
+
+    public float[] getLocalExtents() {
+        return localExtents;
+    }
+
+    public float[] getWorldCenters() {
+        return worldCenters;
+    }
+
+    public float[] getWorldExtents() {
+        return worldExtents;
+    }
+
+    public float[] getRadii() {
+        return radii;
+    }
+
+    public boolean isDirty(int slot) {
+        return dirty[slot];
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void ensureCapacity(int newCapacity) {
+        if (newCapacity <= capacity)
+            return;
+        newCapacity = Math.max(newCapacity, capacity + (capacity >> 1));
+        transforms = resize(transforms, newCapacity * MATRIX_SIZE);
+        localCenters = resize(localCenters, newCapacity * 3);
+        localExtents = resize(localExtents, newCapacity * 3);
+        worldCenters = resize(worldCenters, newCapacity * 3);
+        worldExtents = resize(worldExtents, newCapacity * 3);
+        radii = resize(radii, newCapacity);
+        boolean[] newDirty = new boolean[newCapacity];
+        if (dirty != null)
+            System.arraycopy(dirty, 0, newDirty, 0, size);
+        dirty = newDirty;
+        capacity = newCapacity;
+    } // void ensureCapacity(...)
+
+    protected float[] resize(float[] array, int length) {
+        float[] newArray = new float[length];
+        if (array != null)
+            System.arraycopy(array, 0, newArray, 0, Math.min(array.length, length));
+        return newArray;
+    }
+
+    /**
+     * Appends new slot at the end of the store
+     *
+     * @return index of the new slot
+     */
+    public int add(BoundingBox localBounds, Matrix4 transform) {
+        ensureCapacity(size + 1);
+        final int slot = size++;
+        setLocalBounds(slot, localBounds);
+        setTransform(slot, transform);
+        return slot;
+    }
+
+    /**
+     * Removes the slot, all following slots are shifted down by one (the same
+     * way as indices of objects in the scene manager).
+     */
+    public void remove(int slot) {
+        if (slot < 0 || slot >= size)
+            throw new IndexOutOfBoundsException("slot can't be >= size: " + slot + " >= " + size);
+        final int count = size - slot - 1;
+        if (count > 0) {
+            System.arraycopy(transforms, (slot + 1) * MATRIX_SIZE, transforms, slot * MATRIX_SIZE, count * MATRIX_SIZE);
+            System.arraycopy(localCenters, (slot + 1) * 3, localCenters, slot * 3, count * 3);
+            System.arraycopy(localExtents, (slot + 1) * 3, localExtents, slot * 3, count * 3);
+            System.arraycopy(worldCenters, (slot + 1) * 3, worldCenters, slot * 3, count * 3);
+            System.arraycopy(worldExtents, (slot + 1) * 3, worldExtents, slot * 3, count * 3);
+            System.arraycopy(radii, slot + 1, radii, slot, count);
+            System.arraycopy(dirty, slot + 1, dirty, slot, count);
+        }
+        size--;
+        dirty[size] = false;
+    } // void remove(...)
+
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            dirty[i] = false;
+        size = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void setLocalBounds(int slot, BoundingBox localBounds) {
+        final int i = slot * 3;
+        localCenters[i + 0] = (localBounds.min.x + localBounds.max.x) * 0.5f;
+        localCenters[i + 1] = (localBounds.min.y + localBounds.max.y) * 0.5f;
+        localCenters[i + 2] = (localBounds.min.z + localBounds.max.z) * 0.5f;
+        localExtents[i + 0] = (localBounds.max.x - localBounds.min.x) * 0.5f;
+        localExtents[i + 1] = (localBounds.max.y - localBounds.min.y) * 0.5f;
+        localExtents[i + 2] = (localBounds.max.z - localBounds.min.z) * 0.5f;
+        dirty[slot] = true;
+    } // void setLocalBounds(...)
+
+    public void setTransform(int slot, Matrix4 transform) {
+        System.arraycopy(transform.val, 0, transforms, slot * MATRIX_SIZE, MATRIX_SIZE);
+        dirty[slot] = true;
+    }
+
+    public void getWorldCenter(int slot, Vector3 out) {
+        final int i = slot * 3;
+        out.set(worldCenters[i], worldCenters[i + 1], worldCenters[i + 2]);
+    }
+
+    public void getWorldExtent(int slot, Vector3 out) {
+        final int i = slot * 3;
+        out.set(worldExtents[i], worldExtents[i + 1], worldExtents[i + 2]);
+    }
+
+    public void getWorldBounds(int slot, BoundingBox out) {
+        final int i = slot * 3;
+        final float cx = worldCenters[i], cy = worldCenters[i + 1], cz = worldCenters[i + 2];
+        final float ex = worldExtents[i], ey = worldExtents[i + 1], ez = worldExtents[i + 2];
+        out.min.set(cx - ex, cy - ey, cz - ez);
+        out.max.set(cx + ex, cy + ey, cz + ez);
+        out.set(out.min, out.max);
+    }
+
+    public float getRadius(int slot) {
+        return radii[slot];
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Recomputes world bounds for all dirty slots in range [from, to).
+     * Different ranges can be processed in parallel.
+     *
+     * @return number of updated slots
+     */
+    public int updateBounds(int from, int to) {
+        final float[] m = transforms;
+        final float[] lc = localCenters, le = localExtents;
+        final float[] wc = worldCenters, we = worldExtents;
+        int updated = 0;
+        if (to > size)
+            to = size;
+        for (int slot = from; slot < to; slot++) {
+            if (!dirty[slot])
+                continue;
+            final int o = slot * MATRIX_SIZE;
+            final int i = slot * 3;
+            final float m00 = m[o + Matrix4.M00], m01 = m[o + Matrix4.M01], m02 = m[o + Matrix4.M02];
+            final float m10 = m[o + Matrix4.M10], m11 = m[o + Matrix4.M11], m12 = m[o + Matrix4.M12];
+            final float m20 = m[o + Matrix4.M20], m21 = m[o + Matrix4.M21], m22 = m[o + Matrix4.M22];
+            final float cx = lc[i], cy = lc[i + 1], cz = lc[i + 2];
+            final float ex = le[i], ey = le[i + 1], ez = le[i + 2];
+
+            wc[i + 0] = m00 * cx + m01 * cy + m02 * cz + m[o + Matrix4.M03];
+            wc[i + 1] = m10 * cx + m11 * cy + m12 * cz + m[o + Matrix4.M13];
+            wc[i + 2] = m20 * cx + m21 * cy + m22 * cz + m[o + Matrix4.M23];
+
+            we[i + 0] = Math.abs(m00) * ex + Math.abs(m01) * ey + Math.abs(m02) * ez;
+            we[i + 1] = Math.abs(m10) * ex + Math.abs(m11) * ey + Math.abs(m12) * ez;
+            we[i + 2] = Math.abs(m20) * ex + Math.abs(m21) * ey + Math.abs(m22) * ez;
+
+            radii[slot] = getBoxRadius(m, o, ex, ey, ez);
+
+            dirty[slot] = false;
+            updated++;
+        } // for each slot in range
+        return updated;
+    } // int updateBounds(...)
+
+    public int updateBounds() {
+        return updateBounds(0, size);
+    }
+
+    /**
+     * Distance of the farthest corner of the transformed box from its center
+     * - exact also for the sheared matrices (non-uniform scale of a parent
+     * with a rotated child), the column lengths alone are not enough there
+     *
+     * @param m matrix values starting at the offset o
+     */
+    public static float getBoxRadius(float[] m, int o, float ex, float ey, float ez) {
+        // half edges of the transformed box
+        final float ux = m[o + Matrix4.M00] * ex, uy = m[o + Matrix4.M10] * ex, uz = m[o + Matrix4.M20] * ex;
+        final float vx = m[o + Matrix4.M01] * ey, vy = m[o + Matrix4.M11] * ey, vz = m[o + Matrix4.M21] * ey;
+        final float wx = m[o + Matrix4.M02] * ez, wy = m[o + Matrix4.M12] * ez, wz = m[o + Matrix4.M22] * ez;
+        // the other four corners are mirrored
+        float max = 0.0f;
+        for (int corner = 0; corner < 4; corner++) {
+            final float sv = (corner & 2) != 0 ? -1.0f : 1.0f, sw = (corner & 1) != 0 ? -1.0f : 1.0f;
+            final float x = ux + sv * vx + sw * wx, y = uy + sv * vy + sw * wy, z = uz + sv * vz + sw * wz;
+            max = Math.max(max, x * x + y * y + z * z);
+        }
+        return (float) Math.sqrt(max);
+    } // float getBoxRadius(...)
+
+    //-------------------------------------------------------------------------
+
+} // class TransformStore
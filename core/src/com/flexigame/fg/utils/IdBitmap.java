@@ -0,0 +1,589 @@
+package com.flexigame.fg.utils;
+
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Compressed set of int IDs (roaring style). The IDs are split by the high
+ * 16 bits into containers - a sparse container keeps the sorted low 16 bits
+ * (2 bytes per ID), a dense one (more than 4096 IDs) is a bitmap of 1024
+ * longs (8 kB). 100k contiguous IDs take about 16 kB. Set operations work
+ * on whole 64 bit words. Released containers and helper arrays are kept for
+ * reuse - repeated operations on the same bitmaps do not allocate (trim()
+ * releases them).
+ */
+public class IdBitmap {
+
+    /* Maximum size of the sparse container */
+    public static final int ARRAY_MAX = 4096;
+    protected static final int WORDS = 1024;
+
+    protected static final int OP_OR = 0;
+    protected static final int OP_AND = 1;
+    protected static final int OP_AND_NOT = 2;
+    protected static final int OP_XOR = 3;
+
+    protected static final class Container {
+        /* Sorted low bits (sparse), null when dense */
+        char[] values;
+        /* Bitmap of the low bits (dense), null when sparse */
+        long[] words;
+        int cardinality;
+        /* Array of the other form kept after the conversion (reused) */
+        char[] spareValues;
+        long[] spareWords;
+
+        Container() {
+            values = new char[4];
+        }
+
+        void copyFrom(Container other) {
+            cardinality = other.cardinality;
+            if (other.words != null) {
+                makeDense();
+                System.arraycopy(other.words, 0, words, 0, WORDS);
+            } else {
+                makeSparse(cardinality);
+                System.arraycopy(other.values, 0, values, 0, cardinality);
+            }
+        } // void copyFrom(...)
+
+        /**
+         * Switches to the bitmap form, the content of the words is undefined
+         */
+        void makeDense() {
+            if (words != null)
+                return;
+            words = spareWords != null ? spareWords : new long[WORDS];
+            spareWords = null;
+            spareValues = values;
+            values = null;
+        } // void makeDense()
+
+        /**
+         * Switches to the sorted form with the room for the capacity values,
+         * the content of the values is undefined
+         */
+        void makeSparse(int capacity) {
+            if (words != null) {
+                spareWords = words;
+                words = null;
+                values = spareValues;
+                spareValues = null;
+            }
+            if (values == null)
+                values = new char[Math.max(capacity, 4)];
+            else if (values.length < capacity)
+                values = new char[Math.min(ARRAY_MAX, Math.max(capacity, values.length * 2))];
+        } // void makeSparse(...)
+
+        void reset() {
+            makeSparse(0);
+            cardinality = 0;
+        }
+
+        int indexOf(char low) {
+            int from = 0, to = cardinality - 1;
+            while (from <= to) {
+                final int middle = (from + to) >>> 1;
+                final char value = values[middle];
+                if (value < low)
+                    from = middle + 1;
+                else if (value > low)
+                    to = middle - 1;
+                else
+                    return middle;
+            }
+            return -(from + 1);
+        } // int indexOf(...)
+
+        boolean contains(char low) {
+            if (words != null)
+                return (words[low >>> 6] & (1L << low)) != 0;
+            return indexOf(low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (words != null) {
+                final long bit = 1L << low;
+                if ((words[low >>> 6] & bit) != 0)
+                    return false;
+                words[low >>> 6] |= bit;
+                cardinality++;
+                return true;
+            }
+            int index = indexOf(low);
+            if (index >= 0)
+                return false;
+            if (cardinality == ARRAY_MAX) {
+                toWords();
+                return add(low);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                char[] grown = new char[Math.min(ARRAY_MAX, values.length * 2)];
+                System.arraycopy(values, 0, grown, 0, cardinality);
+                values = grown;
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = low;
+            cardinality++;
+            return true;
+        } // boolean add(...)
+
+        boolean remove(char low) {
+            if (words != null) {
+                final long bit = 1L << low;
+                if ((words[low >>> 6] & bit) == 0)
+                    return false;
+                words[low >>> 6] &= ~bit;
+                cardinality--;
+                if (cardinality <= ARRAY_MAX)
+                    toValues(words);
+                return true;
+            }
+            final int index = indexOf(low);
+            if (index < 0)
+                return false;
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+            return true;
+        } // boolean remove(...)
+
+        void toWords() {
+            final char[] sparse = values;
+            makeDense();
+            for (int w = 0; w < WORDS; w++)
+                words[w] = 0L;
+            for (int i = 0; i < cardinality; i++) {
+                final char low = sparse[i];
+                words[low >>> 6] |= 1L << low;
+            }
+        } // void toWords()
+
+        /**
+         * Sets the sparse content from the bitmap (cardinality must be set)
+         */
+        void toValues(long[] bitmap) {
+            makeSparse(cardinality);
+            int count = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = bitmap[w];
+                while (word != 0) {
+                    values[count++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        } // void toValues(...)
+
+        void getWords(long[] out) {
+            if (words != null) {
+                System.arraycopy(words, 0, out, 0, WORDS);
+                return;
+            }
+            for (int w = 0; w < WORDS; w++)
+                out[w] = 0L;
+            for (int i = 0; i < cardinality; i++) {
+                final char low = values[i];
+                out[low >>> 6] |= 1L << low;
+            }
+        } // void getWords(...)
+
+        void trim() {
+            spareValues = null;
+            spareWords = null;
+            if (values != null && values.length > cardinality) {
+                char[] trimmed = new char[Math.max(cardinality, 1)];
+                System.arraycopy(values, 0, trimmed, 0, cardinality);
+                values = trimmed;
+            }
+        }
+
+        int getSizeInBytes() {
+            if (words != null)
+                return WORDS * 8 + 16;
+            return values.length * 2 + 16;
+        }
+    } // static final class Container
+
+    //-------------------------------------------------------------------------
+
+    /* High 16 bits of the containers, sorted */
+    protected int[] keys;
+    protected Container[] containers;
+    protected int size = 0;
+    /* Helper bitmaps for the set operations */
+    protected long[] tmpWordsA = null;
+    protected long[] tmpWordsB = null;
+    /* Helper arrays for merging the containers (swapped with the current ones) */
+    protected int[] tmpKeys = null;
+    protected Container[] tmpContainers = null;
+    /* Released containers */
+    protected Container[] pool = null;
+    protected int poolSize = 0;
+
+    //-------------------------------------------------------------------------
+
+    public IdBitmap() {
+        keys = new int[4];
+        containers = new Container[4];
+    }
+
+    public IdBitmap(IdBitmap other) {
+        keys = new int[Math.max(other.size, 1)];
+        containers = new Container[Math.max(other.size, 1)];
+        set(other);
+    }
+
+    //-------------------------------------------------------------------------
+
+    protected int indexOfKey(int key) {
+        int from = 0, to = size - 1;
+        while (from <= to) {
+            final int middle = (from + to) >>> 1;
+            final int value = keys[middle];
+            if (value < key)
+                from = middle + 1;
+            else if (value > key)
+                to = middle - 1;
+            else
+                return middle;
+        }
+        return -(from + 1);
+    } // int indexOfKey(...)
+
+    protected void insertContainer(int index, int key, Container container) {
+        if (size == keys.length) {
+            int[] grownKeys = new int[size * 2];
+            Container[] grownContainers = new Container[size * 2];
+            System.arraycopy(keys, 0, grownKeys, 0, size);
+            System.arraycopy(containers, 0, grownContainers, 0, size);
+            keys = grownKeys;
+            containers = grownContainers;
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    } // void insertContainer(...)
+
+    protected Container obtainContainer() {
+        if (poolSize == 0)
+            return new Container();
+        final Container container = pool[--poolSize];
+        pool[poolSize] = null;
+        return container;
+    }
+
+    protected void releaseContainer(Container container) {
+        container.reset();
+        if (pool == null) {
+            pool = new Container[4];
+        } else if (poolSize == pool.length) {
+            Container[] grown = new Container[poolSize * 2];
+            System.arraycopy(pool, 0, grown, 0, poolSize);
+            pool = grown;
+        }
+        pool[poolSize++] = container;
+    } // void releaseContainer(...)
+
+    protected void removeContainer(int index) {
+        releaseContainer(containers[index]);
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        size--;
+        containers[size] = null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public boolean add(int id) {
+        final int key = id >>> 16;
+        int index = indexOfKey(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, obtainContainer());
+        }
+        return containers[index].add((char) id);
+    }
+
+    public boolean remove(int id) {
+        final int index = indexOfKey(id >>> 16);
+        if (index < 0)
+            return false;
+        final Container container = containers[index];
+        if (!container.remove((char) id))
+            return false;
+        if (container.cardinality == 0)
+            removeContainer(index);
+        return true;
+    } // boolean remove(...)
+
+    public boolean contains(int id) {
+        final int index = indexOfKey(id >>> 16);
+        return index >= 0 && containers[index].contains((char) id);
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            releaseContainer(containers[i]);
+            containers[i] = null;
+        }
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++)
+            cardinality += containers[i].cardinality;
+        return cardinality;
+    }
+
+    /**
+     * Replaces the content with the copy of the other bitmap
+     */
+    public IdBitmap set(IdBitmap other) {
+        if (other == this)
+            return this;
+        clear();
+        if (keys.length < other.size) {
+            keys = new int[other.size];
+            containers = new Container[other.size];
+        }
+        for (int i = 0; i < other.size; i++) {
+            keys[i] = other.keys[i];
+            containers[i] = obtainContainer();
+            containers[i].copyFrom(other.containers[i]);
+        }
+        size = other.size;
+        return this;
+    } // IdBitmap set(...)
+
+    /**
+     * Releases the unused capacity and the helpers (for the long living copies)
+     */
+    public IdBitmap trim() {
+        for (int i = 0; i < size; i++)
+            containers[i].trim();
+        if (keys.length > size) {
+            int[] trimmedKeys = new int[Math.max(size, 1)];
+            Container[] trimmedContainers = new Container[Math.max(size, 1)];
+            System.arraycopy(keys, 0, trimmedKeys, 0, size);
+            System.arraycopy(containers, 0, trimmedContainers, 0, size);
+            keys = trimmedKeys;
+            containers = trimmedContainers;
+        }
+        tmpWordsA = null;
+        tmpWordsB = null;
+        tmpKeys = null;
+        tmpContainers = null;
+        pool = null;
+        poolSize = 0;
+        return this;
+    } // IdBitmap trim()
+
+    /**
+     * @return approximate memory used by the content
+     */
+    public int getSizeInBytes() {
+        int bytes = keys.length * 8 + 32;
+        for (int i = 0; i < size; i++)
+            bytes += containers[i].getSizeInBytes();
+        return bytes;
+    }
+
+    /**
+     * Appends the IDs in the ascending (unsigned) order
+     */
+    public IntArray toArray(IntArray out) {
+        for (int i = 0; i < size; i++) {
+            final int high = keys[i] << 16;
+            final Container container = containers[i];
+            if (container.words != null) {
+                final long[] words = container.words;
+                for (int w = 0; w < WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        out.add(high | ((w << 6) + Long.numberOfTrailingZeros(word)));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (int v = 0; v < container.cardinality; v++)
+                    out.add(high | container.values[v]);
+            }
+        } // for each container
+        return out;
+    } // IntArray toArray(...)
+
+    //-------------------------------------------------------------------------
+
+    /* this = this | other */
+    public IdBitmap or(IdBitmap other) {
+        return combine(other, OP_OR);
+    }
+
+    /* this = this & other */
+    public IdBitmap and(IdBitmap other) {
+        return combine(other, OP_AND);
+    }
+
+    /* this = this & ~other */
+    public IdBitmap andNot(IdBitmap other) {
+        return combine(other, OP_AND_NOT);
+    }
+
+    /* this = this ^ other */
+    public IdBitmap xor(IdBitmap other) {
+        return combine(other, OP_XOR);
+    }
+
+    protected IdBitmap combine(IdBitmap other, int operation) {
+        if (other == this) {
+            if (operation == OP_AND_NOT || operation == OP_XOR)
+                clear();
+            return this;
+        }
+        // merge of the sorted container keys into the helper arrays
+        int a = 0, b = 0;
+        int count = 0;
+        final int capacity = Math.max(size + other.size, keys.length);
+        if (tmpKeys == null || tmpKeys.length < capacity) {
+            tmpKeys = new int[capacity];
+            tmpContainers = new Container[capacity];
+        }
+        final int[] resultKeys = tmpKeys;
+        final Container[] resultContainers = tmpContainers;
+        while (a < size || b < other.size) {
+            final int keyA = a < size ? keys[a] : Integer.MAX_VALUE;
+            final int keyB = b < other.size ? other.keys[b] : Integer.MAX_VALUE;
+            if (keyA < keyB) {
+                // only in this
+                if (operation != OP_AND) {
+                    resultKeys[count] = keyA;
+                    resultContainers[count++] = containers[a];
+                } else {
+                    releaseContainer(containers[a]);
+                }
+                a++;
+            } else if (keyB < keyA) {
+                // only in other
+                if (operation == OP_OR || operation == OP_XOR) {
+                    final Container container = obtainContainer();
+                    container.copyFrom(other.containers[b]);
+                    resultKeys[count] = keyB;
+                    resultContainers[count++] = container;
+                }
+                b++;
+            } else {
+                final Container container = combineContainers(containers[a], other.containers[b], operation);
+                if (container != null) {
+                    resultKeys[count] = keyA;
+                    resultContainers[count++] = container;
+                } else {
+                    releaseContainer(containers[a]);
+                }
+                a++;
+                b++;
+            }
+        } // merge the containers
+        // the current arrays become the helpers for the next merge
+        for (int i = 0; i < size; i++)
+            containers[i] = null;
+        tmpKeys = keys;
+        tmpContainers = containers;
+        keys = resultKeys;
+        containers = resultContainers;
+        size = count;
+        return this;
+    } // IdBitmap combine(...)
+
+    protected Container combineContainers(Container containerA, Container containerB, int operation) {
+        if (tmpWordsA == null) {
+            tmpWordsA = new long[WORDS];
+            tmpWordsB = new long[WORDS];
+        }
+        final long[] wordsA = tmpWordsA, wordsB = tmpWordsB;
+        containerA.getWords(wordsA);
+        containerB.getWords(wordsB);
+        int cardinality = 0;
+        switch (operation) {
+            case OP_OR:
+                for (int w = 0; w < WORDS; w++)
+                    cardinality += Long.bitCount(wordsA[w] |= wordsB[w]);
+                break;
+            case OP_AND:
+                for (int w = 0; w < WORDS; w++)
+                    cardinality += Long.bitCount(wordsA[w] &= wordsB[w]);
+                break;
+            case OP_AND_NOT:
+                for (int w = 0; w < WORDS; w++)
+                    cardinality += Long.bitCount(wordsA[w] &= ~wordsB[w]);
+                break;
+            default:
+                for (int w = 0; w < WORDS; w++)
+                    cardinality += Long.bitCount(wordsA[w] ^= wordsB[w]);
+                break;
+        }
+        if (cardinality == 0)
+            return null;
+        final Container container = containerA;
+        container.cardinality = cardinality;
+        if (cardinality <= ARRAY_MAX) {
+            container.toValues(wordsA);
+        } else {
+            container.makeDense();
+            System.arraycopy(wordsA, 0, container.words, 0, WORDS);
+        }
+        return container;
+    } // Container combineContainers(...)
+
+    //-------------------------------------------------------------------------
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof IdBitmap))
+            return false;
+        final IdBitmap other = (IdBitmap) obj;
+        if (other.size != size)
+            return false;
+        for (int i = 0; i < size; i++) {
+            if (keys[i] != other.keys[i])
+                return false;
+            final Container containerA = containers[i], containerB = other.containers[i];
+            if (containerA.cardinality != containerB.cardinality)
+                return false;
+            if (containerA.words != null && containerB.words != null) {
+                for (int w = 0; w < WORDS; w++) {
+                    if (containerA.words[w] != containerB.words[w])
+                        return false;
+                }
+            } else if (containerA.values != null && containerB.values != null) {
+                for (int v = 0; v < containerA.cardinality; v++) {
+                    if (containerA.values[v] != containerB.values[v])
+                        return false;
+                }
+            } else {
+                return false; // the same cardinality is always stored the same way
+            }
+        } // for each container
+        return true;
+    } // boolean equals(...)
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++)
+            hash = hash * 31 + keys[i] * 17 + containers[i].cardinality;
+        return hash;
+    }
+
+    //-------------------------------------------------------------------------
+
+} // class IdBitmap
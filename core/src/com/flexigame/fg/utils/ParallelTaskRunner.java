@@ -0,0 +1,141 @@
+package com.flexigame.fg.utils;
+
+import com.badlogic.gdx.utils.Disposable;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Simple fork-join style runner - splits the index range into contiguous
+ * chunks (one per worker) and executes them in parallel. The calling thread
+ * always processes the first chunk and waits for the rest, so the results
+ * are ready when run() returns. Chunk index is passed to the task so it can
+ * use per-worker data (counters, output arrays) without synchronization.
+ */
+public class ParallelTaskRunner implements Disposable {
+
+    public interface RangeTask {
+        void run(int workerIndex, int from, int to);
+    } // interface RangeTask
+
+    protected final class Worker implements Runnable {
+        RangeTask task = null;
+        int workerIndex = 0;
+        int from = 0;
+        int to = 0;
+
+        @Override
+        public void run() {
+            try {
+                task.run(workerIndex, from, to);
+            } catch (Throwable throwable) {
+                error = throwable;
+            } finally {
+                task = null;
+                finished.release();
+            }
+        }
+    } // final class Worker
+
+    //-------------------------------------------------------------------------
+
+    protected final ExecutorService executor;
+    protected final Worker[] workers;
+    protected final Semaphore finished = new Semaphore(0);
+    protected volatile Throwable error = null;
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * @param numWorkers number of workers including the calling thread
+     */
+    public ParallelTaskRunner(int numWorkers) {
+        if (numWorkers < 1)
+            throw new IllegalArgumentException("numWorkers must be greater than 0");
+        this.workers = new Worker[numWorkers];
+        for (int i = 0; i < numWorkers; i++)
+            this.workers[i] = new Worker();
+        if (numWorkers > 1) {
+            this.executor = Executors.newFixedThreadPool(numWorkers - 1, new ThreadFactory() {
+                int count = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ParallelTaskRunner-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+    } // ParallelTaskRunner(...)
+
+    public ParallelTaskRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public void dispose() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getNumWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Executes the task over the range [0, count). The range is split into at
+     * most getNumWorkers() chunks, each at least minChunkSize long.
+     * Must not be called concurrently.
+     *
+     * @return number of chunks used (worker indices are 0..chunks-1)
+     */
+    public int run(int count, int minChunkSize, RangeTask task) {
+        if (task == null)
+            throw new NullPointerException("task cannot be null");
+        if (count <= 0)
+            return 0;
+        if (minChunkSize < 1)
+            minChunkSize = 1;
+        int chunks = Math.min(workers.length, (count + minChunkSize - 1) / minChunkSize);
+        if (chunks <= 1 || executor == null) {
+            task.run(0, 0, count);
+            return 1;
+        }
+        final int chunkSize = (count + chunks - 1) / chunks;
+        chunks = (count + chunkSize - 1) / chunkSize;
+        error = null;
+        for (int i = 1; i < chunks; i++) {
+            Worker worker = workers[i];
+            worker.task = task;
+            worker.workerIndex = i;
+            worker.from = i * chunkSize;
+            worker.to = Math.min(count, (i + 1) * chunkSize);
+            executor.execute(worker);
+        }
+        Throwable callerError = null;
+        try {
+            task.run(0, 0, Math.min(count, chunkSize));
+        } catch (Throwable throwable) {
+            callerError = throwable;
+        }
+        finished.acquireUninterruptibly(chunks - 1);
+        if (callerError == null)
+            callerError = error;
+        if (callerError != null) {
+            if (callerError instanceof RuntimeException)
+                throw (RuntimeException) callerError;
+            throw new RuntimeException(callerError);
+        }
+        return chunks;
+    } // int run(...)
+
+    //-------------------------------------------------------------------------
+
+} // class ParallelTaskRunner
@@ -611,7 +611,7 @@ public class MyGdxPickSelectionDemo extends ApplicationAdapter implements InputP
                         pickBox.getX(), pickBox.getY(),
                         pickBox.getWidth(), pickBox.getHeight());
             }
-            ObjectMap<Integer, PickSelection.PickingInfo> pickingInfoMap = pickSelection.getPickingInfoMap();
+            IntMap<PickSelection.PickingInfo> pickingInfoMap = pickSelection.getPickingInfoMap();
             Array<SpatialObject> selectedObjects = pickSelection.getSelectedObjects();
             for (int sid = 0; sid < selectedObjects.size; sid++) {
                 SpatialObject spatialObject = selectedObjects.get(sid);
@@ -664,6 +664,7 @@ public class MyGdxPickSelectionDemo extends ApplicationAdapter implements InputP
 
         // Update pick selection buffer + traverse spatial objects
         if (pickSelection.isPickerActive()) {
+            pickSelection.setSceneVersion(sceneManager.getSceneVersion());
             pickSelection.refreshPickBoxDimensions();
             pickSelectionRenderer.renderToFrameBuffer();
             pickSelectionRenderer.refreshPixelBuffer();
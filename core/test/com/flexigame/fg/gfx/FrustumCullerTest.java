@@ -0,0 +1,143 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Plane;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Randomized checks of the plane mask culling against the libGDX frustum
+ * tests (boxes, spheres) and the corners of the oriented boxes.
+ */
+public class FrustumCullerTest {
+
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        camera = new PerspectiveCamera(70, 800, 600);
+        camera.position.set(-92, 64, 36);
+        camera.lookAt(10, -8, -48);
+        camera.near = 1;
+        camera.far = 512;
+        camera.update();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    @Test
+    public void boxesAndSpheresMatchFrustum() {
+        final Random random = new Random(26);
+        final FrustumCuller culler = new FrustumCuller(camera.frustum);
+        int visible = 0;
+        for (int i = 0; i < 100000; i++) {
+            final float x = nextFloat(random, -400, 400), y = nextFloat(random, -400, 400), z = nextFloat(random, -400, 400);
+            final float ex = nextFloat(random, 0, 30), ey = nextFloat(random, 0, 30), ez = nextFloat(random, 0, 30);
+            // the hint only changes the order of the planes
+            final int hint = random.nextInt(FrustumCuller.NUM_PLANES + 1) - 1;
+            final boolean expected = camera.frustum.boundsInFrustum(x, y, z, ex, ey, ez);
+            assertEquals(expected, culler.testBox(x, y, z, ex, ey, ez, FrustumCuller.ALL_PLANES, hint) != FrustumCuller.OUTSIDE);
+            assertEquals(camera.frustum.sphereInFrustum(x, y, z, ex),
+                    culler.testSphere(x, y, z, ex, FrustumCuller.ALL_PLANES, hint) != FrustumCuller.OUTSIDE);
+            if (expected)
+                visible++;
+        }
+        assertTrue(visible > 1000);
+    } // void boxesAndSpheresMatchFrustum()
+
+    @Test
+    public void childrenUseParentMask() {
+        final Random random = new Random(27);
+        final FrustumCuller culler = new FrustumCuller(camera.frustum);
+        int skipped = 0;
+        for (int i = 0; i < 20000; i++) {
+            final float x = nextFloat(random, -300, 300), y = nextFloat(random, -300, 300), z = nextFloat(random, -300, 300);
+            final float extent = nextFloat(random, 10, 80);
+            final int parentMask = culler.testBox(x, y, z, extent, extent, extent, FrustumCuller.ALL_PLANES, -1);
+            if (parentMask == FrustumCuller.OUTSIDE)
+                continue;
+            // child box inside of the parent box
+            final float childExtent = extent * random.nextFloat() * 0.5f;
+            final float cx = x + nextFloat(random, -1, 1) * (extent - childExtent);
+            final float cy = y + nextFloat(random, -1, 1) * (extent - childExtent);
+            final float cz = z + nextFloat(random, -1, 1) * (extent - childExtent);
+            culler.resetCounters();
+            final int childMask = culler.testBox(cx, cy, cz, childExtent, childExtent, childExtent, parentMask, -1);
+            assertEquals(camera.frustum.boundsInFrustum(cx, cy, cz, childExtent, childExtent, childExtent),
+                    childMask != FrustumCuller.OUTSIDE);
+            if (childMask != FrustumCuller.OUTSIDE)
+                assertEquals(0, childMask & ~parentMask);
+            assertEquals(Integer.bitCount(parentMask) == 0 ? 0 : 1, culler.getVolumeTestCount());
+            assertTrue(culler.getPlaneTestCount() <= Integer.bitCount(parentMask));
+            skipped += FrustumCuller.NUM_PLANES - Integer.bitCount(parentMask);
+        }
+        assertTrue(skipped > 0);
+    } // void childrenUseParentMask()
+
+    @Test
+    public void hintPlaneRejectsFirst() {
+        final Random random = new Random(28);
+        final FrustumCuller culler = new FrustumCuller(camera.frustum);
+        int rejected = 0;
+        for (int i = 0; i < 10000; i++) {
+            final float x = nextFloat(random, -400, 400), y = nextFloat(random, -400, 400), z = nextFloat(random, -400, 400);
+            if (culler.testSphere(x, y, z, 5, FrustumCuller.ALL_PLANES, -1) != FrustumCuller.OUTSIDE)
+                continue;
+            final int plane = culler.getRejectedPlane();
+            culler.resetCounters();
+            assertEquals(FrustumCuller.OUTSIDE, culler.testSphere(x, y, z, 5, FrustumCuller.ALL_PLANES, plane));
+            assertEquals(plane, culler.getRejectedPlane());
+            assertEquals(1, culler.getPlaneTestCount());
+            rejected++;
+        }
+        assertTrue(rejected > 1000);
+    } // void hintPlaneRejectsFirst()
+
+    @Test
+    public void orientedBoxesMatchCorners() {
+        final Random random = new Random(29);
+        final FrustumCuller culler = new FrustumCuller(camera.frustum);
+        final OrientedBox local = new OrientedBox();
+        final OrientedBox box = new OrientedBox();
+        final Matrix4 transform = new Matrix4();
+        final Vector3[] corners = new Vector3[8];
+        for (int i = 0; i < 8; i++)
+            corners[i] = new Vector3();
+        int checked = 0;
+        for (int i = 0; i < 20000; i++) {
+            local.set(new BoundingBox(new Vector3(-nextFloat(random, 1, 30), -nextFloat(random, 1, 30), -nextFloat(random, 1, 30)),
+                    new Vector3(nextFloat(random, 1, 30), nextFloat(random, 1, 30), nextFloat(random, 1, 30))));
+            transform.setToRotation(new Vector3(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f).nor(),
+                    random.nextFloat() * 360.0f);
+            transform.trn(nextFloat(random, -400, 400), nextFloat(random, -400, 400), nextFloat(random, -400, 400));
+            box.setTransformed(local, transform);
+            box.getCorners(corners);
+            // outside when all of the corners are behind one of the planes
+            float margin = Float.MAX_VALUE;
+            for (Plane plane : camera.frustum.planes) {
+                float front = -Float.MAX_VALUE;
+                for (int c = 0; c < 8; c++)
+                    front = Math.max(front, plane.distance(corners[c]));
+                margin = Math.min(margin, front);
+            }
+            if (Math.abs(margin) < 0.001f)
+                continue; // on the plane - rounding decides
+            final int hint = random.nextInt(FrustumCuller.NUM_PLANES + 1) - 1;
+            assertEquals(margin >= 0.0f, culler.testOrientedBox(box, FrustumCuller.ALL_PLANES, hint) != FrustumCuller.OUTSIDE);
+            checked++;
+        }
+        assertTrue(checked > 19000);
+    } // void orientedBoxesMatchCorners()
+
+} // class FrustumCullerTest
@@ -0,0 +1,106 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * World transformations and bounds of linked objects - own transformation
+ * of the child needs to be combined with the world transformation of the
+ * parent (parent first, then child).
+ */
+public class GameObjectHierarchyTest {
+
+    private static final float EPSILON = 0.0001f;
+
+    private static Model model;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        model = TestScenes.createQuadModel();
+    }
+
+    private static GameObject createObject(int id, float x, float y, float z) {
+        GameObject gameObject = new GameObject(model);
+        gameObject.setID(id);
+        gameObject.setPosition(x, y, z);
+        gameObject.update();
+        return gameObject;
+    }
+
+    private static void assertWorldPosition(GameObject gameObject, float x, float y, float z) {
+        Vector3 position = gameObject.getTransform().getTranslation(new Vector3());
+        assertEquals(x, position.x, EPSILON);
+        assertEquals(y, position.y, EPSILON);
+        assertEquals(z, position.z, EPSILON);
+        Vector3 center = gameObject.getBoundingBox().getCenter(new Vector3());
+        assertEquals(x, center.x, EPSILON);
+        assertEquals(y, center.y, EPSILON);
+        assertEquals(z, center.z, EPSILON);
+    }
+
+    private static void checkChildTransformations(GameObject parent, GameObject child, GameObject grandChild) {
+        // own translation of the child after linking
+        child.setPosition(5, 0, 0);
+        parent.update();
+        assertWorldPosition(parent, 10, 0, 0);
+        assertWorldPosition(child, 15, 0, 0);
+        assertWorldPosition(grandChild, 15, 2, 0);
+
+        // parent moves - whole subtree follows
+        parent.translate(1, 0, 0);
+        parent.update();
+        assertWorldPosition(child, 16, 0, 0);
+        assertWorldPosition(grandChild, 16, 2, 0);
+
+        // own rotation of the child is applied after the parent transformation
+        child.setRotation(0, 0, 1, 90);
+        parent.update();
+        assertWorldPosition(child, 16, 0, 0);
+        assertWorldPosition(grandChild, 14, 0, 0);
+
+        // subtree bounds contain all descendants
+        BoundingBox subtree = parent.getSubtreeBoundingBox();
+        assertTrue(subtree.contains(child.getBoundingBox()));
+        assertTrue(subtree.contains(grandChild.getBoundingBox()));
+        assertTrue(subtree.contains(parent.getBoundingBox()));
+        assertEquals(10.0f, subtree.min.x, EPSILON);
+        assertEquals(17.0f, subtree.max.x, EPSILON);
+    } // void checkChildTransformations(...)
+
+    @Test
+    public void childTransformationIsRelativeToParent() {
+        GameObject parent = createObject(0, 10, 0, 0);
+        GameObject child = createObject(1, 0, 0, 0);
+        GameObject grandChild = createObject(2, 0, 2, 0);
+        child.setParent(parent);
+        grandChild.setParent(child);
+        grandChild.setPosition(0, 2, 0);
+        checkChildTransformations(parent, child, grandChild);
+    }
+
+    @Test
+    public void childTransformationIsRelativeToParentWithTransformStore() {
+        GameObject parent = createObject(0, 10, 0, 0);
+        GameObject child = createObject(1, 0, 0, 0);
+        GameObject grandChild = createObject(2, 0, 2, 0);
+        TransformStore store = new TransformStore(4);
+        GameObject[] objects = {parent, child, grandChild};
+        for (GameObject gameObject : objects) {
+            store.add(gameObject.getOriginalBoundingBox(), gameObject.getTransform());
+            gameObject.setTransformStore(store);
+        }
+        store.updateBounds();
+        child.setParent(parent);
+        grandChild.setParent(child);
+        grandChild.setPosition(0, 2, 0);
+        checkChildTransformations(parent, child, grandChild);
+    }
+
+} // class GameObjectHierarchyTest
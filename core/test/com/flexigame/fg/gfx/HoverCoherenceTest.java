@@ -0,0 +1,116 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Hover skip with the scene changing every frame - the traversal is skipped
+ * while no object near the pick ray moves.
+ */
+public class HoverCoherenceTest {
+
+    private Array<SpatialObject> objects;
+    private PickSelection pickSelection;
+    private int sceneVersion = 0;
+
+    @Before
+    public void setUp() {
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 100);
+        PerspectiveCamera camera = TestScenes.createCamera();
+        pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.setHoverCoherence(true);
+        pickSelection.setPickerCoord(50, 50);
+        pickSelection.traverse(false);
+    }
+
+    private void moveObject(SpatialObject spatialObject, float x) {
+        spatialObject.setPosition(x, 10.0f, 0.0f);
+        ((GameObject) spatialObject).update();
+        pickSelection.setSceneVersion(++sceneVersion);
+    }
+
+    private SpatialObject findOtherObject(SpatialObject hovered) {
+        return objects.get(hovered == objects.get(0) ? 1 : 0);
+    }
+
+    @Test
+    public void skippedWhileHoveredObjectDoesNotMove() {
+        final SpatialObject hovered = pickSelection.getSelectedObject();
+        assertNotNull(hovered);
+        final SpatialObject other = findOtherObject(hovered);
+        final int skipped = pickSelection.getHoverSkipCount();
+        for (int i = 0; i < 10; i++) {
+            moveObject(other, i); // the other object moves every frame
+            pickSelection.traverse(false);
+            assertSame(hovered, pickSelection.getSelectedObject());
+        }
+        assertEquals(skipped + 10, pickSelection.getHoverSkipCount());
+    }
+
+    @Test
+    public void notSkippedWhenHoveredObjectMoves() {
+        final SpatialObject hovered = pickSelection.getSelectedObject();
+        assertNotNull(hovered);
+        final int skipped = pickSelection.getHoverSkipCount();
+        moveObject(hovered, 20.0f); // out of the view
+        pickSelection.traverse(false);
+        assertEquals(skipped, pickSelection.getHoverSkipCount());
+        assertNotSame(hovered, pickSelection.getSelectedObject());
+    }
+
+    @Test
+    public void notSkippedWhenOtherObjectMovesInFront() {
+        final SpatialObject hovered = pickSelection.getSelectedObject();
+        assertNotNull(hovered);
+        final SpatialObject other = objects.get(0);
+        assertNotSame(hovered, other);
+        // far from the ray first - skipped
+        final int skipped = pickSelection.getHoverSkipCount();
+        moveObject(other, 10.0f);
+        pickSelection.traverse(false);
+        assertEquals(skipped + 1, pickSelection.getHoverSkipCount());
+        // between the camera and the hovered object, earlier in the array
+        final Vector3 position = hovered.getPosition();
+        other.setPosition(position.x, position.y, position.z + 0.5f);
+        ((GameObject) other).update();
+        pickSelection.setSceneVersion(++sceneVersion);
+        pickSelection.traverse(false);
+        assertEquals(skipped + 1, pickSelection.getHoverSkipCount());
+        assertSame(other, pickSelection.getSelectedObject());
+    }
+
+    @Test
+    public void notSkippedWhenHoveredObjectIsRemoved() {
+        final SpatialObject hovered = pickSelection.getSelectedObject();
+        assertNotNull(hovered);
+        final int skipped = pickSelection.getHoverSkipCount();
+        objects.removeValue(hovered, true);
+        pickSelection.setSceneVersion(++sceneVersion);
+        pickSelection.traverse(false);
+        assertEquals(skipped, pickSelection.getHoverSkipCount());
+        assertNotSame(hovered, pickSelection.getSelectedObject());
+    }
+
+    @Test
+    public void skippedWithoutSceneChanges() {
+        final int skipped = pickSelection.getHoverSkipCount();
+        pickSelection.traverse(false);
+        pickSelection.traverse(false);
+        assertEquals(skipped + 2, pickSelection.getHoverSkipCount());
+        // the cursor moved - full traversal
+        pickSelection.setPickerCoord(51, 50);
+        pickSelection.traverse(false);
+        assertEquals(skipped + 2, pickSelection.getHoverSkipCount());
+    }
+
+} // class HoverCoherenceTest
@@ -0,0 +1,232 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Closest triangle found through the tree against the loop over all
+ * triangles - a random triangle soup in the mesh space and the instances
+ * of the node hierarchy model (node and instance transforms). Rays grazing
+ * the triangle edges may go either way, those are skipped.
+ */
+public class MeshPickerTest {
+
+    private static final int NUM_TRIANGLES = 3000;
+    private static final float EPSILON = 0.0001f;
+
+    private static Model soupModel;
+    private static Model nodeModel;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        final Random random = new Random(33);
+        final float[] vertices = new float[NUM_TRIANGLES * 9];
+        final short[] indices = new short[NUM_TRIANGLES * 3];
+        for (int t = 0; t < NUM_TRIANGLES; t++) {
+            final float x = nextFloat(random, -20, 20), y = nextFloat(random, -20, 20), z = nextFloat(random, -20, 20);
+            for (int k = 0; k < 3; k++) {
+                vertices[t * 9 + k * 3] = x + nextFloat(random, -2, 2);
+                vertices[t * 9 + k * 3 + 1] = y + nextFloat(random, -2, 2);
+                vertices[t * 9 + k * 3 + 2] = z + nextFloat(random, -2, 2);
+            }
+        }
+        // indexed in the reverse order - the triangle index must still be the original one
+        for (int t = 0; t < NUM_TRIANGLES; t++) {
+            for (int k = 0; k < 3; k++)
+                indices[t * 3 + k] = (short) ((NUM_TRIANGLES - 1 - t) * 3 + k);
+        }
+        soupModel = TestScenes.createModel("soup", vertices, indices);
+        nodeModel = TestScenes.createNodeModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    private static Ray randomRay(Random random, float size) {
+        final Vector3 origin = new Vector3(nextFloat(random, -size, size), nextFloat(random, -size, size),
+                nextFloat(random, -size, size)).nor().scl(size * 2);
+        // towards a point inside, mostly
+        final Vector3 target = new Vector3(nextFloat(random, -size, size), nextFloat(random, -size, size),
+                nextFloat(random, -size, size));
+        return new Ray(origin, target.sub(origin).nor());
+    }
+
+    /**
+     * Closest hit of the ray with the triangle of the vertices (transformed)
+     */
+    private static final class BruteForceHit {
+        float distance = Float.MAX_VALUE;
+        int triangle = -1;
+        Node node = null;
+        /* The hit is within 0.001 of an edge */
+        boolean grazing = false;
+
+        void test(Ray ray, float[] vertices, short[] indices, int from, int count, Matrix4 transform, Node node) {
+            final Vector3 a = new Vector3(), b = new Vector3(), c = new Vector3(), point = new Vector3();
+            for (int t = 0; t < count / 3; t++) {
+                final int i = from + t * 3;
+                setVertex(a, vertices, indices[i]).mul(transform);
+                setVertex(b, vertices, indices[i + 1]).mul(transform);
+                setVertex(c, vertices, indices[i + 2]).mul(transform);
+                if (!Intersector.intersectRayTriangle(ray, a, b, c, point))
+                    continue;
+                final float d = point.dst(ray.origin);
+                if (d >= distance)
+                    continue;
+                distance = d;
+                triangle = t;
+                this.node = node;
+                grazing = isNearEdge(point, a, b) || isNearEdge(point, b, c) || isNearEdge(point, c, a);
+            }
+        } // void test(...)
+
+        static boolean isNearEdge(Vector3 point, Vector3 a, Vector3 b) {
+            final Vector3 ab = new Vector3(b).sub(a);
+            final float t = Math.max(0.0f, Math.min(1.0f, new Vector3(point).sub(a).dot(ab) / ab.len2()));
+            return new Vector3(a).mulAdd(ab, t).dst(point) < 0.001f;
+        }
+    } // static final class BruteForceHit
+
+    private static Vector3 setVertex(Vector3 vertex, float[] vertices, int index) {
+        return vertex.set(vertices[index * 3], vertices[index * 3 + 1], vertices[index * 3 + 2]);
+    }
+
+    private static float[] getPositions(MeshPart meshPart) {
+        final float[] vertices = new float[meshPart.mesh.getNumVertices() * 3];
+        meshPart.mesh.getVertices(vertices);
+        return vertices;
+    }
+
+    private static short[] getIndices(MeshPart meshPart) {
+        final short[] indices = new short[meshPart.mesh.getNumIndices()];
+        meshPart.mesh.getIndices(indices);
+        return indices;
+    }
+
+    @Test
+    public void treeMatchesBruteForce() {
+        final Random random = new Random(330);
+        final MeshPart meshPart = soupModel.meshParts.get(0);
+        final MeshBVH bvh = MeshBVH.obtain(meshPart);
+        assertSame(bvh, MeshBVH.obtain(meshPart));
+        assertEquals(NUM_TRIANGLES, bvh.getTriangleCount());
+        assertTrue(bvh.getNodeCount() > 1);
+        final float[] vertices = getPositions(meshPart);
+        final short[] indices = getIndices(meshPart);
+        final int[] stack = new int[2 * MeshBVH.MAX_DEPTH];
+        final float[] hit = new float[3];
+        final Matrix4 identity = new Matrix4();
+        int hits = 0;
+        for (int q = 0; q < 500; q++) {
+            final Ray ray = randomRay(random, 22.0f);
+            final BruteForceHit expected = new BruteForceHit();
+            expected.test(ray, vertices, indices, 0, indices.length, identity, null);
+            final float maxDistance = q % 4 == 0 ? nextFloat(random, 0, 60) : Float.MAX_VALUE;
+            final int triangle = bvh.intersectRay(ray.origin.x, ray.origin.y, ray.origin.z,
+                    ray.direction.x, ray.direction.y, ray.direction.z, maxDistance, stack, hit);
+            if (expected.grazing || Math.abs(expected.distance - maxDistance) < 0.01f)
+                continue;
+            if (expected.distance >= maxDistance) {
+                assertEquals("q " + q, -1, triangle);
+                continue;
+            }
+            assertEquals("q " + q, expected.triangle, triangle);
+            assertEquals(expected.distance, hit[0], EPSILON * 100);
+            // barycentric weights give the same point
+            final int i = triangle * 3;
+            final Vector3 a = setVertex(new Vector3(), vertices, indices[i]);
+            final Vector3 b = setVertex(new Vector3(), vertices, indices[i + 1]);
+            final Vector3 c = setVertex(new Vector3(), vertices, indices[i + 2]);
+            final Vector3 point = new Vector3(a).scl(1.0f - hit[1] - hit[2]).mulAdd(b, hit[1]).mulAdd(c, hit[2]);
+            assertEquals(0.0f, point.dst(ray.getEndPoint(new Vector3(), hit[0])), EPSILON * 100);
+            hits++;
+        } // for each ray
+        assertTrue(hits > 100);
+    } // void treeMatchesBruteForce()
+
+    @Test
+    public void pickerMatchesBruteForce() {
+        final Random random = new Random(331);
+        final MeshPicker picker = new MeshPicker();
+        final Matrix4 transform = new Matrix4();
+        int hits = 0;
+        for (int q = 0; q < 500; q++) {
+            final ModelInstance instance = new ModelInstance(nodeModel);
+            if (q % 10 == 0) {
+                instance.transform.setToTranslation(nextFloat(random, -2, 2), nextFloat(random, -2, 2), nextFloat(random, -2, 2));
+                instance.transform.rotate(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+                instance.transform.scale(nextFloat(random, 0.5f, 2.0f), nextFloat(random, 0.5f, 2.0f), nextFloat(random, 0.5f, 2.0f));
+            }
+            final Ray ray = randomRay(random, 5.0f);
+            final BruteForceHit expected = new BruteForceHit();
+            testNode(expected, ray, instance, instance.nodes.get(0), transform);
+            final boolean found = picker.intersect(ray, instance);
+            if (expected.grazing)
+                continue;
+            if (expected.node == null) {
+                assertFalse("q " + q, found);
+                assertFalse(picker.hasHit());
+                continue;
+            }
+            assertTrue("q " + q, found);
+            assertNotNull(picker.nodePart);
+            assertEquals(expected.node.id, picker.node.id);
+            assertEquals(expected.triangle, picker.triangleIndex);
+            assertEquals(expected.distance, picker.distance, EPSILON * 10);
+            assertEquals(0.0f, picker.intersection.dst(ray.getEndPoint(new Vector3(), expected.distance)), EPSILON * 10);
+            hits++;
+        } // for each ray
+        assertTrue(hits > 50);
+    } // void pickerMatchesBruteForce()
+
+    private static void testNode(BruteForceHit expected, Ray ray, ModelInstance instance, Node node, Matrix4 transform) {
+        for (NodePart part : node.parts) {
+            transform.set(instance.transform).mul(node.globalTransform);
+            final MeshPart meshPart = part.meshPart;
+            expected.test(ray, getPositions(meshPart), getIndices(meshPart), meshPart.offset, meshPart.size, transform, node);
+        }
+        for (Node child : node.getChildren())
+            testNode(expected, ray, instance, child, transform);
+    } // void testNode(...)
+
+    @Test
+    public void singleNodeOnly() {
+        final ModelInstance instance = new ModelInstance(nodeModel);
+        final MeshPicker picker = new MeshPicker();
+        // through the left cube only
+        final Ray ray = new Ray(new Vector3(-3, 0, 10), new Vector3(0, 0, -1));
+        assertTrue(picker.intersect(ray, instance));
+        assertEquals("left", picker.node.id);
+        assertEquals(9.5f, picker.distance, EPSILON);
+        final Node root = instance.getNode("root");
+        assertFalse(picker.intersect(ray, instance, root, false));
+        assertTrue(picker.intersect(ray, instance, root, true));
+        assertEquals("left", picker.node.id);
+        // the tip above the left cube
+        final Ray up = new Ray(new Vector3(-3, 1.5f, 10), new Vector3(0, 0, -1));
+        assertTrue(picker.intersect(up, instance));
+        assertEquals("tip", picker.node.id);
+        assertEquals(10.0f, picker.distance, EPSILON);
+        assertFalse(picker.intersect(up, instance, instance.getNode("left"), false));
+    } // void singleNodeOnly()
+
+} // class MeshPickerTest
@@ -0,0 +1,116 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shared model bounds - hits and misses per model, invalidation, and the
+ * shared bounds (the node bounds too) against the ones the instance computes
+ * from its own nodes.
+ */
+public class ModelBoundsCacheTest {
+
+    private static final float EPSILON = 0.00001f;
+
+    @Before
+    public void setUp() {
+        TestScenes.init();
+        ModelBoundsCache.clear();
+    }
+
+    private static void assertBoxEquals(BoundingBox expected, BoundingBox actual) {
+        assertEquals(expected.min.x, actual.min.x, EPSILON);
+        assertEquals(expected.min.y, actual.min.y, EPSILON);
+        assertEquals(expected.min.z, actual.min.z, EPSILON);
+        assertEquals(expected.max.x, actual.max.x, EPSILON);
+        assertEquals(expected.max.y, actual.max.y, EPSILON);
+        assertEquals(expected.max.z, actual.max.z, EPSILON);
+    }
+
+    @Test
+    public void hitMissAndInvalidate() {
+        final Model box = TestScenes.createBoxModel();
+        final Model quad = TestScenes.createQuadModel();
+        final GameObject first = new GameObject(box);
+        assertEquals(1, ModelBoundsCache.getMissCount());
+        assertEquals(0, ModelBoundsCache.getHitCount());
+        final GameObject second = new GameObject(box);
+        assertEquals(1, ModelBoundsCache.getMissCount());
+        assertEquals(1, ModelBoundsCache.getHitCount());
+        assertNotNull(first.getModelBounds());
+        assertSame(first.getModelBounds(), second.getModelBounds());
+        // other model - own entry
+        final GameObject other = new GameObject(quad);
+        assertEquals(2, ModelBoundsCache.getMissCount());
+        assertNotSame(first.getModelBounds(), other.getModelBounds());
+        // invalidated - computed again, older instances keep the old entry
+        ModelBoundsCache.invalidate(box);
+        final GameObject third = new GameObject(box);
+        assertEquals(3, ModelBoundsCache.getMissCount());
+        assertNotSame(first.getModelBounds(), third.getModelBounds());
+        assertSame(first.getModelBounds(), second.getModelBounds());
+        new GameObject(box);
+        assertEquals(2, ModelBoundsCache.getHitCount());
+    } // void hitMissAndInvalidate()
+
+    @Test
+    public void sharedBoundsMatchInstanceBounds() {
+        final Model model = TestScenes.createNodeModel();
+        final GameObject shared = new GameObject(model);
+        final GameObject own = new GameObject(model);
+        final ModelBoundsCache.Entry entry = shared.getModelBounds();
+        own.refreshOriginalBoundingBox();
+        assertNull(own.getModelBounds());
+        assertBoxEquals(own.getOriginalBoundingBox(), shared.getOriginalBoundingBox());
+        assertBoxEquals(own.getOriginalBoundingBox(), entry.getBounds(new BoundingBox()));
+        assertEquals(own.getOriginalBoundingBox().getCenter(new Vector3()).dst(entry.getCenter(new Vector3())), 0.0f, EPSILON);
+        assertEquals(own.getExtent().len(), entry.getRadius(), EPSILON);
+
+        // node bounds - same transformation, reused vs computed
+        shared.setScale(2.0f, 1.0f, 0.5f);
+        shared.setPosition(1, 2, 3);
+        shared.setRotation(0, 1, 0, 30);
+        shared.update();
+        own.setScale(2.0f, 1.0f, 0.5f);
+        own.setPosition(1, 2, 3);
+        own.setRotation(0, 1, 0, 30);
+        own.update();
+        assertEquals(4, shared.getFlatNodeCount());
+        assertEquals(entry.getNodeCount(), shared.getFlatNodeCount());
+        assertEquals(own.getFlatNodeCount(), shared.getFlatNodeCount());
+        int empty = 0;
+        for (int i = 0; i < shared.getFlatNodeCount(); i++) {
+            final BoundingBox expected = own.getNodeWorldBounds(i);
+            if (GameObject.isEmpty(expected)) {
+                assertTrue(GameObject.isEmpty(shared.getNodeWorldBounds(i)));
+                empty++;
+                continue;
+            }
+            assertBoxEquals(expected, shared.getNodeWorldBounds(i));
+        }
+        assertEquals(1, empty);
+    } // void sharedBoundsMatchInstanceBounds()
+
+    @Test
+    public void entryIsReadOnly() {
+        final GameObject gameObject = new GameObject(TestScenes.createBoxModel());
+        final ModelBoundsCache.Entry entry = gameObject.getModelBounds();
+        entry.getBounds(new BoundingBox()).min.set(-100, -100, -100);
+        entry.getCenter(new Vector3()).set(100, 100, 100);
+        entry.getNodeBounds(0, new BoundingBox()).inf();
+        assertBoxEquals(new BoundingBox(new Vector3(-1, -1, -1), new Vector3(1, 1, 1)), entry.getBounds(new BoundingBox()));
+        assertBoxEquals(new BoundingBox(new Vector3(-1, -1, -1), new Vector3(1, 1, 1)), entry.getNodeBounds(0, new BoundingBox()));
+        assertEquals(0.0f, entry.getCenter(new Vector3()).len(), EPSILON);
+    } // void entryIsReadOnly()
+
+} // class ModelBoundsCacheTest
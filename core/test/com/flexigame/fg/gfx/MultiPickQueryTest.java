@@ -0,0 +1,213 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.utils.IdBitmap;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batched picking must give the same results as picking each pointer alone
+ * with PickSelection.pickObjectID() (same stages, same tolerance search).
+ */
+public class MultiPickQueryTest {
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 200);
+        camera = TestScenes.createCamera();
+    }
+
+    /**
+     * ID reader counting the read pixels
+     */
+    private static final class CountingIdReader implements PickSelection.IdReader {
+        final PickSelection.IdReader source;
+        int reads = 0;
+
+        CountingIdReader(PickSelection.IdReader source) {
+            this.source = source;
+        }
+
+        @Override
+        public int getPixelId(int x, int y) {
+            reads++;
+            return source.getPixelId(x, y);
+        }
+    } // static final class CountingIdReader
+
+    private static PickSelection createPickSelection(int mode) {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        switch (mode) {
+            case 1:
+                pickSelection.setCheckAABBs(true);
+                break;
+            case 2:
+                pickSelection.setCheckOBBTriangles(true);
+                break;
+            case 3:
+                pickSelection.setCheckMeshTriangles(true);
+                break;
+            case 4:
+                pickSelection.setCheckOnScreenBoxes(true);
+                break;
+            case 5:
+            case 6:
+                // ID buffer of the whole screen
+                SoftwarePickRasterizer rasterizer = new SoftwarePickRasterizer(pickSelection);
+                rasterizer.render(objects);
+                pickSelection.setPixelChecker(rasterizer);
+                pickSelection.setCheckFBOPixels(true);
+                if (mode == 6) {
+                    pickSelection.setIdReader(rasterizer);
+                    pickSelection.setPickTolerance(4);
+                }
+                break;
+            default:
+                break;
+        }
+        return pickSelection;
+    } // PickSelection createPickSelection(...)
+
+    /**
+     * @return top left screen position of the object center
+     */
+    private static int[] getScreenPosition(int objectID) {
+        Vector3 position = camera.project(new Vector3(objects.get(objectID).getSphereCenter()));
+        return new int[]{(int) position.x, TestScenes.SCREEN_HEIGHT - 1 - (int) position.y};
+    }
+
+    @Test
+    public void pointersMatchPickObjectID() {
+        final Random random = new Random(38);
+        final Vector3 expected = new Vector3();
+        for (int mode = 0; mode <= 6; mode++) {
+            PickSelection pickSelection = createPickSelection(mode);
+            MultiPickQuery query = new MultiPickQuery(pickSelection);
+            for (int round = 0; round < 20; round++) {
+                query.clearPointers();
+                for (int p = 0; p < MultiPickQuery.MAX_POINTERS; p++)
+                    query.addPointer(p, random.nextInt(TestScenes.SCREEN_WIDTH), random.nextInt(TestScenes.SCREEN_HEIGHT));
+                query.execute(objects);
+                for (int i = 0; i < query.getResultCount(); i++) {
+                    MultiPickQuery.PointerResult result = query.getResult(i);
+                    final int x = result.position.x;
+                    final int y = TestScenes.SCREEN_HEIGHT - result.position.y;
+                    final int objectID = pickSelection.pickObjectID(x, y, expected);
+                    final String message = "mode " + mode + " at " + x + "," + y;
+                    assertEquals(message, objectID, result.isPicked() ? result.spatialObject.getSpatialObjectID() : -1);
+                    if (objectID >= 0)
+                        assertTrue(message, expected.epsilonEquals(result.intersection, 0.0001f));
+                }
+            } // for each round
+            assertTrue("mode " + mode, query.getPairCount() < query.getTestedCount() * query.getResultCount());
+        } // for each mode
+    } // void pointersMatchPickObjectID()
+
+    @Test
+    public void toleranceSearchRunsOncePerPointer() {
+        PickSelection pickSelection = createPickSelection(6);
+        CountingIdReader idReader = new CountingIdReader(pickSelection.getIdReader());
+        pickSelection.setIdReader(idReader);
+        MultiPickQuery query = new MultiPickQuery(pickSelection);
+        final Random random = new Random(40);
+        int expectedReads = 0;
+        for (int p = 0; p < 8; p++) {
+            final int x = random.nextInt(TestScenes.SCREEN_WIDTH);
+            final int y = random.nextInt(TestScenes.SCREEN_HEIGHT);
+            query.addPointer(p, x, y);
+            idReader.reads = 0;
+            pickSelection.pickObjectID(x, y, null);
+            expectedReads += idReader.reads;
+        }
+        idReader.reads = 0;
+        query.execute(objects);
+        assertEquals(expectedReads, idReader.reads);
+    } // void toleranceSearchRunsOncePerPointer()
+
+    @Test
+    public void selectionIsKeptPerPointer() {
+        PickSelection pickSelection = createPickSelection(3);
+        MultiPickQuery query = new MultiPickQuery(pickSelection);
+        final int[] first = getScreenPosition(31);
+        final int[] second = getScreenPosition(100);
+        final int[] third = getScreenPosition(117);
+        query.addPointer(0, first[0], first[1]);
+        query.addPointer(1, second[0], second[1]);
+        assertEquals(2, query.execute(objects));
+        IdBitmap selection = new IdBitmap();
+        assertEquals(1, query.getSelection(0, selection).cardinality());
+        assertTrue(query.isSelected(0, 31));
+        assertEquals(1, query.getSelection(1, selection).cardinality());
+        assertTrue(query.isSelected(1, 100));
+
+        // only the first pointer moves - the other one keeps its selection
+        query.clearPointers();
+        query.addPointer(0, third[0], third[1]);
+        query.execute(objects);
+        assertTrue(query.isSelected(0, 117));
+        assertFalse(query.isSelected(0, 31));
+        assertTrue(query.isSelected(1, 100));
+
+        query.setSelectionOperation(PickSelection.SelectionOperation.UNION);
+        query.clearPointers();
+        query.addPointer(0, first[0], first[1]);
+        query.execute(objects);
+        assertEquals(2, query.getSelection(0, selection).cardinality());
+
+        query.setSelectionOperation(PickSelection.SelectionOperation.DIFFERENCE);
+        query.execute(objects);
+        assertEquals(1, query.getSelection(0, selection).cardinality());
+        assertTrue(query.isSelected(0, 117));
+
+        // the selection of the pick selection itself is not touched
+        assertEquals(0, pickSelection.getSelectedObjects().size);
+    } // void selectionIsKeptPerPointer()
+
+    @Test
+    public void groupModeSelectsAllHits() {
+        PickSelection pickSelection = createPickSelection(0);
+        pickSelection.setGroupSelectionMode(true);
+        MultiPickQuery query = new MultiPickQuery(pickSelection);
+        query.setCollectAllHits(false);
+        final Random random = new Random(44);
+        final IdBitmap selection = new IdBitmap();
+        for (int round = 0; round < 50; round++) {
+            query.clearPointers();
+            query.addPointer(3, random.nextInt(TestScenes.SCREEN_WIDTH), random.nextInt(TestScenes.SCREEN_HEIGHT));
+            query.execute(objects);
+            MultiPickQuery.PointerResult result = query.getResult(0);
+            query.getSelection(3, selection);
+            assertEquals(result.hits.size, selection.cardinality());
+            for (int i = 0; i < result.hits.size; i++)
+                assertTrue(selection.contains(result.hits.get(i).getSpatialObjectID()));
+            for (int i = 1; i < result.hitDistances.size; i++)
+                assertTrue(result.hitDistances.get(i - 1) <= result.hitDistances.get(i));
+        }
+    } // void groupModeSelectsAllHits()
+
+    @Test
+    public void rayPointerSkipsScreenTests() {
+        PickSelection pickSelection = createPickSelection(5);
+        MultiPickQuery query = new MultiPickQuery(pickSelection);
+        final Vector3 center = objects.get(45).getSphereCenter();
+        // from behind the camera, the ID buffer does not apply
+        query.addRay(0, new Ray(new Vector3(center.x, center.y, 10.0f), new Vector3(0, 0, -1)));
+        assertEquals(1, query.execute(objects));
+        assertEquals(45, query.getResult(0).spatialObject.getSpatialObjectID());
+        assertEquals(PickSelection.Result.PICKED_SPHERE, query.getResult(0).result);
+    } // void rayPointerSkipsScreenTests()
+
+} // class MultiPickQueryTest
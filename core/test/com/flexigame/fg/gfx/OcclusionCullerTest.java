@@ -0,0 +1,147 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The occlusion culler must be conservative - every point of a box reported
+ * as occluded has to be behind an occluder at the center of its pixel (the
+ * depth buffer is rasterized at the pixel centers). Checked by casting the
+ * rays through the pixel centers against the triangles of the occluders.
+ */
+public class OcclusionCullerTest {
+
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        camera = new PerspectiveCamera(70, 800, 600);
+        camera.position.set(0, 0, 0);
+        camera.lookAt(0, 0, -1);
+        camera.near = 1;
+        camera.far = 512;
+        camera.update();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    /**
+     * @return world space corners of the box
+     */
+    private static Vector3[] getCorners(BoundingBox box, Matrix4 transform) {
+        Vector3[] corners = new Vector3[8];
+        for (int i = 0; i < 8; i++) {
+            corners[i] = new Vector3((i & 4) != 0 ? box.max.x : box.min.x,
+                    (i & 2) != 0 ? box.max.y : box.min.y,
+                    (i & 1) != 0 ? box.max.z : box.min.z).mul(transform);
+        }
+        return corners;
+    }
+
+    /**
+     * @return whether any occluder is in front of the point at the center
+     * of its pixel in the buffer
+     */
+    private static boolean isHidden(Vector3 point, Array<Vector3[]> occluders, int width, int height) {
+        final Vector3 projected = new Vector3(point).prj(camera.combined);
+        final float depth = projected.z * 0.5f + 0.5f;
+        final int x = (int) Math.floor((projected.x * 0.5f + 0.5f) * width);
+        final int y = (int) Math.floor((projected.y * 0.5f + 0.5f) * height);
+        final Vector3 target = new Vector3((x + 0.5f) / width * 2.0f - 1.0f,
+                (y + 0.5f) / height * 2.0f - 1.0f, 1.0f).prj(camera.invProjectionView);
+        final Ray ray = new Ray(camera.position, target.sub(camera.position).nor());
+        final Vector3 hit = new Vector3();
+        final int[] triangles = OcclusionCuller.BOX_TRIANGLES;
+        for (Vector3[] corners : occluders) {
+            for (int i = 0; i < triangles.length; i += 3) {
+                if (!Intersector.intersectRayTriangle(ray, corners[triangles[i]], corners[triangles[i + 1]],
+                        corners[triangles[i + 2]], hit))
+                    continue;
+                if (hit.prj(camera.combined).z * 0.5f + 0.5f < depth + 0.00001f)
+                    return true;
+            }
+        }
+        return false;
+    } // boolean isHidden(...)
+
+    @Test
+    public void occludedBoxesAreHidden() {
+        final Random random = new Random(27);
+        final OcclusionCuller culler = new OcclusionCuller();
+        final Vector3 point = new Vector3();
+        int occluded = 0;
+        for (int scene = 0; scene < 20; scene++) {
+            culler.begin(camera.combined);
+            final Array<Vector3[]> occluders = new Array<Vector3[]>();
+            for (int i = 0; i < 6; i++) {
+                final float size = nextFloat(random, 10, 40);
+                BoundingBox box = new BoundingBox(new Vector3(-size, -size, -nextFloat(random, 1, 5)),
+                        new Vector3(size, size, nextFloat(random, 1, 5)));
+                Matrix4 transform = new Matrix4().translate(nextFloat(random, -60, 60), nextFloat(random, -40, 40),
+                        nextFloat(random, -150, -40)).rotate(random.nextFloat(), random.nextFloat(), 1.0f, nextFloat(random, -30, 30));
+                if (culler.addOccluder(box, transform))
+                    occluders.add(getCorners(box, transform));
+            }
+            for (int i = 0; i < 500; i++) {
+                final float cx = nextFloat(random, -100, 100), cy = nextFloat(random, -80, 80), cz = nextFloat(random, -300, -20);
+                final float ex = nextFloat(random, 0.5f, 8), ey = nextFloat(random, 0.5f, 8), ez = nextFloat(random, 0.5f, 8);
+                if (!culler.isOccluded(cx, cy, cz, ex, ey, ez))
+                    continue;
+                occluded++;
+                // corners, face centers and random points on the surface
+                for (int s = 0; s < 40; s++) {
+                    final int axis = s % 3;
+                    if (s < 8) {
+                        point.set((s & 4) != 0 ? ex : -ex, (s & 2) != 0 ? ey : -ey, (s & 1) != 0 ? ez : -ez);
+                    } else {
+                        point.set(nextFloat(random, -ex, ex), nextFloat(random, -ey, ey), nextFloat(random, -ez, ez));
+                        final float side = (s < 14 ? s % 2 : random.nextInt(2)) == 0 ? -1.0f : 1.0f;
+                        if (s < 14)
+                            point.set(0, 0, 0);
+                        if (axis == 0) point.x = side * ex;
+                        else if (axis == 1) point.y = side * ey;
+                        else point.z = side * ez;
+                    }
+                    point.add(cx, cy, cz);
+                    if (!camera.frustum.pointInFrustum(point))
+                        continue; // not on the screen - not in the buffer either
+                    assertTrue("scene " + scene + " box " + i + " point " + point, isHidden(point, occluders, culler.getWidth(), culler.getHeight()));
+                }
+            } // for each tested box
+        } // for each scene
+        assertTrue(occluded > 500);
+    } // void occludedBoxesAreHidden()
+
+    @Test
+    public void wallHidesOnlyBoxesBehind() {
+        final OcclusionCuller culler = new OcclusionCuller();
+        culler.begin(camera.combined);
+        BoundingBox wall = new BoundingBox(new Vector3(-50, -50, -1), new Vector3(50, 50, 1));
+        assertTrue(culler.addOccluder(wall, new Matrix4().translate(0, 0, -20).rotate(0, 1, 0, 10)));
+        assertTrue(culler.isOccluded(0, 0, -60, 2, 2, 2));
+        assertFalse(culler.isOccluded(0, 0, -10, 2, 2, 2));
+        assertFalse(culler.isOccluded(200, 0, -100, 2, 2, 2));
+        // crossing the near plane - visible
+        assertFalse(culler.isOccluded(0, 0, 0, 2, 2, 2));
+        // too small occluders are not rasterized
+        assertFalse(culler.addOccluder(new BoundingBox(new Vector3(-0.1f, -0.1f, -0.1f), new Vector3(0.1f, 0.1f, 0.1f)),
+                new Matrix4().translate(0, 0, -100)));
+        assertTrue(culler.getOccluderCount() == 1 && culler.getCulledCount() == 1 && culler.getTestedCount() == 4);
+    } // void wallHidesOnlyBoxesBehind()
+
+} // class OcclusionCullerTest
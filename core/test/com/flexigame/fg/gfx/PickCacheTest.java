@@ -0,0 +1,106 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cached pickObjectID() results - the changes which the camera version, the
+ * scene version and the flags do not cover (other objects, screen size,
+ * pixel checker) must not return the old picks.
+ */
+public class PickCacheTest {
+
+    private static final int OTHER_ID = 100;
+
+    private static Model model;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        model = TestScenes.createQuadModel();
+        camera = TestScenes.createCamera();
+    }
+
+    /**
+     * @return one large quad in the middle of the screen
+     */
+    private static Array<SpatialObject> createOther() {
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        final GameObject gameObject = new GameObject(model);
+        gameObject.setID(OTHER_ID);
+        gameObject.update();
+        gameObject.setVisible(true);
+        objects.add(gameObject);
+        return objects;
+    }
+
+    private static PickSelection.PixelChecker createChecker(final boolean found) {
+        return new PickSelection.PixelChecker() {
+            @Override
+            public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+                return found;
+            }
+        };
+    }
+
+    private static PickSelection createPickSelection(Array<SpatialObject> objects) {
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.setPickCacheCapacity(16);
+        return pickSelection;
+    }
+
+    @Test
+    public void otherObjectsAreNotCached() {
+        final PickSelection pickSelection = createPickSelection(createOther());
+        final int picked = pickSelection.pickObjectID(50, 50, null);
+        assertEquals(OTHER_ID, picked);
+        assertEquals(1, pickSelection.getPickCache().size());
+        assertEquals(picked, pickSelection.pickObjectID(50, 50, null));
+        assertEquals(1, pickSelection.getPickCache().getHitCount());
+
+        // same scene version, other objects
+        final Array<SpatialObject> grid = TestScenes.createGrid(model, 20);
+        pickSelection.setSpatialObjects(grid);
+        assertEquals(0, pickSelection.getPickCache().size());
+        final PickSelection reference = TestScenes.createPickSelection(camera, grid);
+        reference.setCheckAABBs(true);
+        assertEquals(reference.pickObjectID(50, 50, null), pickSelection.pickObjectID(50, 50, null));
+    } // void otherObjectsAreNotCached()
+
+    @Test
+    public void screenSizeClearsCache() {
+        final PickSelection pickSelection = createPickSelection(createOther());
+        pickSelection.pickObjectID(50, 50, null);
+        pickSelection.pickObjectID(10, 10, null);
+        assertEquals(2, pickSelection.getPickCache().size());
+        pickSelection.setScreenDimensions(TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT);
+        assertEquals(2, pickSelection.getPickCache().size()); // not changed - kept
+        pickSelection.setScreenHeight(TestScenes.SCREEN_HEIGHT * 2);
+        assertEquals(0, pickSelection.getPickCache().size());
+        pickSelection.pickObjectID(50, 50, null);
+        pickSelection.setScreenWidth(TestScenes.SCREEN_WIDTH * 2);
+        assertEquals(0, pickSelection.getPickCache().size());
+    } // void screenSizeClearsCache()
+
+    @Test
+    public void pixelCheckerClearsCache() {
+        final PickSelection pickSelection = createPickSelection(createOther());
+        pickSelection.setCheckFBOPixels(true);
+        pickSelection.setPixelChecker(createChecker(true));
+        assertEquals(OTHER_ID, pickSelection.pickObjectID(50, 50, null));
+        assertTrue(pickSelection.getPickCache().size() > 0);
+        // the object is no longer in the buffer
+        pickSelection.setPixelChecker(createChecker(false));
+        assertEquals(0, pickSelection.getPickCache().size());
+        assertEquals(-1, pickSelection.pickObjectID(50, 50, null));
+    } // void pixelCheckerClearsCache()
+
+} // class PickCacheTest
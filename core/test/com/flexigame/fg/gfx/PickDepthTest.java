@@ -0,0 +1,206 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Intersection unprojected from the captured pixel depth - known world
+ * points on the rays through the pixel centers (projected with the camera
+ * to get their depth) must come back, also for the pixel found by the
+ * tolerance search. With the software depth buffer the points must lie on
+ * the closest triangles.
+ */
+public class PickDepthTest {
+
+    private static final int OBJECT_ID = 3;
+
+    private static Model model;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        model = TestScenes.createQuadModel();
+        camera = TestScenes.createCamera();
+    }
+
+    private static int toTopLeft(int y) {
+        return TestScenes.SCREEN_HEIGHT - y;
+    }
+
+    /**
+     * @return ray through the center of the pixel (bottom left origin)
+     */
+    private static Ray getPixelRay(int x, int y) {
+        final Vector3 target = new Vector3((x + 0.5f) / TestScenes.SCREEN_WIDTH * 2.0f - 1.0f,
+                (y + 0.5f) / TestScenes.SCREEN_HEIGHT * 2.0f - 1.0f, 1.0f).prj(camera.invProjectionView);
+        return new Ray(new Vector3(camera.position), target.sub(camera.position).nor());
+    }
+
+    /**
+     * @return world point on the ray through the pixel, at a distance which
+     * differs from pixel to pixel
+     */
+    private static Vector3 getWorldPoint(int x, int y) {
+        final float distance = 2.0f + ((x * 31 + y * 17) % 50) * 0.1f;
+        return getPixelRay(x, y).getEndPoint(new Vector3(), distance);
+    }
+
+    /**
+     * Depth of the world point of each pixel (getWorldPoint()) projected
+     * with the camera, remembers the last pixel read
+     */
+    private static final class PointDepthReader implements PickSelection.DepthReader {
+        int lastX = -1, lastY = -1;
+
+        @Override
+        public float getPixelDepth(int x, int y) {
+            lastX = x;
+            lastY = y;
+            return getWorldPoint(x, y).prj(camera.combined).z * 0.5f + 0.5f;
+        }
+    } // static final class PointDepthReader
+
+    /**
+     * @return the single quad covering the whole screen, confirmed by the
+     * pixel checker everywhere
+     */
+    private static PickSelection createCoveredScreen() {
+        final GameObject gameObject = new GameObject(model);
+        gameObject.setID(OBJECT_ID);
+        gameObject.setScale(4.0f);
+        gameObject.update();
+        gameObject.setVisible(true);
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        objects.add(gameObject);
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setCheckFBOPixels(true);
+        pickSelection.setPixelChecker(new PickSelection.PixelChecker() {
+            @Override
+            public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+                return true;
+            }
+        });
+        return pickSelection;
+    } // PickSelection createCoveredScreen()
+
+    @Test
+    public void unprojectedPointsMatchWorldPoints() {
+        final PickSelection pickSelection = createCoveredScreen();
+        final PointDepthReader depthReader = new PointDepthReader();
+        pickSelection.setDepthReader(depthReader);
+        final Vector3 intersection = new Vector3();
+        for (int y = 0; y < TestScenes.SCREEN_HEIGHT; y += 3) {
+            for (int x = 0; x < TestScenes.SCREEN_WIDTH; x += 3) {
+                assertEquals(OBJECT_ID, pickSelection.pickObjectID(x, toTopLeft(y), intersection));
+                assertEquals(x, depthReader.lastX);
+                assertEquals(y, depthReader.lastY);
+                final Vector3 expected = getWorldPoint(x, y);
+                assertEquals("pixel " + x + "," + y, 0.0f, intersection.dst(expected),
+                        0.001f * expected.dst(camera.position));
+            }
+        }
+    } // void unprojectedPointsMatchWorldPoints()
+
+    @Test
+    public void toleranceHitPixelIsUnprojected() {
+        final PickSelection pickSelection = createCoveredScreen();
+        final PointDepthReader depthReader = new PointDepthReader();
+        pickSelection.setDepthReader(depthReader);
+        // the object is drawn only at 30,40 - found around the pick position
+        pickSelection.setPixelChecker(new PickSelection.PixelChecker() {
+            @Override
+            public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+                return false;
+            }
+        });
+        pickSelection.setIdReader(new PickSelection.IdReader() {
+            @Override
+            public int getPixelId(int x, int y) {
+                return x == 30 && y == 40 ? OBJECT_ID : -1;
+            }
+        });
+        pickSelection.setPickTolerance(3);
+        final Vector3 intersection = new Vector3();
+        assertEquals(OBJECT_ID, pickSelection.pickObjectID(32, toTopLeft(41), intersection));
+        assertEquals(30, depthReader.lastX);
+        assertEquals(40, depthReader.lastY);
+        assertEquals(0.0f, intersection.dst(getWorldPoint(30, 40)), 0.01f);
+    } // void toleranceHitPixelIsUnprojected()
+
+    @Test
+    public void emptyDepthKeepsVolumeIntersection() {
+        final Vector3 expected = new Vector3(), intersection = new Vector3();
+        assertEquals(OBJECT_ID, createCoveredScreen().pickObjectID(40, 60, expected));
+        final PickSelection pickSelection = createCoveredScreen();
+        pickSelection.setDepthReader(new PickSelection.DepthReader() {
+            @Override
+            public float getPixelDepth(int x, int y) {
+                return 1.0f; // nothing drawn
+            }
+        });
+        assertEquals(OBJECT_ID, pickSelection.pickObjectID(40, 60, intersection));
+        assertEquals(expected, intersection);
+    } // void emptyDepthKeepsVolumeIntersection()
+
+    @Test
+    public void rasterizedDepthGivesSurfacePoints() {
+        final Random random = new Random(36);
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        for (int i = 0; i < 10; i++) {
+            final GameObject gameObject = new GameObject(model);
+            gameObject.setID(i);
+            gameObject.setScale(0.5f + random.nextFloat());
+            gameObject.setPosition(random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 3);
+            gameObject.setRotation(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+            gameObject.update();
+            gameObject.setVisible(true);
+            objects.add(gameObject);
+        }
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setCheckFBOPixels(true);
+        final SoftwarePickRasterizer rasterizer = new SoftwarePickRasterizer(pickSelection);
+        rasterizer.render(objects, new Rectangle(0, 0, TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT));
+        final float[] quad = {-1, -1, 0, 1, -1, 0, 1, 1, 0, -1, 1, 0};
+        final int[] indices = {0, 1, 2, 0, 2, 3};
+        final Vector3[] corners = {new Vector3(), new Vector3(), new Vector3()};
+        final Vector3 intersection = new Vector3(), hit = new Vector3();
+        int checked = 0;
+        for (int y = 0; y < TestScenes.SCREEN_HEIGHT; y += 2) {
+            for (int x = 0; x < TestScenes.SCREEN_WIDTH; x += 2) {
+                final int id = rasterizer.getIdAt(x, y);
+                if (id < 0 || pickSelection.pickObjectID(x, toTopLeft(y), intersection) != id)
+                    continue;
+                // hit of the pixel ray with the quad drawn there
+                final Ray ray = getPixelRay(x, y);
+                final SpatialObject object = objects.get(id);
+                boolean found = false;
+                for (int t = 0; t < indices.length && !found; t += 3) {
+                    for (int k = 0; k < 3; k++) {
+                        final int v = indices[t + k] * 3;
+                        corners[k].set(quad[v], quad[v + 1], quad[v + 2]).mul(object.getTransform());
+                    }
+                    found = Intersector.intersectRayTriangle(ray, corners[0], corners[1], corners[2], hit);
+                }
+                if (!found)
+                    continue; // edge pixel
+                assertEquals("pixel " + x + "," + y, 0.0f, intersection.dst(hit), 0.01f * hit.dst(camera.position));
+                checked++;
+            }
+        }
+        assertTrue(checked > 200);
+    } // void rasterizedDepthGivesSurfacePoints()
+
+} // class PickDepthTest
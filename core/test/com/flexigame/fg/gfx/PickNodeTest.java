@@ -0,0 +1,162 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Node picking against the closest hit of the world bounds of every node -
+ * the object and the node transforms changing between the rays, the nodes
+ * without parts never picked. Also the node found by the pick selection.
+ */
+public class PickNodeTest {
+
+    private static final float EPSILON = 0.0001f;
+
+    private static Model nodeModel;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        nodeModel = TestScenes.createNodeModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    /**
+     * Closest hit of the ray with the own world bounds of the nodes
+     */
+    private static final class BruteForceHit {
+        Node node = null;
+        float distance = Float.MAX_VALUE;
+        /* Distance of the second closest node - ties may go either way */
+        float secondDistance = Float.MAX_VALUE;
+        final Vector3 point = new Vector3();
+
+        void test(Ray ray, Matrix4 objectTransform, Node node) {
+            if (node.parts.size > 0) {
+                final BoundingBox bounds = new BoundingBox().inf();
+                for (NodePart part : node.parts)
+                    part.meshPart.mesh.extendBoundingBox(bounds, part.meshPart.offset, part.meshPart.size);
+                bounds.mul(new Matrix4(objectTransform).mul(node.globalTransform));
+                final Vector3 hit = new Vector3();
+                if (Intersector.intersectRayBounds(ray, bounds, hit)) {
+                    final float d = ray.origin.dst(hit);
+                    if (d < distance) {
+                        secondDistance = distance;
+                        distance = d;
+                        this.node = node;
+                        point.set(hit);
+                    } else if (d < secondDistance) {
+                        secondDistance = d;
+                    }
+                }
+            }
+            for (Node child : node.getChildren())
+                test(ray, objectTransform, child);
+        } // void test(...)
+    } // static final class BruteForceHit
+
+    @Test
+    public void pickNodeMatchesBruteForce() {
+        final Random random = new Random(34);
+        final GameObject gameObject = new GameObject(nodeModel);
+        final Node left = gameObject.getNode("left");
+        final Vector3 intersection = new Vector3();
+        int hits = 0, misses = 0;
+        for (int q = 0; q < 1000; q++) {
+            if (q % 10 == 0) {
+                gameObject.setPosition(nextFloat(random, -2, 2), nextFloat(random, -2, 2), nextFloat(random, -2, 2));
+                gameObject.setScale(nextFloat(random, 0.5f, 2.0f), nextFloat(random, 0.5f, 2.0f), nextFloat(random, 0.5f, 2.0f));
+                gameObject.setRotation(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+                gameObject.update();
+            }
+            if (q % 25 == 0) {
+                // moved within the hierarchy - the tip follows
+                left.translation.set(nextFloat(random, -4, -2), nextFloat(random, -1, 1), nextFloat(random, -1, 1));
+                gameObject.calculateTransforms();
+            }
+            final Vector3 origin = new Vector3(nextFloat(random, -1, 1), nextFloat(random, -1, 1),
+                    nextFloat(random, -1, 1)).nor().scl(15.0f);
+            final Vector3 target = new Vector3(nextFloat(random, -5, 5), nextFloat(random, -3, 3), nextFloat(random, -3, 3));
+            final Ray ray = new Ray(origin, target.sub(origin).nor());
+            final BruteForceHit expected = new BruteForceHit();
+            for (Node node : gameObject.nodes)
+                expected.test(ray, gameObject.getTransform(), node);
+            final Node node = gameObject.pickNode(ray, intersection);
+            if (expected.node != null && expected.secondDistance - expected.distance < EPSILON * 100)
+                continue;
+            if (expected.node == null) {
+                assertNull("q " + q, node);
+                misses++;
+                continue;
+            }
+            assertNotNull("q " + q, node);
+            assertEquals("q " + q, expected.node.id, node.id);
+            assertTrue(!node.id.equals("empty"));
+            assertEquals(0.0f, intersection.dst(expected.point), EPSILON * 100);
+            hits++;
+        } // for each ray
+        assertTrue(hits + " hits, " + misses + " misses", hits > 100 && misses > 100);
+    } // void pickNodeMatchesBruteForce()
+
+    @Test
+    public void pickSelectionFindsNode() {
+        final PerspectiveCamera camera = TestScenes.createCamera();
+        final GameObject gameObject = new GameObject(nodeModel);
+        gameObject.setID(7);
+        gameObject.update();
+        gameObject.setVisible(true);
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        objects.add(gameObject);
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setOnHover(true);
+        pickSelection.setPickNodes(true);
+
+        // the pixels over the root and over the left cube
+        final String[] ids = {"root", "left"};
+        final Vector3[] points = {new Vector3(0, 0, 1), new Vector3(-3, 0, 0.5f)};
+        for (int i = 0; i < ids.length; i++) {
+            final Vector3 screen = camera.project(new Vector3(points[i]), 0, 0,
+                    TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT);
+            final int x = (int) screen.x, y = TestScenes.SCREEN_HEIGHT - 1 - (int) screen.y;
+            final Ray ray = camera.getPickRay(x, y, 0, 0, TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT);
+            final Node expected = gameObject.pickNode(ray, null);
+            assertNotNull(expected);
+            assertEquals(ids[i], expected.id);
+            pickSelection.setPickerCoord(x, y);
+            pickSelection.traverse(false);
+            assertSame(gameObject, pickSelection.getSelectedObject());
+            assertSame(expected, pickSelection.getSelectedObjectPickingInfo().node);
+        }
+
+        // without node picking the node stays empty
+        pickSelection.setPickNodes(false);
+        pickSelection.setPickerCoord(-100, -100);
+        pickSelection.traverse(false);
+        pickSelection.setPickerCoord(TestScenes.SCREEN_WIDTH / 2, TestScenes.SCREEN_HEIGHT / 2);
+        pickSelection.traverse(false);
+        assertSame(gameObject, pickSelection.getSelectedObject());
+        assertNull(pickSelection.getSelectedObjectPickingInfo().node);
+    } // void pickSelectionFindsNode()
+
+} // class PickNodeTest
@@ -0,0 +1,303 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compiled narrow phase - the stages are created once, press / release and
+ * the single pixel queries do not relink the pipeline or reset its stats.
+ * The custom chains of the stages pick the same as the built-in one.
+ */
+public class PickPipelineTest {
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 100);
+        camera = TestScenes.createCamera();
+    }
+
+    private static PickStageSnapshot snapshot(PickSelection pickSelection) {
+        PickStageSnapshot snapshot = new PickStageSnapshot();
+        snapshot.count = pickSelection.getPickStageCount();
+        snapshot.stages = new PickSelection.PickStage[snapshot.count];
+        snapshot.seen = new int[snapshot.count];
+        for (int i = 0; i < snapshot.count; i++) {
+            snapshot.stages[i] = pickSelection.getPickStage(i);
+            snapshot.seen[i] = pickSelection.getPickStageStats(i).seen;
+        }
+        return snapshot;
+    }
+
+    private static final class PickStageSnapshot {
+        int count;
+        PickSelection.PickStage[] stages;
+        int[] seen;
+    }
+
+    private static void assertKept(PickStageSnapshot before, PickSelection pickSelection) {
+        PickStageSnapshot after = snapshot(pickSelection);
+        assertEquals(before.count, after.count);
+        for (int i = 0; i < before.count; i++) {
+            assertSame(before.stages[i], after.stages[i]);
+            assertTrue(after.seen[i] >= before.seen[i]); // not reset
+        }
+    }
+
+    @Test
+    public void pressAndReleaseKeepPipeline() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        // hover traversal compiles in every begin()
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.setCheckOBBTriangles(true);
+        pickSelection.setPickerCoord(50, 50);
+        pickSelection.click();
+        pickSelection.traverse(false);
+        PickStageSnapshot before = snapshot(pickSelection);
+        assertTrue(before.seen[0] > 0);
+        for (int i = 0; i < 20000; i++)
+            pressAndRelease(pickSelection);
+        final long allocated = TestScenes.getAllocatedBytes();
+        for (int i = 0; i < 1000; i++)
+            pressAndRelease(pickSelection);
+        // no recompiles - nothing allocated
+        if (allocated >= 0)
+            assertEquals(0L, TestScenes.getAllocatedSince(allocated));
+        assertKept(before, pickSelection);
+    } // void pressAndReleaseKeepPipeline()
+
+    private static void pressAndRelease(PickSelection pickSelection) {
+        pickSelection.unclick();
+        pickSelection.traverse(false);
+        pickSelection.click();
+        pickSelection.traverse(false);
+    }
+
+    @Test
+    public void queryDoesNotTouchPipeline() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setOnClick(true);
+        pickSelection.setUsePickingBox(true);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.setPickerCoord(30, 30);
+        pickSelection.click();
+        pickSelection.setPickerCoord(70, 70);
+        pickSelection.traverse(false);
+        PickStageSnapshot before = snapshot(pickSelection);
+        assertTrue(pickSelection.getPickStage(before.count - 1) instanceof PickSelection.PickBoxStage);
+
+        // the query uses the single pixel pick - same result as without the box
+        PickSelection reference = TestScenes.createPickSelection(camera, objects);
+        reference.setOnClick(true);
+        reference.setCheckAABBs(true);
+        for (int y = 5; y < 100; y += 10) {
+            for (int x = 5; x < 100; x += 10)
+                assertEquals(reference.pickObjectID(x, y, null), pickSelection.pickObjectID(x, y, null));
+        }
+        assertKept(before, pickSelection);
+        for (int i = 0; i < before.count; i++)
+            assertEquals(before.seen[i], pickSelection.getPickStageStats(i).seen);
+    } // void queryDoesNotTouchPipeline()
+
+    @Test
+    public void stagesAreCreatedOnce() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.traverse(false);
+        final PickSelection.PickStage sphere = pickSelection.getPickStage(0);
+        final PickSelection.PickStage aabb = pickSelection.getPickStage(1);
+        pickSelection.setCheckOBBTriangles(true);
+        pickSelection.traverse(false);
+        assertSame(sphere, pickSelection.getPickStage(0));
+        assertSame(aabb, pickSelection.getPickStage(1));
+        assertEquals(3, pickSelection.getPickStageCount());
+        pickSelection.setCheckOBBTriangles(false);
+        pickSelection.traverse(false);
+        assertSame(sphere, pickSelection.getPickStage(0));
+        assertEquals(2, pickSelection.getPickStageCount());
+
+        // switching the tests back and forth does not allocate
+        for (int i = 0; i < 20000; i++) {
+            pickSelection.setCheckOBBTriangles((i & 1) != 0);
+            pickSelection.traverse(false);
+        }
+        final long before = TestScenes.getAllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            pickSelection.setCheckOBBTriangles((i & 1) != 0);
+            pickSelection.traverse(false);
+        }
+        if (before >= 0)
+            assertEquals(0L, TestScenes.getAllocatedSince(before));
+    } // void stagesAreCreatedOnce()
+
+    /**
+     * Counts the objects passed to the wrapped stage
+     */
+    private static final class CountingStage implements PickSelection.PickStage {
+        final PickSelection.PickStage stage;
+        int tested = 0;
+
+        CountingStage(PickSelection.PickStage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public PickSelection.StageResult test(PickSelection pickSelection, PickSelection.PickingInfo pickingInfo) {
+            tested++;
+            return stage.test(pickSelection, pickingInfo);
+        }
+    } // static final class CountingStage
+
+    private static PickSelection createHoverSelection() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.setCheckOBBTriangles(true);
+        return pickSelection;
+    }
+
+    /**
+     * @return ID of the hovered object after the traversal or -1
+     */
+    private static int hover(PickSelection pickSelection, int x, int y) {
+        pickSelection.setPickerCoord(x, y);
+        pickSelection.traverse(false);
+        final SpatialObject selected = pickSelection.getSelectedObject();
+        return selected == null ? -1 : selected.getSpatialObjectID();
+    }
+
+    @Test
+    public void customStagesMatchBuiltin() {
+        PickSelection reference = createHoverSelection();
+        PickSelection pickSelection = createHoverSelection();
+        // the same stages as the built-in chain for these flags
+        final CountingStage sphere = new CountingStage(new PickSelection.SphereStage(false, false, true));
+        final CountingStage aabb = new CountingStage(new PickSelection.AABBStage(false, false));
+        final CountingStage obb = new CountingStage(new PickSelection.OBBTrianglesStage(true, true));
+        final CountingStage[] counting = {sphere, aabb, obb};
+        assertEquals(counting.length, reference.getPickStageCount());
+        for (int i = 0; i < counting.length; i++)
+            assertTrue(PickSelection.isSameStage(reference.getPickStage(i), counting[i].stage));
+        Array<PickSelection.PickStage> stages = new Array<PickSelection.PickStage>();
+        stages.addAll(counting);
+        pickSelection.setPickStages(stages);
+        assertTrue(pickSelection.hasCustomPickStages());
+        assertEquals(counting.length, pickSelection.getPickStageCount());
+
+        int picked = 0;
+        for (int y = 2; y < TestScenes.SCREEN_HEIGHT; y += 4) {
+            for (int x = 2; x < TestScenes.SCREEN_WIDTH; x += 4) {
+                final int expected = hover(reference, x, y);
+                assertEquals("pixel " + x + "," + y, expected, hover(pickSelection, x, y));
+                if (expected >= 0)
+                    picked++;
+            }
+        }
+        assertTrue(picked > 10);
+        // the stats of each stage count the objects passed to it
+        for (int i = 0; i < counting.length; i++) {
+            final PickSelection.PickStageStats stats = pickSelection.getPickStageStats(i);
+            final PickSelection.PickStageStats expected = reference.getPickStageStats(i);
+            assertEquals(counting[i].tested, stats.seen);
+            assertEquals(expected.seen, stats.seen);
+            assertEquals(expected.accepted, stats.accepted);
+            assertEquals(expected.rejected, stats.rejected);
+        }
+        assertTrue(pickSelection.getPickStageStats(0).rejected > 0);
+        assertEquals(pickSelection.getPickStageStats(0).seen - pickSelection.getPickStageStats(0).rejected,
+                pickSelection.getPickStageStats(1).seen);
+        // the decisive last stage decides every object it sees
+        final PickSelection.PickStageStats last = pickSelection.getPickStageStats(2);
+        assertTrue(last.accepted > 0);
+        assertEquals(last.seen, last.accepted + last.rejected);
+
+        // the queries run the custom chain too, without counting
+        final int seen = pickSelection.getPickStageStats(0).seen;
+        for (int y = 2; y < TestScenes.SCREEN_HEIGHT; y += 8) {
+            for (int x = 2; x < TestScenes.SCREEN_WIDTH; x += 8)
+                assertEquals(reference.pickObjectID(x, y, null), pickSelection.pickObjectID(x, y, null));
+        }
+        assertTrue(sphere.tested > seen);
+        assertEquals(seen, pickSelection.getPickStageStats(0).seen);
+    } // void customStagesMatchBuiltin()
+
+    @Test
+    public void reorderedStagesPickTheSame() {
+        PickSelection reference = createHoverSelection();
+        PickSelection pickSelection = createHoverSelection();
+        // the triangles of the oriented box decide - the AABB after them is never reached
+        Array<PickSelection.PickStage> stages = new Array<PickSelection.PickStage>();
+        stages.add(new PickSelection.SphereStage(false, false, true));
+        stages.add(new PickSelection.OBBTrianglesStage(true, true));
+        stages.add(new PickSelection.AABBStage(false, false));
+        pickSelection.setPickStages(stages);
+        // the filter in front of the chain - odd IDs never picked
+        PickSelection filtered = createHoverSelection();
+        Array<PickSelection.PickStage> filterStages = new Array<PickSelection.PickStage>();
+        filterStages.add(new PickSelection.PickStage() {
+            @Override
+            public PickSelection.StageResult test(PickSelection ps, PickSelection.PickingInfo pickingInfo) {
+                if ((pickingInfo.spatialObject.getSpatialObjectID() & 1) != 0)
+                    return PickSelection.StageResult.REJECT;
+                return PickSelection.StageResult.CONTINUE;
+            }
+        });
+        filterStages.addAll(stages);
+        filtered.setPickStages(filterStages);
+
+        int even = 0;
+        for (int y = 2; y < TestScenes.SCREEN_HEIGHT; y += 4) {
+            for (int x = 2; x < TestScenes.SCREEN_WIDTH; x += 4) {
+                final int expected = hover(reference, x, y);
+                assertEquals("pixel " + x + "," + y, expected, hover(pickSelection, x, y));
+                final int objectID = hover(filtered, x, y);
+                assertTrue(objectID < 0 || (objectID & 1) == 0);
+                if (expected >= 0 && (expected & 1) == 0) {
+                    assertEquals("pixel " + x + "," + y, expected, objectID);
+                    even++;
+                }
+            }
+        }
+        assertTrue(even > 5);
+        assertTrue(pickSelection.getPickStageStats(1).seen > 0);
+        assertEquals(0, pickSelection.getPickStageStats(2).seen);
+        assertTrue(filtered.getPickStageStats(0).rejected > 0);
+    } // void reorderedStagesPickTheSame()
+
+    @Test
+    public void nullRestoresBuiltinStages() {
+        PickSelection reference = createHoverSelection();
+        PickSelection pickSelection = createHoverSelection();
+        hover(reference, 50, 50);
+        Array<PickSelection.PickStage> stages = new Array<PickSelection.PickStage>();
+        stages.add(new PickSelection.SphereStage(true, true, true));
+        pickSelection.setPickStages(stages);
+        hover(pickSelection, 50, 50);
+        assertEquals(1, pickSelection.getPickStageCount());
+        assertTrue(pickSelection.getPickStageStats(0).seen > 0);
+
+        pickSelection.setPickStages(null);
+        assertFalse(pickSelection.hasCustomPickStages());
+        assertEquals(reference.getPickStageCount(), pickSelection.getPickStageCount());
+        for (int i = 0; i < reference.getPickStageCount(); i++) {
+            assertTrue(PickSelection.isSameStage(reference.getPickStage(i), pickSelection.getPickStage(i)));
+            assertEquals(0, pickSelection.getPickStageStats(i).seen); // new chain - new stats
+        }
+        for (int y = 2; y < TestScenes.SCREEN_HEIGHT; y += 6) {
+            for (int x = 2; x < TestScenes.SCREEN_WIDTH; x += 6)
+                assertEquals(hover(reference, x, y), hover(pickSelection, x, y));
+        }
+    } // void nullRestoresBuiltinStages()
+
+} // class PickPipelineTest
@@ -0,0 +1,156 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.utils.IdBitmap;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Steady state picking must not allocate - measures the bytes allocated by
+ * the test thread across repeated traversals (after the warm up).
+ */
+public class PickSelectionAllocationTest {
+
+    private static final int WARMUP = 20000;
+    private static final int MEASURED = 10000;
+    private static final int ROUNDS = 3;
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+    private static int[] owners;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        Assume.assumeTrue(TestScenes.getAllocatedBytes() >= 0);
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 200);
+        camera = TestScenes.createCamera();
+        owners = new int[TestScenes.SCREEN_WIDTH * TestScenes.SCREEN_HEIGHT];
+        for (int i = 0; i < owners.length; i++)
+            owners[i] = (i * 7) % 220 - 20;
+    }
+
+    private static PickSelection createPickSelection() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setPixelChecker(new PickSelection.PixelChecker() {
+            @Override
+            public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+                for (int y = (int) area.y; y < area.y + area.height; y++) {
+                    for (int x = (int) area.x; x < area.x + area.width; x++) {
+                        if (x < 0 || y < 0 || x >= TestScenes.SCREEN_WIDTH || y >= TestScenes.SCREEN_HEIGHT)
+                            continue;
+                        if (owners[y * TestScenes.SCREEN_WIDTH + x] == colorValue)
+                            return true;
+                    }
+                }
+                return false;
+            }
+        });
+        return pickSelection;
+    } // PickSelection createPickSelection()
+
+    /**
+     * @return bytes allocated by the measured traversals - the least of a few
+     * rounds, a deoptimization while the JIT is still busy can reallocate the
+     * scalar replaced objects once (steady allocations show in every round)
+     */
+    private static long measure(PickSelection pickSelection, boolean drag) {
+        if (drag) {
+            pickSelection.setPickerCoord(10, 10);
+            pickSelection.click();
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            pickSelection.setPickerCoord(i % 97, (i * 3) % 89);
+            pickSelection.traverse(true);
+        }
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+            final long before = TestScenes.getAllocatedBytes();
+            for (int i = 0; i < MEASURED; i++) {
+                pickSelection.setPickerCoord(i % 97, (i * 3) % 89);
+                pickSelection.traverse(true);
+            }
+            allocated = Math.min(allocated, TestScenes.getAllocatedSince(before));
+        }
+        return allocated;
+    } // long measure(...)
+
+    @Test
+    public void hoverMeshTrianglesDoesNotAllocate() {
+        PickSelection pickSelection = createPickSelection();
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckMeshTriangles(true);
+        pickSelection.setPickNodes(true);
+        assertEquals(0L, measure(pickSelection, false));
+    }
+
+    @Test
+    public void hoverBoxesDoesNotAllocate() {
+        PickSelection pickSelection = createPickSelection();
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckOBBTriangles(true);
+        pickSelection.setCheckAABBs(true);
+        pickSelection.setCheckOnScreenBoxes(true);
+        assertEquals(0L, measure(pickSelection, false));
+    }
+
+    @Test
+    public void hoverDeltaListenerDoesNotAllocate() {
+        PickSelection pickSelection = createPickSelection();
+        pickSelection.setOnHover(true);
+        pickSelection.setCheckOBBTriangles(true);
+        final int[] changes = new int[1];
+        pickSelection.addOnSelectionDeltaListener(new PickSelection.OnSelectionDeltaListener() {
+            @Override
+            public void selectionChanged(PickSelection pickSelection, PickSelection.SelectionDelta delta) {
+                changes[0] += delta.added.size + delta.removed.size;
+            }
+        });
+        assertEquals(0L, measure(pickSelection, false));
+        assertTrue(changes[0] > 0);
+    } // void hoverDeltaListenerDoesNotAllocate()
+
+    @Test
+    public void groupBoxDragDoesNotAllocate() {
+        PickSelection pickSelection = createPickSelection();
+        pickSelection.setOnClick(true);
+        pickSelection.setUsePickingBox(true);
+        pickSelection.setGroupSelectionMode(true);
+        pickSelection.setCheckFBOPixels(true);
+        assertEquals(0L, measure(pickSelection, true));
+    }
+
+    @Test
+    public void toggleClickDoesNotAllocate() {
+        PickSelection pickSelection = createPickSelection();
+        pickSelection.setOnClick(true);
+        pickSelection.setToggleSelectionMode(true);
+        pickSelection.setCheckFBOPixels(true);
+        pickSelection.setCheckMeshTriangles(true);
+        assertEquals(0L, measure(pickSelection, true));
+    }
+
+    @Test
+    public void boxSetOperationsDoNotAllocate() {
+        for (PickSelection.SelectionOperation operation : PickSelection.SelectionOperation.values()) {
+            PickSelection pickSelection = createPickSelection();
+            pickSelection.setOnClick(true);
+            pickSelection.setUsePickingBox(true);
+            pickSelection.setCheckFBOPixels(true);
+            pickSelection.setBoxSelectionOperation(operation);
+            // selection from before the box is combined with the box content
+            IdBitmap base = new IdBitmap();
+            for (int i = 0; i < objects.size; i += 3)
+                base.add(i);
+            pickSelection.applySelection(base, false);
+            assertEquals(operation.name(), 0L, measure(pickSelection, true));
+        }
+    } // void boxSetOperationsDoNotAllocate()
+
+} // class PickSelectionAllocationTest
@@ -0,0 +1,108 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tolerance search around the pick position - every query needs to search
+ * around its own pixel, the result of the last traversal can't leak into it.
+ */
+public class PickToleranceTest {
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 20);
+        camera = TestScenes.createCamera();
+    }
+
+    /**
+     * ID buffer with object 5 drawn at 10..12 x 10..12 and object 7 at
+     * 60..62 x 60..62 (bottom left origin)
+     */
+    private static final PickSelection.IdReader ID_READER = new PickSelection.IdReader() {
+        @Override
+        public int getPixelId(int x, int y) {
+            if (x >= 10 && x <= 12 && y >= 10 && y <= 12)
+                return 5;
+            if (x >= 60 && x <= 62 && y >= 60 && y <= 62)
+                return 7;
+            return -1;
+        }
+    };
+
+    private static PickSelection createPickSelection() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setPixelChecker(new PickSelection.PixelChecker() {
+            @Override
+            public boolean isColorInPixels(int colorValue, Rectangle area, boolean dump) {
+                return false; // everything goes through the ID reader
+            }
+        });
+        pickSelection.setIdReader(ID_READER);
+        pickSelection.setCheckFBOPixels(true);
+        pickSelection.setPickTolerance(2);
+        return pickSelection;
+    }
+
+    private static int toTopLeft(int y) {
+        return TestScenes.SCREEN_HEIGHT - y;
+    }
+
+    private static void checkQueries(PickSelection pickSelection) {
+        // traversal leaves object 5 as the tolerance result
+        pickSelection.setOnHover(true);
+        pickSelection.setPickerCoord(14, toTopLeft(10));
+        pickSelection.traverse(false);
+        assertEquals(5, pickSelection.getToleranceHitID());
+
+        // two different pixels - each query searches around its own position
+        assertEquals(7, pickSelection.pickObjectID(64, toTopLeft(61), null));
+        assertEquals(5, pickSelection.pickObjectID(11, toTopLeft(13), null));
+        assertEquals(7, pickSelection.pickObjectID(59, toTopLeft(59), null));
+        // nothing within the tolerance
+        assertEquals(-1, pickSelection.pickObjectID(15, toTopLeft(10), null));
+        assertEquals(-1, pickSelection.pickObjectID(40, toTopLeft(40), null));
+        assertEquals(-1, pickSelection.pickObjectID(65, toTopLeft(60), null));
+
+        // the state of the traversal is kept intact
+        assertEquals(5, pickSelection.getToleranceHitID());
+    } // void checkQueries(...)
+
+    @Test
+    public void queriesSearchAroundTheirOwnPixel() {
+        checkQueries(createPickSelection());
+    }
+
+    @Test
+    public void cachedQueriesSearchAroundTheirOwnPixel() {
+        PickSelection pickSelection = createPickSelection();
+        pickSelection.setPickCacheCapacity(16);
+        checkQueries(pickSelection);
+        // repeated queries come from the cache
+        assertEquals(7, pickSelection.pickObjectID(64, toTopLeft(61), null));
+        assertEquals(5, pickSelection.pickObjectID(11, toTopLeft(13), null));
+        assertTrue(pickSelection.getPickCache().getHitCount() >= 2);
+    }
+
+    @Test
+    public void searchIsLimitedByTolerance() {
+        PickSelection pickSelection = createPickSelection();
+        // object 5 is on the second ring - found only with the tolerance 2
+        assertEquals(5, pickSelection.pickObjectID(13, toTopLeft(14), null));
+        pickSelection.setPickTolerance(1);
+        assertEquals(-1, pickSelection.pickObjectID(14, toTopLeft(14), null));
+        pickSelection.setPickTolerance(0);
+        // without the tolerance only the pixel checker decides
+        assertEquals(-1, pickSelection.pickObjectID(11, toTopLeft(11), null));
+    }
+
+} // class PickToleranceTest
@@ -0,0 +1,167 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Matrix3;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Piercing queries against the brute force intersection of the ray with the
+ * triangles of every box (oriented boxes of the tight bounds, flat ones too,
+ * and the world boxes). The boxes are slightly shrunk for the hits that have
+ * to be found and grown for the hits that may be found - rays grazing the
+ * edges may go either way.
+ */
+public class PiercingQueryTest {
+
+    private static final int NUM_OBJECTS = 3000;
+    private static final float SIZE = 100.0f;
+    private static final float EPSILON = 0.001f;
+
+    private static Model quadModel;
+    private static Model boxModel;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        quadModel = TestScenes.createQuadModel();
+        boxModel = TestScenes.createBoxModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    private static Array<SpatialObject> createScene(Random random) {
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        for (int i = 0; i < NUM_OBJECTS; i++) {
+            GameObject gameObject = new GameObject(random.nextBoolean() ? quadModel : boxModel);
+            gameObject.setID(i);
+            gameObject.setUseTightBounds(random.nextInt(3) != 0);
+            gameObject.setScale(nextFloat(random, 0.5f, 4.0f), nextFloat(random, 0.5f, 4.0f), nextFloat(random, 0.5f, 4.0f));
+            gameObject.setPosition(nextFloat(random, 0, SIZE), nextFloat(random, 0, SIZE), nextFloat(random, 0, SIZE));
+            gameObject.setRotation(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+            gameObject.update();
+            gameObject.setVisible(random.nextInt(10) != 0);
+            objects.add(gameObject);
+        }
+        return objects;
+    } // Array<SpatialObject> createScene(...)
+
+    /**
+     * Intersects the ray with the triangles of the box with the half axes
+     * scaled
+     *
+     * @param hit receives the entry and the exit distance
+     * @return false if the box is missed
+     */
+    private static boolean intersect(Ray ray, SpatialObject object, float scale, float[] hit) {
+        final OrientedBox box = new OrientedBox();
+        if (object.getOrientedBox() != null)
+            box.set(object.getOrientedBox());
+        else
+            box.set(object.getBoundingBox());
+        boolean flat = false;
+        for (Vector3 halfAxis : box.halfAxes) {
+            if (halfAxis.isZero())
+                flat = true;
+            halfAxis.scl(scale);
+        }
+        // origin in the box coordinates (the axes may be sheared)
+        boolean inside = !flat;
+        if (inside) {
+            final Matrix3 axes = new Matrix3();
+            for (int a = 0; a < 3; a++) {
+                axes.val[a * 3] = box.halfAxes[a].x;
+                axes.val[a * 3 + 1] = box.halfAxes[a].y;
+                axes.val[a * 3 + 2] = box.halfAxes[a].z;
+            }
+            final Vector3 local = new Vector3(ray.origin).sub(box.center).mul(axes.inv());
+            inside = Math.abs(local.x) <= 1.0f && Math.abs(local.y) <= 1.0f && Math.abs(local.z) <= 1.0f;
+        }
+        final Vector3[] corners = new Vector3[8];
+        for (int i = 0; i < 8; i++)
+            corners[i] = box.getCorner(i, new Vector3());
+        final int[] triangles = OcclusionCuller.BOX_TRIANGLES;
+        final Vector3 point = new Vector3(), edge = new Vector3();
+        float entry = Float.MAX_VALUE, exit = -Float.MAX_VALUE;
+        for (int i = 0; i < triangles.length; i += 3) {
+            final Vector3 a = corners[triangles[i]], b = corners[triangles[i + 1]], c = corners[triangles[i + 2]];
+            // the side faces of the flat boxes - libGDX reports the origin as the hit
+            if (edge.set(b).sub(a).crs(c.x - a.x, c.y - a.y, c.z - a.z).len2() < 0.000001f)
+                continue;
+            if (!Intersector.intersectRayTriangle(ray, a, b, c, point))
+                continue;
+            final float distance = point.dst(ray.origin);
+            entry = Math.min(entry, distance);
+            exit = Math.max(exit, distance);
+        }
+        if (inside)
+            entry = 0.0f;
+        if (entry > exit)
+            return false;
+        hit[0] = entry;
+        hit[1] = exit;
+        return true;
+    } // boolean intersect(...)
+
+    @Test
+    public void hitsMatchBruteForce() {
+        final Random random = new Random(50);
+        final Array<SpatialObject> objects = createScene(random);
+        final PickSelection pickSelection = new PickSelection();
+        pickSelection.setSpatialObjects(objects);
+        final RayHitBuffer buffer = new RayHitBuffer();
+        final float[] hit = new float[2];
+        final Vector3 point = new Vector3();
+        int totalHits = 0;
+        for (int q = 0; q < 300; q++) {
+            final Ray ray = new Ray(new Vector3(nextFloat(random, 0, SIZE), nextFloat(random, 0, SIZE), nextFloat(random, 0, SIZE)),
+                    new Vector3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f).nor());
+            final float maxDistance = q % 3 == 0 ? Float.MAX_VALUE : nextFloat(random, 0, SIZE);
+            final int maxHits = q % 2 == 0 ? 0 : 1 + random.nextInt(5);
+            final int found = pickSelection.pierce(ray, maxDistance, maxHits, buffer);
+            assertEquals(buffer.size(), found);
+            if (maxHits > 0)
+                assertTrue(found <= maxHits);
+            final boolean[] reported = new boolean[NUM_OBJECTS];
+            for (int i = 0; i < found; i++) {
+                final SpatialObject object = buffer.getObject(i);
+                final float entry = buffer.getEntryDistance(i);
+                assertTrue(object.isVisible());
+                assertTrue(entry <= maxDistance);
+                if (i > 0)
+                    assertTrue(buffer.getEntryDistance(i - 1) <= entry);
+                assertTrue("q " + q + " object " + object.getSpatialObjectID(), intersect(ray, object, 1.0f + EPSILON, hit));
+                if (intersect(ray, object, 1.0f, hit)) {
+                    assertEquals(hit[0], entry, 0.01f);
+                    assertEquals(hit[1], buffer.getExitDistance(i), 0.01f);
+                }
+                buffer.getEntryPoint(i, point);
+                assertEquals(0.0f, point.dst(ray.getEndPoint(new Vector3(), entry)), 0.001f);
+                reported[object.getSpatialObjectID()] = true;
+            }
+            // with the limit the hits in front of the last kept one must be there
+            float limit = maxDistance;
+            if (maxHits > 0 && found == maxHits)
+                limit = Math.min(limit, buffer.getEntryDistance(found - 1));
+            for (SpatialObject object : objects) {
+                if (!object.isVisible() || !intersect(ray, object, 1.0f - EPSILON, hit) || hit[0] >= limit - 0.01f)
+                    continue;
+                assertTrue("q " + q + " missed " + object.getSpatialObjectID(), reported[object.getSpatialObjectID()]);
+            }
+            totalHits += found;
+        } // for each query
+        assertTrue(totalHits > 300);
+    } // void hitsMatchBruteForce()
+
+} // class PiercingQueryTest
@@ -0,0 +1,205 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.utils.Array;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Update, cull and render phases of the scene manager - the visible objects
+ * against the brute force frustum test of every object, the parallel
+ * traversal against the sequential one, and render() using the results of
+ * update() without traversing again.
+ */
+public class SceneManagerPhasesTest {
+
+    private static final int NUM_ROOTS = 3000;
+
+    private static Model model;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.initGL();
+        model = TestScenes.createBoxModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    /**
+     * Records the objects submitted by the render phase
+     */
+    private static final class RecordingSceneManager extends SimpleSceneManager {
+        int renderedCount = -1;
+        int renderCalls = 0;
+
+        @Override
+        protected void renderPhase() {
+            renderedCount = getVisibleObjects().size;
+            renderCalls++;
+        }
+    } // static final class RecordingSceneManager
+
+    /**
+     * Root objects around the camera, every third one with a child and some
+     * of the children with a grandchild (local offsets)
+     */
+    private static RecordingSceneManager createScene(Random random) {
+        final RecordingSceneManager sceneManager = new RecordingSceneManager();
+        for (int i = 0; i < NUM_ROOTS; i++) {
+            final GameObject root = sceneManager.add(model, "root" + i);
+            root.setPosition(nextFloat(random, -200, 200), nextFloat(random, -50, 50), nextFloat(random, -200, 200));
+            root.setScale(nextFloat(random, 0.5f, 3.0f));
+            if (i % 3 != 0)
+                continue;
+            GameObject parent = root;
+            for (int depth = random.nextInt(2); depth >= 0; depth--) {
+                final GameObject child = sceneManager.add(model, "child" + i + "_" + depth);
+                sceneManager.setParent(child, parent);
+                child.setPosition(nextFloat(random, -10, 10), nextFloat(random, -10, 10), nextFloat(random, -10, 10));
+                parent = child;
+            }
+        } // for each root
+        final Camera camera = sceneManager.getCamera();
+        camera.position.set(0, 0, 0);
+        camera.direction.set(1, 0, 0.3f).nor();
+        camera.far = 150.0f;
+        camera.update();
+        return sceneManager;
+    } // RecordingSceneManager createScene(...)
+
+    /**
+     * With the box check the objects are visible exactly when their boxes
+     * are in the frustum. With the sphere check the subtree boxes of the
+     * parents are still tested, so the visible objects are between the two.
+     */
+    private static void assertVisibleMatchesFrustum(SimpleSceneManager sceneManager, boolean box) {
+        final Camera camera = sceneManager.getCamera();
+        final Array<GameObject> visible = sceneManager.getVisibleObjects();
+        int expected = 0;
+        for (int i = 0; i < sceneManager.count(); i++) {
+            final GameObject gameObject = sceneManager.get(i);
+            final String name = gameObject.getName();
+            final boolean boxInside = camera.frustum.boundsInFrustum(gameObject.getCenter().x,
+                    gameObject.getCenter().y, gameObject.getCenter().z, gameObject.getExtent().x,
+                    gameObject.getExtent().y, gameObject.getExtent().z);
+            assertEquals(name, gameObject.isVisible(), visible.contains(gameObject, true));
+            if (box) {
+                assertEquals(name, boxInside, gameObject.isVisible());
+            } else {
+                if (boxInside)
+                    assertTrue(name, gameObject.isVisible());
+                if (gameObject.isVisible())
+                    assertTrue(name, camera.frustum.sphereInFrustum(gameObject.getCenter(), gameObject.getRadius()));
+            }
+            if (gameObject.isVisible())
+                expected++;
+        }
+        assertEquals(expected, visible.size);
+        assertTrue(expected > 0 && expected < sceneManager.count());
+    } // void assertVisibleMatchesFrustum(...)
+
+    private static void moveSome(SimpleSceneManager sceneManager, Random random) {
+        for (int i = 0; i < sceneManager.count(); i += 1 + random.nextInt(10)) {
+            final GameObject gameObject = sceneManager.get(i);
+            gameObject.setPosition(gameObject.getPosition().x + nextFloat(random, -20, 20),
+                    gameObject.getPosition().y, gameObject.getPosition().z + nextFloat(random, -20, 20));
+        }
+    }
+
+    @Test
+    public void visibleMatchesBruteForce() {
+        final Random random = new Random(28);
+        final RecordingSceneManager sceneManager = createScene(random);
+        for (int round = 0; round < 4; round++) {
+            final boolean box = round % 2 == 0;
+            sceneManager.setFrustumCheckBox(box);
+            sceneManager.setFrustumCheckSphere(!box);
+            sceneManager.setParallelTraverse(round >= 2);
+            sceneManager.update();
+            assertVisibleMatchesFrustum(sceneManager, box);
+            moveSome(sceneManager, random);
+            sceneManager.getCamera().rotate(0, 1, 0, 40);
+            sceneManager.getCamera().update();
+        }
+    } // void visibleMatchesBruteForce()
+
+    @Test
+    public void parallelMatchesSequential() {
+        final RecordingSceneManager sequential = createScene(new Random(280));
+        final RecordingSceneManager parallel = createScene(new Random(280));
+        sequential.setFrustumCheckBox(true);
+        parallel.setFrustumCheckBox(true);
+        parallel.setParallelTraverse(true);
+        assertTrue(parallel.isParallelTraverse());
+        final Random moveRandom = new Random(281);
+        for (int round = 0; round < 5; round++) {
+            sequential.update();
+            parallel.update();
+            assertEquals(sequential.getSceneVersion(), parallel.getSceneVersion());
+            final Array<GameObject> expected = sequential.getVisibleObjects();
+            final Array<GameObject> actual = parallel.getVisibleObjects();
+            assertEquals(expected.size, actual.size);
+            // same depth first order of the hierarchy
+            for (int i = 0; i < expected.size; i++)
+                assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            for (int i = 0; i < sequential.count(); i++) {
+                assertEquals(sequential.get(i).getCenter(), parallel.get(i).getCenter());
+                assertEquals(sequential.get(i).getRadius(), parallel.get(i).getRadius(), 0.0f);
+            }
+            // the same moves in both
+            final long seed = moveRandom.nextLong();
+            moveSome(sequential, new Random(seed));
+            moveSome(parallel, new Random(seed));
+        }
+    } // void parallelMatchesSequential()
+
+    @Test
+    public void renderUsesUpdatedFrame() {
+        final RecordingSceneManager sceneManager = createScene(new Random(282));
+        sceneManager.setFrustumCheckBox(true);
+        sceneManager.update();
+        final int visible = sceneManager.getVisibleObjects().size;
+        final int sceneVersion = sceneManager.getSceneVersion();
+        // nothing moved - the version stays
+        sceneManager.update();
+        assertEquals(sceneVersion, sceneManager.getSceneVersion());
+
+        // moved in front of the camera after update() - render() shows the prepared frame
+        GameObject moved = null;
+        for (int i = 0; i < sceneManager.count() && moved == null; i++) {
+            if (!sceneManager.get(i).isVisible() && !sceneManager.get(i).hasParent())
+                moved = sceneManager.get(i);
+        }
+        final Camera camera = sceneManager.getCamera();
+        moved.setPosition(camera.direction.x * 20, camera.direction.y * 20, camera.direction.z * 20);
+        sceneManager.render();
+        assertEquals(1, sceneManager.renderCalls);
+        assertEquals(visible, sceneManager.renderedCount);
+        assertEquals(sceneVersion, sceneManager.getSceneVersion());
+
+        // without update() the linear traversal runs in render()
+        sceneManager.render();
+        assertTrue(moved.isVisible());
+        assertTrue(sceneManager.getSceneVersion() > sceneVersion);
+        assertEquals(sceneManager.getVisibleObjects().size, sceneManager.renderedCount);
+        assertTrue(sceneManager.getVisibleObjects().contains(moved, true));
+
+        // without the linear traversal render() only draws
+        sceneManager.setLinearTraverse(false);
+        moved.setPosition(-camera.direction.x * 20, 0, -camera.direction.z * 20);
+        sceneManager.render();
+        assertTrue(moved.isVisible());
+        sceneManager.update();
+        assertFalse(moved.isVisible());
+    } // void renderUsesUpdatedFrame()
+
+} // class SceneManagerPhasesTest
@@ -0,0 +1,165 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.utils.IdBitmap;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Selection deltas applied to the last reported selection must always give
+ * the current selection - checked against a plain set after random picks,
+ * box drags, applied selections and clears.
+ */
+public class SelectionDeltaTest {
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 200);
+        camera = TestScenes.createCamera();
+    }
+
+    /**
+     * Applies the deltas to the set of the reported IDs
+     */
+    private static final class ReportedSelection implements PickSelection.OnSelectionDeltaListener {
+        final TreeSet<Integer> reported = new TreeSet<Integer>();
+        int calls = 0;
+
+        @Override
+        public void selectionChanged(PickSelection pickSelection, PickSelection.SelectionDelta delta) {
+            assertFalse(delta.isEmpty());
+            calls++;
+            for (int i = 0; i < delta.removed.size; i++)
+                assertTrue("removed " + delta.removed.get(i), reported.remove(delta.removed.get(i)));
+            for (int i = 0; i < delta.added.size; i++)
+                assertTrue("added " + delta.added.get(i), reported.add(delta.added.get(i)));
+        }
+    } // static final class ReportedSelection
+
+    private static TreeSet<Integer> getSelectedIDs(PickSelection pickSelection) {
+        TreeSet<Integer> selected = new TreeSet<Integer>();
+        for (int i = 0; i < pickSelection.getSelectedObjects().size; i++)
+            selected.add(pickSelection.getSelectedObjects().get(i).getSpatialObjectID());
+        return selected;
+    }
+
+    @Test
+    public void deltasFollowSelection() {
+        final Random random = new Random(44);
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setCheckOBBTriangles(true);
+        ReportedSelection listener = new ReportedSelection();
+        pickSelection.addOnSelectionDeltaListener(listener);
+        final IdBitmap target = new IdBitmap();
+        for (int step = 0; step < 2000; step++) {
+            final int x = random.nextInt(TestScenes.SCREEN_WIDTH);
+            final int y = random.nextInt(TestScenes.SCREEN_HEIGHT);
+            switch (random.nextInt(6)) {
+                case 0:
+                    pickSelection.setOnHover(true);
+                    pickSelection.setPickerCoord(x, y);
+                    pickSelection.traverse(true);
+                    break;
+                case 1:
+                    pickSelection.setOnClick(true);
+                    pickSelection.setUsePickingBox(false);
+                    pickSelection.setGroupSelectionMode(random.nextBoolean());
+                    pickSelection.setPickerCoord(x, y);
+                    pickSelection.click();
+                    pickSelection.traverse(true);
+                    pickSelection.unclick();
+                    break;
+                case 2:
+                    pickSelection.setOnClick(true);
+                    pickSelection.setUsePickingBox(true);
+                    pickSelection.setGroupSelectionMode(true);
+                    pickSelection.setBoxSelectionOperation(random.nextBoolean() ?
+                            PickSelection.SelectionOperation.SYMMETRIC_DIFFERENCE : null);
+                    pickSelection.setPickerCoord(x, y);
+                    pickSelection.click();
+                    pickSelection.setPickerCoord(random.nextInt(TestScenes.SCREEN_WIDTH), random.nextInt(TestScenes.SCREEN_HEIGHT));
+                    pickSelection.traverse(true);
+                    pickSelection.unclick();
+                    break;
+                case 3:
+                    target.clear();
+                    for (int i = random.nextInt(20); i > 0; i--)
+                        target.add(random.nextInt(objects.size));
+                    pickSelection.applySelection(target, true);
+                    break;
+                case 4:
+                    // reported with the next change
+                    pickSelection.clear();
+                    break;
+                default:
+                    // without the listeners - reported later as well
+                    pickSelection.setOnHover(true);
+                    pickSelection.setPickerCoord(x, y);
+                    pickSelection.traverse(false);
+                    break;
+            }
+            if (random.nextInt(4) == 0) {
+                // any reported change includes everything pending
+                pickSelection.getSelectionBitmap(target);
+                if (!target.remove(0))
+                    target.add(0);
+                pickSelection.applySelection(target, true);
+                assertEquals("step " + step, getSelectedIDs(pickSelection), listener.reported);
+            }
+        } // for each step
+        assertTrue(listener.calls > 100);
+    } // void deltasFollowSelection()
+
+    @Test
+    public void unchangedSelectionIsNotReported() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        ReportedSelection listener = new ReportedSelection();
+        pickSelection.addOnSelectionDeltaListener(listener);
+        IdBitmap target = new IdBitmap();
+        target.add(3);
+        target.add(7);
+        pickSelection.applySelection(target, true);
+        assertEquals(1, listener.calls);
+        // unselected and selected again before the report
+        pickSelection.clear();
+        pickSelection.applySelection(target, true);
+        assertEquals(1, listener.calls);
+        assertEquals(getSelectedIDs(pickSelection), listener.reported);
+    } // void unchangedSelectionIsNotReported()
+
+    @Test
+    public void selectedObjectsCopyDoesNotChangeSelection() {
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        final IdBitmap target = new IdBitmap();
+        target.add(1);
+        target.add(2);
+        pickSelection.applySelection(target, false);
+        // the caller swaps an element of the returned array
+        final Array<SpatialObject> selected = pickSelection.getSelectedObjects();
+        selected.set(0, objects.get(7));
+        final IdBitmap bitmap = pickSelection.getSelectionBitmap(new IdBitmap());
+        assertEquals(2, bitmap.cardinality());
+        assertTrue(bitmap.contains(1) && bitmap.contains(2));
+        // the copy is refreshed after the next change
+        target.remove(1);
+        target.add(3);
+        pickSelection.applySelection(target, false);
+        final TreeSet<Integer> expected = new TreeSet<Integer>();
+        expected.add(2);
+        expected.add(3);
+        assertEquals(expected, getSelectedIDs(pickSelection));
+    } // void selectedObjectsCopyDoesNotChangeSelection()
+
+} // class SelectionDeltaTest
@@ -0,0 +1,209 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.utils.IntArray;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Events produced faster than a slow listener consumes them, checked for
+ * each overflow policy against the sent sequence - BLOCK delivers all of
+ * them in order, DROP_OLDEST keeps the global order and the newest events,
+ * COALESCE keeps the order per object and the last state of each object.
+ */
+public class SelectionEventDispatcherTest {
+
+    private static final int NUM_OBJECTS = 50;
+    private static final int NUM_FRAMES = 200;
+
+    private static GameObject[] gameObjects;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        final Model model = TestScenes.createQuadModel();
+        gameObjects = new GameObject[NUM_OBJECTS];
+        for (int i = 0; i < NUM_OBJECTS; i++) {
+            gameObjects[i] = new GameObject(model);
+            gameObjects[i].setID(i);
+        }
+    }
+
+    /**
+     * Records the delivered events, sleeps now and then so the ring fills up
+     */
+    private static final class RecordingListener implements PickSelection.OnSelectionListener {
+        final IntArray sequence = new IntArray();
+        final IntArray objectIDs = new IntArray();
+        final IntArray selectedStates = new IntArray();
+        volatile Thread thread = null;
+
+        @Override
+        public void selectionChanged(SpatialObject spatialObject, PickSelection.PickingInfo pickingInfo, boolean selected) {
+            thread = Thread.currentThread();
+            assertSame(spatialObject, pickingInfo.spatialObject);
+            assertEquals(selected, pickingInfo.selected);
+            assertEquals(pickingInfo.timeStamp, pickingInfo.intersection.x, 0.0f);
+            sequence.add((int) pickingInfo.timeStamp);
+            objectIDs.add(spatialObject.getSpatialObjectID());
+            selectedStates.add(selected ? 1 : 0);
+            if (sequence.size % 100 == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    } // static final class RecordingListener
+
+    /**
+     * Waits until every event is either delivered or dropped
+     */
+    private static void waitUntilDelivered(SelectionEventDispatcher dispatcher) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (!dispatcher.isIdle() ||
+                dispatcher.getDeliveredCount() + dispatcher.getDroppedCount() != dispatcher.head) {
+            assertTrue("events not delivered", System.currentTimeMillis() < deadline);
+            dispatcher.flush();
+            Thread.sleep(1);
+        }
+    } // void waitUntilDelivered(...)
+
+    /**
+     * Sends the events in random object order, the time stamp (and the
+     * intersection) carries the sequence number
+     *
+     * @return last sent sequence number of each object (-1 if none)
+     */
+    private static int[] produce(SelectionEventDispatcher dispatcher, Random random, boolean[] lastSelected) {
+        final int[] lastSent = new int[NUM_OBJECTS];
+        Arrays.fill(lastSent, -1);
+        final PickSelection.PickingInfo pickingInfo = new PickSelection.PickingInfo();
+        int sequence = 0;
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            for (int i = 0; i < NUM_OBJECTS; i++) {
+                final int objectID = random.nextInt(NUM_OBJECTS);
+                final boolean selected = random.nextBoolean();
+                pickingInfo.spatialObject = gameObjects[objectID];
+                pickingInfo.result = PickSelection.Result.PICKED_SPHERE;
+                pickingInfo.timeStamp = sequence;
+                pickingInfo.intersection.set(sequence, objectID, 0);
+                pickingInfo.selected = selected;
+                dispatcher.selectionChanged(gameObjects[objectID], pickingInfo, selected);
+                lastSent[objectID] = sequence;
+                lastSelected[objectID] = selected;
+                sequence++;
+            }
+            dispatcher.flush();
+        }
+        return lastSent;
+    } // int[] produce(...)
+
+    @Test
+    public void blockDeliversEverythingInOrder() throws InterruptedException {
+        final SelectionEventDispatcher dispatcher = new SelectionEventDispatcher(64, SelectionEventDispatcher.OverflowPolicy.BLOCK);
+        try {
+            final RecordingListener listener = new RecordingListener();
+            dispatcher.addListener(listener);
+            produce(dispatcher, new Random(45), new boolean[NUM_OBJECTS]);
+            waitUntilDelivered(dispatcher);
+            assertEquals(NUM_OBJECTS * NUM_FRAMES, listener.sequence.size);
+            for (int i = 0; i < listener.sequence.size; i++)
+                assertEquals(i, listener.sequence.get(i));
+            assertEquals(0, dispatcher.getDroppedCount());
+            assertTrue(dispatcher.getBlockedCount() > 0);
+            assertTrue(listener.thread != Thread.currentThread());
+        } finally {
+            dispatcher.dispose();
+        }
+    } // void blockDeliversEverythingInOrder()
+
+    @Test
+    public void dropOldestKeepsOrderAndNewest() throws InterruptedException {
+        final SelectionEventDispatcher dispatcher = new SelectionEventDispatcher(64, SelectionEventDispatcher.OverflowPolicy.DROP_OLDEST);
+        try {
+            final RecordingListener listener = new RecordingListener();
+            dispatcher.addListener(listener);
+            produce(dispatcher, new Random(46), new boolean[NUM_OBJECTS]);
+            waitUntilDelivered(dispatcher);
+            final int total = NUM_OBJECTS * NUM_FRAMES;
+            assertEquals(total, listener.sequence.size + dispatcher.getDroppedCount());
+            assertTrue(dispatcher.getDroppedCount() > 0);
+            for (int i = 1; i < listener.sequence.size; i++)
+                assertTrue(listener.sequence.get(i - 1) < listener.sequence.get(i));
+            // only the oldest are dropped - the last full ring always arrives
+            assertEquals(total - 1, listener.sequence.peek());
+            for (int i = 0; i < dispatcher.getCapacity(); i++)
+                assertEquals(total - 1 - i, listener.sequence.get(listener.sequence.size - 1 - i));
+        } finally {
+            dispatcher.dispose();
+        }
+    } // void dropOldestKeepsOrderAndNewest()
+
+    @Test
+    public void coalesceKeepsLastStatePerObject() throws InterruptedException {
+        final SelectionEventDispatcher dispatcher = new SelectionEventDispatcher(64, SelectionEventDispatcher.OverflowPolicy.COALESCE);
+        try {
+            final RecordingListener listener = new RecordingListener();
+            dispatcher.addListener(listener);
+            final boolean[] lastSelected = new boolean[NUM_OBJECTS];
+            final int[] lastSent = produce(dispatcher, new Random(47), lastSelected);
+            waitUntilDelivered(dispatcher);
+            assertEquals(NUM_OBJECTS * NUM_FRAMES, listener.sequence.size + dispatcher.getCoalescedCount());
+            assertTrue(dispatcher.getCoalescedCount() > 0);
+            assertEquals(0, dispatcher.getPendingCount());
+            final int[] lastDelivered = new int[NUM_OBJECTS];
+            final boolean[] deliveredSelected = new boolean[NUM_OBJECTS];
+            Arrays.fill(lastDelivered, -1);
+            for (int i = 0; i < listener.sequence.size; i++) {
+                final int objectID = listener.objectIDs.get(i);
+                assertTrue(lastDelivered[objectID] < listener.sequence.get(i));
+                lastDelivered[objectID] = listener.sequence.get(i);
+                deliveredSelected[objectID] = listener.selectedStates.get(i) != 0;
+            }
+            for (int i = 0; i < NUM_OBJECTS; i++) {
+                assertEquals(lastSent[i], lastDelivered[i]);
+                if (lastSent[i] >= 0)
+                    assertEquals(lastSelected[i], deliveredSelected[i]);
+            }
+        } finally {
+            dispatcher.dispose();
+        }
+    } // void coalesceKeepsLastStatePerObject()
+
+    @Test
+    public void throwingListenerDoesNotStopDispatch() throws InterruptedException {
+        final SelectionEventDispatcher dispatcher = new SelectionEventDispatcher(8, SelectionEventDispatcher.OverflowPolicy.BLOCK);
+        try {
+            final RuntimeException failure = new RuntimeException("listener failure");
+            dispatcher.addListener(new PickSelection.OnSelectionListener() {
+                @Override
+                public void selectionChanged(SpatialObject spatialObject, PickSelection.PickingInfo pickingInfo, boolean selected) {
+                    throw failure;
+                }
+            });
+            final RecordingListener listener = new RecordingListener();
+            dispatcher.addListener(listener);
+            final PickSelection.PickingInfo pickingInfo = new PickSelection.PickingInfo();
+            for (int i = 0; i < 20; i++) {
+                pickingInfo.timeStamp = i;
+                pickingInfo.intersection.x = i;
+                dispatcher.selectionChanged(gameObjects[i], pickingInfo, true);
+            }
+            waitUntilDelivered(dispatcher);
+            assertEquals(20, listener.sequence.size);
+            assertSame(failure, dispatcher.getError());
+        } finally {
+            dispatcher.dispose();
+        }
+    } // void throwingListenerDoesNotStopDispatch()
+
+} // class SelectionEventDispatcherTest
@@ -0,0 +1,191 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.flexigame.fg.utils.IdBitmap;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Random selection changes, pushes, undos and redos replayed against a plain
+ * list of sets - the restored selection, the listener events and the diffs
+ * must match the model.
+ */
+public class SelectionHistoryTest {
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), 200);
+        camera = TestScenes.createCamera();
+    }
+
+    private static TreeSet<Integer> getSelectedIDs(PickSelection pickSelection) {
+        TreeSet<Integer> selected = new TreeSet<Integer>();
+        for (int i = 0; i < pickSelection.getSelectedObjects().size; i++)
+            selected.add(pickSelection.getSelectedObjects().get(i).getSpatialObjectID());
+        return selected;
+    }
+
+    private static TreeSet<Integer> toSet(IntArray ids) {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        for (int i = 0; i < ids.size; i++)
+            set.add(ids.get(i));
+        return set;
+    }
+
+    private static TreeSet<Integer> toSet(IdBitmap bitmap) {
+        return toSet(bitmap.toArray(new IntArray()));
+    }
+
+    private static TreeSet<Integer> minus(TreeSet<Integer> a, TreeSet<Integer> b) {
+        TreeSet<Integer> result = new TreeSet<Integer>(a);
+        result.removeAll(b);
+        return result;
+    }
+
+    /**
+     * Counts the selected and unselected events
+     */
+    private static final class CountingListener implements PickSelection.OnSelectionListener {
+        final TreeSet<Integer> selected = new TreeSet<Integer>();
+        final TreeSet<Integer> unselected = new TreeSet<Integer>();
+
+        @Override
+        public void selectionChanged(SpatialObject spatialObject, PickSelection.PickingInfo pickingInfo, boolean selected) {
+            assertTrue((selected ? this.selected : unselected).add(spatialObject.getSpatialObjectID()));
+        }
+
+        void reset() {
+            selected.clear();
+            unselected.clear();
+        }
+    } // static final class CountingListener
+
+    @Test
+    public void undoRedoMatchModel() {
+        final Random random = new Random(47);
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        final CountingListener listener = new CountingListener();
+        pickSelection.addOnSelectionListener(listener);
+        final SelectionHistory history = new SelectionHistory(16);
+        final ArrayList<TreeSet<Integer>> states = new ArrayList<TreeSet<Integer>>();
+        int current = -1;
+        int maxDepth = 16;
+        final IdBitmap target = new IdBitmap();
+        for (int step = 0; step < 5000; step++) {
+            final TreeSet<Integer> before = getSelectedIDs(pickSelection);
+            listener.reset();
+            switch (random.nextInt(6)) {
+                case 0: {
+                    // change the selection a bit
+                    pickSelection.getSelectionBitmap(target);
+                    for (int i = random.nextInt(10); i >= 0; i--) {
+                        final int id = random.nextInt(objects.size);
+                        if (!target.remove(id))
+                            target.add(id);
+                    }
+                    pickSelection.applySelection(target, false);
+                    break;
+                }
+                case 1: {
+                    final TreeSet<Integer> selection = getSelectedIDs(pickSelection);
+                    final boolean stored = current < 0 || !states.get(current).equals(selection);
+                    assertEquals(stored, history.push(pickSelection));
+                    if (stored) {
+                        while (states.size() > current + 1)
+                            states.remove(states.size() - 1);
+                        states.add(selection);
+                        current = states.size() - 1;
+                        while (states.size() > maxDepth) {
+                            states.remove(0);
+                            current--;
+                        }
+                    }
+                    break;
+                }
+                case 2:
+                case 3: {
+                    final boolean undo = random.nextBoolean();
+                    final boolean expected = undo ? current > 0 : current >= 0 && current < states.size() - 1;
+                    assertEquals(expected, undo ? history.undo(pickSelection, true) : history.redo(pickSelection, true));
+                    if (!expected)
+                        break;
+                    current += undo ? -1 : 1;
+                    final TreeSet<Integer> after = states.get(current);
+                    assertEquals(after, getSelectedIDs(pickSelection));
+                    // only the differing objects are touched
+                    assertEquals(minus(after, before), listener.selected);
+                    assertEquals(minus(before, after), listener.unselected);
+                    break;
+                }
+                case 4: {
+                    if (states.size() < 2)
+                        break;
+                    final int from = random.nextInt(states.size()), to = random.nextInt(states.size());
+                    IntArray added = new IntArray(), removed = new IntArray();
+                    final TreeSet<Integer> expectedAdded = minus(states.get(to), states.get(from));
+                    final TreeSet<Integer> expectedRemoved = minus(states.get(from), states.get(to));
+                    assertEquals(expectedAdded.size() + expectedRemoved.size(), history.diff(from, to, added, removed));
+                    assertEquals(expectedAdded, toSet(added));
+                    assertEquals(expectedRemoved, toSet(removed));
+                    break;
+                }
+                default:
+                    if (random.nextInt(20) == 0) {
+                        maxDepth = 4 + random.nextInt(16);
+                        history.setMaxDepth(maxDepth);
+                        while (states.size() > maxDepth) {
+                            states.remove(0);
+                            current = Math.max(current - 1, 0);
+                        }
+                    }
+                    break;
+            } // switch operation
+            assertEquals(states.size(), history.size());
+            assertEquals(current, history.getCurrentIndex());
+            for (int i = 0; i < states.size(); i++)
+                assertEquals(states.get(i), toSet(history.getState(i)));
+        } // for each step
+        assertTrue(history.size() > 3);
+    } // void undoRedoMatchModel()
+
+    @Test
+    public void pushDropsRedoStates() {
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        final SelectionHistory history = new SelectionHistory();
+        final IdBitmap target = new IdBitmap();
+        assertTrue(history.push(pickSelection));
+        for (int i = 1; i <= 3; i++) {
+            target.add(i);
+            pickSelection.applySelection(target, false);
+            assertTrue(history.push(pickSelection));
+        }
+        assertFalse(history.push(pickSelection));
+        assertTrue(history.undo(pickSelection, false));
+        assertTrue(history.undo(pickSelection, false));
+        assertTrue(history.canRedo());
+        target.clear();
+        target.add(100);
+        pickSelection.applySelection(target, false);
+        assertTrue(history.push(pickSelection));
+        assertFalse(history.canRedo());
+        assertEquals(3, history.size());
+        assertTrue(history.undo(pickSelection, false));
+        assertEquals(1, pickSelection.getSelectedObjects().size);
+        assertEquals(1, pickSelection.getSelectedObjects().get(0).getSpatialObjectID());
+    } // void pushDropsRedoStates()
+
+} // class SelectionHistoryTest
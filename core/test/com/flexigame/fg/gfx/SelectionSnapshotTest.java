@@ -0,0 +1,131 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.utils.IdBitmap;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Published selection snapshots - a new one only when the selection changed,
+ * the old ones unchanged afterwards, and the ID lookups against the linear
+ * scan of the selected objects.
+ */
+public class SelectionSnapshotTest {
+
+    private static final int NUM_OBJECTS = 200;
+
+    private static Array<SpatialObject> objects;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        objects = TestScenes.createGrid(TestScenes.createQuadModel(), NUM_OBJECTS);
+        // scattered IDs - the selection order differs from the ID order
+        final Random random = new Random(46);
+        final IdBitmap used = new IdBitmap();
+        for (int i = 0; i < objects.size; i++) {
+            int objectID;
+            do {
+                objectID = random.nextInt(100000);
+            } while (used.contains(objectID));
+            used.add(objectID);
+            ((GameObject) objects.get(i)).setID(objectID);
+        }
+        camera = TestScenes.createCamera();
+    }
+
+    private static void assertMatchesSelection(PickSelection pickSelection, SelectionSnapshot snapshot) {
+        final Array<SpatialObject> selected = pickSelection.getSelectedObjects();
+        assertEquals(selected.size, snapshot.size());
+        for (int i = 0; i < selected.size; i++)
+            assertEquals(selected.get(i).getSpatialObjectID(), snapshot.getObjectID(i));
+        for (int i = 0; i < objects.size; i++) {
+            final int objectID = objects.get(i).getSpatialObjectID();
+            int expected = -1;
+            for (int j = 0; j < selected.size; j++) {
+                if (selected.get(j).getSpatialObjectID() == objectID)
+                    expected = j;
+            }
+            assertEquals(expected, snapshot.indexOf(objectID));
+            assertEquals(expected >= 0, snapshot.contains(objectID));
+        }
+        assertEquals(-1, snapshot.indexOf(-5));
+        assertFalse(snapshot.contains(100000));
+    } // void assertMatchesSelection(...)
+
+    @Test
+    public void lookupsMatchSelection() {
+        final Random random = new Random(460);
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setPublishSnapshots(true);
+        final IdBitmap target = new IdBitmap();
+        for (int step = 0; step < 50; step++) {
+            if (random.nextInt(4) == 0)
+                target.clear();
+            for (int i = random.nextInt(40); i > 0; i--)
+                target.add(objects.get(random.nextInt(NUM_OBJECTS)).getSpatialObjectID());
+            for (int i = random.nextInt(20); i > 0; i--)
+                target.remove(objects.get(random.nextInt(NUM_OBJECTS)).getSpatialObjectID());
+            pickSelection.applySelection(target, false);
+            assertMatchesSelection(pickSelection, pickSelection.getSnapshot());
+        }
+    } // void lookupsMatchSelection()
+
+    @Test
+    public void publishedOnlyOnChange() {
+        final PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        pickSelection.setPublishSnapshots(true);
+        pickSelection.setOnHover(true);
+        assertSame(SelectionSnapshot.EMPTY, pickSelection.getSnapshot());
+
+        // find a pixel with an object under it
+        int x = 0, y = 0, objectID = -1;
+        for (int p = 0; p < TestScenes.SCREEN_WIDTH * TestScenes.SCREEN_HEIGHT && objectID < 0; p += 7) {
+            x = p % TestScenes.SCREEN_WIDTH;
+            y = p / TestScenes.SCREEN_WIDTH;
+            objectID = pickSelection.pickObjectID(x, y, null);
+        }
+        assertTrue(objectID >= 0);
+        pickSelection.setPickerCoord(x, y);
+        pickSelection.traverse(false);
+        final SelectionSnapshot hovered = pickSelection.getSnapshot();
+        assertEquals(1, hovered.size());
+        assertEquals(objectID, hovered.getObjectID(0));
+        assertTrue(hovered.contains(objectID));
+
+        // same object hovered again - nothing published
+        for (int i = 0; i < 10; i++) {
+            pickSelection.traverse(false);
+            assertSame(hovered, pickSelection.getSnapshot());
+        }
+
+        // moved off - the new snapshot, the old one unchanged
+        pickSelection.setPickerCoord(-100, -100);
+        pickSelection.traverse(false);
+        final SelectionSnapshot empty = pickSelection.getSnapshot();
+        assertNotSame(hovered, empty);
+        assertTrue(empty.isEmpty());
+        assertTrue(empty.getVersion() > hovered.getVersion());
+        assertEquals(1, hovered.size());
+        assertEquals(objectID, hovered.getObjectID(0));
+
+        // applied selection publishes outside of the traversal too
+        final IdBitmap target = new IdBitmap();
+        target.add(objects.get(3).getSpatialObjectID());
+        target.add(objects.get(1).getSpatialObjectID());
+        pickSelection.applySelection(target, false);
+        assertMatchesSelection(pickSelection, pickSelection.getSnapshot());
+        assertEquals(2, pickSelection.getSnapshot().size());
+    } // void publishedOnlyOnChange()
+
+} // class SelectionSnapshotTest
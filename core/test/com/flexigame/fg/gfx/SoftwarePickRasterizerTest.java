@@ -0,0 +1,201 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.utils.ParallelTaskRunner;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Each pixel of the software ID buffer must show the object with the
+ * closest hit of the ray through the pixel center (brute force against all
+ * triangles). Pixels on the triangle edges may go either way.
+ */
+public class SoftwarePickRasterizerTest {
+
+    private static Model model;
+    private static PerspectiveCamera camera;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        model = TestScenes.createQuadModel();
+        camera = TestScenes.createCamera();
+        camera.near = 1.0f;
+        camera.update();
+    }
+
+    /**
+     * @return randomly placed and rotated quads, some of them crossing the
+     * near plane of the camera
+     */
+    private static Array<SpatialObject> createScene(Random random) {
+        Array<SpatialObject> objects = new Array<SpatialObject>();
+        for (int i = 0; i < 30; i++) {
+            GameObject gameObject = new GameObject(model);
+            gameObject.setID(i);
+            gameObject.setScale(0.3f + random.nextFloat() * 0.7f);
+            gameObject.setPosition(random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, random.nextFloat() * 7.5f - 3);
+            gameObject.setRotation(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+            gameObject.update();
+            gameObject.setVisible(true);
+            objects.add(gameObject);
+        }
+        return objects;
+    } // Array<SpatialObject> createScene(...)
+
+    /**
+     * @return triangles of the object in world space (3 vertices each)
+     */
+    private static Vector3[] getTriangles(SpatialObject object, boolean boxes) {
+        if (boxes) {
+            final OrientedBox box = new OrientedBox().set(object.getOriginalBoundingBox());
+            box.setTransformed(new OrientedBox(box), object.getTransform());
+            final int[] indices = OcclusionCuller.BOX_TRIANGLES;
+            Vector3[] triangles = new Vector3[indices.length];
+            for (int i = 0; i < indices.length; i++)
+                triangles[i] = box.getCorner(indices[i], new Vector3());
+            return triangles;
+        }
+        final float[] quad = {-1, -1, 0, 1, -1, 0, 1, 1, 0, -1, 1, 0};
+        final int[] indices = {0, 1, 2, 0, 2, 3};
+        Vector3[] triangles = new Vector3[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            final int v = indices[i] * 3;
+            triangles[i] = new Vector3(quad[v], quad[v + 1], quad[v + 2]).mul(object.getTransform());
+        }
+        return triangles;
+    } // Vector3[] getTriangles(...)
+
+    /**
+     * @return ID of the object with the closest hit through the screen point
+     * (bottom left origin) or -1, the depth is stored in depthOut[0]
+     */
+    private static int castRay(float sx, float sy, Array<SpatialObject> objects, Vector3[][] triangles, float[] depthOut) {
+        final Vector3 target = new Vector3(sx / TestScenes.SCREEN_WIDTH * 2.0f - 1.0f,
+                sy / TestScenes.SCREEN_HEIGHT * 2.0f - 1.0f, 1.0f).prj(camera.invProjectionView);
+        final Ray ray = new Ray(camera.position, target.sub(camera.position).nor());
+        final Vector3 hit = new Vector3();
+        int closestID = -1;
+        float closest = 1.0f;
+        for (int o = 0; o < objects.size; o++) {
+            final Vector3[] object = triangles[o];
+            for (int i = 0; i < object.length; i += 3) {
+                if (!Intersector.intersectRayTriangle(ray, object[i], object[i + 1], object[i + 2], hit))
+                    continue;
+                final float depth = hit.prj(camera.combined).z * 0.5f + 0.5f;
+                // clipped by the near plane
+                if (depth < 0.0f || depth >= closest)
+                    continue;
+                closest = depth;
+                closestID = objects.get(o).getSpatialObjectID();
+            }
+        }
+        depthOut[0] = closest;
+        return closestID;
+    } // int castRay(...)
+
+    private static void checkBuffer(SoftwarePickRasterizer rasterizer, Array<SpatialObject> objects, boolean boxes) {
+        Vector3[][] triangles = new Vector3[objects.size][];
+        for (int i = 0; i < objects.size; i++)
+            triangles[i] = getTriangles(objects.get(i), boxes);
+        final float[] depth = new float[1];
+        int filled = 0;
+        for (int y = 0; y < TestScenes.SCREEN_HEIGHT; y++) {
+            for (int x = 0; x < TestScenes.SCREEN_WIDTH; x++) {
+                final int id = rasterizer.getIdAt(x, y);
+                final int expected = castRay(x + 0.5f, y + 0.5f, objects, triangles, depth);
+                if (id >= 0)
+                    filled++;
+                if (id == expected) {
+                    assertEquals(depth[0], rasterizer.getDepthAt(x, y), 0.0001f);
+                    continue;
+                }
+                // on the edge - a nudged ray has to see the same
+                boolean edge = false;
+                for (int i = 0; i < 4 && !edge; i++) {
+                    final float dx = (i & 1) != 0 ? 0.01f : -0.01f;
+                    final float dy = (i & 2) != 0 ? 0.01f : -0.01f;
+                    edge = castRay(x + 0.5f + dx, y + 0.5f + dy, objects, triangles, depth) == id;
+                }
+                assertTrue("pixel " + x + "," + y + " id " + id + " expected " + expected, edge);
+            }
+        }
+        assertTrue(filled > 1000);
+    } // void checkBuffer(...)
+
+    @Test
+    public void pixelsMatchClosestTriangles() {
+        final Random random = new Random(35);
+        final Rectangle screen = new Rectangle(0, 0, TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT);
+        for (int scene = 0; scene < 5; scene++) {
+            Array<SpatialObject> objects = createScene(random);
+            PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+            SoftwarePickRasterizer rasterizer = new SoftwarePickRasterizer(pickSelection);
+            rasterizer.render(objects, screen);
+            checkBuffer(rasterizer, objects, false);
+            rasterizer.setSource(SoftwarePickRasterizer.Source.ORIENTED_BOXES);
+            rasterizer.render(objects, screen);
+            checkBuffer(rasterizer, objects, true);
+        }
+    } // void pixelsMatchClosestTriangles()
+
+    @Test
+    public void parallelTilesMatchSequential() {
+        final Random random = new Random(36);
+        final Rectangle screen = new Rectangle(0, 0, TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT);
+        Array<SpatialObject> objects = createScene(random);
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        SoftwarePickRasterizer sequential = new SoftwarePickRasterizer(pickSelection);
+        sequential.render(objects, screen);
+        ParallelTaskRunner taskRunner = new ParallelTaskRunner(4);
+        try {
+            SoftwarePickRasterizer parallel = new SoftwarePickRasterizer(pickSelection, taskRunner);
+            parallel.render(objects, screen);
+            for (int y = 0; y < TestScenes.SCREEN_HEIGHT; y++) {
+                for (int x = 0; x < TestScenes.SCREEN_WIDTH; x++) {
+                    assertEquals(sequential.getIdAt(x, y), parallel.getIdAt(x, y));
+                    assertEquals(sequential.getDepthAt(x, y), parallel.getDepthAt(x, y), 0.0f);
+                }
+            }
+        } finally {
+            taskRunner.dispose();
+        }
+    } // void parallelTilesMatchSequential()
+
+    @Test
+    public void pickRegionFollowsPickBox() {
+        final Random random = new Random(37);
+        Array<SpatialObject> objects = createScene(random);
+        PickSelection pickSelection = TestScenes.createPickSelection(camera, objects);
+        SoftwarePickRasterizer region = new SoftwarePickRasterizer(pickSelection);
+        SoftwarePickRasterizer full = new SoftwarePickRasterizer(pickSelection);
+        full.render(objects, new Rectangle(0, 0, TestScenes.SCREEN_WIDTH, TestScenes.SCREEN_HEIGHT));
+        pickSelection.setOnClick(true);
+        pickSelection.setUsePickingBox(true);
+        pickSelection.setPickerCoord(20, 30);
+        pickSelection.click();
+        pickSelection.setPickerCoord(70, 60);
+        pickSelection.refreshPickBoxDimensions();
+        region.render(objects);
+        final Rectangle pickBox = pickSelection.getPickBox();
+        assertEquals((int) pickBox.width * (int) pickBox.height, region.getRegionWidth() * region.getRegionHeight());
+        for (int y = region.getRegionY(); y < region.getRegionY() + region.getRegionHeight(); y++) {
+            for (int x = region.getRegionX(); x < region.getRegionX() + region.getRegionWidth(); x++)
+                assertEquals(full.getIdAt(x, y), region.getIdAt(x, y));
+        }
+        // outside of the region
+        assertEquals(-1, region.getIdAt(region.getRegionX() - 1, region.getRegionY()));
+    } // void pickRegionFollowsPickBox()
+
+} // class SoftwarePickRasterizerTest
@@ -0,0 +1,216 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Intersector;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Radius, box, ray and nearest-to-ray queries of the tree against the brute force
+ * loop over all objects - after the build, after small moves (refit), after
+ * large moves (rebuild) and with some of the objects hidden.
+ */
+public class SpatialIndexTest {
+
+    private static final int NUM_OBJECTS = 3000;
+
+    private static Model model;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        model = TestScenes.createQuadModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    private static void place(GameObject gameObject, Random random, float size) {
+        gameObject.setScale(nextFloat(random, 0.2f, 3.0f));
+        gameObject.setPosition(nextFloat(random, 0, size), nextFloat(random, 0, size * 0.1f), nextFloat(random, 0, size));
+        gameObject.setRotation(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+        gameObject.update();
+    }
+
+    private static TreeSet<Integer> getIDs(Array<SpatialObject> objects) {
+        TreeSet<Integer> ids = new TreeSet<Integer>();
+        for (int i = 0; i < objects.size; i++)
+            assertTrue(ids.add(objects.get(i).getSpatialObjectID()));
+        return ids;
+    }
+
+    private static float boxDistance2(BoundingBox box, Vector3 point) {
+        final float dx = Math.max(0.0f, Math.max(box.min.x - point.x, point.x - box.max.x));
+        final float dy = Math.max(0.0f, Math.max(box.min.y - point.y, point.y - box.max.y));
+        final float dz = Math.max(0.0f, Math.max(box.min.z - point.z, point.z - box.max.z));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * @return distance between the ray (from the origin on) and the object sphere
+     */
+    private static float rayDistance(Ray ray, SpatialObject object) {
+        final Vector3 center = object.getSphereCenter();
+        final Vector3 offset = new Vector3(center).sub(ray.origin);
+        final float t = Math.max(0.0f, offset.dot(ray.direction));
+        final float distance = new Vector3(ray.direction).scl(t).add(ray.origin).dst(center);
+        return Math.max(0.0f, distance - object.getSphereRadius());
+    }
+
+    private static void checkQueries(SpatialIndex index, Array<SpatialObject> objects, Random random, float size) {
+        final Array<SpatialObject> out = new Array<SpatialObject>();
+        final FloatArray distances = new FloatArray();
+        final TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int q = 0; q < 50; q++) {
+            final Vector3 point = new Vector3(nextFloat(random, 0, size), nextFloat(random, 0, size * 0.1f), nextFloat(random, 0, size));
+            final float radius = nextFloat(random, 0, size * 0.05f);
+            out.clear();
+            final int inRadius = index.queryRadius(point.x, point.y, point.z, radius, out);
+            assertEquals(out.size, inRadius);
+            expected.clear();
+            for (SpatialObject object : objects) {
+                if (object.isVisible() && boxDistance2(object.getBoundingBox(), point) <= radius * radius)
+                    expected.add(object.getSpatialObjectID());
+            }
+            assertEquals(expected, getIDs(out));
+
+            final BoundingBox box = new BoundingBox(point, new Vector3(point).add(nextFloat(random, 0, size * 0.1f),
+                    nextFloat(random, 0, size * 0.1f), nextFloat(random, 0, size * 0.1f)));
+            for (int contained = 0; contained < 2; contained++) {
+                out.clear();
+                final int inBox = index.queryBox(box, contained == 1, out);
+                assertEquals(out.size, inBox);
+                expected.clear();
+                for (SpatialObject object : objects) {
+                    if (!object.isVisible())
+                        continue;
+                    if (contained == 1 ? box.contains(object.getBoundingBox()) : box.intersects(object.getBoundingBox()))
+                        expected.add(object.getSpatialObjectID());
+                }
+                assertEquals(expected, getIDs(out));
+            }
+
+            final Ray ray = new Ray(point, new Vector3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f,
+                    random.nextFloat() - 0.5f).nor());
+            out.clear();
+            final int nearRay = index.queryRay(ray, out);
+            assertEquals(out.size, nearRay);
+            expected.clear();
+            for (SpatialObject object : objects) {
+                if (object.isVisible() && (rayDistance(ray, object) <= 0.0f ||
+                        Intersector.intersectRayBoundsFast(ray, object.getBoundingBox())))
+                    expected.add(object.getSpatialObjectID());
+            }
+            assertEquals(expected, getIDs(out));
+
+            final int k = 1 + random.nextInt(20);
+            out.clear();
+            distances.clear();
+            final int found = index.queryNearestToRay(ray, k, Float.MAX_VALUE, out, distances);
+            final float[] all = new float[objects.size];
+            int visible = 0;
+            for (SpatialObject object : objects) {
+                if (object.isVisible())
+                    all[visible++] = rayDistance(ray, object);
+            }
+            Arrays.sort(all, 0, visible);
+            assertEquals(Math.min(k, visible), found);
+            assertEquals(found, distances.size);
+            // the rounding grows with the coordinates
+            final float epsilon = size * 0.000001f;
+            for (int i = 0; i < found; i++) {
+                assertTrue(out.get(i).isVisible());
+                assertEquals(all[i], distances.get(i), epsilon);
+                assertEquals(rayDistance(ray, out.get(i)), distances.get(i), epsilon);
+            }
+        } // for each query
+    } // void checkQueries(...)
+
+    @Test
+    public void queriesMatchBruteForce() {
+        final Random random = new Random(49);
+        final float size = 1000.0f;
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        for (int i = 0; i < NUM_OBJECTS; i++) {
+            GameObject gameObject = new GameObject(model);
+            gameObject.setID(i);
+            place(gameObject, random, size);
+            gameObject.setVisible(random.nextInt(10) != 0);
+            objects.add(gameObject);
+        }
+        final SpatialIndex index = new SpatialIndex();
+        int sceneVersion = 1;
+        assertFalse(index.validate(objects, sceneVersion));
+        assertTrue(index.validate(objects, sceneVersion));
+        assertEquals(1, index.getBuildCount());
+        checkQueries(index, objects, random, size);
+
+        // small moves - refitted
+        for (int i = 0; i < NUM_OBJECTS; i += 3) {
+            GameObject gameObject = (GameObject) objects.get(i);
+            final Vector3 position = gameObject.getPosition();
+            gameObject.setPosition(position.x + nextFloat(random, -5, 5), position.y, position.z + nextFloat(random, -5, 5));
+            gameObject.update();
+            gameObject.setVisible(random.nextInt(10) != 0);
+        }
+        assertFalse(index.validate(objects, ++sceneVersion));
+        assertEquals(1, index.getBuildCount());
+        assertEquals(1, index.getRefitCount());
+        checkQueries(index, objects, random, size);
+
+        // everything moved far apart - the tree is rebuilt
+        for (int i = 0; i < NUM_OBJECTS; i++)
+            place((GameObject) objects.get(i), random, size * 10.0f);
+        assertFalse(index.validate(objects, ++sceneVersion));
+        assertEquals(2, index.getBuildCount());
+        checkQueries(index, objects, random, size * 10.0f);
+
+        // other objects
+        objects.removeRange(0, NUM_OBJECTS / 2);
+        assertFalse(index.validate(objects, sceneVersion));
+        assertEquals(NUM_OBJECTS - NUM_OBJECTS / 2 - 1, index.getObjectCount());
+        checkQueries(index, objects, random, size * 10.0f);
+    } // void queriesMatchBruteForce()
+
+    @Test
+    public void maxDistanceLimitsNearest() {
+        final Random random = new Random(50);
+        final Array<SpatialObject> objects = new Array<SpatialObject>();
+        for (int i = 0; i < 500; i++) {
+            GameObject gameObject = new GameObject(model);
+            gameObject.setID(i);
+            place(gameObject, random, 100.0f);
+            gameObject.setVisible(true);
+            objects.add(gameObject);
+        }
+        final SpatialIndex index = new SpatialIndex();
+        index.validate(objects, 1);
+        final Ray ray = new Ray(new Vector3(0, 5, 0), new Vector3(1, 0, 1).nor());
+        final Array<SpatialObject> out = new Array<SpatialObject>();
+        final FloatArray distances = new FloatArray();
+        final int found = index.queryNearestToRay(ray, objects.size, 2.0f, out, distances);
+        int expected = 0;
+        for (SpatialObject object : objects) {
+            if (rayDistance(ray, object) <= 2.0f)
+                expected++;
+        }
+        assertEquals(expected, found);
+        for (int i = 1; i < found; i++)
+            assertTrue(distances.get(i - 1) <= distances.get(i));
+    } // void maxDistanceLimitsNearest()
+
+} // class SpatialIndexTest
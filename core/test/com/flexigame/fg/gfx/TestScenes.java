@@ -0,0 +1,264 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Application;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.Graphics;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.IntBuffer;
+
+/**
+ * Headless helpers for the tests - natives, screen size (Camera.getPickRay()
+ * reads Gdx.graphics), simple quad model and scenes. No GL context needed.
+ */
+public final class TestScenes {
+
+    public static final int SCREEN_WIDTH = 100;
+    public static final int SCREEN_HEIGHT = 100;
+
+    private static boolean initialized = false;
+    private static boolean glInitialized = false;
+
+    private TestScenes() {
+    }
+
+    public static synchronized void init() {
+        if (initialized)
+            return;
+        GdxNativesLoader.load();
+        Gdx.graphics = (Graphics) Proxy.newProxyInstance(Graphics.class.getClassLoader(),
+                new Class[]{Graphics.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("getWidth") || name.equals("getBackBufferWidth"))
+                            return SCREEN_WIDTH;
+                        if (name.equals("getHeight") || name.equals("getBackBufferHeight"))
+                            return SCREEN_HEIGHT;
+                        return getDefault(method.getReturnType(), 0);
+                    }
+                });
+        initialized = true;
+    } // void init()
+
+    /**
+     * Default value of the return type for the proxies
+     */
+    private static Object getDefault(Class<?> type, int intValue) {
+        if (type == int.class) return intValue;
+        if (type == float.class) return 0.0f;
+        if (type == long.class) return 0L;
+        if (type == boolean.class) return false;
+        if (type == String.class) return "";
+        return null;
+    }
+
+    /**
+     * Application and GL stubs for the classes which create GL resources in
+     * the constructors (SimpleSceneManager - model batch, shape renderer).
+     * Nothing is drawn - the shaders compile, every handle is 1.
+     */
+    public static synchronized void initGL() {
+        init();
+        if (glInitialized)
+            return;
+        Gdx.app = (Application) Proxy.newProxyInstance(Application.class.getClassLoader(),
+                new Class[]{Application.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("getGraphics"))
+                            return Gdx.graphics;
+                        if (name.equals("getType"))
+                            return Application.ApplicationType.HeadlessDesktop;
+                        if (name.equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        if (name.equals("equals"))
+                            return proxy == args[0];
+                        return getDefault(method.getReturnType(), 0);
+                    }
+                });
+        final GL20 gl = (GL20) Proxy.newProxyInstance(GL20.class.getClassLoader(),
+                new Class[]{GL20.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("glGetShaderiv") || name.equals("glGetProgramiv")) {
+                            final int param = (Integer) args[1];
+                            if (param == GL20.GL_COMPILE_STATUS || param == GL20.GL_LINK_STATUS)
+                                ((IntBuffer) args[2]).put(0, 1);
+                        } else if (name.equals("glGetIntegerv")) {
+                            ((IntBuffer) args[1]).put(0, 16); // texture units
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return getDefault(method.getReturnType(), 1);
+                    }
+                });
+        Gdx.gl = gl;
+        Gdx.gl20 = gl;
+        glInitialized = true;
+    } // void initGL()
+
+    /**
+     * @return model with a single quad (-1..1 in XY plane), vertex arrays only
+     */
+    public static Model createQuadModel() {
+        final float[] vertices = {-1, -1, 0, 1, -1, 0, 1, 1, 0, -1, 1, 0};
+        final short[] indices = {0, 1, 2, 0, 2, 3};
+        return createModel("quad", vertices, indices);
+    }
+
+    /**
+     * @return model with a single cube (-1..1 on all axes), vertex arrays only
+     */
+    public static Model createBoxModel() {
+        final float[] vertices = {-1, -1, -1, 1, -1, -1, 1, 1, -1, -1, 1, -1,
+                -1, -1, 1, 1, -1, 1, 1, 1, 1, -1, 1, 1};
+        final short[] indices = {0, 2, 1, 0, 3, 2, 4, 5, 6, 4, 6, 7, 0, 1, 5, 0, 5, 4,
+                3, 6, 2, 3, 7, 6, 0, 4, 7, 0, 7, 3, 1, 2, 6, 1, 6, 5};
+        return createModel("box", vertices, indices);
+    }
+
+    /**
+     * @return model with a node hierarchy - root cube, child cube moved to
+     * the left and scaled down, its quad child above it and an empty node
+     * (no parts) on the right
+     */
+    public static Model createNodeModel() {
+        final Model box = createBoxModel();
+        final Model quad = createQuadModel();
+        final Model model = new Model();
+        final Node root = new Node();
+        root.id = "root";
+        root.parts.add(new NodePart(box.meshParts.get(0), new Material()));
+        final Node left = new Node();
+        left.id = "left";
+        left.translation.set(-3, 0, 0);
+        left.scale.set(0.5f, 0.5f, 0.5f);
+        left.parts.add(new NodePart(box.meshParts.get(0), new Material()));
+        final Node tip = new Node();
+        tip.id = "tip";
+        tip.translation.set(0, 3, 0);
+        tip.parts.add(new NodePart(quad.meshParts.get(0), new Material()));
+        final Node empty = new Node();
+        empty.id = "empty";
+        empty.translation.set(3, 0, 0);
+        left.addChild(tip);
+        root.addChild(left);
+        root.addChild(empty);
+        model.nodes.add(root);
+        model.meshes.addAll(box.meshes);
+        model.meshes.addAll(quad.meshes);
+        model.meshParts.addAll(box.meshParts);
+        model.meshParts.addAll(quad.meshParts);
+        model.calculateTransforms();
+        return model;
+    } // Model createNodeModel()
+
+    public static Model createModel(String id, float[] vertices, short[] indices) {
+        init();
+        Mesh mesh = new Mesh(Mesh.VertexDataType.VertexArray, true, vertices.length / 3, indices.length,
+                new VertexAttribute(VertexAttributes.Usage.Position, 3, "a_position"));
+        mesh.setVertices(vertices);
+        mesh.setIndices(indices);
+        Model model = new Model();
+        MeshPart meshPart = new MeshPart(id, mesh, 0, indices.length, GL20.GL_TRIANGLES);
+        Node node = new Node();
+        node.id = id;
+        node.parts.add(new NodePart(meshPart, new Material()));
+        model.nodes.add(node);
+        model.meshes.add(mesh);
+        model.meshParts.add(meshPart);
+        model.calculateTransforms();
+        return model;
+    } // Model createModel(...)
+
+    /**
+     * @return grid of small quads facing the camera from createCamera()
+     */
+    public static Array<SpatialObject> createGrid(Model model, int count) {
+        Array<SpatialObject> objects = new Array<SpatialObject>(count);
+        for (int i = 0; i < count; i++) {
+            GameObject gameObject = new GameObject(model);
+            gameObject.setID(i);
+            gameObject.setScale(0.2f, 0.2f, 1.0f);
+            gameObject.setPosition(-2.0f + 0.3f * (i % 14), -2.0f + 0.3f * (i / 14), -(i % 5) * 0.3f);
+            gameObject.update();
+            gameObject.setVisible(true);
+            objects.add(gameObject);
+        }
+        return objects;
+    } // Array<SpatialObject> createGrid(...)
+
+    public static PerspectiveCamera createCamera() {
+        init();
+        PerspectiveCamera camera = new PerspectiveCamera(60, SCREEN_WIDTH, SCREEN_HEIGHT);
+        camera.position.set(0, 0, 5);
+        camera.lookAt(0, 0, 0);
+        camera.update();
+        return camera;
+    }
+
+    public static PickSelection createPickSelection(PerspectiveCamera camera, Array<SpatialObject> objects) {
+        PickSelection pickSelection = new PickSelection();
+        pickSelection.setCamera(camera);
+        pickSelection.setScreenDimensions(SCREEN_WIDTH, SCREEN_HEIGHT);
+        pickSelection.setSpatialObjects(objects);
+        return pickSelection;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static com.sun.management.ThreadMXBean threadBean = null;
+    private static long measureOverhead = 0;
+
+    /**
+     * @return bytes allocated by the current thread so far or -1 when the
+     * JVM can't tell
+     */
+    public static long getAllocatedBytes() {
+        if (threadBean == null) {
+            final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean))
+                return -1;
+            final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+                return -1;
+            threadBean = sunBean;
+            // the query itself can allocate (result arrays) - measured once
+            long overhead = Long.MAX_VALUE;
+            for (int i = 0; i < 16; i++) {
+                final long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                final long after = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                overhead = Math.min(overhead, after - before);
+            }
+            measureOverhead = overhead;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    } // long getAllocatedBytes()
+
+    /**
+     * @return bytes allocated between the two getAllocatedBytes() results
+     * (without the cost of the query itself)
+     */
+    public static long getAllocatedSince(long before) {
+        return getAllocatedBytes() - before - measureOverhead;
+    }
+
+} // final class TestScenes
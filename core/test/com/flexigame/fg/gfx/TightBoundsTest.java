@@ -0,0 +1,182 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Matrix3;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fitted sphere and oriented box against every point they were fitted to -
+ * random clouds (stretched and rotated, flat, collinear, single point) and
+ * the world volumes of the objects with sheared transforms. The volumes
+ * must also be no worse than the ones of the axis aligned box.
+ */
+public class TightBoundsTest {
+
+    private static final float EPSILON = 0.0001f;
+
+    private static Model boxModel;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        boxModel = TestScenes.createBoxModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    /**
+     * @return box coordinates of the point (-1..1 inside), the flat axes
+     * give 0 when the point lies in the plane of the box
+     */
+    private static Vector3 toBoxCoordinates(OrientedBox box, Vector3 point) {
+        final Vector3 offset = new Vector3(point).sub(box.center);
+        final Vector3 local = new Vector3();
+        boolean flat = false;
+        for (Vector3 halfAxis : box.halfAxes)
+            flat |= halfAxis.len2() < EPSILON * EPSILON;
+        if (!flat) {
+            // the axes may be sheared in the world space
+            final Matrix3 axes = new Matrix3();
+            for (int a = 0; a < 3; a++) {
+                axes.val[a * 3] = box.halfAxes[a].x;
+                axes.val[a * 3 + 1] = box.halfAxes[a].y;
+                axes.val[a * 3 + 2] = box.halfAxes[a].z;
+            }
+            return local.set(offset).mul(axes.inv());
+        }
+        // orthogonal axes - projections (the residual has to be in the box plane)
+        final Vector3 residual = new Vector3(offset);
+        final float[] coordinates = new float[3];
+        for (int a = 0; a < 3; a++) {
+            final Vector3 halfAxis = box.halfAxes[a];
+            final float len2 = halfAxis.len2();
+            if (len2 < EPSILON * EPSILON)
+                continue;
+            coordinates[a] = offset.dot(halfAxis) / len2;
+            residual.mulAdd(halfAxis, -coordinates[a]);
+        }
+        assertEquals(0.0f, residual.len(), EPSILON * (1.0f + offset.len()));
+        return local.set(coordinates[0], coordinates[1], coordinates[2]);
+    } // Vector3 toBoxCoordinates(...)
+
+    private static void assertContains(OrientedBox box, Vector3 center, float radius, Vector3 point, float scale) {
+        final float epsilon = EPSILON * (1.0f + scale);
+        assertTrue(point + " outside of the sphere " + point.dst(center) + " > " + radius,
+                point.dst(center) <= radius + epsilon);
+        final Vector3 local = toBoxCoordinates(box, point);
+        final float tolerance = 1.0f + EPSILON * 10;
+        assertTrue(point + " outside of the box " + local, Math.abs(local.x) <= tolerance &&
+                Math.abs(local.y) <= tolerance && Math.abs(local.z) <= tolerance);
+    }
+
+    /**
+     * @return count random points - kind 0 stretched and rotated cloud,
+     * 1 flat, 2 collinear, 3 the same point, 4 cube corners
+     */
+    private static float[] createPoints(Random random, int kind, int count) {
+        final float[] points = new float[count * 3];
+        final Matrix4 transform = new Matrix4().setToTranslation(nextFloat(random, -10, 10),
+                nextFloat(random, -10, 10), nextFloat(random, -10, 10));
+        transform.rotate(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+        final Vector3 point = new Vector3();
+        for (int i = 0; i < count; i++) {
+            switch (kind) {
+                case 0:
+                    point.set(nextFloat(random, -8, 8), nextFloat(random, -2, 2), nextFloat(random, -0.5f, 0.5f));
+                    break;
+                case 1:
+                    point.set(nextFloat(random, -3, 3), nextFloat(random, -1, 1), 0.0f);
+                    break;
+                case 2:
+                    point.set(nextFloat(random, -5, 5), 0.0f, 0.0f);
+                    break;
+                case 3:
+                    point.set(1.0f, 2.0f, 3.0f);
+                    break;
+                default:
+                    point.set((i & 1) != 0 ? 1 : -1, (i & 2) != 0 ? 2 : -2, (i & 4) != 0 ? 3 : -3);
+                    break;
+            }
+            point.mul(transform);
+            points[i * 3] = point.x;
+            points[i * 3 + 1] = point.y;
+            points[i * 3 + 2] = point.z;
+        }
+        return points;
+    } // float[] createPoints(...)
+
+    @Test
+    public void pointsAreEnclosed() {
+        final Random random = new Random(32);
+        final Vector3 point = new Vector3(), min = new Vector3(), max = new Vector3();
+        for (int q = 0; q < 100; q++) {
+            final int kind = q % 5;
+            final int count = kind == 4 ? 8 : 1 + random.nextInt(500);
+            final float[] points = createPoints(random, kind, count);
+            final TightBounds bounds = new TightBounds().compute(points, count);
+            assertEquals(count, bounds.vertexCount);
+            min.set(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+            max.set(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+            float diameter = 0.0f;
+            for (int i = 0; i < count; i++) {
+                point.set(points[i * 3], points[i * 3 + 1], points[i * 3 + 2]);
+                assertContains(bounds.box, bounds.sphereCenter, bounds.sphereRadius, point, 10.0f);
+                min.set(Math.min(min.x, point.x), Math.min(min.y, point.y), Math.min(min.z, point.z));
+                max.set(Math.max(max.x, point.x), Math.max(max.y, point.y), Math.max(max.z, point.z));
+                for (int j = 0; j < i; j++)
+                    diameter = Math.max(diameter, point.dst(points[j * 3], points[j * 3 + 1], points[j * 3 + 2]));
+            }
+            // no worse than the axis aligned box, not smaller than the points allow
+            final Vector3 dimensions = new Vector3(max).sub(min);
+            assertTrue(bounds.sphereRadius <= dimensions.len() * 0.5f + EPSILON * 10);
+            assertTrue(bounds.sphereRadius >= diameter * 0.5f - EPSILON * 10);
+            assertTrue(bounds.box.volume() <= dimensions.x * dimensions.y * dimensions.z + EPSILON * 10);
+        } // for each cloud
+    } // void pointsAreEnclosed()
+
+    @Test
+    public void emptyPoints() {
+        final TightBounds bounds = new TightBounds().compute(new float[0], 0);
+        assertEquals(0, bounds.vertexCount);
+        assertEquals(0.0f, bounds.sphereRadius, 0.0f);
+        assertEquals(0.0f, bounds.box.volume(), 0.0f);
+    }
+
+    @Test
+    public void worldVolumesEncloseTransformedVertices() {
+        final Random random = new Random(320);
+        final Vector3 corner = new Vector3();
+        for (int q = 0; q < 200; q++) {
+            final GameObject parent = new GameObject(boxModel);
+            parent.setPosition(nextFloat(random, -20, 20), nextFloat(random, -20, 20), nextFloat(random, -20, 20));
+            parent.setScale(nextFloat(random, 0.2f, 4.0f), nextFloat(random, 0.2f, 4.0f), nextFloat(random, 0.2f, 4.0f));
+            parent.setRotation(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+            final GameObject child = new GameObject(boxModel);
+            child.setUseTightBounds(true);
+            child.setPosition(nextFloat(random, -5, 5), nextFloat(random, -5, 5), nextFloat(random, -5, 5));
+            child.setScale(nextFloat(random, 0.2f, 4.0f), nextFloat(random, 0.2f, 4.0f), nextFloat(random, 0.2f, 4.0f));
+            // rotated after the non-uniform scale of the parent - sheared
+            child.setRotation(random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat(), random.nextFloat() * 360);
+            child.setParent(parent);
+            parent.update();
+            final Matrix4 transform = child.getTransform();
+            final OrientedBox box = child.getOrientedBox();
+            final float scale = child.getRadius() + child.getCenter().len();
+            for (int i = 0; i < 8; i++) {
+                corner.set((i & 1) != 0 ? 1 : -1, (i & 2) != 0 ? 1 : -1, (i & 4) != 0 ? 1 : -1).mul(transform);
+                assertContains(box, child.getSphereCenter(), child.getSphereRadius(), corner, scale);
+            }
+        } // for each object
+    } // void worldVolumesEncloseTransformedVertices()
+
+} // class TightBoundsTest
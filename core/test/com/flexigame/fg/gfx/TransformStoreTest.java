@@ -0,0 +1,143 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * World bounds of the store slots against BoundingBox.mul() (corners
+ * transformed one by one) and the radii against the farthest corner - with
+ * random sheared matrices too, as the child of a non-uniformly scaled parent
+ * ends up with.
+ */
+public class TransformStoreTest {
+
+    private static final int NUM_SLOTS = 500;
+    private static final float EPSILON = 0.0001f;
+
+    private static Model boxModel;
+
+    @BeforeClass
+    public static void setUp() {
+        TestScenes.init();
+        boxModel = TestScenes.createBoxModel();
+    }
+
+    private static float nextFloat(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    private static Matrix4 randomTransform(Random random) {
+        final Matrix4 transform = new Matrix4();
+        transform.setToTranslation(nextFloat(random, -50, 50), nextFloat(random, -50, 50), nextFloat(random, -50, 50));
+        transform.rotate(random.nextFloat(), random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat() * 360);
+        transform.scale(nextFloat(random, 0.1f, 5.0f), nextFloat(random, 0.1f, 5.0f), nextFloat(random, 0.1f, 5.0f));
+        // every other one sheared - rotated after the non-uniform scale
+        if (random.nextBoolean())
+            transform.rotate(random.nextFloat(), random.nextFloat() + 0.1f, random.nextFloat(), random.nextFloat() * 360);
+        return transform;
+    }
+
+    private static BoundingBox randomBox(Random random) {
+        final Vector3 min = new Vector3(nextFloat(random, -5, 5), nextFloat(random, -5, 5), nextFloat(random, -5, 5));
+        return new BoundingBox(min, new Vector3(min).add(nextFloat(random, 0, 4), nextFloat(random, 0, 4), nextFloat(random, 0, 4)));
+    }
+
+    /**
+     * @return distance of the farthest transformed corner from the point
+     */
+    private static float maxCornerDistance(BoundingBox local, Matrix4 transform, Vector3 point) {
+        float max = 0.0f;
+        final Vector3 corner = new Vector3();
+        for (int i = 0; i < 8; i++) {
+            corner.set((i & 4) != 0 ? local.max.x : local.min.x, (i & 2) != 0 ? local.max.y : local.min.y,
+                    (i & 1) != 0 ? local.max.z : local.min.z).mul(transform);
+            max = Math.max(max, corner.dst(point));
+        }
+        return max;
+    }
+
+    private static void assertBoxEquals(BoundingBox expected, BoundingBox actual, float epsilon) {
+        assertEquals(expected.min.x, actual.min.x, epsilon);
+        assertEquals(expected.min.y, actual.min.y, epsilon);
+        assertEquals(expected.min.z, actual.min.z, epsilon);
+        assertEquals(expected.max.x, actual.max.x, epsilon);
+        assertEquals(expected.max.y, actual.max.y, epsilon);
+        assertEquals(expected.max.z, actual.max.z, epsilon);
+    }
+
+    @Test
+    public void boundsMatchBoundingBoxMul() {
+        final Random random = new Random(29);
+        final TransformStore store = new TransformStore(4);
+        final BoundingBox[] locals = new BoundingBox[NUM_SLOTS];
+        final Matrix4[] transforms = new Matrix4[NUM_SLOTS];
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            locals[i] = randomBox(random);
+            transforms[i] = randomTransform(random);
+            assertEquals(i, store.add(locals[i], transforms[i]));
+        }
+        assertEquals(NUM_SLOTS, store.updateBounds());
+        assertEquals(0, store.updateBounds());
+        for (int round = 0; round < 3; round++) {
+            final BoundingBox expected = new BoundingBox(), actual = new BoundingBox();
+            final Vector3 center = new Vector3();
+            for (int i = 0; i < NUM_SLOTS; i++) {
+                assertFalse(store.isDirty(i));
+                expected.set(locals[i]).mul(transforms[i]);
+                store.getWorldBounds(i, actual);
+                final float epsilon = EPSILON * (1.0f + expected.getDimensions(new Vector3()).len() +
+                        expected.getCenter(new Vector3()).len());
+                assertBoxEquals(expected, actual, epsilon);
+                store.getWorldCenter(i, center);
+                assertEquals(maxCornerDistance(locals[i], transforms[i], center), store.getRadius(i), epsilon);
+            }
+            // some slots changed - only those are updated
+            int changed = 0;
+            for (int i = 0; i < NUM_SLOTS; i += 1 + random.nextInt(4)) {
+                transforms[i] = randomTransform(random);
+                store.setTransform(i, transforms[i]);
+                if (random.nextBoolean()) {
+                    locals[i] = randomBox(random);
+                    store.setLocalBounds(i, locals[i]);
+                }
+                assertTrue(store.isDirty(i));
+                changed++;
+            }
+            assertEquals(changed, store.updateBounds(0, NUM_SLOTS / 2) + store.updateBounds(NUM_SLOTS / 2, NUM_SLOTS));
+        } // for each round
+    } // void boundsMatchBoundingBoxMul()
+
+    @Test
+    public void shearedChildIsEnclosed() {
+        final GameObject parent = new GameObject(boxModel);
+        parent.setScale(2.0f, 1.0f, 1.0f);
+        final GameObject child = new GameObject(boxModel);
+        child.setRotation(0, 0, 1, 45);
+        child.setParent(parent);
+        parent.update();
+        final Matrix4 transform = child.getTransform();
+        final BoundingBox local = child.getOriginalBoundingBox();
+        final float farthest = maxCornerDistance(local, transform, child.getCenter());
+        assertEquals(farthest, child.getRadius(), EPSILON);
+
+        // the same with the store attached
+        final TransformStore store = new TransformStore();
+        child.setID(store.add(local, transform));
+        child.setTransformStore(store);
+        child.setRotation(0, 0, 1, 30);
+        parent.update();
+        assertEquals(maxCornerDistance(local, child.getTransform(), child.getCenter()), child.getRadius(), EPSILON);
+        assertTrue(farthest > 2.9f);
+    } // void shearedChildIsEnclosed()
+
+} // class TransformStoreTest
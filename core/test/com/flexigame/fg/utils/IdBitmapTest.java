@@ -0,0 +1,172 @@
+package com.flexigame.fg.utils;
+
+import com.badlogic.gdx.utils.IntArray;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IdBitmap against the brute force TreeSet - random IDs from the sparse and
+ * dense ranges (both container forms and the conversions between them).
+ */
+public class IdBitmapTest {
+
+    private static int randomID(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(6000); // dense first container
+            case 1:
+                return 65536 + random.nextInt(300); // sparse second container
+            case 2:
+                return random.nextInt(1 << 20);
+            default:
+                return random.nextInt(); // any key, negative too
+        }
+    }
+
+    private static void assertSame(TreeSet<Integer> expected, IdBitmap bitmap) {
+        assertEquals(expected.size(), bitmap.cardinality());
+        assertEquals(expected.isEmpty(), bitmap.isEmpty());
+        IntArray ids = bitmap.toArray(new IntArray());
+        assertEquals(expected.size(), ids.size);
+        // toArray() is in the unsigned order
+        TreeSet<Long> unsigned = new TreeSet<Long>();
+        for (Integer id : expected)
+            unsigned.add(id & 0xFFFFFFFFL);
+        Iterator<Long> iterator = unsigned.iterator();
+        for (int i = 0; i < ids.size; i++)
+            assertEquals((long) iterator.next(), ids.get(i) & 0xFFFFFFFFL);
+    } // void assertSame(...)
+
+    @Test
+    public void randomOperationsMatchTreeSet() {
+        final Random random = new Random(47);
+        IdBitmap a = new IdBitmap(), b = new IdBitmap();
+        TreeSet<Integer> setA = new TreeSet<Integer>(), setB = new TreeSet<Integer>();
+        for (int step = 0; step < 3000; step++) {
+            final int operation = random.nextInt(12);
+            switch (operation) {
+                case 0:
+                case 1: {
+                    final int count = random.nextInt(operation == 0 ? 50 : 5000);
+                    for (int i = 0; i < count; i++) {
+                        final int id = randomID(random);
+                        assertEquals(setA.add(id), a.add(id));
+                    }
+                    break;
+                }
+                case 2: {
+                    final int count = random.nextInt(3000);
+                    for (int i = 0; i < count; i++) {
+                        final int id = random.nextBoolean() || setA.isEmpty() ? randomID(random) : setA.first();
+                        assertEquals(setA.remove(id), a.remove(id));
+                    }
+                    break;
+                }
+                case 3:
+                    a.or(b);
+                    setA.addAll(setB);
+                    break;
+                case 4:
+                    a.and(b);
+                    setA.retainAll(setB);
+                    break;
+                case 5:
+                    a.andNot(b);
+                    setA.removeAll(setB);
+                    break;
+                case 6: {
+                    a.xor(b);
+                    TreeSet<Integer> common = new TreeSet<Integer>(setA);
+                    common.retainAll(setB);
+                    setA.addAll(setB);
+                    setA.removeAll(common);
+                    break;
+                }
+                case 7:
+                    b.set(a);
+                    setB = new TreeSet<Integer>(setA);
+                    break;
+                case 8: {
+                    // swap - the operations run in both directions
+                    IdBitmap bitmap = a;
+                    a = b;
+                    b = bitmap;
+                    TreeSet<Integer> set = setA;
+                    setA = setB;
+                    setB = set;
+                    break;
+                }
+                case 9:
+                    if (random.nextInt(10) == 0) {
+                        a.clear();
+                        setA.clear();
+                    }
+                    break;
+                case 10: {
+                    final int count = random.nextInt(2000);
+                    for (int i = 0; i < count; i++) {
+                        final int id = randomID(random);
+                        assertEquals(setB.add(id), b.add(id));
+                    }
+                    break;
+                }
+                default: {
+                    IdBitmap copy = new IdBitmap(a).trim();
+                    assertTrue(copy.equals(a));
+                    assertEquals(copy.hashCode(), a.hashCode());
+                    break;
+                }
+            } // switch operation
+            for (int i = 0; i < 20; i++) {
+                final int id = randomID(random);
+                assertEquals(setA.contains(id), a.contains(id));
+            }
+            if (step % 50 == 0) {
+                assertSame(setA, a);
+                assertSame(setB, b);
+            }
+        } // for each step
+        assertSame(setA, a);
+        assertSame(setB, b);
+    } // void randomOperationsMatchTreeSet()
+
+    @Test
+    public void operationsWithItself() {
+        IdBitmap bitmap = new IdBitmap();
+        for (int i = 0; i < 5000; i++)
+            bitmap.add(i * 3);
+        IdBitmap copy = new IdBitmap(bitmap);
+        assertTrue(bitmap.or(bitmap).equals(copy));
+        assertTrue(bitmap.and(bitmap).equals(copy));
+        assertTrue(bitmap.andNot(bitmap).isEmpty());
+        bitmap.set(copy);
+        assertTrue(bitmap.xor(bitmap).isEmpty());
+        assertFalse(copy.isEmpty());
+    }
+
+    @Test
+    public void denseContainerConvertsBack() {
+        IdBitmap bitmap = new IdBitmap();
+        for (int i = 0; i <= IdBitmap.ARRAY_MAX; i++)
+            bitmap.add(i);
+        bitmap.remove(0);
+        assertEquals(IdBitmap.ARRAY_MAX, bitmap.cardinality());
+        assertFalse(bitmap.contains(0));
+        assertTrue(bitmap.contains(IdBitmap.ARRAY_MAX));
+        IntArray ids = bitmap.toArray(new IntArray());
+        for (int i = 0; i < ids.size; i++)
+            assertEquals(i + 1, ids.get(i));
+        // and dense again
+        assertTrue(bitmap.add(0));
+        assertTrue(bitmap.contains(0));
+        assertEquals(IdBitmap.ARRAY_MAX + 1, bitmap.cardinality());
+    }
+
+} // class IdBitmapTest